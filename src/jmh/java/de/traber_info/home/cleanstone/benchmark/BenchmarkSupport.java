@@ -0,0 +1,73 @@
+package de.traber_info.home.cleanstone.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shared fixtures of the benchmarks. Installs a configuration without reading a config file and builds the data
+ * clients send on join.
+ *
+ * @author Oliver Traber
+ */
+public class BenchmarkSupport {
+
+    /** Protocol version sent in generated handshakes */
+    public static final int PROTOCOL_VERSION = 767;
+
+    /** Configuration used by all benchmarks. Only the defaults matter, no backend server is ever connected */
+    private static final String CONFIG = "{\"listenPort\": 25565, \"backendServerMappings\": []}";
+
+    /**
+     * Install the benchmark configuration, so classes reading the config don't look for a config file.
+     * @throws IOException Thrown if the configuration can't be parsed.
+     */
+    public static void loadConfig() throws IOException {
+        if (ConfigUtil.config == null) {
+            ConfigUtil.config = new ObjectMapper().readValue(CONFIG, ConfigFile.class);
+        }
+    }
+
+    /**
+     * Create a backend server mapping, the same way it is read from the config file.
+     * @param domain Domain that should be forwarded to the backend server.
+     * @return Mapping of the domain to a local backend server.
+     * @throws IOException Thrown if the mapping can't be parsed.
+     */
+    public static BackendServerMapping createMapping(String domain) throws IOException {
+        String json = "{\"mappingDomain\": \"" + domain + "\", " +
+                "\"backendServerAddress\": \"127.0.0.1\", \"backendServerPort\": 25566}";
+        return new ObjectMapper().readValue(json, BackendServerMapping.class);
+    }
+
+    /**
+     * Build the length-prefixed handshake packet a client sends to log in.
+     * @param serverAddress Server address the client wants to connect to, including any Forge appendix.
+     * @return Complete handshake packet.
+     */
+    public static byte[] createHandshake(String serverAddress) {
+        byte[] address = serverAddress.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(address.length + 16);
+        DatatypeUtil.writeVarInt(body, 0);
+        DatatypeUtil.writeVarInt(body, PROTOCOL_VERSION);
+        DatatypeUtil.writeVarInt(body, address.length);
+        body.put(address);
+        DatatypeUtil.writeUnsignedShort(body, 25565);
+        DatatypeUtil.writeVarInt(body, 2);
+        body.flip();
+
+        ByteBuffer packet = ByteBuffer.allocate(body.remaining() + DatatypeUtil.MAX_VARINT_LENGTH);
+        DatatypeUtil.writeVarInt(packet, body.remaining());
+        packet.put(body);
+        byte[] result = new byte[packet.position()];
+        packet.flip().get(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,102 @@
+package de.traber_info.home.cleanstone.benchmark;
+
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the protocol data types read from every handshake.
+ *
+ * @author Oliver Traber
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatatypeBenchmark {
+
+    /** VarInt encoded in a single byte, like packet ids */
+    private ByteBuffer shortVarInt;
+
+    /** VarInt encoded in five bytes, the longest valid encoding */
+    private ByteBuffer longVarInt;
+
+    /** String holding a typical hostname */
+    private ByteBuffer asciiString;
+
+    /** String holding a hostname with non-ASCII characters */
+    private ByteBuffer unicodeString;
+
+    /**
+     * Encode the values read by the benchmarks.
+     */
+    @Setup
+    public void setup() {
+        shortVarInt = ByteBuffer.allocate(DatatypeUtil.MAX_VARINT_LENGTH);
+        DatatypeUtil.writeVarInt(shortVarInt, 0);
+        longVarInt = ByteBuffer.allocate(DatatypeUtil.MAX_VARINT_LENGTH);
+        DatatypeUtil.writeVarInt(longVarInt, -1);
+        asciiString = ByteBuffer.allocate(64);
+        DatatypeUtil.writeString(asciiString, "play.example.com");
+        unicodeString = ByteBuffer.allocate(64);
+        DatatypeUtil.writeString(unicodeString, "spiel.b\u00fccherw\u00fcrmer.de");
+        for (ByteBuffer buffer : new ByteBuffer[] { shortVarInt, longVarInt, asciiString, unicodeString }) {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Read a VarInt encoded in a single byte.
+     * @return Decoded value.
+     */
+    @Benchmark
+    public int readShortVarInt() throws ProtocolException {
+        shortVarInt.position(0);
+        return DatatypeUtil.readVarInt(shortVarInt);
+    }
+
+    /**
+     * Read a VarInt encoded in five bytes.
+     * @return Decoded value.
+     */
+    @Benchmark
+    public int readLongVarInt() throws ProtocolException {
+        longVarInt.position(0);
+        return DatatypeUtil.readVarInt(longVarInt);
+    }
+
+    /**
+     * Read an ASCII hostname, which takes the fast path.
+     * @return Decoded hostname.
+     */
+    @Benchmark
+    public String readAsciiString() throws ProtocolException {
+        asciiString.position(0);
+        return DatatypeUtil.readString(asciiString, DatatypeUtil.MAX_SERVER_ADDRESS_LENGTH);
+    }
+
+    /**
+     * Read a hostname that has to be decoded as UTF-8.
+     * @return Decoded hostname.
+     */
+    @Benchmark
+    public String readUnicodeString() throws ProtocolException {
+        unicodeString.position(0);
+        return DatatypeUtil.readString(unicodeString, DatatypeUtil.MAX_SERVER_ADDRESS_LENGTH);
+    }
+
+}
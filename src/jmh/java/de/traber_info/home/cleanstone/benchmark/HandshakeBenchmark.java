@@ -0,0 +1,99 @@
+package de.traber_info.home.cleanstone.benchmark;
+
+import de.traber_info.home.cleanstone.model.object.Handshake;
+import de.traber_info.home.cleanstone.model.object.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of parsing the handshake, which runs on every join.
+ *
+ * @author Oliver Traber
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    /** Regex previously used to remove the Forge Modloader appendix, kept as baseline */
+    private static final Pattern fmlPattern = Pattern.compile("\u0000FML.*\u0000");
+
+    /** Handshake of a vanilla client */
+    private byte[] vanillaHandshake;
+
+    /** Handshake of a client using Minecraft Forge */
+    private byte[] forgeHandshake;
+
+    /** Server address of the Forge handshake, including the appendix */
+    private String forgeServerAddress;
+
+    /**
+     * Build the handshakes.
+     * @throws IOException Thrown if the configuration can't be created.
+     */
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkSupport.loadConfig();
+        vanillaHandshake = BenchmarkSupport.createHandshake("play.example.com");
+        forgeServerAddress = "play.example.com\u0000FML3\u0000";
+        forgeHandshake = BenchmarkSupport.createHandshake(forgeServerAddress);
+    }
+
+    /**
+     * Parse the length and id of the handshake packet.
+     * @return Parsed packet.
+     * @throws ProtocolException Thrown if the packet is invalid.
+     */
+    @Benchmark
+    public Packet parsePacket() throws ProtocolException {
+        return new Packet(vanillaHandshake);
+    }
+
+    /**
+     * Parse the fields of a vanilla handshake and decode its server address.
+     * @return Decoded server address.
+     * @throws ProtocolException Thrown if the handshake is invalid.
+     */
+    @Benchmark
+    public String parseVanillaHandshake() throws ProtocolException {
+        return new Handshake(vanillaHandshake, vanillaHandshake.length).getServerAddress();
+    }
+
+    /**
+     * Parse the fields of a Forge handshake and decode its server address without the appendix.
+     * @return Decoded server address.
+     * @throws ProtocolException Thrown if the handshake is invalid.
+     */
+    @Benchmark
+    public String parseForgeHandshake() throws ProtocolException {
+        return new Handshake(forgeHandshake, forgeHandshake.length).getServerAddress();
+    }
+
+    /**
+     * Remove the Forge appendix with the regex used before, as baseline for {@link #parseForgeHandshake()}.
+     * @return Server address without the appendix.
+     */
+    @Benchmark
+    public String stripForgeAppendixRegex() {
+        byte[] address = forgeServerAddress.getBytes(StandardCharsets.UTF_8);
+        return fmlPattern.matcher(new String(address, StandardCharsets.UTF_8)).replaceAll("");
+    }
+
+}
@@ -0,0 +1,97 @@
+package de.traber_info.home.cleanstone.benchmark;
+
+import de.traber_info.home.cleanstone.util.ProxyProtoUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of en- and decoding PROXY protocol v2 headers.
+ *
+ * @author Oliver Traber
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyProtoBenchmark {
+
+    /** Address of a client */
+    private InetSocketAddress clientAddress;
+
+    /** Address of the listener */
+    private InetSocketAddress localAddress;
+
+    /** Buffer headers are encoded into */
+    private ByteBuffer target;
+
+    /** Encoded header of an IPv4 connection */
+    private byte[] header;
+
+    /**
+     * Create the addresses and encode the header decoded by the benchmarks.
+     * @throws UnknownHostException Thrown if an address can't be created.
+     */
+    @Setup
+    public void setup() throws UnknownHostException {
+        clientAddress = new InetSocketAddress(InetAddress.getByAddress(new byte[] { (byte) 203, 0, 113, 7 }), 51234);
+        localAddress = new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 25565);
+        target = ByteBuffer.allocate(ProxyProtoUtil.getEncodedLength(clientAddress, localAddress));
+        ProxyProtoUtil.encode(target, ProxyProtoUtil.TransportFam.TCP, clientAddress, localAddress);
+        header = target.array().clone();
+    }
+
+    /**
+     * Encode the header of an IPv4 connection.
+     * @return Buffer holding the header.
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        target.clear();
+        ProxyProtoUtil.encode(target, ProxyProtoUtil.TransportFam.TCP, clientAddress, localAddress);
+        return target;
+    }
+
+    /**
+     * Decode the header of an IPv4 connection without accessing the addresses.
+     * @return Decoded header.
+     */
+    @Benchmark
+    public ProxyProtoUtil.ProxyProtoHeader decode() {
+        return ProxyProtoUtil.decode(header, true);
+    }
+
+    /**
+     * Decode the header of an IPv4 connection and convert the client address, like routing does.
+     * @return Client address.
+     */
+    @Benchmark
+    public InetAddress decodeSourceAddress() {
+        return ProxyProtoUtil.decode(header, true).getSourceAddress();
+    }
+
+    /**
+     * Check data for the PROXY protocol signature.
+     * @return true, since the data starts with a header.
+     */
+    @Benchmark
+    public boolean hasProxyProtocolHeader() {
+        return ProxyProtoUtil.hasProxyProtocolHeader(header);
+    }
+
+}
@@ -0,0 +1,158 @@
+package de.traber_info.home.cleanstone.benchmark;
+
+import de.traber_info.home.cleanstone.proxy.ClientServerProxy;
+import de.traber_info.home.cleanstone.proxy.ConnectionLifecycle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the blocking relay. Data is written to a loopback socket, relayed by a {@link ClientServerProxy}
+ * to a second loopback socket and drained from there, all within the benchmark JVM.
+ *
+ * @author Oliver Traber
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+
+    /** Count of bytes relayed per operation */
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    /** Socket the benchmark writes to, the client side */
+    private Socket client;
+
+    /** Socket the relay reads from */
+    private Socket relayIn;
+
+    /** Socket the relay writes to */
+    private Socket relayOut;
+
+    /** Socket the drain thread reads from, the backend server side */
+    private Socket server;
+
+    /** Stream the payload is written to */
+    private OutputStream clientOutput;
+
+    /** Lifecycle of the relayed connection */
+    private ConnectionLifecycle lifecycle;
+
+    /** Data written per operation */
+    private byte[] payload;
+
+    /** Count of bytes drained from the backend server side */
+    private final AtomicLong received = new AtomicLong();
+
+    /** Count of bytes written to the client side */
+    private long sent = 0;
+
+    /**
+     * Connect the loopback sockets and start relaying and draining.
+     * @throws IOException Thrown if a socket can't be connected.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkSupport.loadConfig();
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+
+        try (ServerSocket listener = new ServerSocket(0, 2, InetAddress.getLoopbackAddress())) {
+            client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            relayIn = listener.accept();
+            relayOut = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            server = listener.accept();
+        }
+        for (Socket socket : new Socket[] { client, relayIn, relayOut, server }) {
+            socket.setTcpNoDelay(true);
+        }
+        clientOutput = client.getOutputStream();
+
+        lifecycle = new ConnectionLifecycle((InetSocketAddress) relayIn.getRemoteSocketAddress(),
+                ConnectionLifecycle.Endpoint.of(relayIn));
+        lifecycle.open((InetSocketAddress) relayOut.getRemoteSocketAddress(),
+                ConnectionLifecycle.Endpoint.of(relayOut));
+        startDaemon("relay", new ClientServerProxy(relayIn, relayOut, lifecycle,
+                ConnectionLifecycle.Direction.CLIENT_TO_SERVER));
+        startDaemon("drain", this::drain);
+    }
+
+    /**
+     * Write the payload and wait until it was relayed completely.
+     * @return Count of bytes relayed so far.
+     * @throws IOException Thrown if writing fails.
+     */
+    @Benchmark
+    public long relay() throws IOException {
+        clientOutput.write(payload);
+        sent += payload.length;
+        long total;
+        while ((total = received.get()) < sent) {
+            Thread.onSpinWait();
+        }
+        return total;
+    }
+
+    /**
+     * Close all sockets, which ends relaying and draining.
+     * @throws IOException Thrown if closing fails.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        lifecycle.close(null);
+        client.close();
+        server.close();
+    }
+
+    /**
+     * Read everything arriving at the backend server side and count it.
+     */
+    private void drain() {
+        byte[] buffer = new byte[65536];
+        try (InputStream input = server.getInputStream()) {
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) != -1) {
+                received.addAndGet(bytesRead);
+            }
+        } catch (IOException ex) {
+            // Socket was closed by the tear down
+        }
+    }
+
+    /**
+     * Start a daemon thread, so a stuck relay can't keep the benchmark JVM alive.
+     * @param name Name of the thread.
+     * @param task Task run by the thread.
+     */
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, "benchmark-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
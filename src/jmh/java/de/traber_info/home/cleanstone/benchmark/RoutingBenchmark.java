@@ -0,0 +1,110 @@
+package de.traber_info.home.cleanstone.benchmark;
+
+import de.traber_info.home.cleanstone.CleanStone;
+import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+import de.traber_info.home.cleanstone.model.object.Handshake;
+import de.traber_info.home.cleanstone.proxy.BackendGroup;
+import de.traber_info.home.cleanstone.proxy.DomainRouter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of looking up the backend server a client is routed to.
+ *
+ * @author Oliver Traber
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    /** Count of configured backend server mappings */
+    @Param({"10", "10000"})
+    public int mappingCount;
+
+    /** Handshake of a client connecting to a mapped domain */
+    private byte[] knownHandshake;
+
+    /** Handshake of a client connecting to a domain without mapping */
+    private byte[] unknownHandshake;
+
+    /** Handshake of a Forge client connecting to a subdomain of a wildcard mapping, in mixed case */
+    private byte[] wildcardHandshake;
+
+    /** Index of the mappings */
+    private DomainRouter router;
+
+    /**
+     * Build the handshakes and fill the routing table.
+     * @throws IOException Thrown if the configuration can't be created.
+     */
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkSupport.loadConfig();
+        knownHandshake = BenchmarkSupport.createHandshake("play.example.com");
+        unknownHandshake = BenchmarkSupport.createHandshake("unknown.example.org");
+
+        wildcardHandshake = BenchmarkSupport.createHandshake("Lobby.Network.example.com.\0FML2\0");
+
+        List<BackendServerMapping> mappings = new ArrayList<>();
+        for (int i = 0; i < mappingCount - 2; i++) {
+            mappings.add(BenchmarkSupport.createMapping("server" + i + ".example.com"));
+        }
+        mappings.add(BenchmarkSupport.createMapping("*.network.example.com"));
+        mappings.add(BenchmarkSupport.createMapping("play.example.com"));
+        router = new DomainRouter(mappings);
+        CleanStone.setDomainRouter(router);
+    }
+
+    /**
+     * Parse a handshake and look up the backend server of a mapped domain.
+     * @return Backend servers of the mapping.
+     * @throws ProtocolException Thrown if the handshake is invalid.
+     */
+    @Benchmark
+    public BackendGroup routeKnown() throws ProtocolException {
+        Handshake handshake = new Handshake(knownHandshake, knownHandshake.length);
+        return router.lookup(handshake);
+    }
+
+    /**
+     * Parse a handshake and look up a domain without mapping.
+     * @return Always null.
+     * @throws ProtocolException Thrown if the handshake is invalid.
+     */
+    @Benchmark
+    public BackendGroup routeUnknown() throws ProtocolException {
+        Handshake handshake = new Handshake(unknownHandshake, unknownHandshake.length);
+        return router.lookup(handshake);
+    }
+
+    /**
+     * Parse a Forge handshake and look up the backend server of a wildcard mapping.
+     * @return Backend servers of the mapping.
+     * @throws ProtocolException Thrown if the handshake is invalid.
+     */
+    @Benchmark
+    public BackendGroup routeWildcard() throws ProtocolException {
+        Handshake handshake = new Handshake(wildcardHandshake, wildcardHandshake.length);
+        return router.lookup(handshake);
+    }
+
+}
@@ -0,0 +1,389 @@
+package de.traber_info.home.cleanstone.loadgen;
+
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import de.traber_info.home.cleanstone.util.ProxyProtoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Swarm of simulated Minecraft clients. Clients connect at the configured join rate, either ping the server status
+ * or log in, and joined clients send a steady payload they expect to be echoed by the backend server. All clients
+ * are driven by a single selector thread.
+ *
+ * @author Oliver Traber
+ */
+public class ClientSwarm {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(ClientSwarm.class.getName());
+
+    /** Size of the receive buffer of each client */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Time the selector waits for events at most, in milliseconds */
+    private static final long TICK_MILLIS = 5;
+
+    /** States of a client */
+    private enum State {
+        CONNECTING, STATUS, LOGIN, JOINED, CLOSED
+    }
+
+    /** Settings of the run */
+    private final LoadSettings settings;
+
+    /** Selector all clients are registered with */
+    private final Selector selector;
+
+    /** All clients started so far */
+    private final List<Client> clients = new ArrayList<>();
+
+    /** Payload sent by joined clients */
+    private final byte[] payload;
+
+    /** Latencies from connecting to receiving the login success */
+    private final LatencyRecorder joinLatency = new LatencyRecorder();
+
+    /** Latencies from connecting to receiving the pong */
+    private final LatencyRecorder statusLatency = new LatencyRecorder();
+
+    /** Count of clients that started connecting */
+    private final AtomicLong started = new AtomicLong();
+
+    /** Count of clients that failed to connect or were disconnected before finishing */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Count of clients currently joined */
+    private final AtomicLong joined = new AtomicLong();
+
+    /** Count of payload bytes sent by joined clients */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /** Count of payload bytes echoed back to joined clients */
+    private final AtomicLong bytesEchoed = new AtomicLong();
+
+    /**
+     * Create the swarm.
+     * @param settings Settings of the run.
+     * @throws IOException Thrown if the selector can't be opened.
+     */
+    public ClientSwarm(LoadSettings settings) throws IOException {
+        this.settings = settings;
+        this.selector = Selector.open();
+        this.payload = new byte[settings.getPayloadSize()];
+        ThreadLocalRandom.current().nextBytes(payload);
+    }
+
+    /**
+     * Drive the clients until the duration of the run elapsed, then disconnect all of them.
+     * @throws IOException Thrown if the selector fails.
+     */
+    public void run() throws IOException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(settings.getDurationSeconds());
+        long nanosPerJoin = (long) (TimeUnit.SECONDS.toNanos(1) / settings.getJoinRate());
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            // Start all clients that are due according to the join rate
+            while (started.get() < settings.getConnections() && now - start >= started.get() * nanosPerJoin) {
+                startClient(now);
+            }
+
+            selector.select(TICK_MILLIS);
+            for (SelectionKey key : selector.selectedKeys()) {
+                if (key.isValid()) ((Client) key.attachment()).handle(key);
+            }
+            selector.selectedKeys().clear();
+
+            if (settings.getIntervalMillis() > 0) {
+                now = System.nanoTime();
+                for (Client client : clients) {
+                    client.sendPayloadIfDue(now);
+                }
+            }
+        }
+
+        for (Client client : clients) {
+            client.close(false);
+        }
+        selector.close();
+    }
+
+    /**
+     * Start connecting a new client.
+     * @param now Current time in nanoseconds.
+     */
+    private void startClient(long now) {
+        started.incrementAndGet();
+        boolean status = ThreadLocalRandom.current().nextDouble() < settings.getStatusRatio();
+        Client client = new Client(status, now);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            client.channel = channel;
+            client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+            clients.add(client);
+            if (channel.connect(settings.getTarget())) client.connected();
+        } catch (IOException ex) {
+            LOG.debug("Client failed to connect", ex);
+            client.close(true);
+        }
+    }
+
+    /**
+     * Create a fake client address for the PROXY protocol header, taken from the benchmarking range 198.18.0.0/15.
+     * @return Fake client address.
+     * @throws UnknownHostException Never thrown, since the address has a valid length.
+     */
+    private static InetSocketAddress fakeClientAddress() throws UnknownHostException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] address = { (byte) 198, (byte) (18 + random.nextInt(2)), (byte) random.nextInt(256),
+                (byte) (1 + random.nextInt(254)) };
+        return new InetSocketAddress(InetAddress.getByAddress(address), 1024 + random.nextInt(64511));
+    }
+
+    /**
+     * Get the latencies from connecting to receiving the login success.
+     * @return Join latencies.
+     */
+    public LatencyRecorder getJoinLatency() {
+        return joinLatency;
+    }
+
+    /**
+     * Get the latencies from connecting to receiving the pong.
+     * @return Status latencies.
+     */
+    public LatencyRecorder getStatusLatency() {
+        return statusLatency;
+    }
+
+    /**
+     * Get the count of clients that started connecting.
+     * @return Count of started clients.
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * Get the count of clients that failed to connect or were disconnected before finishing.
+     * @return Count of failed clients.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Get the count of clients currently joined.
+     * @return Count of joined clients.
+     */
+    public long getJoined() {
+        return joined.get();
+    }
+
+    /**
+     * Get the count of payload bytes sent by joined clients.
+     * @return Count of sent bytes.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Get the count of payload bytes echoed back to joined clients.
+     * @return Count of echoed bytes.
+     */
+    public long getBytesEchoed() {
+        return bytesEchoed.get();
+    }
+
+    /**
+     * State of a single simulated client.
+     */
+    private class Client {
+
+        /** Send a status ping instead of joining */
+        private final boolean status;
+
+        /** Time the client started connecting, in nanoseconds */
+        private final long startNanos;
+
+        /** Received data that wasn't processed yet, in write mode */
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /** Data that has to be sent, in read mode */
+        private ByteBuffer out = ByteBuffer.allocate(0);
+
+        /** Channel of the client */
+        private SocketChannel channel;
+
+        /** Key of the channel */
+        private SelectionKey key;
+
+        /** Current state of the client */
+        private State state = State.CONNECTING;
+
+        /** Time the next payload is due, in nanoseconds */
+        private long nextPayloadNanos;
+
+        /**
+         * Create a new client.
+         * @param status Send a status ping instead of joining.
+         * @param startNanos Time the client started connecting, in nanoseconds.
+         */
+        private Client(boolean status, long startNanos) {
+            this.status = status;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Handle a readiness event of the channel.
+         * @param key Key of the channel.
+         */
+        private void handle(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) connected();
+                    return;
+                }
+                if (key.isWritable()) flush();
+                if (key.isValid() && key.isReadable()) read();
+            } catch (IOException ex) {
+                LOG.debug("Client failed", ex);
+                close(state != State.JOINED);
+            }
+        }
+
+        /**
+         * Send the handshake and the login start or status request once the connection is established.
+         * @throws IOException Thrown if writing fails.
+         */
+        private void connected() throws IOException {
+            String host = settings.pickHost();
+            ByteBuffer initial = ByteBuffer.allocate(host.length() * 3 + 256);
+            if (settings.isProxyProtocol()) {
+                ProxyProtoUtil.encode(initial, ProxyProtoUtil.TransportFam.TCP, fakeClientAddress(),
+                        settings.getTarget());
+            }
+            Packets.writeHandshake(initial, host, settings.getTarget().getPort(),
+                    status ? Packets.STATE_STATUS : Packets.STATE_LOGIN);
+            if (status) {
+                Packets.writeStatusRequestAndPing(initial, startNanos);
+                state = State.STATUS;
+            } else {
+                Packets.writeLoginStart(initial, "loadgen" + started.get() % 100000000);
+                state = State.LOGIN;
+            }
+            out = initial.flip();
+            flush();
+        }
+
+        /**
+         * Read available data and process it according to the state of the client.
+         * @throws IOException Thrown if reading fails or the server sent invalid data.
+         */
+        private void read() throws IOException {
+            int bytesRead = channel.read(in);
+            if (bytesRead == -1) {
+                close(state != State.JOINED);
+                return;
+            }
+            in.flip();
+            try {
+                process();
+            } finally {
+                in.compact();
+            }
+        }
+
+        /**
+         * Process received data. Waits for the login success or pong, and counts echoed data afterwards.
+         * @throws ProtocolException Thrown if the server sent invalid data.
+         */
+        private void process() throws ProtocolException {
+            while (in.hasRemaining()) {
+                if (state == State.JOINED) {
+                    bytesEchoed.addAndGet(in.remaining());
+                    in.position(in.limit());
+                    return;
+                }
+
+                ByteBuffer packet = Packets.nextPacket(in);
+                if (packet == null) return;
+                int id = DatatypeUtil.readVarInt(packet);
+                if (state == State.LOGIN && id == Packets.LOGIN_SUCCESS) {
+                    joinLatency.record(System.nanoTime() - startNanos);
+                    joined.incrementAndGet();
+                    state = State.JOINED;
+                    nextPayloadNanos = System.nanoTime();
+                } else if (state == State.STATUS && id == Packets.PONG) {
+                    statusLatency.record(System.nanoTime() - startNanos);
+                    close(false);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Send the payload if the client joined, the previous payload was sent and the interval elapsed.
+         * @param now Current time in nanoseconds.
+         */
+        private void sendPayloadIfDue(long now) {
+            if (state != State.JOINED || out.hasRemaining() || now < nextPayloadNanos) return;
+            nextPayloadNanos = now + TimeUnit.MILLISECONDS.toNanos(settings.getIntervalMillis());
+            out = ByteBuffer.wrap(payload);
+            bytesSent.addAndGet(payload.length);
+            try {
+                flush();
+            } catch (IOException ex) {
+                LOG.debug("Client failed to send payload", ex);
+                close(false);
+            }
+        }
+
+        /**
+         * Write pending data and wait for the channel to become writable if it can't take everything.
+         * @throws IOException Thrown if writing fails.
+         */
+        private void flush() throws IOException {
+            channel.write(out);
+            key.interestOps(out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Close the client.
+         * @param failure Set true if the client didn't finish its ping or login.
+         */
+        private void close(boolean failure) {
+            if (state == State.CLOSED) return;
+            if (state == State.JOINED) joined.decrementAndGet();
+            if (failure) failed.incrementAndGet();
+            state = State.CLOSED;
+            if (key != null) key.cancel();
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException ex) {
+                // Do nothing
+            }
+        }
+    }
+
+}
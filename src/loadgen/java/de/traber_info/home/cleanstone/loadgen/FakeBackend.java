@@ -0,0 +1,308 @@
+package de.traber_info.home.cleanstone.loadgen;
+
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import de.traber_info.home.cleanstone.util.ProxyProtoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulated Minecraft backend server. Accepts an optional PROXY protocol header and the handshake, answers status
+ * requests and pings, completes logins and echoes everything a joined client sends afterwards. All connections are
+ * served by a single selector thread, so thousands of connections don't need thousands of threads.
+ *
+ * @author Oliver Traber
+ */
+public class FakeBackend implements Runnable {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(FakeBackend.class.getName());
+
+    /** Size of the buffers of each connection */
+    private static final int BUFFER_SIZE = 16384;
+
+    /** States of a connection */
+    private enum State {
+        HANDSHAKE, STATUS, LOGIN, PLAY
+    }
+
+    /** Selector all connections are registered with */
+    private final Selector selector;
+
+    /** Channel accepting connections */
+    private final ServerSocketChannel serverChannel;
+
+    /** Count of accepted connections */
+    private final AtomicLong accepted = new AtomicLong();
+
+    /** Count of connections that sent a PROXY protocol header */
+    private final AtomicLong proxyHeaders = new AtomicLong();
+
+    /** Count of completed logins */
+    private final AtomicLong logins = new AtomicLong();
+
+    /** Count of bytes echoed to joined clients */
+    private final AtomicLong echoedBytes = new AtomicLong();
+
+    /**
+     * Bind the simulated backend server.
+     * @param port Port to listen on.
+     * @throws IOException Thrown if the port can't be bound.
+     */
+    public FakeBackend(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 4096);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Start serving connections on a daemon thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "loadgen-backend");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Serve connections until the selector is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ((Session) key.attachment()).handle(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException ex) {
+            LOG.error("An unexpected error occurred...", ex);
+        }
+    }
+
+    /**
+     * Accept all pending connections.
+     * @throws IOException Thrown if accepting fails.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Session(channel, key));
+            accepted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the count of accepted connections.
+     * @return Count of accepted connections.
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Get the count of connections that sent a PROXY protocol header.
+     * @return Count of received PROXY protocol headers.
+     */
+    public long getProxyHeaders() {
+        return proxyHeaders.get();
+    }
+
+    /**
+     * Get the count of completed logins.
+     * @return Count of completed logins.
+     */
+    public long getLogins() {
+        return logins.get();
+    }
+
+    /**
+     * Get the count of bytes echoed to joined clients.
+     * @return Count of echoed bytes.
+     */
+    public long getEchoedBytes() {
+        return echoedBytes.get();
+    }
+
+    /**
+     * State of a single connection to the simulated backend server.
+     */
+    private class Session {
+
+        /** Channel of the connection */
+        private final SocketChannel channel;
+
+        /** Key of the channel */
+        private final SelectionKey key;
+
+        /** Data received and not processed yet, in write mode */
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /** Data that has to be sent, in write mode */
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /** Current state of the connection */
+        private State state = State.HANDSHAKE;
+
+        /**
+         * Create the state of a new connection.
+         * @param channel Channel of the connection.
+         * @param key Key of the channel.
+         */
+        private Session(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Handle a readiness event of the channel.
+         * @param key Key of the channel.
+         */
+        private void handle(SelectionKey key) {
+            try {
+                if (key.isWritable()) flush();
+                if (key.isValid() && key.isReadable()) read();
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        /**
+         * Read available data and process it.
+         * @throws IOException Thrown if reading fails or the client sent invalid data.
+         */
+        private void read() throws IOException {
+            if (channel.read(in) == -1) {
+                close();
+                return;
+            }
+            in.flip();
+            try {
+                process();
+            } finally {
+                in.compact();
+            }
+            flush();
+        }
+
+        /**
+         * Process all complete packets, or echo the data once the client joined.
+         * @throws ProtocolException Thrown if the client sent invalid data.
+         */
+        private void process() throws ProtocolException {
+            while (in.hasRemaining()) {
+                if (state == State.PLAY) {
+                    echoedBytes.addAndGet(in.remaining());
+                    ensureCapacity(in.remaining());
+                    out.put(in);
+                    return;
+                }
+                if (state == State.HANDSHAKE && in.get(in.position()) == 0x0D) {
+                    // Skip the PROXY protocol header once it is complete
+                    if (in.remaining() < ProxyProtoUtil.FIXED_HEADER_LENGTH) return;
+                    byte[] data = in.array();
+                    if (!ProxyProtoUtil.hasProxyProtocolHeader(data)) throw new ProtocolException("Invalid header");
+                    int headerLength = ProxyProtoUtil.getHeaderLength(data);
+                    if (in.remaining() < headerLength) return;
+                    in.position(in.position() + headerLength);
+                    proxyHeaders.incrementAndGet();
+                    continue;
+                }
+
+                ByteBuffer packet = Packets.nextPacket(in);
+                if (packet == null) return;
+                handlePacket(DatatypeUtil.readVarInt(packet), packet);
+            }
+        }
+
+        /**
+         * Answer a packet according to the state of the connection.
+         * @param id Id of the packet.
+         * @param packet Data following the packet id.
+         * @throws ProtocolException Thrown if the packet is invalid.
+         */
+        private void handlePacket(int id, ByteBuffer packet) throws ProtocolException {
+            ensureCapacity(1024);
+            switch (state) {
+                case HANDSHAKE:
+                    DatatypeUtil.readVarInt(packet);
+                    DatatypeUtil.readString(packet, DatatypeUtil.MAX_STRING_LENGTH);
+                    DatatypeUtil.readUnsignedShort(packet);
+                    state = DatatypeUtil.readVarInt(packet) == Packets.STATE_STATUS ? State.STATUS : State.LOGIN;
+                    break;
+                case STATUS:
+                    if (id == 0x00) {
+                        Packets.writeStatusResponse(out);
+                    } else if (id == 0x01) {
+                        Packets.writePacket(out, Packets.PONG, packet);
+                    }
+                    break;
+                case LOGIN:
+                    Packets.writeLoginSuccess(out, DatatypeUtil.readString(packet, 16));
+                    logins.incrementAndGet();
+                    state = State.PLAY;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Write pending data and wait for the channel to become writable if it can't take everything.
+         * @throws IOException Thrown if writing fails.
+         */
+        private void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Grow the output buffer if it can't take the given count of bytes.
+         * @param count Count of bytes that will be written.
+         */
+        private void ensureCapacity(int count) {
+            if (out.remaining() >= count) return;
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + count));
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+
+        /**
+         * Close the connection.
+         */
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Do nothing
+            }
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package de.traber_info.home.cleanstone.loadgen;
+
+import java.util.Arrays;
+
+/**
+ * Records latencies and reports their percentiles. Keeps every sample, which is fine for the amount of connections
+ * a single load generator opens.
+ *
+ * @author Oliver Traber
+ */
+public class LatencyRecorder {
+
+    /** Recorded latencies in microseconds */
+    private long[] samples = new long[1024];
+
+    /** Count of recorded latencies */
+    private int count = 0;
+
+    /**
+     * Record a latency.
+     * @param nanos Latency in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        if (count == samples.length) samples = Arrays.copyOf(samples, samples.length * 2);
+        samples[count++] = nanos / 1000;
+    }
+
+    /**
+     * Get the count of recorded latencies.
+     * @return Count of recorded latencies.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Summarize the recorded latencies.
+     * @return Percentiles in milliseconds, or "n/a" if nothing was recorded.
+     */
+    public synchronized String summarize() {
+        if (count == 0) return "n/a";
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return String.format("p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted[sorted.length - 1] / 1000.0);
+    }
+
+    /**
+     * Get a percentile of sorted latencies.
+     * @param sorted Sorted latencies in microseconds.
+     * @param percentile Percentile between 0 and 1.
+     * @return Latency in milliseconds.
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+}
@@ -0,0 +1,163 @@
+package de.traber_info.home.cleanstone.loadgen;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for Cleanstone. Starts a simulated backend server and a swarm of simulated clients connecting
+ * through the Cleanstone instance under test, and reports join latencies, relay throughput and the resource usage
+ * of the Cleanstone process. Run it once per transport engine to compare them on the same machine.
+ *
+ * @author Oliver Traber
+ */
+public class LoadGenerator {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * Main method of the load generator.
+     * @param args Command line arguments in "--key=value" form, see {@link LoadSettings#USAGE}.
+     */
+    public static void main(String[] args) {
+        if (args.length == 1 && (args[0].equals("--help") || args[0].equals("-h"))) {
+            System.out.println(LoadSettings.USAGE);
+            return;
+        }
+
+        LoadSettings settings;
+        try {
+            settings = LoadSettings.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(LoadSettings.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        try {
+            run(settings);
+        } catch (IOException ex) {
+            LOG.error("An unexpected error occurred...", ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run the load and report the results.
+     * @param settings Settings of the run.
+     * @throws IOException Thrown if the backend server can't be started or the clients can't be driven.
+     */
+    private static void run(LoadSettings settings) throws IOException {
+        FakeBackend backend = null;
+        if (settings.getBackendPort() != 0) {
+            backend = new FakeBackend(settings.getBackendPort());
+            backend.start();
+            LOG.info("Simulated backend server listening on port {}", settings.getBackendPort());
+        }
+
+        long pid = settings.getProxyPid();
+        if (pid == -1) pid = ProcessStats.detectPid().orElse(-1L);
+        ProcessStats stats = pid == -1 ? null : new ProcessStats(pid);
+        if (stats == null) LOG.warn("Cleanstone process not found, resource usage won't be reported");
+
+        ClientSwarm swarm = new ClientSwarm(settings);
+        LOG.info("Starting {} clients at {}/s against {} for {}s", settings.getConnections(),
+                settings.getJoinRate(), settings.getTarget(), settings.getDurationSeconds());
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loadgen-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Report report = new Report(swarm, stats);
+        reporter.scheduleAtFixedRate(report::log, settings.getReportSeconds(), settings.getReportSeconds(),
+                TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        try {
+            swarm.run();
+        } finally {
+            reporter.shutdownNow();
+            try {
+                reporter.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info("Finished after {}s", String.format("%.1f", seconds));
+        LOG.info("Clients: started={} failed={} joins={} status pings={}", swarm.getStarted(), swarm.getFailed(),
+                swarm.getJoinLatency().getCount(), swarm.getStatusLatency().getCount());
+        LOG.info("Join latency: {}", swarm.getJoinLatency().summarize());
+        LOG.info("Status latency: {}", swarm.getStatusLatency().summarize());
+        LOG.info("Relay: sent={} echoed={} average={}", formatBytes(swarm.getBytesSent()),
+                formatBytes(swarm.getBytesEchoed()), formatBytes((long) (swarm.getBytesEchoed() / seconds)) + "/s");
+        if (backend != null) {
+            LOG.info("Backend: accepted={} proxy headers={} logins={}", backend.getAccepted(),
+                    backend.getProxyHeaders(), backend.getLogins());
+        }
+        if (stats != null) LOG.info("Cleanstone: {}", stats.sample());
+    }
+
+    /**
+     * Format a count of bytes in a human-readable form.
+     * @param bytes Count of bytes.
+     * @return Formatted count of bytes.
+     */
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KiB", bytes / 1024.0);
+        return String.format("%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Intermediate report, logging the progress since the previous report.
+     */
+    private static class Report {
+
+        /** Swarm of simulated clients */
+        private final ClientSwarm swarm;
+
+        /** Sampler of the Cleanstone process, or null if it wasn't found */
+        private final ProcessStats stats;
+
+        /** Count of echoed bytes at the previous report */
+        private long lastEchoed = 0;
+
+        /** Time of the previous report, in nanoseconds */
+        private long lastNanos = System.nanoTime();
+
+        /**
+         * Create an intermediate report.
+         * @param swarm Swarm of simulated clients.
+         * @param stats Sampler of the Cleanstone process, or null if it wasn't found.
+         */
+        private Report(ClientSwarm swarm, ProcessStats stats) {
+            this.swarm = swarm;
+            this.stats = stats;
+        }
+
+        /**
+         * Log the progress since the previous report.
+         */
+        private void log() {
+            long now = System.nanoTime();
+            long echoed = swarm.getBytesEchoed();
+            double seconds = (now - lastNanos) / 1e9;
+            String throughput = formatBytes((long) ((echoed - lastEchoed) / seconds)) + "/s";
+            lastEchoed = echoed;
+            lastNanos = now;
+
+            LOG.info("started={} joined={} failed={} relay={} {}", swarm.getStarted(), swarm.getJoined(),
+                    swarm.getFailed(), throughput, stats == null ? "" : stats.sample());
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package de.traber_info.home.cleanstone.loadgen;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Settings of a load generator run, parsed from "--key=value" command line arguments.
+ *
+ * @author Oliver Traber
+ */
+public class LoadSettings {
+
+    /** Usage printed for --help and invalid arguments */
+    public static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -jar cleanstone-loadgen-jar-with-dependencies.jar [--key=value ...]",
+            "  --target=host:port      Address of the Cleanstone instance under test (127.0.0.1:25565)",
+            "  --backend-port=port     Port of the simulated backend server, 0 to not start one (25566)",
+            "  --hosts=host:weight,... Hostnames sent in the handshakes and their weights (localhost:1)",
+            "  --connections=count     Count of clients joining in total (1000)",
+            "  --join-rate=count       Clients joining per second (100)",
+            "  --duration=seconds      Time the clients stay connected after the first join (60)",
+            "  --payload=bytes         Bytes each joined client sends per interval and expects echoed (256)",
+            "  --interval-millis=ms    Interval in which joined clients send their payload, 0 for none (1000)",
+            "  --status-ratio=ratio    Share of clients sending a status ping instead of joining (0.0)",
+            "  --proxy-protocol=bool   Prefix every connection with a PROXY protocol v2 header (false)",
+            "  --proxy-pid=pid         Process id of Cleanstone to report resources of, detected if missing",
+            "  --report-seconds=secs   Interval in which intermediate results are reported (5)");
+
+    /** Address of the Cleanstone instance under test */
+    private InetSocketAddress target = new InetSocketAddress("127.0.0.1", 25565);
+
+    /** Port of the simulated backend server, 0 if none should be started */
+    private int backendPort = 25566;
+
+    /** Hostnames sent in the handshakes */
+    private final List<String> hosts = new ArrayList<>();
+
+    /** Cumulated weights of the hostnames, used to pick them */
+    private final List<Integer> hostWeights = new ArrayList<>();
+
+    /** Count of clients joining in total */
+    private int connections = 1000;
+
+    /** Clients joining per second */
+    private double joinRate = 100;
+
+    /** Time the clients stay connected after the first join, in seconds */
+    private int durationSeconds = 60;
+
+    /** Bytes each joined client sends per interval */
+    private int payloadSize = 256;
+
+    /** Interval in which joined clients send their payload, in milliseconds */
+    private long intervalMillis = 1000;
+
+    /** Share of clients sending a status ping instead of joining */
+    private double statusRatio = 0.0;
+
+    /** Prefix every connection with a PROXY protocol v2 header */
+    private boolean proxyProtocol = false;
+
+    /** Process id of Cleanstone, or -1 if it should be detected */
+    private long proxyPid = -1;
+
+    /** Interval in which intermediate results are reported, in seconds */
+    private int reportSeconds = 5;
+
+    /**
+     * Parse the command line arguments.
+     * @param args Arguments in "--key=value" form.
+     * @return Parsed settings.
+     * @throws IllegalArgumentException Thrown if an argument is unknown or invalid.
+     */
+    public static LoadSettings parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator == -1) throw new IllegalArgumentException("Invalid argument " + arg);
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        LoadSettings settings = new LoadSettings();
+        String hosts = "localhost:1";
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String value = entry.getValue();
+            switch (entry.getKey()) {
+                case "target":
+                    int colon = value.lastIndexOf(':');
+                    if (colon == -1) throw new IllegalArgumentException("Target needs a port: " + value);
+                    settings.target = new InetSocketAddress(value.substring(0, colon),
+                            Integer.parseInt(value.substring(colon + 1)));
+                    break;
+                case "backend-port":
+                    settings.backendPort = Integer.parseInt(value);
+                    break;
+                case "hosts":
+                    hosts = value;
+                    break;
+                case "connections":
+                    settings.connections = Integer.parseInt(value);
+                    break;
+                case "join-rate":
+                    settings.joinRate = Double.parseDouble(value);
+                    break;
+                case "duration":
+                    settings.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "payload":
+                    settings.payloadSize = Integer.parseInt(value);
+                    break;
+                case "interval-millis":
+                    settings.intervalMillis = Long.parseLong(value);
+                    break;
+                case "status-ratio":
+                    settings.statusRatio = Double.parseDouble(value);
+                    break;
+                case "proxy-protocol":
+                    settings.proxyProtocol = Boolean.parseBoolean(value);
+                    break;
+                case "proxy-pid":
+                    settings.proxyPid = Long.parseLong(value);
+                    break;
+                case "report-seconds":
+                    settings.reportSeconds = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument --" + entry.getKey());
+            }
+        }
+
+        int totalWeight = 0;
+        for (String host : hosts.split(",")) {
+            int colon = host.lastIndexOf(':');
+            int weight = colon == -1 ? 1 : Integer.parseInt(host.substring(colon + 1));
+            if (weight <= 0) throw new IllegalArgumentException("Weight of " + host + " must be positive");
+            totalWeight += weight;
+            settings.hosts.add(colon == -1 ? host : host.substring(0, colon));
+            settings.hostWeights.add(totalWeight);
+        }
+        if (settings.joinRate <= 0) throw new IllegalArgumentException("Join rate must be positive");
+        return settings;
+    }
+
+    /**
+     * Pick a hostname according to the configured weights.
+     * @return Hostname a client sends in its handshake.
+     */
+    public String pickHost() {
+        int totalWeight = hostWeights.get(hostWeights.size() - 1);
+        int value = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (int i = 0; i < hosts.size(); i++) {
+            if (value < hostWeights.get(i)) return hosts.get(i);
+        }
+        return hosts.get(hosts.size() - 1);
+    }
+
+    /**
+     * Get the address of the Cleanstone instance under test.
+     * @return Address of the Cleanstone instance under test.
+     */
+    public InetSocketAddress getTarget() {
+        return target;
+    }
+
+    /**
+     * Get the port of the simulated backend server.
+     * @return Port of the simulated backend server, 0 if none should be started.
+     */
+    public int getBackendPort() {
+        return backendPort;
+    }
+
+    /**
+     * Get the count of clients joining in total.
+     * @return Count of clients.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Get the count of clients joining per second.
+     * @return Join rate per second.
+     */
+    public double getJoinRate() {
+        return joinRate;
+    }
+
+    /**
+     * Get the time the clients stay connected after the first join.
+     * @return Duration in seconds.
+     */
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    /**
+     * Get the count of bytes each joined client sends per interval.
+     * @return Payload size in bytes.
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Get the interval in which joined clients send their payload.
+     * @return Interval in milliseconds, 0 if no payload is sent.
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Get the share of clients sending a status ping instead of joining.
+     * @return Share between 0 and 1.
+     */
+    public double getStatusRatio() {
+        return statusRatio;
+    }
+
+    /**
+     * Check if connections are prefixed with a PROXY protocol v2 header.
+     * @return true if a header is sent, otherwise false.
+     */
+    public boolean isProxyProtocol() {
+        return proxyProtocol;
+    }
+
+    /**
+     * Get the process id of Cleanstone.
+     * @return Process id, or -1 if it should be detected.
+     */
+    public long getProxyPid() {
+        return proxyPid;
+    }
+
+    /**
+     * Get the interval in which intermediate results are reported.
+     * @return Interval in seconds.
+     */
+    public int getReportSeconds() {
+        return reportSeconds;
+    }
+
+}
@@ -0,0 +1,138 @@
+package de.traber_info.home.cleanstone.loadgen;
+
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Builds and splits the packets exchanged by simulated clients and backend servers. Only covers the handshake,
+ * status and login packets Cleanstone has to relay before the connection is established.
+ *
+ * @author Oliver Traber
+ */
+public class Packets {
+
+    /** Protocol version sent by simulated clients */
+    public static final int PROTOCOL_VERSION = 767;
+
+    /** Next state requesting the server status */
+    public static final int STATE_STATUS = 1;
+
+    /** Next state requesting a login */
+    public static final int STATE_LOGIN = 2;
+
+    /** Id of the login success packet sent by the backend server */
+    public static final int LOGIN_SUCCESS = 0x02;
+
+    /** Id of the pong packet sent by the backend server */
+    public static final int PONG = 0x01;
+
+    /** Status returned by the simulated backend server */
+    private static final String STATUS_JSON = "{\"version\":{\"name\":\"loadgen\",\"protocol\":" + PROTOCOL_VERSION +
+            "},\"players\":{\"max\":100000,\"online\":0},\"description\":{\"text\":\"Cleanstone load generator\"}}";
+
+    /**
+     * Write a length-prefixed packet.
+     * @param target Buffer to write to.
+     * @param id Id of the packet.
+     * @param body Data following the packet id, read from its position to its limit.
+     */
+    public static void writePacket(ByteBuffer target, int id, ByteBuffer body) {
+        DatatypeUtil.writeVarInt(target, DatatypeUtil.getVarIntSize(id) + body.remaining());
+        DatatypeUtil.writeVarInt(target, id);
+        target.put(body);
+    }
+
+    /**
+     * Write the handshake packet.
+     * @param target Buffer to write to.
+     * @param host Hostname the client wants to connect to.
+     * @param port Port the client wants to connect to.
+     * @param nextState State the client wants to switch to.
+     */
+    public static void writeHandshake(ByteBuffer target, String host, int port, int nextState) {
+        ByteBuffer body = ByteBuffer.allocate(host.length() * 3 + 16);
+        DatatypeUtil.writeVarInt(body, PROTOCOL_VERSION);
+        DatatypeUtil.writeString(body, host);
+        DatatypeUtil.writeUnsignedShort(body, port);
+        DatatypeUtil.writeVarInt(body, nextState);
+        writePacket(target, 0x00, body.flip());
+    }
+
+    /**
+     * Write the login start packet.
+     * @param target Buffer to write to.
+     * @param name Name of the player.
+     */
+    public static void writeLoginStart(ByteBuffer target, String name) {
+        ByteBuffer body = ByteBuffer.allocate(name.length() * 3 + 24);
+        DatatypeUtil.writeString(body, name);
+        UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+        body.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        writePacket(target, 0x00, body.flip());
+    }
+
+    /**
+     * Write the login success packet.
+     * @param target Buffer to write to.
+     * @param name Name of the player.
+     */
+    public static void writeLoginSuccess(ByteBuffer target, String name) {
+        ByteBuffer body = ByteBuffer.allocate(name.length() * 3 + 24);
+        UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+        body.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+        DatatypeUtil.writeString(body, name);
+        DatatypeUtil.writeVarInt(body, 0);
+        writePacket(target, LOGIN_SUCCESS, body.flip());
+    }
+
+    /**
+     * Write the status request and ping packets a client sends after the handshake.
+     * @param target Buffer to write to.
+     * @param payload Payload of the ping, echoed by the pong.
+     */
+    public static void writeStatusRequestAndPing(ByteBuffer target, long payload) {
+        writePacket(target, 0x00, ByteBuffer.allocate(0));
+        writePacket(target, 0x01, ByteBuffer.allocate(8).putLong(0, payload));
+    }
+
+    /**
+     * Write the status response packet.
+     * @param target Buffer to write to.
+     */
+    public static void writeStatusResponse(ByteBuffer target) {
+        ByteBuffer body = ByteBuffer.allocate(STATUS_JSON.length() + DatatypeUtil.MAX_VARINT_LENGTH);
+        DatatypeUtil.writeString(body, STATUS_JSON);
+        writePacket(target, 0x00, body.flip());
+    }
+
+    /**
+     * Split the next complete packet off the buffer.
+     * @param buffer Buffer in read mode. Its position is advanced past the packet if it is complete.
+     * @return View of the packet starting at its id, or null if the packet is incomplete.
+     * @throws ProtocolException Thrown if the length prefix is invalid.
+     */
+    public static ByteBuffer nextPacket(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int length;
+        try {
+            length = DatatypeUtil.readVarInt(buffer);
+        } catch (ProtocolException ex) {
+            if (buffer.remaining() >= DatatypeUtil.MAX_VARINT_LENGTH) throw ex;
+            buffer.position(start);
+            return null;
+        }
+        if (length < 0) throw new ProtocolException("Negative packet length");
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        ByteBuffer packet = buffer.slice();
+        packet.limit(length);
+        buffer.position(buffer.position() + length);
+        return packet;
+    }
+
+}
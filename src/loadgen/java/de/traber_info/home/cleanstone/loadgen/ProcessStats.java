@@ -0,0 +1,111 @@
+package de.traber_info.home.cleanstone.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Samples the resource usage of the Cleanstone process under test. Threads, resident memory and file descriptors
+ * are read from /proc, so they are only available on Linux. The heap is queried through jcmd of the running JDK.
+ *
+ * @author Oliver Traber
+ */
+public class ProcessStats {
+
+    /** Pattern matching the heap totals printed by "jcmd GC.heap_info" */
+    private static final Pattern HEAP_PATTERN = Pattern.compile("total (\\d+)K, used (\\d+)K");
+
+    /** Process id of Cleanstone */
+    private final long pid;
+
+    /**
+     * Create a sampler for the given process.
+     * @param pid Process id of Cleanstone.
+     */
+    public ProcessStats(long pid) {
+        this.pid = pid;
+    }
+
+    /**
+     * Detect the process id of a Cleanstone instance running on this machine.
+     * @return Process id, or empty if no instance was found.
+     */
+    public static Optional<Long> detectPid() {
+        long self = ProcessHandle.current().pid();
+        return ProcessHandle.allProcesses()
+                .filter(process -> process.pid() != self)
+                .filter(process -> process.info().commandLine()
+                        .map(command -> command.contains("CleanStone") || command.contains("cleanstone"))
+                        .orElse(false))
+                .filter(process -> !process.info().commandLine().get().contains("loadgen"))
+                .map(ProcessHandle::pid)
+                .findFirst();
+    }
+
+    /**
+     * Sample the resource usage of the process.
+     * @return Human-readable summary of the resource usage.
+     */
+    public String sample() {
+        Path proc = Paths.get("/proc", Long.toString(pid));
+        String threads = "n/a";
+        String rss = "n/a";
+        String fds = "n/a";
+        try {
+            List<String> status = Files.readAllLines(proc.resolve("status"));
+            for (String line : status) {
+                if (line.startsWith("Threads:")) threads = line.substring(8).trim();
+                if (line.startsWith("VmRSS:")) rss = line.substring(6).trim();
+            }
+            try (Stream<Path> files = Files.list(proc.resolve("fd"))) {
+                fds = Long.toString(files.count());
+            }
+        } catch (IOException ex) {
+            // Not running on Linux, the process exited or belongs to another user
+        }
+        return String.format("threads=%s rss=%s fds=%s heap=%s", threads, rss, fds, sampleHeap());
+    }
+
+    /**
+     * Query the heap usage of the process through jcmd.
+     * @return Used and committed heap, or "n/a" if jcmd isn't available.
+     */
+    private String sampleHeap() {
+        Path jcmd = Paths.get(System.getProperty("java.home"), "bin", "jcmd");
+        try {
+            Process process = new ProcessBuilder(jcmd.toString(), Long.toString(pid), "GC.heap_info")
+                    .redirectErrorStream(true).start();
+            String output;
+            try (InputStream input = process.getInputStream()) {
+                output = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+
+            // Sum up all spaces, since the output differs between garbage collectors
+            long total = 0;
+            long used = 0;
+            Matcher matcher = HEAP_PATTERN.matcher(output);
+            while (matcher.find()) {
+                total += Long.parseLong(matcher.group(1));
+                used += Long.parseLong(matcher.group(2));
+            }
+            if (total == 0) return "n/a";
+            return String.format("%d/%d MB", used / 1024, total / 1024);
+        } catch (IOException ex) {
+            return "n/a";
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return "n/a";
+        }
+    }
+
+}
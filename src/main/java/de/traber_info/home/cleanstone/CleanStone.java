@@ -1,13 +1,27 @@
 package de.traber_info.home.cleanstone;
 
-import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+import de.traber_info.home.cleanstone.buffer.BufferPool;
+import de.traber_info.home.cleanstone.metrics.MetricsServer;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.proxy.AccessList;
+import de.traber_info.home.cleanstone.proxy.AdmissionControl;
+import de.traber_info.home.cleanstone.proxy.Backend;
+import de.traber_info.home.cleanstone.proxy.BackendResolver;
 import de.traber_info.home.cleanstone.proxy.CleanstoneProxy;
+import de.traber_info.home.cleanstone.proxy.ConnectionLimiter;
+import de.traber_info.home.cleanstone.proxy.DomainRouter;
+import de.traber_info.home.cleanstone.proxy.HealthChecker;
+import de.traber_info.home.cleanstone.proxy.SocketPool;
+import de.traber_info.home.cleanstone.proxy.StatusCache;
+import de.traber_info.home.cleanstone.util.BlockingProbe;
 import de.traber_info.home.cleanstone.util.ConfigUtil;
+import de.traber_info.home.cleanstone.util.ConfigWatcher;
+import de.traber_info.home.cleanstone.util.ThreadUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.Collections;
 
 /**
  * Main class for cleanstone. Performs the first initialisation of all components.
@@ -19,17 +33,18 @@ public class CleanStone {
     /** SLF4J logger for usage in this class */
     private static final Logger LOG = LoggerFactory.getLogger(CleanStone.class.getName());
 
-    /** Map that assigns domain names to their corresponding backend servers */
-    private static Map<String, BackendServerMapping> backendServerMappings = new HashMap<>();
+    /** Index that assigns domain names to their corresponding backend servers. Replaced as a whole on reload */
+    private static volatile DomainRouter domainRouter = new DomainRouter(Collections.emptyList());
+
+    /** Main proxy accepting the client connections */
+    private static CleanstoneProxy cleanstoneProxy;
 
     /**
      * Main function of cleanstone. Initializes everything that is needed to run cleanstone.
      * @param args Arguments passed in by the commandline.
      */
     public static void main(String[] args) {
-        for (BackendServerMapping backendServerMapping : ConfigUtil.getConfig().getBackendServerMappings()) {
-            backendServerMappings.put(backendServerMapping.getMappingDomain(), backendServerMapping);
-        }
+        domainRouter = new DomainRouter(ConfigUtil.getConfig().getBackendServerMappings());
 
         // Warn if PROXY protocol pass-through is enabled
         if (ConfigUtil.getConfig().getProxyProtocolSettings().passThroughEnabled()) {
@@ -39,17 +54,96 @@ public class CleanStone {
             );
         }
 
+        BufferPool.init(ConfigUtil.getConfig().getBufferPoolSettings());
+        BackendResolver.init(ConfigUtil.getConfig().getResolverSettings(),
+                ConfigUtil.getConfig().getBackendServerMappings());
+        StatusCache.init(ConfigUtil.getConfig().getStatusCacheSettings());
+        HealthChecker.init(ConfigUtil.getConfig().getHealthCheckSettings());
+        SocketPool.init(ConfigUtil.getConfig().getSocketPoolSettings());
+        ConnectionLimiter.init(ConfigUtil.getConfig().getConnectionLimitSettings());
+        AccessList.init(ConfigUtil.getConfig().getAccessListSettings());
+        AdmissionControl.init(ConfigUtil.getConfig().getAdmissionSettings());
+        MetricsServer.init(ConfigUtil.getConfig().getMetricsSettings());
+
+        ConfigFile.TransportSettings transportSettings = ConfigUtil.getConfig().getTransportSettings();
+        ThreadUtil.init(transportSettings.getThreadMode());
+        if (transportSettings.reportBlockingEnabled()) {
+            BlockingProbe.enable(transportSettings.getBlockingThresholdMillis());
+        }
+
         LOG.info("Starting proxy server on port {}", ConfigUtil.getConfig().getListenPort());
-        CleanstoneProxy cleanstoneProxy = new CleanstoneProxy(ConfigUtil.getConfig().getListenPort());
-        cleanstoneProxy.listen();
+        cleanstoneProxy = new CleanstoneProxy(ConfigUtil.getConfig().getListenPort());
+        if (!cleanstoneProxy.listen()) {
+            System.exit(4);
+        }
+
+        new ConfigWatcher(ConfigUtil.getConfig().getReloadSettings(), CleanStone::reload).start();
+    }
+
+    /**
+     * Reload the config file and apply it. The new backend server mappings are published with a single swap of
+     * the routing index, so connections are routed either with the old or with the new mappings. Established
+     * connections keep running, even if the listen port changes. If the file can't be read or contains an invalid
+     * mapping, nothing of it is applied.
+     */
+    private static void reload() {
+        ConfigFile previous = ConfigUtil.getConfig();
+        ConfigFile reloaded = ConfigUtil.reloadConfig();
+        if (reloaded == null) return;
+
+        // Build the routing index before anything is applied, it fails on invalid mappings
+        DomainRouter router;
+        try {
+            router = new DomainRouter(reloaded.getBackendServerMappings());
+        } catch (RuntimeException ex) {
+            LOG.error("Reloaded config file contains an invalid backend server mapping. Keeping the current config.",
+                    ex);
+            // Drop the state of backend servers registered while building the rejected routing index
+            Backend.retain(previous.getBackendServerMappings());
+            return;
+        }
+        ConfigUtil.setConfig(reloaded);
+        BackendResolver.update(reloaded.getBackendServerMappings());
+        domainRouter = router;
+        Backend.retain(reloaded.getBackendServerMappings());
+        HealthChecker.init(reloaded.getHealthCheckSettings());
+        ConnectionLimiter.init(reloaded.getConnectionLimitSettings());
+        AccessList.init(reloaded.getAccessListSettings());
+        AdmissionControl.init(reloaded.getAdmissionSettings());
+        MetricsServer.init(reloaded.getMetricsSettings());
+        LOG.info("Reloaded config with {} backend server mappings", router.size());
+
+        try {
+            cleanstoneProxy.rebind(reloaded.getListenPort(), reloaded.getTransportSettings().getListenerShards());
+        } catch (IOException ex) {
+            LOG.error("Failed to listen on port {}. Still listening on the previous port.",
+                    reloaded.getListenPort(), ex);
+        }
+
+        ConfigFile.TransportSettings before = previous.getTransportSettings();
+        ConfigFile.TransportSettings after = reloaded.getTransportSettings();
+        if (before.getEngine() != after.getEngine() || before.getEventLoops() != after.getEventLoops()
+                || before.spliceEnabled() != after.spliceEnabled() || before.getThreadMode() != after.getThreadMode()) {
+            LOG.warn("Changes of the transport engine, its event loops, splice or thread settings " +
+                    "only take effect after a restart.");
+        }
+    }
+
+    /**
+     * Get the index that assigns domain names to their corresponding backend servers.
+     * @return Index that assigns domain names to their corresponding backend servers.
+     */
+    public static DomainRouter getDomainRouter() {
+        return domainRouter;
     }
 
     /**
-     * Get the map that assigns domain names to their corresponding backend servers.
-     * @return Map that assigns domain names to their corresponding backend servers.
+     * Replace the index that assigns domain names to their corresponding backend servers. Lookups running
+     * concurrently complete with the previous index.
+     * @param router Index that assigns domain names to their corresponding backend servers.
      */
-    public static Map<String, BackendServerMapping> getBackendServerMappings() {
-        return backendServerMappings;
+    public static void setDomainRouter(DomainRouter router) {
+        domainRouter = router;
     }
 
 }
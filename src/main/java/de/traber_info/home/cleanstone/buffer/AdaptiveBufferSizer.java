@@ -0,0 +1,100 @@
+package de.traber_info.home.cleanstone.buffer;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the relay buffer size of one relay direction based on the observed throughput. The size doubles while
+ * reads keep filling the buffer and halves after several reads that used only a small part of it.
+ * Not thread safe, every relay direction needs its own instance.
+ *
+ * @author Oliver Traber
+ */
+public class AdaptiveBufferSizer {
+
+    /** Count of consecutive small reads after which the buffer size is halved */
+    private static final int SHRINK_AFTER_SMALL_READS = 4;
+
+    /** Smallest buffer size in bytes */
+    private final int minSize;
+
+    /** Largest buffer size in bytes */
+    private final int maxSize;
+
+    /** Time in nanoseconds a read has to wait for data before the direction is considered idle */
+    private final long idleNanos;
+
+    /** Buffer size for the next read */
+    private int size;
+
+    /** Count of consecutive reads that used at most a quarter of the buffer */
+    private int smallReads = 0;
+
+    /**
+     * Create a new sizer.
+     * @param settings Relay buffer settings.
+     */
+    public AdaptiveBufferSizer(ConfigFile.RelayBufferSettings settings) {
+        this.minSize = roundUpToPowerOfTwo(settings.getMinSize());
+        this.maxSize = Math.max(minSize, roundUpToPowerOfTwo(settings.getMaxSize()));
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIdleMillis());
+        this.size = Math.min(maxSize, Math.max(minSize, roundUpToPowerOfTwo(settings.getInitialSize())));
+    }
+
+    /**
+     * Get the buffer size that should be used for the next read.
+     * @return Buffer size in bytes.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get the smallest buffer size. Reads returning less than this are considered low-volume traffic.
+     * @return Smallest buffer size in bytes.
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Adapt the buffer size to the result of a read.
+     * @param bytesRead Count of bytes returned by the read.
+     * @param capacity Capacity of the buffer that was read into.
+     */
+    public void record(int bytesRead, int capacity) {
+        if (bytesRead >= capacity) {
+            // The read filled the buffer, so more data is probably waiting
+            size = Math.min(maxSize, Math.max(size, capacity) << 1);
+            smallReads = 0;
+        } else if (bytesRead <= capacity >> 2) {
+            if (++smallReads >= SHRINK_AFTER_SMALL_READS) {
+                size = Math.max(minSize, size >> 1);
+                smallReads = 0;
+            }
+        } else {
+            smallReads = 0;
+        }
+    }
+
+    /**
+     * Check if a read waited long enough for data to consider the direction idle.
+     * @param waitedNanos Time in nanoseconds the read waited for data.
+     * @return true if the direction is idle, otherwise false.
+     */
+    public boolean isIdle(long waitedNanos) {
+        return waitedNanos >= idleNanos;
+    }
+
+    /**
+     * Round a size up to the next power of two, matching the size classes of {@link BufferPool}.
+     * @param value Size in bytes.
+     * @return Next power of two equal or larger than the size.
+     */
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value <= 1) return 1;
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+}
@@ -0,0 +1,384 @@
+package de.traber_info.home.cleanstone.buffer;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool for the handshake and relay buffers, so connection churn doesn't produce constant garbage.
+ * Buffers are served from a small cache of the calling thread first and from a shared pool second. Threads that
+ * live as long as the proxy, like event loops, have to opt in to the thread cache with {@link #enableThreadCache()}.
+ *
+ * @author Oliver Traber
+ */
+public class BufferPool {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(BufferPool.class.getName());
+
+    /** Size of the smallest size class as power of two (512 bytes) */
+    private static final int MIN_SIZE_SHIFT = 9;
+
+    /** Cleaner used to detect buffers that were garbage collected without being released */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /** Global pool of heap buffers, used where a byte array is needed */
+    private static BufferPool heapPool = new BufferPool("heap", false, new ConfigFile.BufferPoolSettings());
+
+    /** Global pool of direct buffers, used for channel I/O */
+    private static BufferPool directPool = new BufferPool("direct", true, new ConfigFile.BufferPoolSettings());
+
+    /** Name of the pool used in reports */
+    private final String name;
+
+    /** Allocate direct buffers instead of heap buffers */
+    private final boolean direct;
+
+    /** Enable pooling. If false, every borrow allocates a new buffer */
+    private final boolean enabled;
+
+    /** Maximum count of bytes kept in the shared pool */
+    private final long maxPooledBytes;
+
+    /** Maximum count of buffers per size class kept in the cache of a single thread */
+    private final int threadCacheSize;
+
+    /** Track borrowed buffers and report buffers that are garbage collected without being released */
+    private final boolean leakDetection;
+
+    /** Shared free lists, one per size class */
+    private final Deque<ByteBuffer>[] sizeClasses;
+
+    /** Cache of the current thread, or null if the thread didn't opt in */
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<>();
+
+    /** Count of bytes currently kept in the shared pool */
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /** Count of borrowed buffers */
+    private final LongAdder borrows = new LongAdder();
+
+    /** Count of borrows served from a thread cache */
+    private final LongAdder threadCacheHits = new LongAdder();
+
+    /** Count of borrows served from the shared pool */
+    private final LongAdder sharedHits = new LongAdder();
+
+    /** Count of buffers currently borrowed and not yet released */
+    private final LongAdder outstanding = new LongAdder();
+
+    /** Count of released buffers that were dropped because the pool was full or the size isn't pooled */
+    private final LongAdder dropped = new LongAdder();
+
+    /** Count of buffers that were garbage collected without being released */
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * Create a new buffer pool.
+     * @param name Name of the pool used in reports.
+     * @param direct Allocate direct buffers instead of heap buffers.
+     * @param settings Settings of the pool.
+     */
+    public BufferPool(String name, boolean direct, ConfigFile.BufferPoolSettings settings) {
+        this.name = name;
+        this.direct = direct;
+        this.enabled = settings.isEnabled();
+        this.maxPooledBytes = settings.getMaxPooledBytes();
+        this.threadCacheSize = settings.getThreadCacheSize();
+        this.leakDetection = settings.leakDetectionEnabled();
+
+        int maxShift = 31 - Integer.numberOfLeadingZeros(Math.max(settings.getMaxBufferSize(), 1 << MIN_SIZE_SHIFT));
+        this.sizeClasses = newSizeClasses(maxShift - MIN_SIZE_SHIFT + 1);
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    /**
+     * Create the array holding the free lists of the size classes. Arrays of a generic type can't be created
+     * directly.
+     * @param count Count of size classes.
+     * @return Array with an empty slot per size class.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Deque<ByteBuffer>[] newSizeClasses(int count) {
+        return new Deque[count];
+    }
+
+    /**
+     * Replace the global pools with pools using the given settings.
+     * @param settings Settings of the pools.
+     */
+    public static void init(ConfigFile.BufferPoolSettings settings) {
+        heapPool = new BufferPool("heap", false, settings);
+        directPool = new BufferPool("direct", true, settings);
+        if (settings.getStatsIntervalSeconds() > 0) {
+            SchedulerUtil.getScheduler().scheduleAtFixedRate(() -> {
+                heapPool.report();
+                directPool.report();
+            }, settings.getStatsIntervalSeconds(), settings.getStatsIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Get the global pool of heap buffers.
+     * @return Global pool of heap buffers.
+     */
+    public static BufferPool heap() {
+        return heapPool;
+    }
+
+    /**
+     * Get the global pool of direct buffers.
+     * @return Global pool of direct buffers.
+     */
+    public static BufferPool direct() {
+        return directPool;
+    }
+
+    /**
+     * Let the calling thread keep a small cache of released buffers. Only useful for threads that live as long
+     * as the proxy, since the cached buffers are lost once the thread ends.
+     */
+    public void enableThreadCache() {
+        if (enabled && threadCacheSize > 0 && threadCache.get() == null) {
+            threadCache.set(new ThreadCache(sizeClasses.length, threadCacheSize));
+        }
+    }
+
+    /**
+     * Borrow a buffer with at least the given capacity. The buffer has to be released after use.
+     * @param minCapacity Minimum capacity of the buffer in bytes.
+     * @return Handle of the borrowed buffer.
+     */
+    public PooledBuffer borrow(int minCapacity) {
+        borrows.increment();
+        outstanding.increment();
+
+        int index = sizeClassIndex(minCapacity);
+        ByteBuffer buffer = null;
+        if (enabled && index < sizeClasses.length) {
+            ThreadCache cache = threadCache.get();
+            if (cache != null) buffer = cache.poll(index);
+            if (buffer != null) {
+                threadCacheHits.increment();
+            } else {
+                buffer = sizeClasses[index].pollFirst();
+                if (buffer != null) {
+                    pooledBytes.addAndGet(-buffer.capacity());
+                    sharedHits.increment();
+                }
+            }
+        }
+        if (buffer == null) {
+            int capacity = index < sizeClasses.length ? 1 << (index + MIN_SIZE_SHIFT) : minCapacity;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        LeakTracker leakTracker = null;
+        PooledBuffer pooledBuffer;
+        if (leakDetection) {
+            leakTracker = new LeakTracker(this);
+            pooledBuffer = new PooledBuffer(this, buffer, leakTracker);
+            cleaner.register(pooledBuffer, leakTracker);
+        } else {
+            pooledBuffer = new PooledBuffer(this, buffer, null);
+        }
+        return pooledBuffer;
+    }
+
+    /**
+     * Return a buffer to the pool. Called by {@link PooledBuffer#release()}.
+     * @param buffer Buffer that should be returned.
+     */
+    void release(ByteBuffer buffer) {
+        outstanding.decrement();
+        int capacity = buffer.capacity();
+        int index = sizeClassIndex(capacity);
+        if (!enabled || index >= sizeClasses.length || capacity != 1 << (index + MIN_SIZE_SHIFT)) {
+            dropped.increment();
+            return;
+        }
+
+        buffer.clear();
+        ThreadCache cache = threadCache.get();
+        if (cache != null && cache.offer(index, buffer)) return;
+
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            dropped.increment();
+            return;
+        }
+        sizeClasses[index].offerFirst(buffer);
+    }
+
+    /**
+     * Get the index of the smallest size class that can hold the given capacity.
+     * @param capacity Capacity in bytes.
+     * @return Index of the size class. Equal or larger than the count of size classes if the size isn't pooled.
+     */
+    private static int sizeClassIndex(int capacity) {
+        if (capacity <= 1 << MIN_SIZE_SHIFT) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SIZE_SHIFT;
+    }
+
+    /**
+     * Get the count of bytes currently kept in the shared pool.
+     * @return Count of bytes currently kept in the shared pool.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Get the count of buffers currently borrowed and not yet released.
+     * @return Count of outstanding buffers.
+     */
+    public long getOutstandingCount() {
+        return outstanding.sum();
+    }
+
+    /**
+     * Get the count of borrowed buffers.
+     * @return Count of borrowed buffers.
+     */
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    /**
+     * Get the ratio of borrows that were served from a thread cache or the shared pool.
+     * @return Hit rate between 0 and 1.
+     */
+    public double getHitRate() {
+        long total = borrows.sum();
+        return total == 0 ? 0 : (double) (threadCacheHits.sum() + sharedHits.sum()) / total;
+    }
+
+    /**
+     * Get the count of released buffers that were dropped instead of being pooled.
+     * @return Count of dropped buffers.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Get the count of buffers that were garbage collected without being released.
+     * @return Count of leaked buffers. Only counted if leak detection is enabled.
+     */
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+
+    /**
+     * Log the occupancy and hit rate of this pool.
+     */
+    public void report() {
+        LOG.info("Buffer pool {}: {} bytes pooled (max {}), {} outstanding, {} borrows, " +
+                        "hit rate {}% ({} thread cache, {} shared), {} dropped, {} leaked",
+                name,
+                getPooledBytes(),
+                maxPooledBytes,
+                getOutstandingCount(),
+                getBorrowCount(),
+                Math.round(getHitRate() * 100),
+                threadCacheHits.sum(),
+                sharedHits.sum(),
+                getDroppedCount(),
+                getLeakCount()
+        );
+    }
+
+    /**
+     * Small per-thread cache with a fixed count of slots per size class.
+     */
+    private static class ThreadCache {
+
+        /** Cached buffers per size class */
+        private final ByteBuffer[][] buffers;
+
+        /** Count of cached buffers per size class */
+        private final int[] counts;
+
+        /**
+         * Create a new thread cache.
+         * @param sizeClassCount Count of size classes.
+         * @param size Count of slots per size class.
+         */
+        ThreadCache(int sizeClassCount, int size) {
+            this.buffers = new ByteBuffer[sizeClassCount][size];
+            this.counts = new int[sizeClassCount];
+        }
+
+        /**
+         * Take a cached buffer of the given size class.
+         * @param index Index of the size class.
+         * @return Cached buffer, or null if no buffer of the size class is cached.
+         */
+        ByteBuffer poll(int index) {
+            if (counts[index] == 0) return null;
+            int slot = --counts[index];
+            ByteBuffer buffer = buffers[index][slot];
+            buffers[index][slot] = null;
+            return buffer;
+        }
+
+        /**
+         * Cache a buffer of the given size class.
+         * @param index Index of the size class.
+         * @param buffer Buffer that should be cached.
+         * @return true if the buffer was cached, false if all slots of the size class are taken.
+         */
+        boolean offer(int index, ByteBuffer buffer) {
+            if (counts[index] == buffers[index].length) return false;
+            buffers[index][counts[index]++] = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * Leak tracking state of a borrowed buffer. Runs once the {@link PooledBuffer} handle became unreachable.
+     * Must not reference the handle itself, otherwise it would never become unreachable.
+     */
+    static class LeakTracker implements Runnable {
+
+        /** Pool the buffer was borrowed from */
+        private final BufferPool pool;
+
+        /** Stack trace of the borrow */
+        private final Throwable allocationSite = new Throwable("Buffer borrowed here");
+
+        /** True once the buffer was released */
+        volatile boolean released = false;
+
+        /**
+         * Create a new leak tracker.
+         * @param pool Pool the buffer was borrowed from.
+         */
+        LeakTracker(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * Report the buffer as leaked if it wasn't released before its handle was garbage collected.
+         */
+        @Override
+        public void run() {
+            if (released) return;
+            pool.leaks.increment();
+            pool.outstanding.decrement();
+            LOG.error("Buffer of pool {} was garbage collected without being released", pool.name, allocationSite);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package de.traber_info.home.cleanstone.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Handle for a {@link ByteBuffer} borrowed from a {@link BufferPool}. Has to be released exactly once after use,
+ * which returns the buffer to its pool. The buffer must not be used after it was released.
+ *
+ * @author Oliver Traber
+ */
+public final class PooledBuffer {
+
+    /** Pool the buffer was borrowed from */
+    private final BufferPool pool;
+
+    /** Borrowed buffer */
+    private final ByteBuffer buffer;
+
+    /** Leak tracking state of this handle, or null if leak detection is disabled */
+    private final BufferPool.LeakTracker leakTracker;
+
+    /** True once the buffer was released */
+    private boolean released = false;
+
+    /**
+     * Create a new handle. Only called by {@link BufferPool}.
+     * @param pool Pool the buffer was borrowed from.
+     * @param buffer Borrowed buffer.
+     * @param leakTracker Leak tracking state, or null if leak detection is disabled.
+     */
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, BufferPool.LeakTracker leakTracker) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.leakTracker = leakTracker;
+    }
+
+    /**
+     * Get the borrowed buffer. Its position is 0 and its limit equals its capacity when borrowed.
+     * @return Borrowed buffer.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the backing array of a heap buffer.
+     * @return Backing array of the buffer.
+     * @throws UnsupportedOperationException Thrown if the buffer is a direct buffer.
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * Get the capacity of the borrowed buffer. May be larger than the requested size.
+     * @return Capacity of the borrowed buffer in bytes.
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Return the buffer to its pool.
+     * @throws IllegalStateException Thrown if the buffer was already released.
+     */
+    public void release() {
+        if (released) throw new IllegalStateException("Buffer was already released");
+        released = true;
+        if (leakTracker != null) leakTracker.released = true;
+        pool.release(buffer);
+    }
+
+}
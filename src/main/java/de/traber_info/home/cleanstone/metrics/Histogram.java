@@ -0,0 +1,86 @@
+package de.traber_info.home.cleanstone.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed buckets, exported in the Prometheus text format. Recording a duration only
+ * increments the striped counter of its bucket and adds to a striped sum, so threads recording concurrently don't
+ * contend. The buckets cover 100 microseconds to 10 seconds, which fits handshakes and backend connects.
+ *
+ * @author Oliver Traber
+ */
+public class Histogram {
+
+    /** Upper bounds of the buckets in seconds, as exported */
+    private static final double[] BOUNDS_SECONDS =
+            {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /** Upper bounds of the buckets in nanoseconds, compared when recording */
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+    /** Upper bounds of the buckets as label values, written without exponent */
+    private static final String[] BOUND_LABELS = new String[BOUNDS_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+            BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS_SECONDS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    /** Count of durations per bucket. The last bucket holds the durations above the largest bound */
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+
+    /** Sum of all durations in nanoseconds */
+    private final LongAdder sumNanos = new LongAdder();
+
+    /** Name of the histogram */
+    private final String name;
+
+    /** Description of the histogram */
+    private final String help;
+
+    /**
+     * Create an empty histogram.
+     * @param name Name of the histogram, which should end in {@code _seconds}.
+     * @param help Description of the histogram.
+     */
+    public Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Record a duration.
+     * @param nanos Duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) bucket++;
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Write the histogram in the Prometheus text format. Buckets are cumulative, as the format requires.
+     * @param out Builder the histogram is appended to.
+     */
+    void write(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long count = 0;
+        for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+            count += buckets[i].sum();
+            out.append(name).append("_bucket{le=\"").append(BOUND_LABELS[i]).append("\"} ")
+                    .append(count).append('\n');
+        }
+        count += buckets[BOUNDS_SECONDS.length].sum();
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+}
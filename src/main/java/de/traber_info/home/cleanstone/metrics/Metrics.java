@@ -0,0 +1,278 @@
+package de.traber_info.home.cleanstone.metrics;
+
+import de.traber_info.home.cleanstone.proxy.AccessList;
+import de.traber_info.home.cleanstone.proxy.AdmissionControl;
+import de.traber_info.home.cleanstone.proxy.Backend;
+import de.traber_info.home.cleanstone.proxy.BackendResolver;
+import de.traber_info.home.cleanstone.proxy.ConnectionLifecycle;
+import de.traber_info.home.cleanstone.proxy.ConnectionLimiter;
+import de.traber_info.home.cleanstone.proxy.SocketPool;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the proxy, rendered in the Prometheus text format by the {@link MetricsServer}.
+ * Recording only increments striped {@link LongAdder}s, so the accept, handshake and relay paths of all engines
+ * can record without contending on a shared counter. Values kept by other classes, like the counters of the
+ * connection limiter or the socket pool, are read when the metrics are rendered.
+ *
+ * @author Oliver Traber
+ */
+public class Metrics {
+
+    /** Reasons a handshake fails for */
+    public enum HandshakeFailure {
+        TIMEOUT, INVALID, NOT_HANDSHAKE, UNKNOWN_DOMAIN
+    }
+
+    /** Count of accepted connections */
+    private static final LongAdder accepted = new LongAdder();
+
+    /** Count of bytes relayed per direction */
+    private static final LongAdder[] relayedBytes = new LongAdder[ConnectionLifecycle.Direction.values().length];
+
+    /** Count of failed handshakes per reason */
+    private static final LongAdder[] handshakeFailures = new LongAdder[HandshakeFailure.values().length];
+
+    /** Count of connections closed because they sent a PROXY protocol header while pass-through is disabled */
+    private static final LongAdder proxyHeaderRejections = new LongAdder();
+
+    /** Count of open connections per mapping domain. Domains are never removed, so a series doesn't vanish */
+    private static final Map<String, AtomicInteger> mappingConnections = new ConcurrentHashMap<>();
+
+    /** Time from accepting a connection until its handshake was routed */
+    private static final Histogram handshakeDuration = new Histogram("cleanstone_handshake_duration_seconds",
+            "Time from accepting a connection until its handshake was routed.");
+
+    /** Time to connect to a backend server */
+    private static final Histogram backendConnectDuration = new Histogram(
+            "cleanstone_backend_connect_duration_seconds", "Time to connect to a backend server.");
+
+    /** Time of lookups of backend server addresses, including failed ones */
+    private static final Histogram resolverLookupDuration = new Histogram(
+            "cleanstone_resolver_lookup_duration_seconds",
+            "Time of lookups of backend server addresses, including failed ones.");
+
+    /** Time from starting to relay until the first byte of the backend server was read */
+    private static final Histogram firstByteDuration = new Histogram("cleanstone_backend_first_byte_seconds",
+            "Time from starting to relay until the first byte of the backend server was read.");
+
+    static {
+        for (int i = 0; i < relayedBytes.length; i++) relayedBytes[i] = new LongAdder();
+        for (int i = 0; i < handshakeFailures.length; i++) handshakeFailures[i] = new LongAdder();
+    }
+
+    /**
+     * Count an accepted connection.
+     */
+    public static void recordAccept() {
+        accepted.increment();
+    }
+
+    /**
+     * Count bytes relayed in one direction.
+     * @param direction Direction the bytes were relayed in.
+     * @param bytes Count of bytes.
+     */
+    public static void recordRelayed(ConnectionLifecycle.Direction direction, int bytes) {
+        relayedBytes[direction.ordinal()].add(bytes);
+    }
+
+    /**
+     * Count a failed handshake.
+     * @param reason Reason the handshake failed for.
+     */
+    public static void recordHandshakeFailure(HandshakeFailure reason) {
+        handshakeFailures[reason.ordinal()].increment();
+    }
+
+    /**
+     * Count a connection closed because it sent a PROXY protocol header while pass-through is disabled.
+     */
+    public static void recordProxyHeaderRejection() {
+        proxyHeaderRejections.increment();
+    }
+
+    /**
+     * Count a connection routed to a mapping until it is closed.
+     * @param mappingDomain Domain of the mapping.
+     * @param lifecycle Lifecycle of the connection.
+     */
+    public static void trackMapping(String mappingDomain, ConnectionLifecycle lifecycle) {
+        AtomicInteger count = mappingConnections.computeIfAbsent(mappingDomain, domain -> new AtomicInteger());
+        count.incrementAndGet();
+        lifecycle.whenClosed(count::decrementAndGet);
+    }
+
+    /**
+     * Record the time from accepting a connection until its handshake was routed.
+     * @param nanos Duration in nanoseconds.
+     */
+    public static void recordHandshakeDuration(long nanos) {
+        handshakeDuration.record(nanos);
+    }
+
+    /**
+     * Record the time of a successful connect to a backend server.
+     * @param nanos Duration in nanoseconds.
+     */
+    public static void recordBackendConnect(long nanos) {
+        backendConnectDuration.record(nanos);
+    }
+
+    /**
+     * Record the time of a lookup of a backend server address.
+     * @param nanos Duration in nanoseconds.
+     */
+    public static void recordResolverLookup(long nanos) {
+        resolverLookupDuration.record(nanos);
+    }
+
+    /**
+     * Record the time from starting to relay until the first byte of the backend server was read.
+     * @param nanos Duration in nanoseconds.
+     */
+    public static void recordFirstByte(long nanos) {
+        firstByteDuration.record(nanos);
+    }
+
+    /**
+     * Render all metrics in the Prometheus text format.
+     * @return Metrics in the Prometheus text format, version 0.0.4.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "cleanstone_accepted_connections_total", "counter", "Connections accepted.");
+        sample(out, "cleanstone_accepted_connections_total", null, accepted.sum());
+
+        header(out, "cleanstone_open_connections", "gauge", "Open connections, including the ones in their handshake.");
+        sample(out, "cleanstone_open_connections", null, AdmissionControl.getOpenConnections());
+
+        header(out, "cleanstone_handshakes_in_flight", "gauge", "Connections whose handshake wasn't routed yet.");
+        sample(out, "cleanstone_handshakes_in_flight", null, AdmissionControl.getHandshakesInFlight());
+
+        header(out, "cleanstone_mapping_connections", "gauge", "Open connections per mapping.");
+        for (Map.Entry<String, AtomicInteger> entry : mappingConnections.entrySet()) {
+            sample(out, "cleanstone_mapping_connections", "mapping=\"" + escape(entry.getKey()) + "\"",
+                    entry.getValue().get());
+        }
+
+        header(out, "cleanstone_backend_connections", "gauge", "Open connections per backend server.");
+        for (Backend backend : Backend.getAll()) {
+            sample(out, "cleanstone_backend_connections", backendLabel(backend), backend.getActiveConnections());
+        }
+
+        header(out, "cleanstone_backend_up", "gauge", "1 if the circuit breaker of a backend server is closed.");
+        for (Backend backend : Backend.getAll()) {
+            sample(out, "cleanstone_backend_up", backendLabel(backend),
+                    backend.getCircuitBreaker().isClosed() ? 1 : 0);
+        }
+
+        header(out, "cleanstone_backend_connect_errors_total", "counter",
+                "Failed connects to a backend server, including failed name resolution.");
+        for (Backend backend : Backend.getAll()) {
+            sample(out, "cleanstone_backend_connect_errors_total", backendLabel(backend),
+                    backend.getConnectFailureCount());
+        }
+
+        header(out, "cleanstone_relayed_bytes_total", "counter", "Bytes relayed in user space per direction.");
+        for (ConnectionLifecycle.Direction direction : ConnectionLifecycle.Direction.values()) {
+            sample(out, "cleanstone_relayed_bytes_total",
+                    "direction=\"" + direction.name().toLowerCase() + "\"", relayedBytes[direction.ordinal()].sum());
+        }
+
+        header(out, "cleanstone_handshake_failures_total", "counter", "Failed handshakes per reason.");
+        for (HandshakeFailure reason : HandshakeFailure.values()) {
+            sample(out, "cleanstone_handshake_failures_total", "reason=\"" + reason.name().toLowerCase() + "\"",
+                    handshakeFailures[reason.ordinal()].sum());
+        }
+
+        header(out, "cleanstone_proxy_header_rejections_total", "counter",
+                "Connections closed for sending a PROXY protocol header while pass-through is disabled.");
+        sample(out, "cleanstone_proxy_header_rejections_total", null, proxyHeaderRejections.sum());
+
+        header(out, "cleanstone_access_list_denied_total", "counter", "Connections denied by the access list.");
+        sample(out, "cleanstone_access_list_denied_total", null, AccessList.getDeniedCount());
+
+        header(out, "cleanstone_connection_limit_rejections_total", "counter",
+                "Connections rejected by the connection limits per reason.");
+        sample(out, "cleanstone_connection_limit_rejections_total", "reason=\"rate\"",
+                ConnectionLimiter.getRateRejectionCount());
+        sample(out, "cleanstone_connection_limit_rejections_total", "reason=\"connections\"",
+                ConnectionLimiter.getConnectionRejectionCount());
+
+        header(out, "cleanstone_admission_rejections_total", "counter",
+                "Connections turned away by the admission control per reason.");
+        sample(out, "cleanstone_admission_rejections_total", "reason=\"handshakes\"",
+                AdmissionControl.getHandshakeRejectionCount());
+        sample(out, "cleanstone_admission_rejections_total", "reason=\"overload\"",
+                AdmissionControl.getOverloadRejectionCount());
+
+        header(out, "cleanstone_socket_pool_requests_total", "counter", "Requests to the socket pool per result.");
+        sample(out, "cleanstone_socket_pool_requests_total", "result=\"hit\"", SocketPool.getHitCount());
+        sample(out, "cleanstone_socket_pool_requests_total", "result=\"miss\"", SocketPool.getMissCount());
+
+        header(out, "cleanstone_socket_pool_idle_sockets", "gauge", "Idle sockets held by the socket pool.");
+        sample(out, "cleanstone_socket_pool_idle_sockets", null, SocketPool.getIdleCount());
+
+        header(out, "cleanstone_resolver_requests_total", "counter", "Backend address resolutions per result.");
+        sample(out, "cleanstone_resolver_requests_total", "result=\"hit\"", BackendResolver.getHitCount());
+        sample(out, "cleanstone_resolver_requests_total", "result=\"stale\"", BackendResolver.getStaleHitCount());
+        sample(out, "cleanstone_resolver_requests_total", "result=\"miss\"", BackendResolver.getMissCount());
+        sample(out, "cleanstone_resolver_requests_total", "result=\"failure\"", BackendResolver.getFailureCount());
+
+        handshakeDuration.write(out);
+        backendConnectDuration.write(out);
+        resolverLookupDuration.write(out);
+        firstByteDuration.write(out);
+        return out.toString();
+    }
+
+    /**
+     * Write the help and type lines of a metric.
+     * @param out Builder the lines are appended to.
+     * @param name Name of the metric.
+     * @param type Prometheus type of the metric.
+     * @param help Description of the metric.
+     */
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Write a single sample of a metric.
+     * @param out Builder the sample is appended to.
+     * @param name Name of the metric.
+     * @param labels Labels of the sample without braces, or null if it has none.
+     * @param value Value of the sample.
+     */
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Get the label identifying a backend server.
+     * @param backend Backend server.
+     * @return Label without braces.
+     */
+    private static String backendLabel(Backend backend) {
+        return "backend=\"" + escape(backend.toString()) + "\"";
+    }
+
+    /**
+     * Escape a label value as required by the Prometheus text format.
+     * @param value Label value.
+     * @return Escaped label value.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
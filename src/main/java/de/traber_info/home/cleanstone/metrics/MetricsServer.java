@@ -0,0 +1,104 @@
+package de.traber_info.home.cleanstone.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the {@link Metrics} in the Prometheus text format at {@code /metrics} on a port separate from the proxy,
+ * using the HTTP server built into the JDK. Requests are answered on the single dispatcher thread of the server,
+ * so scraping never takes threads from the transport engines.
+ *
+ * @author Oliver Traber
+ */
+public class MetricsServer {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class.getName());
+
+    /** Path the metrics are served at */
+    private static final String PATH = "/metrics";
+
+    /** Content type of the Prometheus text format */
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Running HTTP server, or null if the metrics endpoint is disabled */
+    private static HttpServer server;
+
+    /** Address the running HTTP server is bound to, or null if the metrics endpoint is disabled */
+    private static InetSocketAddress boundAddress;
+
+    /**
+     * Start, restart or stop the metrics endpoint according to the settings. May be called again after a reload,
+     * the endpoint is only restarted if its address changed.
+     * @param metricsSettings Settings of the metrics endpoint.
+     */
+    public static synchronized void init(ConfigFile.MetricsSettings metricsSettings) {
+        InetSocketAddress address = metricsSettings.isEnabled()
+                ? new InetSocketAddress(metricsSettings.getBindAddress(), metricsSettings.getPort())
+                : null;
+        if (address != null ? address.equals(boundAddress) : server == null) return;
+
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            boundAddress = null;
+            LOG.info("Stopped metrics endpoint");
+        }
+        if (address == null) return;
+
+        try {
+            HttpServer started = HttpServer.create(address, 0);
+            started.createContext(PATH, MetricsServer::handle);
+            started.start();
+            server = started;
+            boundAddress = address;
+            LOG.info("Serving metrics on http://{}:{}{}", metricsSettings.getBindAddress(),
+                    metricsSettings.getPort(), PATH);
+        } catch (IOException ex) {
+            LOG.error("Failed to serve metrics on {}:{}", metricsSettings.getBindAddress(),
+                    metricsSettings.getPort(), ex);
+        }
+    }
+
+    /**
+     * Answer a request to the metrics endpoint.
+     * @param exchange Request and response.
+     * @throws IOException Thrown if the response can't be written.
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!PATH.equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+}
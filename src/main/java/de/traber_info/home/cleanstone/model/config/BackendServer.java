@@ -0,0 +1,61 @@
+package de.traber_info.home.cleanstone.model.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Model for a single backend server a domain can be mapped to.
+ *
+ * @author Oliver Traber
+ */
+public class BackendServer {
+
+    /** Address (hostname or IP address) of the backend server */
+    @JsonProperty("address")
+    private String address;
+
+    /** Port of the backend server */
+    @JsonProperty("port")
+    private int port = 25565;
+
+    /** Share of the connections the backend server receives, relative to the other backends of the mapping */
+    @JsonProperty("weight")
+    private int weight = 1;
+
+    /** Private constructor for instantiation by Jackson */
+    private BackendServer() {}
+
+    /**
+     * Create a backend server with the default weight. Used for mappings with a single backend server.
+     * @param address Address of the backend server.
+     * @param port Port of the backend server.
+     */
+    BackendServer(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * Get the address of the backend server.
+     * @return Address (hostname or IP address) of the backend server.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the port of the backend server.
+     * @return Port of the backend server.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the share of the connections the backend server receives.
+     * @return Weight of the backend server. At least 1.
+     */
+    public int getWeight() {
+        return Math.max(1, weight);
+    }
+
+}
@@ -2,6 +2,9 @@ package de.traber_info.home.cleanstone.model.config;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Model for an backend server definition.
  *
@@ -21,6 +24,22 @@ public class BackendServerMapping {
     @JsonProperty("backendServerPort")
     private int backendServerPort;
 
+    /** Backend servers the given domain should be balanced over. Replaces address and port if set */
+    @JsonProperty("backends")
+    private List<BackendServer> backends;
+
+    /** Policy used to choose one of the backend servers for each connection */
+    @JsonProperty("balancing")
+    private BalancingPolicy balancingPolicy = BalancingPolicy.ROUND_ROBIN;
+
+    /** Time in milliseconds the connect to a backend server may take, including all of its addresses */
+    @JsonProperty("connectTimeoutMillis")
+    private long connectTimeoutMillis = 5000;
+
+    /** Time in milliseconds the backend server has to send its first data after the handshake. 0 disables it */
+    @JsonProperty("firstByteTimeoutMillis")
+    private long firstByteTimeoutMillis = 0;
+
     /** Private constructor for instantiation by Jackson */
     private BackendServerMapping() {}
 
@@ -34,18 +53,68 @@ public class BackendServerMapping {
 
     /**
      * Get the address of the backend server the given domain should be mapped to.
-     * @return Address of the backend server the given domain should be mapped to.
+     * @return Address of the first backend server the given domain should be mapped to.
      */
     public String getBackendServerAddress() {
-        return backendServerAddress;
+        return getBackends().get(0).getAddress();
     }
 
     /**
      * Get the port of the backend server the given domain should be mapped to.
-     * @return Port of the backend server the given domain should be mapped to.
+     * @return Port of the first backend server the given domain should be mapped to.
      */
     public int getBackendServerPort() {
-        return backendServerPort;
+        return getBackends().get(0).getPort();
+    }
+
+    /**
+     * Get the backend servers the given domain should be balanced over.
+     * @return Backend servers from the backends list, or the single backend server given by address and port.
+     */
+    public synchronized List<BackendServer> getBackends() {
+        if (backends == null || backends.isEmpty()) {
+            backends = Collections.singletonList(new BackendServer(backendServerAddress, backendServerPort));
+        }
+        return backends;
+    }
+
+    /**
+     * Get the policy used to choose one of the backend servers for each connection.
+     * @return Balancing policy of the mapping.
+     */
+    public BalancingPolicy getBalancingPolicy() {
+        return balancingPolicy;
+    }
+
+    /**
+     * Get the time the connect to a backend server may take, including all of its addresses.
+     * @return Time in milliseconds.
+     */
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Get the time the backend server has to send its first data after the handshake was forwarded.
+     * @return Time in milliseconds. 0 if the backend server may take as long as it wants.
+     */
+    public long getFirstByteTimeoutMillis() {
+        return firstByteTimeoutMillis;
+    }
+
+    /**
+     * Enum of available policies to choose a backend server.
+     */
+    public enum BalancingPolicy {
+        /** Backend servers take turns, each as often as its weight */
+        @JsonProperty("round-robin")
+        ROUND_ROBIN,
+        /** The backend server with the fewest active connections relative to its weight is chosen */
+        @JsonProperty("least-connections")
+        LEAST_CONNECTIONS,
+        /** The backend server with the lowest measured connect latency relative to its weight is chosen */
+        @JsonProperty("lowest-latency")
+        LOWEST_LATENCY
     }
 
 }
@@ -23,6 +23,58 @@ public class ConfigFile {
     @JsonProperty("proxyProtocol")
     private ProxyProtocolSettings proxyProtocolSettings = new ProxyProtocolSettings();
 
+    /** Config object for setting transport engine settings */
+    @JsonProperty("transport")
+    private TransportSettings transportSettings = new TransportSettings();
+
+    /** Config object for setting handshake settings */
+    @JsonProperty("handshake")
+    private HandshakeSettings handshakeSettings = new HandshakeSettings();
+
+    /** Config object for setting relay buffer settings */
+    @JsonProperty("relayBuffer")
+    private RelayBufferSettings relayBufferSettings = new RelayBufferSettings();
+
+    /** Config object for setting buffer pool settings */
+    @JsonProperty("bufferPool")
+    private BufferPoolSettings bufferPoolSettings = new BufferPoolSettings();
+
+    /** Config object for setting status cache settings */
+    @JsonProperty("statusCache")
+    private StatusCacheSettings statusCacheSettings = new StatusCacheSettings();
+
+    /** Config object for setting backend server address resolution settings */
+    @JsonProperty("resolver")
+    private ResolverSettings resolverSettings = new ResolverSettings();
+
+    /** Config object for setting live config reload settings */
+    @JsonProperty("reload")
+    private ReloadSettings reloadSettings = new ReloadSettings();
+
+    /** Config object for setting backend server health check settings */
+    @JsonProperty("healthCheck")
+    private HealthCheckSettings healthCheckSettings = new HealthCheckSettings();
+
+    /** Config object for setting backend connection pool settings */
+    @JsonProperty("socketPool")
+    private SocketPoolSettings socketPoolSettings = new SocketPoolSettings();
+
+    /** Config object for setting per client connection limits */
+    @JsonProperty("connectionLimit")
+    private ConnectionLimitSettings connectionLimitSettings = new ConnectionLimitSettings();
+
+    /** Config object for setting the networks allowed or denied to connect */
+    @JsonProperty("accessList")
+    private AccessListSettings accessListSettings = new AccessListSettings();
+
+    /** Config object for setting the overload protection */
+    @JsonProperty("admission")
+    private AdmissionSettings admissionSettings = new AdmissionSettings();
+
+    /** Config object for setting the Prometheus metrics endpoint */
+    @JsonProperty("metrics")
+    private MetricsSettings metricsSettings = new MetricsSettings();
+
     /** Private constructor for instantiation by Jackson */
     private ConfigFile() {}
 
@@ -50,6 +102,110 @@ public class ConfigFile {
         return proxyProtocolSettings;
     }
 
+    /**
+     * Get the transport engine config object.
+     * @return Transport engine config object.
+     */
+    public TransportSettings getTransportSettings() {
+        return transportSettings;
+    }
+
+    /**
+     * Get the handshake config object.
+     * @return Handshake config object.
+     */
+    public HandshakeSettings getHandshakeSettings() {
+        return handshakeSettings;
+    }
+
+    /**
+     * Get the relay buffer config object.
+     * @return Relay buffer config object.
+     */
+    public RelayBufferSettings getRelayBufferSettings() {
+        return relayBufferSettings;
+    }
+
+    /**
+     * Get the buffer pool config object.
+     * @return Buffer pool config object.
+     */
+    public BufferPoolSettings getBufferPoolSettings() {
+        return bufferPoolSettings;
+    }
+
+    /**
+     * Get the status cache config object.
+     * @return Status cache config object.
+     */
+    public StatusCacheSettings getStatusCacheSettings() {
+        return statusCacheSettings;
+    }
+
+    /**
+     * Get the backend server address resolution config object.
+     * @return Backend server address resolution config object.
+     */
+    public ResolverSettings getResolverSettings() {
+        return resolverSettings;
+    }
+
+    /**
+     * Get the live config reload config object.
+     * @return Live config reload config object.
+     */
+    public ReloadSettings getReloadSettings() {
+        return reloadSettings;
+    }
+
+    /**
+     * Get the backend server health check config object.
+     * @return Backend server health check config object.
+     */
+    public HealthCheckSettings getHealthCheckSettings() {
+        return healthCheckSettings;
+    }
+
+    /**
+     * Get the backend connection pool config object.
+     * @return Backend connection pool config object.
+     */
+    public SocketPoolSettings getSocketPoolSettings() {
+        return socketPoolSettings;
+    }
+
+    /**
+     * Get the per client connection limit config object.
+     * @return Per client connection limit config object.
+     */
+    public ConnectionLimitSettings getConnectionLimitSettings() {
+        return connectionLimitSettings;
+    }
+
+    /**
+     * Get the access list config object.
+     * @return Access list config object.
+     */
+    public AccessListSettings getAccessListSettings() {
+        return accessListSettings;
+    }
+
+    /**
+     * Get the overload protection config object.
+     * @return Overload protection config object.
+     */
+    public AdmissionSettings getAdmissionSettings() {
+        return admissionSettings;
+    }
+
+    /**
+     * Get the metrics endpoint config object.
+     * @return Metrics endpoint config object.
+     */
+    public MetricsSettings getMetricsSettings() {
+        return metricsSettings;
+    }
+
     /**
      * Class to hold information about PROXY protocol support options.
      */
@@ -79,4 +235,939 @@ public class ConfigFile {
             return passThrough;
         }
     }
+
+    /**
+     * Class to hold information about the transport engine used to handle client connections.
+     */
+    public class TransportSettings {
+
+        /** Transport engine used to accept and relay client connections */
+        @JsonProperty("engine")
+        private Engine engine = Engine.BLOCKING;
+
+        /** Count of event loops used by the NIO and epoll engines. 0 means one per available processor */
+        @JsonProperty("eventLoops")
+        private int eventLoops = 0;
+
+        /** Count of listening sockets bound to the listen port with SO_REUSEPORT, each with its own acceptor */
+        @JsonProperty("listenerShards")
+        private int listenerShards = 1;
+
+        /** Use splice() to relay data with the epoll engine */
+        @JsonProperty("splice")
+        private boolean splice = true;
+
+        /** Kind of threads used by the blocking engine to handle connections */
+        @JsonProperty("threads")
+        private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+        /** Report virtual thread pinning and calls that block longer than the configured threshold */
+        @JsonProperty("reportBlocking")
+        private boolean reportBlocking = false;
+
+        /** Time in milliseconds a call has to block before it is reported */
+        @JsonProperty("blockingThresholdMillis")
+        private long blockingThresholdMillis = 20;
+
+        /** Time in milliseconds without data in either direction after which a connection is closed. 0 disables it */
+        @JsonProperty("idleTimeoutMillis")
+        private long idleTimeoutMillis = 60000;
+
+        /**
+         * Get the transport engine used to accept and relay client connections.
+         * @return Transport engine used to accept and relay client connections.
+         */
+        public Engine getEngine() {
+            return engine;
+        }
+
+        /**
+         * Get the count of event loops used by the NIO and epoll engines.
+         * @return Count of event loops. Resolves to the count of available processors if not configured.
+         */
+        public int getEventLoops() {
+            return eventLoops > 0 ? eventLoops : Runtime.getRuntime().availableProcessors();
+        }
+
+        /**
+         * Get the count of listening sockets bound to the listen port, each with its own acceptor.
+         * @return Count of listening sockets. At least 1.
+         */
+        public int getListenerShards() {
+            return Math.max(1, listenerShards);
+        }
+
+        /**
+         * Check if the epoll engine should relay data with splice().
+         * @return true if splice() should be used, otherwise false.
+         */
+        public boolean spliceEnabled() {
+            return splice;
+        }
+
+        /**
+         * Get the kind of threads used by the blocking engine to handle connections.
+         * @return Kind of threads used by the blocking engine.
+         */
+        public ThreadMode getThreadMode() {
+            return threadMode;
+        }
+
+        /**
+         * Check if virtual thread pinning and long blocking calls should be reported.
+         * @return true if blocking calls should be reported, otherwise false.
+         */
+        public boolean reportBlockingEnabled() {
+            return reportBlocking;
+        }
+
+        /**
+         * Get the time in milliseconds a call has to block before it is reported.
+         * @return Time in milliseconds a call has to block before it is reported.
+         */
+        public long getBlockingThresholdMillis() {
+            return blockingThresholdMillis;
+        }
+
+        /**
+         * Get the time without data in either direction after which a connection is closed.
+         * @return Time in milliseconds. 0 if idle connections are kept open.
+         */
+        public long getIdleTimeoutMillis() {
+            return idleTimeoutMillis;
+        }
+    }
+
+    /**
+     * Class to hold information about the limits applied while a client sends its handshake.
+     */
+    public static class HandshakeSettings {
+
+        /** Maximum size of the handshake in bytes, including an optional PROXY protocol header */
+        @JsonProperty("maxSize")
+        private int maxSize = 4096;
+
+        /** Time in milliseconds a client has to send its complete handshake */
+        @JsonProperty("timeoutMillis")
+        private long timeoutMillis = 5000;
+
+        /**
+         * Get the maximum size of the handshake.
+         * @return Maximum size of the handshake in bytes.
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * Get the time a client has to send its complete handshake.
+         * @return Time in milliseconds.
+         */
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+    }
+
+    /**
+     * Class to hold information about the adaptive sizing of relay buffers.
+     */
+    public static class RelayBufferSettings {
+
+        /** Smallest size of a relay buffer in bytes */
+        @JsonProperty("minSize")
+        private int minSize = 512;
+
+        /** Size of a relay buffer when relaying starts */
+        @JsonProperty("initialSize")
+        private int initialSize = 4096;
+
+        /** Largest size a relay buffer may grow to during bursts */
+        @JsonProperty("maxSize")
+        private int maxSize = 64 * 1024;
+
+        /** Time in milliseconds without data after which a relay direction gives its buffer back */
+        @JsonProperty("idleMillis")
+        private long idleMillis = 5000;
+
+        /**
+         * Get the smallest size of a relay buffer.
+         * @return Smallest size of a relay buffer in bytes.
+         */
+        public int getMinSize() {
+            return minSize;
+        }
+
+        /**
+         * Get the size of a relay buffer when relaying starts.
+         * @return Initial size of a relay buffer in bytes.
+         */
+        public int getInitialSize() {
+            return initialSize;
+        }
+
+        /**
+         * Get the largest size a relay buffer may grow to.
+         * @return Largest size of a relay buffer in bytes.
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * Get the time without data after which a relay direction gives its buffer back.
+         * @return Time in milliseconds.
+         */
+        public long getIdleMillis() {
+            return idleMillis;
+        }
+    }
+
+    /**
+     * Class to hold information about the pool handshake and relay buffers are borrowed from.
+     */
+    public static class BufferPoolSettings {
+
+        /** Enable pooling of buffers */
+        @JsonProperty("enable")
+        private boolean enabled = true;
+
+        /** Maximum count of bytes kept in each shared pool */
+        @JsonProperty("maxPooledBytes")
+        private long maxPooledBytes = 64L * 1024 * 1024;
+
+        /** Size of the largest pooled buffer. Larger buffers are allocated on demand */
+        @JsonProperty("maxBufferSize")
+        private int maxBufferSize = 64 * 1024;
+
+        /** Maximum count of buffers per size class kept in the cache of an event loop thread */
+        @JsonProperty("threadCacheSize")
+        private int threadCacheSize = 16;
+
+        /** Report buffers that are garbage collected without being released */
+        @JsonProperty("leakDetection")
+        private boolean leakDetection = false;
+
+        /** Interval in seconds in which the pool statistics are logged. 0 disables logging */
+        @JsonProperty("statsIntervalSeconds")
+        private long statsIntervalSeconds = 0;
+
+        /**
+         * Check if pooling of buffers is enabled.
+         * @return true if pooling of buffers is enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the maximum count of bytes kept in each shared pool.
+         * @return Maximum count of bytes kept in each shared pool.
+         */
+        public long getMaxPooledBytes() {
+            return maxPooledBytes;
+        }
+
+        /**
+         * Get the size of the largest pooled buffer.
+         * @return Size of the largest pooled buffer in bytes.
+         */
+        public int getMaxBufferSize() {
+            return maxBufferSize;
+        }
+
+        /**
+         * Get the maximum count of buffers per size class kept in the cache of an event loop thread.
+         * @return Maximum count of buffers per size class and thread.
+         */
+        public int getThreadCacheSize() {
+            return threadCacheSize;
+        }
+
+        /**
+         * Check if buffers that are garbage collected without being released should be reported.
+         * @return true if leak detection is enabled, otherwise false.
+         */
+        public boolean leakDetectionEnabled() {
+            return leakDetection;
+        }
+
+        /**
+         * Get the interval in which the pool statistics are logged.
+         * @return Interval in seconds. 0 if logging is disabled.
+         */
+        public long getStatsIntervalSeconds() {
+            return statsIntervalSeconds;
+        }
+    }
+
+    /**
+     * Class to hold information about answering server list pings from cached backend server responses.
+     */
+    public static class StatusCacheSettings {
+
+        /** Answer server list pings from the cache instead of relaying them to the backend server */
+        @JsonProperty("enable")
+        private boolean enabled = false;
+
+        /** Time in milliseconds after which the status of a backend server is fetched again */
+        @JsonProperty("ttlMillis")
+        private long ttlMillis = 2000;
+
+        /** Time in milliseconds a backend server has to answer a status request */
+        @JsonProperty("timeoutMillis")
+        private long timeoutMillis = 3000;
+
+        /** Time in milliseconds without pings after which the status of a domain is no longer refreshed */
+        @JsonProperty("idleMillis")
+        private long idleMillis = 60000;
+
+        /**
+         * Check if server list pings are answered from the cache.
+         * @return true if the status cache is enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the time after which the status of a backend server is fetched again.
+         * @return Time in milliseconds.
+         */
+        public long getTtlMillis() {
+            return ttlMillis;
+        }
+
+        /**
+         * Get the time a backend server has to answer a status request.
+         * @return Time in milliseconds.
+         */
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        /**
+         * Get the time without pings after which the status of a domain is no longer refreshed.
+         * @return Time in milliseconds.
+         */
+        public long getIdleMillis() {
+            return idleMillis;
+        }
+    }
+
+    /**
+     * Class to hold information about caching the resolved addresses of the backend servers.
+     */
+    public static class ResolverSettings {
+
+        /** Cache resolved backend server addresses instead of resolving them on every connection */
+        @JsonProperty("enable")
+        private boolean enabled = true;
+
+        /** Time in milliseconds a resolved address is used for. It is refreshed in the background before */
+        @JsonProperty("ttlMillis")
+        private long ttlMillis = 30000;
+
+        /** Time in milliseconds an expired address is still used for while resolving it fails */
+        @JsonProperty("maxStaleMillis")
+        private long maxStaleMillis = 300000;
+
+        /** Interval in seconds in which the resolver statistics are logged. 0 disables logging */
+        @JsonProperty("statsIntervalSeconds")
+        private long statsIntervalSeconds = 0;
+
+        /**
+         * Check if resolved backend server addresses are cached.
+         * @return true if the cache is enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the time a resolved address is used for.
+         * @return Time in milliseconds.
+         */
+        public long getTtlMillis() {
+            return ttlMillis;
+        }
+
+        /**
+         * Get the time an expired address is still used for while resolving it fails.
+         * @return Time in milliseconds.
+         */
+        public long getMaxStaleMillis() {
+            return maxStaleMillis;
+        }
+
+        /**
+         * Get the interval in which the resolver statistics are logged.
+         * @return Interval in seconds. 0 if logging is disabled.
+         */
+        public long getStatsIntervalSeconds() {
+            return statsIntervalSeconds;
+        }
+    }
+
+    /**
+     * Class to hold information about reloading the config while cleanstone is running.
+     */
+    public static class ReloadSettings {
+
+        /** Reload the config when config.json changes */
+        @JsonProperty("watchFile")
+        private boolean watchFile = true;
+
+        /** Reload the config when cleanstone receives SIGHUP */
+        @JsonProperty("signal")
+        private boolean signal = true;
+
+        /** Time in milliseconds to wait for further changes of config.json before it is reloaded */
+        @JsonProperty("debounceMillis")
+        private long debounceMillis = 500;
+
+        /**
+         * Check if the config is reloaded when config.json changes.
+         * @return true if config.json is watched, otherwise false.
+         */
+        public boolean watchFileEnabled() {
+            return watchFile;
+        }
+
+        /**
+         * Check if the config is reloaded when cleanstone receives SIGHUP.
+         * @return true if SIGHUP triggers a reload, otherwise false.
+         */
+        public boolean signalEnabled() {
+            return signal;
+        }
+
+        /**
+         * Get the time to wait for further changes of config.json before it is reloaded.
+         * @return Time in milliseconds.
+         */
+        public long getDebounceMillis() {
+            return debounceMillis;
+        }
+    }
+
+    /**
+     * Class to hold information about probing the backend servers and failing fast while they are down.
+     */
+    public static class HealthCheckSettings {
+
+        /** Probe all backend servers periodically, instead of only noticing failures when clients join */
+        @JsonProperty("enable")
+        private boolean enabled = false;
+
+        /** Kind of probe sent to the backend servers */
+        @JsonProperty("probe")
+        private ProbeType probe = ProbeType.TCP;
+
+        /** Interval in milliseconds in which the backend servers are probed */
+        @JsonProperty("intervalMillis")
+        private long intervalMillis = 5000;
+
+        /** Time in milliseconds a backend server has to answer a probe */
+        @JsonProperty("timeoutMillis")
+        private long timeoutMillis = 2000;
+
+        /** Count of consecutive failed connects or probes after which a backend server is taken out of rotation */
+        @JsonProperty("failureThreshold")
+        private int failureThreshold = 3;
+
+        /** Time in milliseconds after which a single client is let through to a failed backend server again */
+        @JsonProperty("openMillis")
+        private long openMillis = 10000;
+
+        /** Message shown to joining players if no backend server of the domain is available */
+        @JsonProperty("disconnectMessage")
+        private String disconnectMessage = "The server is currently unavailable. Please try again later.";
+
+        /**
+         * Check if the backend servers are probed periodically.
+         * @return true if health checks are enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the kind of probe sent to the backend servers.
+         * @return Kind of probe.
+         */
+        public ProbeType getProbe() {
+            return probe;
+        }
+
+        /**
+         * Get the interval in which the backend servers are probed.
+         * @return Interval in milliseconds.
+         */
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        /**
+         * Get the time a backend server has to answer a probe.
+         * @return Time in milliseconds.
+         */
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        /**
+         * Get the count of consecutive failures after which a backend server is taken out of rotation.
+         * @return Count of consecutive failures, at least 1.
+         */
+        public int getFailureThreshold() {
+            return Math.max(1, failureThreshold);
+        }
+
+        /**
+         * Get the time after which a single client is let through to a failed backend server again.
+         * @return Time in milliseconds.
+         */
+        public long getOpenMillis() {
+            return openMillis;
+        }
+
+        /**
+         * Get the message shown to joining players if no backend server of the domain is available.
+         * @return Message in plain text.
+         */
+        public String getDisconnectMessage() {
+            return disconnectMessage;
+        }
+    }
+
+    /**
+     * Class to hold information about keeping idle connections to the backend servers open for joining clients.
+     */
+    public static class SocketPoolSettings {
+
+        /** Keep connections to the backend servers open ahead of time */
+        @JsonProperty("enable")
+        private boolean enabled = false;
+
+        /** Maximum count of idle connections per backend server */
+        @JsonProperty("maxSize")
+        private int maxSize = 8;
+
+        /** Time in milliseconds after which an idle connection is closed. Must be below the backend's timeout */
+        @JsonProperty("maxIdleMillis")
+        private long maxIdleMillis = 15000;
+
+        /** Interval in milliseconds in which the pools are checked and refilled */
+        @JsonProperty("refillIntervalMillis")
+        private long refillIntervalMillis = 1000;
+
+        /** Time in milliseconds a backend server has to accept a pooled connection */
+        @JsonProperty("connectTimeoutMillis")
+        private long connectTimeoutMillis = 5000;
+
+        /** Interval in seconds in which the pool statistics are logged. 0 disables logging */
+        @JsonProperty("statsIntervalSeconds")
+        private long statsIntervalSeconds = 0;
+
+        /**
+         * Check if connections to the backend servers are opened ahead of time.
+         * @return true if the pool is enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the maximum count of idle connections per backend server.
+         * @return Maximum count of idle connections.
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * Get the time after which an idle connection is closed.
+         * @return Time in milliseconds.
+         */
+        public long getMaxIdleMillis() {
+            return maxIdleMillis;
+        }
+
+        /**
+         * Get the interval in which the pools are checked and refilled.
+         * @return Interval in milliseconds.
+         */
+        public long getRefillIntervalMillis() {
+            return refillIntervalMillis;
+        }
+
+        /**
+         * Get the time a backend server has to accept a pooled connection.
+         * @return Time in milliseconds.
+         */
+        public long getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+
+        /**
+         * Get the interval in which the pool statistics are logged.
+         * @return Interval in seconds. 0 if logging is disabled.
+         */
+        public long getStatsIntervalSeconds() {
+            return statsIntervalSeconds;
+        }
+    }
+
+    /**
+     * Class to hold information about limiting the connections of single clients and networks.
+     */
+    public static class ConnectionLimitSettings {
+
+        /** Limit the connections per client address and network */
+        @JsonProperty("enable")
+        private boolean enabled = false;
+
+        /** Count of new connections per second a single address may open in the long run */
+        @JsonProperty("connectionsPerSecond")
+        private double connectionsPerSecond = 5;
+
+        /** Count of new connections a single address may open at once */
+        @JsonProperty("burst")
+        private int burst = 10;
+
+        /** Count of connections a single address may keep open at the same time */
+        @JsonProperty("maxConnections")
+        private int maxConnections = 10;
+
+        /** Count of new connections per second a single network may open in the long run */
+        @JsonProperty("prefixConnectionsPerSecond")
+        private double prefixConnectionsPerSecond = 20;
+
+        /** Count of new connections a single network may open at once */
+        @JsonProperty("prefixBurst")
+        private int prefixBurst = 40;
+
+        /** Count of connections a single network may keep open at the same time */
+        @JsonProperty("prefixMaxConnections")
+        private int prefixMaxConnections = 50;
+
+        /** Length of the network prefix IPv4 addresses are grouped by */
+        @JsonProperty("ipv4PrefixLength")
+        private int ipv4PrefixLength = 24;
+
+        /** Length of the network prefix IPv6 addresses are grouped by */
+        @JsonProperty("ipv6PrefixLength")
+        private int ipv6PrefixLength = 64;
+
+        /** Interval in seconds in which the limiter statistics are logged. 0 disables logging */
+        @JsonProperty("statsIntervalSeconds")
+        private long statsIntervalSeconds = 0;
+
+        /**
+         * Check if the connections per client address and network are limited.
+         * @return true if the limits are enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the count of new connections per second a single address may open in the long run.
+         * @return Connections per second.
+         */
+        public double getConnectionsPerSecond() {
+            return connectionsPerSecond;
+        }
+
+        /**
+         * Get the count of new connections a single address may open at once.
+         * @return Size of the burst, at least 1.
+         */
+        public int getBurst() {
+            return Math.max(1, burst);
+        }
+
+        /**
+         * Get the count of connections a single address may keep open at the same time.
+         * @return Maximum count of concurrent connections.
+         */
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        /**
+         * Get the count of new connections per second a single network may open in the long run.
+         * @return Connections per second.
+         */
+        public double getPrefixConnectionsPerSecond() {
+            return prefixConnectionsPerSecond;
+        }
+
+        /**
+         * Get the count of new connections a single network may open at once.
+         * @return Size of the burst, at least 1.
+         */
+        public int getPrefixBurst() {
+            return Math.max(1, prefixBurst);
+        }
+
+        /**
+         * Get the count of connections a single network may keep open at the same time.
+         * @return Maximum count of concurrent connections.
+         */
+        public int getPrefixMaxConnections() {
+            return prefixMaxConnections;
+        }
+
+        /**
+         * Get the length of the network prefix IPv4 addresses are grouped by.
+         * @return Prefix length between 0 and 32.
+         */
+        public int getIpv4PrefixLength() {
+            return Math.max(0, Math.min(32, ipv4PrefixLength));
+        }
+
+        /**
+         * Get the length of the network prefix IPv6 addresses are grouped by.
+         * @return Prefix length between 0 and 128.
+         */
+        public int getIpv6PrefixLength() {
+            return Math.max(0, Math.min(128, ipv6PrefixLength));
+        }
+
+        /**
+         * Get the interval in which the limiter statistics are logged.
+         * @return Interval in seconds. 0 if logging is disabled.
+         */
+        public long getStatsIntervalSeconds() {
+            return statsIntervalSeconds;
+        }
+    }
+
+    /**
+     * Enum of available health check probes.
+     */
+    public enum ProbeType {
+        /** Open a TCP connection and close it right away */
+        @JsonProperty("tcp")
+        TCP,
+        /** Send a server list ping and wait for a valid status response */
+        @JsonProperty("status")
+        STATUS
+    }
+
+    /**
+     * Enum of available transport engines.
+     */
+    public enum Engine {
+        /** Blocking sockets with one thread per connection and relay direction */
+        @JsonProperty("blocking")
+        BLOCKING,
+        /** Non-blocking socket channels multiplexed over a fixed set of selector event loops */
+        @JsonProperty("nio")
+        NIO,
+        /** Netty's native Linux epoll transport, relaying data with splice(). Falls back to blocking elsewhere */
+        @JsonProperty("epoll")
+        EPOLL
+    }
+
+    /**
+     * Enum of available thread kinds used by the blocking engine.
+     */
+    public enum ThreadMode {
+        /** Classic operating system threads */
+        @JsonProperty("platform")
+        PLATFORM,
+        /** Virtual threads scheduled by the JVM. Requires Java 21 or newer at runtime */
+        @JsonProperty("virtual")
+        VIRTUAL
+    }
+
+    /**
+     * Class to hold information about the networks allowed or denied to connect.
+     */
+    public static class AccessListSettings {
+
+        /** Check client addresses against the access list */
+        @JsonProperty("enable")
+        private boolean enabled = false;
+
+        /** Addresses and networks in CIDR notation allowed to connect. Empty allows every address not denied */
+        @JsonProperty("allow")
+        private ArrayList<String> allow = new ArrayList<>();
+
+        /** Addresses and networks in CIDR notation denied to connect */
+        @JsonProperty("deny")
+        private ArrayList<String> deny = new ArrayList<>();
+
+        /** Addresses and networks of upstream proxies allowed to connect with PROXY protocol pass-through */
+        @JsonProperty("proxies")
+        private ArrayList<String> proxies = new ArrayList<>();
+
+        /**
+         * Check if client addresses are checked against the access list.
+         * @return true if the access list is enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the addresses and networks allowed to connect.
+         * @return Addresses and networks in CIDR notation. Empty if every address not denied is allowed.
+         */
+        public ArrayList<String> getAllow() {
+            return allow;
+        }
+
+        /**
+         * Get the addresses and networks denied to connect.
+         * @return Addresses and networks in CIDR notation.
+         */
+        public ArrayList<String> getDeny() {
+            return deny;
+        }
+
+        /**
+         * Get the addresses and networks of upstream proxies allowed to connect with PROXY protocol pass-through.
+         * @return Addresses and networks in CIDR notation. Empty if any upstream proxy is allowed.
+         */
+        public ArrayList<String> getProxies() {
+            return proxies;
+        }
+    }
+
+    /**
+     * Class to hold information about the limits of the whole proxy, beyond which new clients are turned away.
+     */
+    public static class AdmissionSettings {
+
+        /** Turn new clients away once a limit is reached */
+        @JsonProperty("enable")
+        private boolean enabled = false;
+
+        /** Maximum count of open connections. 0 disables the limit */
+        @JsonProperty("maxConnections")
+        private int maxConnections = 10000;
+
+        /** Maximum count of connections that didn't finish their handshake yet. 0 disables the limit */
+        @JsonProperty("maxHandshakes")
+        private int maxHandshakes = 1000;
+
+        /** Maximum count of connections relayed to a single backend server. 0 disables the limit */
+        @JsonProperty("maxConnectionsPerBackend")
+        private int maxConnectionsPerBackend = 0;
+
+        /** Percentage of the maximum heap size in use after garbage collection at which clients are turned away */
+        @JsonProperty("heapWatermarkPercent")
+        private int heapWatermarkPercent = 90;
+
+        /** Direct memory in bytes in use at which clients are turned away. 0 disables the watermark */
+        @JsonProperty("directMemoryWatermarkBytes")
+        private long directMemoryWatermarkBytes = 0;
+
+        /** Message shown to joining players and in the server list while clients are turned away */
+        @JsonProperty("message")
+        private String message = "The server is full. Please try again later.";
+
+        /**
+         * Check if new clients are turned away once a limit is reached.
+         * @return true if admission control is enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the maximum count of open connections.
+         * @return Maximum count of open connections. 0 if unlimited.
+         */
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        /**
+         * Get the maximum count of connections that didn't finish their handshake yet.
+         * @return Maximum count of handshakes in flight. 0 if unlimited.
+         */
+        public int getMaxHandshakes() {
+            return maxHandshakes;
+        }
+
+        /**
+         * Get the maximum count of connections relayed to a single backend server.
+         * @return Maximum count of connections per backend server. 0 if unlimited.
+         */
+        public int getMaxConnectionsPerBackend() {
+            return maxConnectionsPerBackend;
+        }
+
+        /**
+         * Get the percentage of the maximum heap size in use after garbage collection at which clients are turned
+         * away.
+         * @return Percentage from 1 to 100. 0 if the heap isn't watched.
+         */
+        public int getHeapWatermarkPercent() {
+            return heapWatermarkPercent;
+        }
+
+        /**
+         * Get the direct memory in use at which clients are turned away.
+         * @return Direct memory in bytes. 0 if the direct memory isn't watched.
+         */
+        public long getDirectMemoryWatermarkBytes() {
+            return directMemoryWatermarkBytes;
+        }
+
+        /**
+         * Get the message shown to joining players and in the server list while clients are turned away.
+         * @return Message in plain text.
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Class to hold information about the HTTP endpoint exposing metrics in the Prometheus text format.
+     */
+    public static class MetricsSettings {
+
+        /** Serve metrics on a separate port */
+        @JsonProperty("enable")
+        private boolean enabled = false;
+
+        /** Address the metrics endpoint is bound to */
+        @JsonProperty("bindAddress")
+        private String bindAddress = "127.0.0.1";
+
+        /** Port the metrics endpoint is listening on */
+        @JsonProperty("port")
+        private int port = 9225;
+
+        /**
+         * Check if metrics are served on a separate port.
+         * @return true if the metrics endpoint is enabled, otherwise false.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Get the address the metrics endpoint is bound to.
+         * @return Hostname or IP address.
+         */
+        public String getBindAddress() {
+            return bindAddress;
+        }
+
+        /**
+         * Get the port the metrics endpoint is listening on.
+         * @return Port of the metrics endpoint.
+         */
+        public int getPort() {
+            return port;
+        }
+    }
+
 }
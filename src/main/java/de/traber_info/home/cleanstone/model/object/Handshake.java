@@ -0,0 +1,274 @@
+package de.traber_info.home.cleanstone.model.object;
+
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import de.traber_info.home.cleanstone.util.ProxyProtoUtil;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Handshake class used to parse the first data received from a client, including an optional PROXY protocol
+ * v2 header. Shared by all transport engines so that routing behaves the same regardless of the engine used.
+ * The fields are parsed in place. Views returned by this class are only valid as long as the underlying
+ * byte array isn't reused, e.g. until the {@link HandshakeDecoder} it was decoded by is released.
+ *
+ * @author Oliver Traber
+ */
+public class Handshake {
+
+    /** Byte array holding the data received from the client, including an optional PROXY protocol header */
+    private final byte[] data;
+
+    /** Count of valid bytes in the data array */
+    private final int length;
+
+    /** PROXY protocol header sent by an upstream proxy, or null if the data doesn't contain one */
+    private ProxyProtoUtil.ProxyProtoHeader proxyHeader = null;
+
+    /** First packet sent by the client */
+    private final Packet packet;
+
+    /** Protocol version sent by the client. Only set if the packet is a handshake packet */
+    private int protocolVersion = -1;
+
+    /** Offset of the server address in the data array. Only set if the packet is a handshake packet */
+    private int serverAddressOffset = -1;
+
+    /** Length of the server address in bytes. Only set if the packet is a handshake packet */
+    private int serverAddressLength = 0;
+
+    /** Server port the client wants to connect to. Only set if the packet is a handshake packet */
+    private int serverPort = -1;
+
+    /** State the client wants to switch to, 1 for status and 2 for login. Only set if the packet is a handshake */
+    private int nextState = -1;
+
+    /** Server address without Forge Modloader appendix. Decoded on first access */
+    private String serverAddress = null;
+
+    /**
+     * Create a new Handshake instance.
+     * @param rawData Raw data received from the client which should be parsed.
+     * @throws ProtocolException Thrown if the data doesn't contain a complete packet or a valid PROXY protocol header.
+     */
+    public Handshake(byte[] rawData) throws ProtocolException {
+        this(rawData, rawData.length);
+    }
+
+    /**
+     * Create a new Handshake instance from the beginning of a byte array without copying it.
+     * @param data Byte array holding the data received from the client.
+     * @param length Count of valid bytes in the byte array.
+     * @throws ProtocolException Thrown if the data doesn't contain a complete packet or a valid PROXY protocol header.
+     */
+    public Handshake(byte[] data, int length) throws ProtocolException {
+        this.data = data;
+        this.length = length;
+
+        ByteBuffer cursor = ByteBuffer.wrap(data, 0, length);
+        if (length >= 16 && ProxyProtoUtil.hasProxyProtocolHeader(data)) {
+            int headerLength = ProxyProtoUtil.getHeaderLength(data);
+            if (headerLength > length) throw new ProtocolException("PROXY protocol header exceeds the received data");
+            try {
+                proxyHeader = ProxyProtoUtil.decode(data, true);
+            } catch (UnsupportedOperationException ex) {
+                throw new ProtocolException(ex.getMessage());
+            }
+            cursor.position(headerLength);
+        }
+        packet = new Packet(cursor);
+
+        // Check if packet is an handshake packet
+        if (packet.getPacketId() == 0) {
+            cursor.limit(packet.getEnd());
+            protocolVersion = DatatypeUtil.readVarInt(cursor);
+            // Locate wantedServerAddress without decoding it
+            serverAddressLength = DatatypeUtil.readStringLength(cursor, DatatypeUtil.MAX_SERVER_ADDRESS_LENGTH);
+            serverAddressOffset = cursor.position();
+            cursor.position(serverAddressOffset + serverAddressLength);
+            serverPort = DatatypeUtil.readUnsignedShort(cursor);
+            nextState = DatatypeUtil.readVarInt(cursor);
+        }
+    }
+
+    /**
+     * Get the length of the first complete frame in the given data, which is an optional PROXY protocol
+     * header followed by one length-prefixed Minecraft packet.
+     * @param buffer Byte array holding the data received so far.
+     * @param length Count of valid bytes in the given byte array.
+     * @return Length of the frame in bytes, or -1 if more data is needed to complete it.
+     */
+    public static int getFrameLength(byte[] buffer, int length) {
+        int offset = 0;
+        if (length > 0 && buffer[0] == 0x0D) {
+            // Data might start with an PROXY protocol header. Wait until its length field is available.
+            if (length < 16) return -1;
+            if (ProxyProtoUtil.hasProxyProtocolHeader(buffer)) {
+                offset = ProxyProtoUtil.getHeaderLength(buffer);
+            }
+        }
+
+        int packetLength = 0;
+        int numRead = 0;
+        byte read;
+        do {
+            if (offset + numRead >= length) return -1;
+            read = buffer[offset + numRead];
+            packetLength |= (read & 0b01111111) << (7 * numRead);
+            numRead++;
+            if (numRead > 5) throw new IllegalArgumentException("VarInt is too big!");
+        } while ((read & 0b10000000) != 0);
+
+        int frameLength = offset + numRead + packetLength;
+        return frameLength <= length ? frameLength : -1;
+    }
+
+    /**
+     * Get a copy of the raw data as received from the client, including an optional PROXY protocol header.
+     * @return Raw data as received from the client.
+     */
+    public byte[] getRawData() {
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Get a read-only view of the raw data as received from the client.
+     * @return View of the received data, including an optional PROXY protocol header.
+     */
+    public ByteBuffer getData() {
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get a read-only view of the data received from the client after the first packet.
+     * @return View of the data following the first packet. Empty if nothing was received after it.
+     */
+    public ByteBuffer getTrailingData() {
+        return ByteBuffer.wrap(data, packet.getEnd(), length - packet.getEnd()).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the first packet sent by the client.
+     * @return First packet sent by the client.
+     */
+    public Packet getPacket() {
+        return packet;
+    }
+
+    /**
+     * Check if the received data contains an PROXY protocol v2 header.
+     * @return true if the received data contains an PROXY protocol v2 header, otherwise false.
+     */
+    public boolean hasProxyProtocolHeader() {
+        return proxyHeader != null;
+    }
+
+    /**
+     * Get the PROXY protocol header sent by an upstream proxy.
+     * @return PROXY protocol header, or null if the received data doesn't contain one.
+     */
+    public ProxyProtoUtil.ProxyProtoHeader getProxyHeader() {
+        return proxyHeader;
+    }
+
+    /**
+     * Check if the first packet sent by the client is an handshake packet.
+     * @return true if the first packet is an handshake packet, otherwise false.
+     */
+    public boolean isHandshake() {
+        return packet.getPacketId() == 0;
+    }
+
+    /**
+     * Get the protocol version sent by the client.
+     * @return Protocol version sent by the client.
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Get a read-only view of the raw UTF-8 bytes of the server address the client wants to connect to,
+     * including any Forge Modloader appendix.
+     * @return View of the server address, or null if the packet isn't a handshake packet.
+     */
+    public ByteBuffer getServerAddressView() {
+        if (serverAddressOffset < 0) return null;
+        return ByteBuffer.wrap(data, serverAddressOffset, serverAddressLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the byte array the handshake was decoded from. Used to look up the server address without copying it.
+     * @return Byte array holding the data received from the client.
+     */
+    public byte[] getArray() {
+        return data;
+    }
+
+    /**
+     * Get the offset of the server address in the byte array returned by {@link #getArray()}.
+     * @return Offset of the server address, or -1 if the packet isn't a handshake packet.
+     */
+    public int getServerAddressOffset() {
+        return serverAddressOffset;
+    }
+
+    /**
+     * Get the length of the server address, including any Forge Modloader appendix.
+     * @return Length of the server address in bytes.
+     */
+    public int getServerAddressLength() {
+        return serverAddressLength;
+    }
+
+    /**
+     * Get the server address the client wants to connect to, without any Forge Modloader appendix.
+     * @return Server address the client wants to connect to.
+     */
+    public String getServerAddress() {
+        if (serverAddress == null && serverAddressOffset >= 0) {
+            int end = serverAddressOffset + serverAddressLength;
+            // Locate the FML appendix of clients using Minecraft Forge, which reaches from "\0FML" to the last "\0"
+            int appendixStart = -1;
+            int appendixEnd = -1;
+            for (int i = serverAddressOffset; i < end; i++) {
+                if (data[i] != 0) continue;
+                if (appendixStart == -1) {
+                    if (i + 3 < end && data[i + 1] == 'F' && data[i + 2] == 'M' && data[i + 3] == 'L') {
+                        appendixStart = i;
+                    }
+                } else if (i >= appendixStart + 4) {
+                    appendixEnd = i + 1;
+                }
+            }
+
+            if (appendixEnd == -1) {
+                serverAddress = DatatypeUtil.decodeString(data, serverAddressOffset, serverAddressLength);
+            } else {
+                int prefixLength = appendixStart - serverAddressOffset;
+                String address = DatatypeUtil.decodeString(data, serverAddressOffset, prefixLength);
+                if (appendixEnd < end) address += DatatypeUtil.decodeString(data, appendixEnd, end - appendixEnd);
+                serverAddress = address;
+            }
+        }
+        return serverAddress;
+    }
+
+    /**
+     * Get the server port the client wants to connect to.
+     * @return Server port the client wants to connect to.
+     */
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Get the state the client wants to switch to after the handshake.
+     * @return 1 for a status request, 2 for a login.
+     */
+    public int getNextState() {
+        return nextState;
+    }
+
+}
@@ -0,0 +1,188 @@
+package de.traber_info.home.cleanstone.model.object;
+
+import de.traber_info.home.cleanstone.buffer.BufferPool;
+import de.traber_info.home.cleanstone.buffer.PooledBuffer;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental decoder collecting the first frame sent by a client, which is an optional PROXY protocol header
+ * followed by the length-prefixed handshake packet. Data is accumulated across any number of reads into a pooled
+ * buffer, so handshakes split over several TCP segments are routed just like complete ones. Works with blocking
+ * streams, non-blocking channels and data handed in by other transports.
+ * Instances are not thread safe and have to be released once the handshake was processed.
+ *
+ * @author Oliver Traber
+ */
+public class HandshakeDecoder {
+
+    /** Initial capacity of the buffer. Large enough for nearly all handshakes */
+    private static final int INITIAL_SIZE = 512;
+
+    /** Maximum size of the frame in bytes */
+    private final int maxSize;
+
+    /** Time the client has to send the complete frame, in milliseconds */
+    private final long timeoutMillis;
+
+    /** Point in time the frame has to be complete at, in nanoseconds */
+    private final long deadline;
+
+    /** Buffer the data is collected in. Its position is the count of valid bytes */
+    private PooledBuffer buffer;
+
+    /** Length of the frame once it is complete, -1 before */
+    private int frameLength = -1;
+
+    /**
+     * Create a new decoder. The deadline starts running right away.
+     * @param settings Limits applied while collecting the handshake.
+     */
+    public HandshakeDecoder(ConfigFile.HandshakeSettings settings) {
+        this.maxSize = settings.getMaxSize();
+        this.timeoutMillis = settings.getTimeoutMillis();
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.buffer = BufferPool.heap().borrow(Math.min(INITIAL_SIZE, maxSize));
+    }
+
+    /**
+     * Get a buffer data can be read into. Its position marks the end of the data collected so far. The buffer is
+     * grown if it is full, up to the maximum size.
+     * @return Buffer with at least one byte remaining.
+     * @throws ProtocolException Thrown if the maximum size is reached without the frame being complete.
+     */
+    public ByteBuffer writableBuffer() throws ProtocolException {
+        ByteBuffer byteBuffer = buffer.buffer();
+        if (byteBuffer.position() >= maxSize) {
+            throw new ProtocolException("Handshake exceeds " + maxSize + " bytes");
+        }
+        if (!byteBuffer.hasRemaining()) {
+            PooledBuffer grown = BufferPool.heap().borrow(Math.min(byteBuffer.capacity() * 2, maxSize));
+            byteBuffer.flip();
+            grown.buffer().put(byteBuffer);
+            buffer.release();
+            buffer = grown;
+            byteBuffer = grown.buffer();
+        }
+        // Never read beyond the maximum size, even if the pooled buffer is larger
+        byteBuffer.limit(Math.min(byteBuffer.capacity(), maxSize));
+        return byteBuffer;
+    }
+
+    /**
+     * Read the available data from a blocking stream. Blocks until at least one byte was read.
+     * @param inputStream Stream to read from.
+     * @return false if the end of the stream was reached, otherwise true.
+     * @throws IOException Thrown if reading fails or the maximum size is reached.
+     */
+    public boolean read(InputStream inputStream) throws IOException {
+        ByteBuffer byteBuffer = writableBuffer();
+        int bytesRead = inputStream.read(byteBuffer.array(), byteBuffer.position(), byteBuffer.remaining());
+        if (bytesRead == -1) return false;
+        byteBuffer.position(byteBuffer.position() + bytesRead);
+        return true;
+    }
+
+    /**
+     * Read the available data from a channel. Doesn't block if the channel is non-blocking.
+     * @param channel Channel to read from.
+     * @return false if the end of the stream was reached, otherwise true.
+     * @throws IOException Thrown if reading fails or the maximum size is reached.
+     */
+    public boolean read(ReadableByteChannel channel) throws IOException {
+        return channel.read(writableBuffer()) != -1;
+    }
+
+    /**
+     * Append data received by another transport until the frame is complete. Data following the frame is left
+     * in the given buffer, so it doesn't count against the maximum size.
+     * @param data Data to append. Its position is advanced by the count of appended bytes.
+     * @throws ProtocolException Thrown if the maximum size is reached or the frame is invalid.
+     */
+    public void append(ByteBuffer data) throws ProtocolException {
+        while (data.hasRemaining() && !isComplete()) {
+            ByteBuffer byteBuffer = writableBuffer();
+            int count = Math.min(byteBuffer.remaining(), data.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + count);
+            byteBuffer.put(chunk);
+            data.position(data.position() + count);
+        }
+    }
+
+    /**
+     * Check if the frame is complete.
+     * @return true if the frame is complete and can be decoded, otherwise false.
+     * @throws ProtocolException Thrown if the length prefix of the packet is invalid.
+     */
+    public boolean isComplete() throws ProtocolException {
+        if (frameLength == -1) {
+            try {
+                frameLength = Handshake.getFrameLength(buffer.array(), buffer.buffer().position());
+            } catch (IllegalArgumentException ex) {
+                throw new ProtocolException(ex.getMessage());
+            }
+        }
+        return frameLength != -1;
+    }
+
+    /**
+     * Decode the collected data. The returned handshake refers to the buffer of this decoder without copying it,
+     * so it must not be used after the decoder was released.
+     * @return Decoded handshake, including all data received after the frame.
+     * @throws IOException Thrown if the frame is incomplete or can't be parsed.
+     */
+    public Handshake decode() throws IOException {
+        if (!isComplete()) throw new ProtocolException("Handshake is incomplete");
+        return new Handshake(buffer.array(), buffer.buffer().position());
+    }
+
+    /**
+     * Get the count of bytes collected so far.
+     * @return Count of collected bytes.
+     */
+    public int getLength() {
+        return buffer.buffer().position();
+    }
+
+    /**
+     * Get the time left until the frame has to be complete.
+     * @return Remaining time in milliseconds. Zero or negative once the deadline passed.
+     */
+    public long getRemainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    /**
+     * Check if the deadline for the frame passed.
+     * @return true if the deadline passed, otherwise false.
+     */
+    public boolean isExpired() {
+        return deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Get the time the client has to send the complete frame.
+     * @return Timeout in milliseconds.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Give the buffer back to the pool. Safe to call more than once.
+     */
+    public void release() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+
+}
@@ -1,34 +1,82 @@
 package de.traber_info.home.cleanstone.model.object;
 
 import de.traber_info.home.cleanstone.util.DatatypeUtil;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
- * Packet class used to parse and strip the packets id from the raw packet byte array.
+ * Packet class used to parse the length and id of a length-prefixed packet. Doesn't copy any data, all accessors
+ * returning buffers are views on the byte array the packet was parsed from.
  *
  * @author Oliver Traber
  */
 public class Packet {
 
-    /** Id of the packet */
-    private int packetId;
+    /** Byte array the packet is read from */
+    private final byte[] data;
+
+    /** Offset of the length prefix of the packet */
+    private final int offset;
+
+    /** Offset of the packet id */
+    private final int idOffset;
 
-    /** Packet data without the packets id */
-    private byte[] unreadData;
+    /** Offset of the packet data following the packet id */
+    private final int payloadOffset;
 
-    /** Full packet data including the packets id */
-    private byte[] fullPacket;
+    /** Index of the first byte after the packet */
+    private final int end;
+
+    /** Id of the packet */
+    private final int packetId;
 
     /**
      * Create a new Packet instance.
      * @param rawData Raw packet data which should be parsed.
+     * @throws ProtocolException Thrown if the data doesn't contain a complete packet.
+     */
+    public Packet(byte[] rawData) throws ProtocolException {
+        this(rawData, 0, rawData.length);
+    }
+
+    /**
+     * Create a new Packet instance from a part of a byte array.
+     * @param data Byte array holding the packet.
+     * @param offset Offset of the length prefix of the packet.
+     * @param limit Index of the first byte that doesn't belong to the received data.
+     * @throws ProtocolException Thrown if the data doesn't contain a complete packet.
+     */
+    public Packet(byte[] data, int offset, int limit) throws ProtocolException {
+        this(ByteBuffer.wrap(data, offset, limit - offset));
+    }
+
+    /**
+     * Create a new Packet instance from the position of a heap buffer. Advances the position of the buffer to the
+     * packet data following the packet id.
+     * @param buffer Buffer holding the packet at its position.
+     * @throws ProtocolException Thrown if the data doesn't contain a complete packet.
      */
-    public Packet(byte[] rawData) {
-        DatatypeUtil datatypeUtil = new DatatypeUtil();
-        int packetLength = datatypeUtil.readVarInt(rawData, 0);
-        fullPacket = Arrays.copyOfRange(rawData, 1, packetLength);
-        packetId = datatypeUtil.readVarInt(fullPacket, 0);
-        unreadData = Arrays.copyOfRange(fullPacket, datatypeUtil.getBytesRead(), rawData.length);
+    public Packet(ByteBuffer buffer) throws ProtocolException {
+        int base = buffer.arrayOffset();
+        this.data = buffer.array();
+        this.offset = base + buffer.position();
+        int packetLength = DatatypeUtil.readVarInt(buffer);
+        if (packetLength < 1 || packetLength > buffer.remaining()) {
+            throw new ProtocolException("Packet exceeds the received data");
+        }
+        this.idOffset = base + buffer.position();
+        this.end = idOffset + packetLength;
+
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + packetLength);
+        try {
+            this.packetId = DatatypeUtil.readVarInt(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+        this.payloadOffset = base + buffer.position();
     }
 
     /**
@@ -40,18 +88,50 @@ public class Packet {
     }
 
     /**
-     * Get the data of the packet without the packets id.
+     * Get the length of the packet including its length prefix.
+     * @return Length of the packet in bytes.
+     */
+    public int getFrameLength() {
+        return end - offset;
+    }
+
+    /**
+     * Get the offset of the packet data following the packet id in the underlying byte array.
+     * @return Offset of the packet data.
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * Get the index of the first byte after the packet in the underlying byte array.
+     * @return Index of the first byte after the packet.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Get a read-only view of the data of the packet without the packets id.
+     * @return View of the packet data. Only valid as long as the underlying byte array isn't reused.
+     */
+    public ByteBuffer getPayload() {
+        return ByteBuffer.wrap(data, payloadOffset, end - payloadOffset).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Get a copy of the data of the packet without the packets id.
      * @return Data of the packet without the packets id.
      */
     public byte[] getUnreadData() {
-        return unreadData;
+        return Arrays.copyOfRange(data, payloadOffset, end);
     }
 
     /**
-     * Get the full packet data including the packets id.
+     * Get a copy of the full packet data including the packets id, but without the length prefix.
      * @return Full packet data including the packets id.
      */
     public byte[] getFullPacket() {
-        return fullPacket;
+        return Arrays.copyOfRange(data, idOffset, end);
     }
 }
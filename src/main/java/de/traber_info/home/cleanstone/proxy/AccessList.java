@@ -0,0 +1,180 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Allows or denies connections based on the network of the client, using networks in CIDR notation from the
+ * config. Checked right after a connection is accepted, before the connection gets a thread, a buffer or a
+ * lifecycle. With PROXY protocol pass-through, the accepted address is the upstream proxy, so it is checked
+ * against the allowed proxies instead, and the client address is checked once the PROXY protocol header was
+ * decoded.
+ *
+ * If networks of the allow and the deny list overlap, the longest network containing the client address decides.
+ * The networks are held in {@link PrefixTrie}s that are replaced as a whole on reload.
+ *
+ * @author Oliver Traber
+ */
+public class AccessList {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(AccessList.class.getName());
+
+    /** Value of allowed networks in the trie of client networks */
+    private static final int ALLOW = 0;
+
+    /** Value of denied networks in the trie of client networks */
+    private static final int DENY = 1;
+
+    /** Networks currently in effect. Allows everything until {@link #init(ConfigFile.AccessListSettings)} */
+    private static volatile Rules rules = new Rules(false, new PrefixTrie.Builder().build(), true,
+            new PrefixTrie.Builder().build(), true);
+
+    /** Count of connections denied */
+    private static final LongAdder denied = new LongAdder();
+
+    /**
+     * Apply the settings of the access list. May be called again after a reload, connections checked concurrently
+     * see either the old or the new networks. Invalid networks are logged and skipped.
+     * @param accessListSettings Settings of the access list.
+     */
+    public static synchronized void init(ConfigFile.AccessListSettings accessListSettings) {
+        PrefixTrie.Builder clients = new PrefixTrie.Builder();
+        // Denied networks are added last, so they win over allowed networks of the same length
+        add(clients, accessListSettings.getAllow(), ALLOW);
+        add(clients, accessListSettings.getDeny(), DENY);
+        PrefixTrie.Builder proxies = new PrefixTrie.Builder();
+        add(proxies, accessListSettings.getProxies(), ALLOW);
+
+        rules = new Rules(accessListSettings.isEnabled(), clients.build(), accessListSettings.getAllow().isEmpty(),
+                proxies.build(), accessListSettings.getProxies().isEmpty());
+        if (!accessListSettings.isEnabled()) return;
+
+        LOG.info("Access list enabled with {} allowed and {} denied networks and {} upstream proxy networks",
+                accessListSettings.getAllow().size(),
+                accessListSettings.getDeny().size(),
+                accessListSettings.getProxies().size()
+        );
+    }
+
+    /**
+     * Add networks to a trie, skipping invalid ones.
+     * @param builder Builder of the trie.
+     * @param networks Networks in CIDR notation.
+     * @param value Value of the networks.
+     */
+    private static void add(PrefixTrie.Builder builder, List<String> networks, int value) {
+        for (String network : networks) {
+            try {
+                builder.add(network, value);
+            } catch (IllegalArgumentException ex) {
+                LOG.error("Ignoring invalid access list entry '{}': {}", network, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Check the address of a connection right after it was accepted. With PROXY protocol pass-through, the
+     * address has to belong to an allowed upstream proxy, otherwise it has to be an allowed client. Callers close
+     * denied connections.
+     * @param address Remote address of the accepted connection.
+     * @return true if the connection may be handled, false if it is denied.
+     */
+    public static boolean admit(InetAddress address) {
+        Rules current = rules;
+        if (!current.enabled) return true;
+        boolean allowed = isPassThrough()
+                ? current.anyProxy || current.proxies.lookup(address) != PrefixTrie.NO_MATCH
+                : current.isClientAllowed(address);
+        if (!allowed) {
+            denied.increment();
+            LOG.debug("Denied connection from {} by access list", address.getHostAddress());
+        }
+        return allowed;
+    }
+
+    /**
+     * Check the address of a client taken from the PROXY protocol header sent by an upstream proxy.
+     * @param address Address of the client.
+     * @return true if the client may connect, false if it is denied.
+     */
+    public static boolean admitClient(InetAddress address) {
+        Rules current = rules;
+        if (!current.enabled || current.isClientAllowed(address)) return true;
+        denied.increment();
+        LOG.debug("Denied connection from {} by access list", address.getHostAddress());
+        return false;
+    }
+
+    /**
+     * Check if the client address is taken from PROXY protocol headers sent by an upstream proxy.
+     * @return true if PROXY protocol pass-through is enabled, otherwise false.
+     */
+    private static boolean isPassThrough() {
+        ConfigFile.ProxyProtocolSettings proxyProtocolSettings = ConfigUtil.getConfig().getProxyProtocolSettings();
+        return proxyProtocolSettings.isEnabled() && proxyProtocolSettings.passThroughEnabled();
+    }
+
+    /**
+     * Get the count of connections denied by the access list.
+     * @return Count of denied connections.
+     */
+    public static long getDeniedCount() {
+        return denied.sum();
+    }
+
+    /**
+     * Networks of the access list, replaced as a whole on reload.
+     */
+    private static class Rules {
+
+        /** Check addresses against the access list */
+        private final boolean enabled;
+
+        /** Allowed and denied client networks */
+        private final PrefixTrie clients;
+
+        /** Allow clients that are in no network of the access list */
+        private final boolean allowUnlisted;
+
+        /** Networks of the allowed upstream proxies */
+        private final PrefixTrie proxies;
+
+        /** Allow any upstream proxy */
+        private final boolean anyProxy;
+
+        /**
+         * Create a new set of networks.
+         * @param enabled Check addresses against the access list.
+         * @param clients Allowed and denied client networks.
+         * @param allowUnlisted Allow clients that are in no network of the access list.
+         * @param proxies Networks of the allowed upstream proxies.
+         * @param anyProxy Allow any upstream proxy.
+         */
+        private Rules(boolean enabled, PrefixTrie clients, boolean allowUnlisted, PrefixTrie proxies,
+                      boolean anyProxy) {
+            this.enabled = enabled;
+            this.clients = clients;
+            this.allowUnlisted = allowUnlisted;
+            this.proxies = proxies;
+            this.anyProxy = anyProxy;
+        }
+
+        /**
+         * Check if a client address is allowed by the longest network containing it.
+         * @param address Address of the client.
+         * @return true if the client is allowed, otherwise false.
+         */
+        private boolean isClientAllowed(InetAddress address) {
+            int value = clients.lookup(address);
+            return value == PrefixTrie.NO_MATCH ? allowUnlisted : value == ALLOW;
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Protects the whole proxy from overload by capping the open connections, the handshakes in flight and the
+ * connections per backend server, and by watching the heap and direct memory. Instead of dropping the socket,
+ * clients turned away get a login disconnect packet or a status response telling them that the server is full.
+ *
+ * Producing that answer requires the handshake, so a connection over the connection cap is still read until its
+ * handshake was routed. Only the handshakes in flight are capped right after accepting, since they are the work
+ * a client can cause before the proxy knows anything about it. Connections are counted even while admission
+ * control is disabled, so it can be enabled by a reload at any time.
+ *
+ * @author Oliver Traber
+ */
+public class AdmissionControl {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionControl.class.getName());
+
+    /** Packet id of the status response packet in the status state */
+    private static final int STATUS_RESPONSE_PACKET_ID = 0x00;
+
+    /** Interval in milliseconds in which the memory usage is sampled */
+    private static final long MEMORY_SAMPLE_INTERVAL_MILLIS = 100;
+
+    /** Settings of the admission control. Disabled until {@link #init(ConfigFile.AdmissionSettings)} is called */
+    private static volatile ConfigFile.AdmissionSettings settings = new ConfigFile.AdmissionSettings();
+
+    /** Encoded disconnect packet telling joining players that the server is full */
+    private static volatile byte[] disconnectPacket = HealthChecker.encodeDisconnect(settings.getMessage());
+
+    /** Count of open connections, including the ones in their handshake */
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    /** Count of connections whose handshake wasn't routed yet */
+    private static final AtomicInteger handshakes = new AtomicInteger();
+
+    /** Reason the memory is over a watermark, or null if it is below all watermarks */
+    private static volatile String memoryPressure;
+
+    /** True while clients are turned away, so only the start and the end of an overload are logged */
+    private static final AtomicBoolean overloaded = new AtomicBoolean();
+
+    /** Count of connections closed right after accepting because too many handshakes were in flight */
+    private static final LongAdder handshakeRejections = new LongAdder();
+
+    /** Count of clients told that the server is full */
+    private static final LongAdder overloadRejections = new LongAdder();
+
+    /** Task sampling the memory usage, or null if no watermark is set */
+    private static ScheduledFuture<?> memoryTask;
+
+    /**
+     * Apply the settings of the admission control. May be called again after a reload.
+     * @param admissionSettings Settings of the admission control.
+     */
+    public static synchronized void init(ConfigFile.AdmissionSettings admissionSettings) {
+        settings = admissionSettings;
+        disconnectPacket = HealthChecker.encodeDisconnect(admissionSettings.getMessage());
+        if (memoryTask != null) memoryTask.cancel(false);
+        memoryTask = null;
+        memoryPressure = null;
+        if (!admissionSettings.isEnabled()) return;
+
+        boolean watchMemory = admissionSettings.getHeapWatermarkPercent() > 0
+                || admissionSettings.getDirectMemoryWatermarkBytes() > 0;
+        if (watchMemory) {
+            memoryTask = SchedulerUtil.getScheduler().scheduleAtFixedRate(AdmissionControl::sampleMemory,
+                    0, MEMORY_SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Admission control enabled with at most {} connections, {} handshakes and {} connections per " +
+                        "backend server",
+                formatLimit(admissionSettings.getMaxConnections()),
+                formatLimit(admissionSettings.getMaxHandshakes()),
+                formatLimit(admissionSettings.getMaxConnectionsPerBackend())
+        );
+    }
+
+    /**
+     * Count a connection right after it was accepted and close it if too many handshakes are in flight. Nothing
+     * was read from the client yet, so it can't be told why.
+     * @param lifecycle Lifecycle of the accepted connection.
+     * @return true if the connection may be handled, false if it was rejected and closed.
+     */
+    public static boolean admit(ConnectionLifecycle lifecycle) {
+        connections.incrementAndGet();
+        handshakes.incrementAndGet();
+        lifecycle.whenClosed(() -> {
+            connections.decrementAndGet();
+            if (lifecycle.finishHandshake()) handshakes.decrementAndGet();
+        });
+
+        ConfigFile.AdmissionSettings current = settings;
+        if (current.isEnabled() && current.getMaxHandshakes() > 0 && handshakes.get() > current.getMaxHandshakes()) {
+            handshakeRejections.increment();
+            startOverload(handshakes.get() + " handshakes in flight");
+            lifecycle.close(null);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the limits of a connection once its handshake was routed. Callers tell rejected clients that the
+     * server is full, using {@link #getDisconnectPacket()} or {@link #getStatus(HandshakeRouter.Route)}.
+     * @param route Route of the connection.
+     * @param lifecycle Lifecycle of the connection.
+     * @return true if the connection may be handled, false if the client has to be turned away.
+     */
+    public static boolean admit(HandshakeRouter.Route route, ConnectionLifecycle lifecycle) {
+        if (lifecycle.finishHandshake()) {
+            handshakes.decrementAndGet();
+            Metrics.recordHandshakeDuration(System.nanoTime() - lifecycle.getAcceptedAt());
+        }
+        ConfigFile.AdmissionSettings current = settings;
+        if (!current.isEnabled()) return true;
+
+        String reason = null;
+        if (current.getMaxConnections() > 0 && connections.get() > current.getMaxConnections()) {
+            reason = connections.get() + " open connections";
+        } else if (memoryPressure != null) {
+            reason = memoryPressure;
+        } else if (current.getMaxConnectionsPerBackend() > 0 && !route.answersStatusLocally()
+                && isFull(route.getBackendGroup())) {
+            reason = "all backend servers of " + route.getMapping().getMappingDomain() + " are full";
+        }
+        if (reason == null) {
+            if (overloaded.compareAndSet(true, false)) LOG.info("Admitting new clients again");
+            return true;
+        }
+        overloadRejections.increment();
+        startOverload(reason);
+        return false;
+    }
+
+    /**
+     * Check if a backend server reached the maximum count of connections, so it shouldn't receive more.
+     * @param backend Backend server to check.
+     * @return true if the backend server is full, otherwise false.
+     */
+    public static boolean isFull(Backend backend) {
+        ConfigFile.AdmissionSettings current = settings;
+        return current.isEnabled() && current.getMaxConnectionsPerBackend() > 0
+                && backend.getActiveConnections() >= current.getMaxConnectionsPerBackend();
+    }
+
+    /**
+     * Check if all backend servers of a group reached the maximum count of connections.
+     * @param group Backend servers of a mapping.
+     * @return true if no backend server of the group can receive more connections, otherwise false.
+     */
+    private static boolean isFull(BackendGroup group) {
+        for (Backend backend : group.getBackends()) {
+            if (!isFull(backend)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Log that clients are turned away, unless they were turned away already.
+     * @param reason Limit that was reached.
+     */
+    private static void startOverload(String reason) {
+        if (overloaded.compareAndSet(false, true)) {
+            LOG.warn("Turning new clients away: {}", reason);
+        }
+    }
+
+    /**
+     * Get the login disconnect packet telling a joining player that the server is full. The returned buffer
+     * shares its content with all other callers and must not be modified.
+     * @return Disconnect packet including its length prefix.
+     */
+    public static ByteBuffer getDisconnectPacket() {
+        return ByteBuffer.wrap(disconnectPacket);
+    }
+
+    /**
+     * Get the status response telling a client pinging the server list that the server is full. Uses the
+     * protocol version of the client, so the client shows the message instead of a version mismatch.
+     * @param route Route of the client requesting the status.
+     * @return Status response packet including its length prefix.
+     */
+    public static byte[] getStatus(HandshakeRouter.Route route) {
+        String message = new String(JsonStringEncoder.getInstance().quoteAsString(settings.getMessage()));
+        String status = "{\"version\":{\"name\":\"Cleanstone\",\"protocol\":"
+                + route.getHandshake().getProtocolVersion() + "},"
+                + "\"players\":{\"max\":0,\"online\":0},"
+                + "\"description\":{\"text\":\"" + message + "\"}}";
+        return DatatypeUtil.encodeStringPacket(STATUS_RESPONSE_PACKET_ID, status);
+    }
+
+    /**
+     * Check the heap and direct memory against their watermarks. Runs on the shared scheduler, so the checks of
+     * new connections only read the result.
+     */
+    private static void sampleMemory() {
+        ConfigFile.AdmissionSettings current = settings;
+        String pressure = null;
+
+        if (current.getHeapWatermarkPercent() > 0) {
+            // Usage after the last collection ignores garbage that is about to be collected
+            long used = 0;
+            boolean measured = false;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported()) continue;
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage == null) continue;
+                used += usage.getUsed();
+                measured = true;
+            }
+            if (!measured) used = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+            long percent = used * 100 / Runtime.getRuntime().maxMemory();
+            if (percent >= current.getHeapWatermarkPercent()) pressure = percent + "% of the heap in use";
+        }
+        if (pressure == null && current.getDirectMemoryWatermarkBytes() > 0) {
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (!"direct".equals(pool.getName())) continue;
+                if (pool.getMemoryUsed() >= current.getDirectMemoryWatermarkBytes()) {
+                    pressure = pool.getMemoryUsed() + " bytes of direct memory in use";
+                }
+            }
+        }
+        memoryPressure = pressure;
+    }
+
+    /**
+     * Format a limit for log messages.
+     * @param limit Limit from the settings.
+     * @return Limit as text, "unlimited" if it is disabled.
+     */
+    private static String formatLimit(int limit) {
+        return limit > 0 ? String.valueOf(limit) : "unlimited";
+    }
+
+    /**
+     * Get the count of open connections, including the ones in their handshake.
+     * @return Count of open connections.
+     */
+    public static int getOpenConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Get the count of connections whose handshake wasn't routed yet.
+     * @return Count of handshakes in flight.
+     */
+    public static int getHandshakesInFlight() {
+        return handshakes.get();
+    }
+
+    /**
+     * Get the count of connections closed right after accepting because too many handshakes were in flight.
+     * @return Count of connections rejected without answer.
+     */
+    public static long getHandshakeRejectionCount() {
+        return handshakeRejections.sum();
+    }
+
+    /**
+     * Get the count of clients told that the server is full.
+     * @return Count of clients turned away.
+     */
+    public static long getOverloadRejectionCount() {
+        return overloadRejections.sum();
+    }
+
+}
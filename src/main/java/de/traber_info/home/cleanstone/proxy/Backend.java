@@ -0,0 +1,189 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.model.config.BackendServer;
+import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live state of a backend server, shared by all mappings pointing to the same address and port and kept across
+ * config reloads. The counters are updated without locks, so balancing adds no contention to the join path.
+ *
+ * @author Oliver Traber
+ */
+public class Backend {
+
+    /** Weight of a new connect latency sample in the moving average, as a shift of the remaining weight */
+    private static final int LATENCY_SMOOTHING_SHIFT = 3;
+
+    /** Backends by their unresolved address */
+    private static final Map<InetSocketAddress, Backend> backends = new ConcurrentHashMap<>();
+
+    /** Unresolved address of the backend server */
+    private final InetSocketAddress key;
+
+    /** Count of connections that chose this backend server and aren't closed yet */
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    /** Moving average of the connect latency in nanoseconds, or 0 if no connect was measured yet */
+    private final AtomicLong connectLatencyNanos = new AtomicLong();
+
+    /** Count of failed connects, including failed name resolution */
+    private final LongAdder connectFailures = new LongAdder();
+
+    /** Breaker taking the backend server out of rotation while it fails */
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(this);
+
+    /**
+     * Create the state of a backend server.
+     * @param key Unresolved address of the backend server.
+     */
+    private Backend(InetSocketAddress key) {
+        this.key = key;
+    }
+
+    /**
+     * Get the state of a backend server, creating it if needed.
+     * @param server Backend server as configured.
+     * @return Live state of the backend server.
+     */
+    public static Backend of(BackendServer server) {
+        return backends.computeIfAbsent(getKey(server), Backend::new);
+    }
+
+    /**
+     * Drop the state of backend servers no longer used by any of the given mappings, e.g. after a config reload.
+     * Connections to dropped backend servers keep running, they just no longer influence balancing.
+     * @param mappings Mappings of the current config.
+     */
+    public static void retain(Collection<BackendServerMapping> mappings) {
+        Set<InetSocketAddress> keys = new HashSet<>();
+        for (BackendServerMapping mapping : mappings) {
+            for (BackendServer server : mapping.getBackends()) {
+                keys.add(getKey(server));
+            }
+        }
+        backends.keySet().retainAll(keys);
+    }
+
+    /**
+     * Get the state of all backend servers used by the current config.
+     * @return Live view of all backend servers.
+     */
+    public static Collection<Backend> getAll() {
+        return backends.values();
+    }
+
+    /**
+     * Get the key of a backend server.
+     * @param server Backend server as configured.
+     * @return Unresolved address of the backend server.
+     */
+    static InetSocketAddress getKey(BackendServer server) {
+        return InetSocketAddress.createUnresolved(server.getAddress(), server.getPort());
+    }
+
+    /**
+     * Count a connection to this backend server until it is closed.
+     * @param lifecycle Lifecycle of the connection.
+     */
+    public void acquire(ConnectionLifecycle lifecycle) {
+        activeConnections.incrementAndGet();
+        lifecycle.whenClosed(activeConnections::decrementAndGet);
+    }
+
+    /**
+     * Add the duration of a successful connect to the moving average of the connect latency.
+     * @param nanos Duration of the connect in nanoseconds.
+     */
+    public void recordConnectLatency(long nanos) {
+        Metrics.recordBackendConnect(nanos);
+        long sample = Math.max(1, nanos);
+        connectLatencyNanos.accumulateAndGet(sample, (average, value) ->
+                average == 0 ? value : average + ((value - average) >> LATENCY_SMOOTHING_SHIFT));
+    }
+
+    /**
+     * Count a failed connect to this backend server and report it to the circuit breaker.
+     * @param reason Reason the connect failed.
+     */
+    public void recordConnectFailure(String reason) {
+        connectFailures.increment();
+        circuitBreaker.recordFailure(reason);
+    }
+
+    /**
+     * Get the breaker taking the backend server out of rotation while it fails.
+     * @return Circuit breaker of the backend server.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Get the unresolved address of the backend server.
+     * @return Hostname or IP address and port as configured.
+     */
+    public InetSocketAddress getUnresolvedAddress() {
+        return key;
+    }
+
+    /**
+     * Get the hostname or IP address of the backend server.
+     * @return Hostname or IP address as configured.
+     */
+    public String getHost() {
+        return key.getHostString();
+    }
+
+    /**
+     * Get the port of the backend server.
+     * @return Port of the backend server.
+     */
+    public int getPort() {
+        return key.getPort();
+    }
+
+    /**
+     * Get the count of connections that chose this backend server and aren't closed yet.
+     * @return Count of active connections.
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Get the moving average of the connect latency.
+     * @return Connect latency in nanoseconds, or 0 if no connect was measured yet.
+     */
+    public long getConnectLatencyNanos() {
+        return connectLatencyNanos.get();
+    }
+
+    /**
+     * Get the count of failed connects to this backend server, including failed name resolution.
+     * @return Count of failed connects.
+     */
+    public long getConnectFailureCount() {
+        return connectFailures.sum();
+    }
+
+    /**
+     * Get a readable representation of the backend server for log messages.
+     * @return Host and port of the backend server.
+     */
+    @Override
+    public String toString() {
+        return key.getHostString() + ":" + key.getPort();
+    }
+
+}
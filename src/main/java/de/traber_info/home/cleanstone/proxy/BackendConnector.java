@@ -0,0 +1,133 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking connects to backend servers with several addresses. The addresses are raced Happy Eyeballs style
+ * (RFC 8305): a connect attempt is started for the next address whenever the previous attempt failed or didn't
+ * complete within the attempt delay, and the first attempt that succeeds wins. An unreachable address therefore
+ * costs a joining player the attempt delay instead of the operating system's connect timeout.
+ *
+ * @author Oliver Traber
+ */
+public class BackendConnector {
+
+    /** Time in milliseconds to wait for a connect attempt before the next address is tried in parallel */
+    public static final long ATTEMPT_DELAY_MILLIS = 250;
+
+    /**
+     * Connect to the first reachable address of a backend server.
+     * @param addresses Addresses of the backend server, in the order they should be tried.
+     * @param timeoutMillis Time in milliseconds all attempts together may take. 0 waits forever.
+     * @return Connected channel in blocking mode.
+     * @throws IOException Thrown if no address could be connected in time. Carries the failure of the last attempt.
+     */
+    public static SocketChannel connect(InetSocketAddress[] addresses, long timeoutMillis) throws IOException {
+        if (addresses.length == 1) return connect(addresses[0], timeoutMillis);
+
+        long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        SocketChannel winner = null;
+        IOException failure = null;
+        Selector selector = Selector.open();
+        try {
+            int next = 0;
+            int pending = 0;
+            long nextAttemptAt = System.nanoTime();
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (deadline != 0 && now - deadline >= 0) {
+                    throw new SocketTimeoutException("Connect timed out after " + timeoutMillis + " ms");
+                }
+                if (next < addresses.length && (pending == 0 || now - nextAttemptAt >= 0)) {
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.configureBlocking(false);
+                        if (channel.connect(addresses[next])) {
+                            winner = channel;
+                        } else {
+                            channel.register(selector, SelectionKey.OP_CONNECT);
+                            pending++;
+                        }
+                    } catch (IOException ex) {
+                        closeQuietly(channel);
+                        failure = ex;
+                    }
+                    next++;
+                    nextAttemptAt = now + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS);
+                    continue;
+                }
+                if (pending == 0) throw failure;
+
+                // Wait for an attempt to complete, the next attempt to be due or the deadline
+                long waitNanos = Long.MAX_VALUE;
+                if (next < addresses.length) waitNanos = nextAttemptAt - now;
+                if (deadline != 0) waitNanos = Math.min(waitNanos, deadline - now);
+                long waitMillis = waitNanos == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+                selector.select(waitMillis);
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            key.cancel();
+                            winner = channel;
+                            break;
+                        }
+                    } catch (IOException ex) {
+                        // Start the next attempt right away, there is no point in waiting for this one
+                        key.cancel();
+                        closeQuietly(channel);
+                        failure = ex;
+                        pending--;
+                        nextAttemptAt = now;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() != winner) closeQuietly((SocketChannel) key.channel());
+            }
+            selector.close();
+        }
+        winner.configureBlocking(true);
+        return winner;
+    }
+
+    /**
+     * Connect to a single address.
+     * @param address Address of the backend server.
+     * @param timeoutMillis Time in milliseconds the connect may take. 0 waits forever.
+     * @return Connected channel in blocking mode.
+     * @throws IOException Thrown if the address couldn't be connected in time.
+     */
+    private static SocketChannel connect(InetSocketAddress address, long timeoutMillis) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+            return channel;
+        } catch (IOException ex) {
+            closeQuietly(channel);
+            throw ex;
+        }
+    }
+
+    /**
+     * Close a channel and ignore any error.
+     * @param channel Channel to close.
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Do nothing
+        }
+    }
+
+}
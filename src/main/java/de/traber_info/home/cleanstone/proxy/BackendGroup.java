@@ -0,0 +1,201 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.model.config.BackendServer;
+import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backend servers of a single mapping together with the policy choosing one of them for each connection.
+ * Immutable apart from the lock-free counters of the backends, so it can be shared by all connection threads.
+ *
+ * @author Oliver Traber
+ */
+public class BackendGroup {
+
+    /** Mapping the group was built from */
+    private final BackendServerMapping mapping;
+
+    /** Backend servers of the mapping */
+    private final Backend[] backends;
+
+    /** Weights of the backend servers, indexed like the backends */
+    private final int[] weights;
+
+    /** Indexes of the backends in the order round-robin balancing uses them, each one as often as its weight */
+    private final int[] schedule;
+
+    /** Position of the next connection in the schedule, also used to rotate ties between backends */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    /**
+     * Build the group of a mapping.
+     * @param mapping Mapping with at least one backend server.
+     */
+    public BackendGroup(BackendServerMapping mapping) {
+        this.mapping = mapping;
+        List<BackendServer> servers = mapping.getBackends();
+        this.backends = new Backend[servers.size()];
+        this.weights = new int[servers.size()];
+        int divisor = 0;
+        for (int i = 0; i < servers.size(); i++) {
+            backends[i] = Backend.of(servers.get(i));
+            weights[i] = servers.get(i).getWeight();
+            divisor = gcd(divisor, weights[i]);
+        }
+        this.schedule = buildSchedule(weights, divisor);
+    }
+
+    /**
+     * Spread the backends over the schedule as evenly as possible, so a heavy backend doesn't receive all of its
+     * connections in a row (smooth weighted round-robin).
+     * @param weights Weights of the backends.
+     * @param divisor Greatest common divisor of the weights, used to keep the schedule short.
+     * @return Indexes of the backends in the order they are used.
+     */
+    private static int[] buildSchedule(int[] weights, int divisor) {
+        int total = 0;
+        for (int weight : weights) total += weight / divisor;
+        int[] schedule = new int[total];
+        int[] current = new int[weights.length];
+        for (int slot = 0; slot < total; slot++) {
+            int best = 0;
+            for (int i = 0; i < weights.length; i++) {
+                current[i] += weights[i] / divisor;
+                if (current[i] > current[best]) best = i;
+            }
+            current[best] -= total;
+            schedule[slot] = best;
+        }
+        return schedule;
+    }
+
+    /**
+     * Get the greatest common divisor of two weights.
+     * @param a First weight, or 0.
+     * @param b Second weight.
+     * @return Greatest common divisor.
+     */
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+
+    /**
+     * Choose the backend server for a new connection, using the balancing policy of the mapping. Backend servers
+     * with an open {@link CircuitBreaker} or at their connection cap are skipped, so clients fail over to the
+     * remaining ones. If all of them are out of rotation, one of them may receive a trial connection.
+     * The caller should {@link Backend#acquire(ConnectionLifecycle)} it once it is used.
+     * @return Chosen backend server, or null if no backend server is available.
+     */
+    public Backend select() {
+        if (backends.length == 1) return backends[0].getCircuitBreaker().tryTrial() ? backends[0] : null;
+        int position = cursor.getAndIncrement();
+        Backend backend;
+        switch (mapping.getBalancingPolicy()) {
+            case LEAST_CONNECTIONS:
+                backend = selectLeastConnections(position);
+                break;
+            case LOWEST_LATENCY:
+                backend = selectLowestLatency(position);
+                break;
+            default:
+                backend = selectRoundRobin(position);
+        }
+        return backend != null ? backend : selectTrial(position);
+    }
+
+    /**
+     * Choose the next backend server of the schedule that is in rotation.
+     * @param position Position of the connection in the schedule.
+     * @return Chosen backend server, or null if all backend servers are out of rotation.
+     */
+    private Backend selectRoundRobin(int position) {
+        for (int n = 0; n < schedule.length; n++) {
+            Backend backend = backends[schedule[Math.floorMod(position + n, schedule.length)]];
+            if (backend.getCircuitBreaker().isClosed() && !AdmissionControl.isFull(backend)) return backend;
+        }
+        return null;
+    }
+
+    /**
+     * Choose the backend server with the fewest active connections relative to its weight. The scan starts at
+     * a rotating offset, so ties are spread over all backends.
+     * @param position Position of the connection, used as offset.
+     * @return Chosen backend server, or null if all backend servers are out of rotation.
+     */
+    private Backend selectLeastConnections(int position) {
+        int offset = Math.floorMod(position, backends.length);
+        int best = -1;
+        long bestConnections = 0;
+        for (int n = 0; n < backends.length; n++) {
+            int i = (offset + n) % backends.length;
+            if (!backends[i].getCircuitBreaker().isClosed() || AdmissionControl.isFull(backends[i])) continue;
+            long connections = backends[i].getActiveConnections();
+            if (best < 0 || connections * weights[best] < bestConnections * weights[i]) {
+                best = i;
+                bestConnections = connections;
+            }
+        }
+        return best < 0 ? null : backends[best];
+    }
+
+    /**
+     * Choose the backend server with the lowest connect latency relative to its weight. Backends without a
+     * measurement are preferred, so every backend gets measured.
+     * @param position Position of the connection, used as offset.
+     * @return Chosen backend server, or null if all backend servers are out of rotation.
+     */
+    private Backend selectLowestLatency(int position) {
+        int offset = Math.floorMod(position, backends.length);
+        int best = -1;
+        long bestLatency = 0;
+        for (int n = 0; n < backends.length && (best < 0 || bestLatency > 0); n++) {
+            int i = (offset + n) % backends.length;
+            if (!backends[i].getCircuitBreaker().isClosed() || AdmissionControl.isFull(backends[i])) continue;
+            long latency = backends[i].getConnectLatencyNanos();
+            if (best < 0 || latency * weights[best] < bestLatency * weights[i]) {
+                best = i;
+                bestLatency = latency;
+            }
+        }
+        return best < 0 ? null : backends[best];
+    }
+
+    /**
+     * Let a trial connection through to one of the backend servers that are out of rotation, so a recovered
+     * backend server is noticed even without health checks.
+     * @param position Position of the connection, used as offset.
+     * @return Backend server receiving the trial connection, or null if no trial is due.
+     */
+    private Backend selectTrial(int position) {
+        int offset = Math.floorMod(position, backends.length);
+        for (int n = 0; n < backends.length; n++) {
+            Backend backend = backends[(offset + n) % backends.length];
+            if (backend.getCircuitBreaker().tryTrial()) return backend;
+        }
+        return null;
+    }
+
+    /**
+     * Get the mapping the group was built from.
+     * @return Mapping of the group.
+     */
+    public BackendServerMapping getMapping() {
+        return mapping;
+    }
+
+    /**
+     * Get the backend servers of the group.
+     * @return Backend servers of the mapping.
+     */
+    public Backend[] getBackends() {
+        return backends.clone();
+    }
+
+}
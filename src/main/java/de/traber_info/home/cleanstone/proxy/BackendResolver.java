@@ -0,0 +1,367 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.model.config.BackendServer;
+import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the resolved addresses of the backend servers, shared by all transport engines. Lookups block, so they
+ * run on a dedicated executor and never on a thread handling connections. Addresses are resolved when cleanstone
+ * starts, refreshed in the background before they expire and kept in use for a while if refreshing them fails.
+ * All addresses of a hostname are kept, so connects can fall back to the next one if an address is unreachable.
+ *
+ * @author Oliver Traber
+ */
+public class BackendResolver {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(BackendResolver.class.getName());
+
+    /** Settings of the cache. Default settings are used until {@link #init} is called */
+    private static ConfigFile.ResolverSettings settings = new ConfigFile.ResolverSettings();
+
+    /** Cached addresses, keyed by the unresolved address of the backend server */
+    private static final Map<InetSocketAddress, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Executor running the lookups, since they block */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cleanstone-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Count of connections served with a cached address */
+    private static final LongAdder hits = new LongAdder();
+
+    /** Count of connections served with an expired address, because refreshing it failed */
+    private static final LongAdder staleHits = new LongAdder();
+
+    /** Count of connections that had to wait for a lookup */
+    private static final LongAdder misses = new LongAdder();
+
+    /** Count of lookups */
+    private static final LongAdder lookups = new LongAdder();
+
+    /** Count of failed lookups */
+    private static final LongAdder failures = new LongAdder();
+
+    /** Total time spent in lookups, in nanoseconds */
+    private static final LongAdder lookupNanos = new LongAdder();
+
+    /** Longest lookup, in nanoseconds */
+    private static final AtomicLong maxLookupNanos = new AtomicLong();
+
+    /**
+     * Apply the settings of the cache and resolve the addresses of the given backend servers in the background,
+     * so the first connections don't have to wait for a lookup.
+     * @param resolverSettings Settings of the cache.
+     * @param mappings Mappings of the backend servers to resolve.
+     */
+    public static void init(ConfigFile.ResolverSettings resolverSettings, Collection<BackendServerMapping> mappings) {
+        settings = resolverSettings;
+        if (settings.isEnabled()) {
+            update(mappings);
+            // Check often enough that every address is refreshed within the last quarter of its TTL
+            long intervalMillis = Math.max(100, Math.min(1000, settings.getTtlMillis() / 4));
+            SchedulerUtil.getScheduler().scheduleAtFixedRate(BackendResolver::refreshExpiring,
+                    intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (settings.getStatsIntervalSeconds() > 0) {
+            SchedulerUtil.getScheduler().scheduleAtFixedRate(BackendResolver::report,
+                    settings.getStatsIntervalSeconds(), settings.getStatsIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Replace the backend servers whose addresses are kept in the cache, e.g. after the config was reloaded.
+     * Addresses of new backend servers are resolved in the background, removed ones are no longer refreshed.
+     * @param mappings Mappings of the backend servers to resolve.
+     */
+    public static void update(Collection<BackendServerMapping> mappings) {
+        if (!settings.isEnabled()) return;
+        Set<InetSocketAddress> keys = new HashSet<>();
+        for (BackendServerMapping mapping : mappings) {
+            for (BackendServer server : mapping.getBackends()) {
+                keys.add(Backend.getKey(server));
+            }
+        }
+        entries.keySet().retainAll(keys);
+        for (InetSocketAddress key : keys) {
+            Entry entry = entries.computeIfAbsent(key, Entry::new);
+            if (entry.addresses == null) entry.refresh();
+        }
+    }
+
+    /**
+     * Resolve the addresses of a backend server.
+     * @param backend Backend server to resolve.
+     * @return Future completed with the resolved addresses, in the order they should be tried. The array is shared
+     *         and must not be modified. Completed right away if the addresses are cached, otherwise completed by the
+     *         resolver thread. Completed exceptionally if the address can't be resolved.
+     */
+    public static CompletableFuture<InetSocketAddress[]> resolve(Backend backend) {
+        if (!settings.isEnabled()) {
+            misses.increment();
+            return CompletableFuture.supplyAsync(() -> lookup(backend.getHost(), backend.getPort()), executor);
+        }
+        Entry entry = entries.computeIfAbsent(backend.getUnresolvedAddress(), Entry::new);
+        InetSocketAddress[] addresses = entry.getUsableAddresses();
+        if (addresses != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(addresses);
+        }
+        misses.increment();
+        return entry.refresh();
+    }
+
+    /**
+     * Start refreshing all addresses that are about to expire or couldn't be resolved. Failed lookups are retried
+     * at the same pace, so an unresolvable address doesn't flood the DNS server.
+     */
+    private static void refreshExpiring() {
+        long refreshAfterNanos = TimeUnit.MILLISECONDS.toNanos(settings.getTtlMillis()) * 3 / 4;
+        long now = System.nanoTime();
+        for (Entry entry : entries.values()) {
+            boolean expiring = entry.addresses == null || now - entry.resolvedAt >= refreshAfterNanos;
+            if (expiring && now - entry.attemptedAt >= refreshAfterNanos) entry.refresh();
+        }
+    }
+
+    /**
+     * Resolve all addresses of a hostname and record the time the lookup took.
+     * @param host Hostname or IP address to resolve.
+     * @param port Port of the backend server.
+     * @return Resolved addresses, in the order they should be tried.
+     * @throws CompletionException Thrown if the address can't be resolved.
+     */
+    private static InetSocketAddress[] lookup(String host, int port) {
+        long start = System.nanoTime();
+        InetAddress[] resolved;
+        try {
+            resolved = InetAddress.getAllByName(host);
+        } catch (UnknownHostException ex) {
+            failures.increment();
+            throw new CompletionException(ex);
+        } finally {
+            long duration = System.nanoTime() - start;
+            lookups.increment();
+            lookupNanos.add(duration);
+            maxLookupNanos.accumulateAndGet(duration, Math::max);
+            Metrics.recordResolverLookup(duration);
+        }
+        return interleave(resolved, port);
+    }
+
+    /**
+     * Order the addresses so IPv6 and IPv4 addresses alternate, starting with the family the system resolver
+     * preferred (RFC 8305). If one family is unreachable, the next connect attempt already uses the other one.
+     * @param resolved Addresses in the order returned by the system resolver.
+     * @param port Port of the backend server.
+     * @return Addresses in the order they should be tried.
+     */
+    private static InetSocketAddress[] interleave(InetAddress[] resolved, int port) {
+        InetSocketAddress[] addresses = new InetSocketAddress[resolved.length];
+        boolean preferIpv6 = resolved[0] instanceof Inet6Address;
+        int preferred = 0;
+        int other = 0;
+        for (int i = 0; i < addresses.length; i++) {
+            // Take the next address of the family whose turn it is, or of the other one if it ran out
+            boolean preferredTurn = i % 2 == 0;
+            int index = preferredTurn ? nextOfFamily(resolved, preferred, preferIpv6)
+                    : nextOfFamily(resolved, other, !preferIpv6);
+            if (index == -1) {
+                preferredTurn = !preferredTurn;
+                index = preferredTurn ? nextOfFamily(resolved, preferred, preferIpv6)
+                        : nextOfFamily(resolved, other, !preferIpv6);
+            }
+            if (preferredTurn) {
+                preferred = index + 1;
+            } else {
+                other = index + 1;
+            }
+            addresses[i] = new InetSocketAddress(resolved[index], port);
+        }
+        return addresses;
+    }
+
+    /**
+     * Find the next address of a family.
+     * @param resolved Addresses in the order returned by the system resolver.
+     * @param from Index to start searching at.
+     * @param ipv6 true to search for an IPv6 address, false for an IPv4 address.
+     * @return Index of the address, or -1 if there is none.
+     */
+    private static int nextOfFamily(InetAddress[] resolved, int from, boolean ipv6) {
+        for (int i = from; i < resolved.length; i++) {
+            if (resolved[i] instanceof Inet6Address == ipv6) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the count of connections served with a cached address, including expired ones.
+     * @return Count of cache hits.
+     */
+    public static long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the count of connections served with an expired address, because refreshing it failed.
+     * @return Count of stale cache hits.
+     */
+    public static long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
+    /**
+     * Get the count of connections that had to wait for a lookup.
+     * @return Count of cache misses.
+     */
+    public static long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the count of lookups, including background refreshes.
+     * @return Count of lookups.
+     */
+    public static long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * Get the count of failed lookups.
+     * @return Count of failed lookups.
+     */
+    public static long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Get the total time spent in lookups.
+     * @return Total lookup time in nanoseconds.
+     */
+    public static long getLookupNanos() {
+        return lookupNanos.sum();
+    }
+
+    /**
+     * Get the time the longest lookup took.
+     * @return Longest lookup time in nanoseconds.
+     */
+    public static long getMaxLookupNanos() {
+        return maxLookupNanos.get();
+    }
+
+    /**
+     * Log the hit rate and lookup latency of the resolver.
+     */
+    public static void report() {
+        long lookupCount = getLookupCount();
+        LOG.info("Backend resolver: {} hits ({} stale), {} misses, {} lookups, {} failed, " +
+                        "average lookup {} ms, longest lookup {} ms",
+                getHitCount(),
+                getStaleHitCount(),
+                getMissCount(),
+                lookupCount,
+                getFailureCount(),
+                lookupCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(getLookupNanos() / lookupCount),
+                TimeUnit.NANOSECONDS.toMillis(getMaxLookupNanos())
+        );
+    }
+
+    /**
+     * Cached address of a single backend server.
+     */
+    private static class Entry {
+
+        /** Unresolved address of the backend server */
+        private final InetSocketAddress key;
+
+        /** Last successfully resolved addresses, or null if they were never resolved */
+        private volatile InetSocketAddress[] addresses;
+
+        /** Point in time the address was resolved at, in nanoseconds */
+        private volatile long resolvedAt;
+
+        /** Point in time the last lookup was started at, in nanoseconds */
+        private volatile long attemptedAt;
+
+        /** Lookup currently running, or null */
+        private CompletableFuture<InetSocketAddress[]> pending;
+
+        /**
+         * Create the entry of a backend server.
+         * @param key Unresolved address of the backend server.
+         */
+        private Entry(InetSocketAddress key) {
+            this.key = key;
+        }
+
+        /**
+         * Get the cached addresses if they can still be used. Expired addresses are used until the maximum
+         * staleness is reached, since a refresh was started for them already and must have failed.
+         * @return Cached addresses, or null if a lookup is required.
+         */
+        private InetSocketAddress[] getUsableAddresses() {
+            InetSocketAddress[] cached = addresses;
+            if (cached == null) return null;
+            long age = System.nanoTime() - resolvedAt;
+            if (age < TimeUnit.MILLISECONDS.toNanos(settings.getTtlMillis())) return cached;
+            if (age < TimeUnit.MILLISECONDS.toNanos(settings.getTtlMillis() + settings.getMaxStaleMillis())) {
+                staleHits.increment();
+                refresh();
+                return cached;
+            }
+            return null;
+        }
+
+        /**
+         * Resolve the addresses in the background, unless a lookup is running already.
+         * @return Future completed with the resolved addresses.
+         */
+        private synchronized CompletableFuture<InetSocketAddress[]> refresh() {
+            if (pending != null) return pending;
+            attemptedAt = System.nanoTime();
+            CompletableFuture<InetSocketAddress[]> future = CompletableFuture.supplyAsync(
+                    () -> lookup(key.getHostString(), key.getPort()), executor);
+            pending = future;
+            future.whenComplete((resolved, ex) -> {
+                synchronized (this) {
+                    pending = null;
+                }
+                if (ex == null) {
+                    resolvedAt = System.nanoTime();
+                    addresses = resolved;
+                } else {
+                    LOG.warn("Failed to resolve backend server address {}{}", key.getHostString(),
+                            addresses == null ? "" : ", still using " + addresses[0].getAddress().getHostAddress());
+                }
+            });
+            return future;
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport engine handling every connection with blocking sockets on its own threads.
+ * Every shard accepts client connections on its own acceptor thread.
+ *
+ * @author Oliver Traber
+ */
+public class BlockingProxyServer extends ProxyServer {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(BlockingProxyServer.class.getName());
+
+    /**
+     * Nothing to start, connections get their threads when they are accepted.
+     */
+    @Override
+    public void start() {}
+
+    /**
+     * Open the serverSocket of a shard and start its acceptor thread.
+     * @param shard Shard the serverSocket belongs to.
+     * @param port Port the serverSocket should be bound to.
+     * @param reusePort Set SO_REUSEPORT on the serverSocket.
+     * @throws IOException Thrown if the serverSocket can't be opened or bound.
+     */
+    @Override
+    protected void bindShard(ListenerShard shard, int port, boolean reusePort) throws IOException {
+        ServerSocket serverSocket = shard.openServerSocket(port, reusePort);
+        LOG.info("Listening on port {} (listener shard #{})", port, shard.getIndex());
+        new Thread(() -> acceptLoop(shard, serverSocket), "cleanstone-acceptor-" + shard.getIndex()).start();
+    }
+
+    /**
+     * Accept client connections on the serverSocket of a shard until the shard is closed.
+     * @param shard Shard the serverSocket belongs to.
+     * @param serverSocket Bound serverSocket of the shard.
+     */
+    private void acceptLoop(ListenerShard shard, ServerSocket serverSocket) {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                shard.recordAccept();
+                if (!AccessList.admit(socket.getInetAddress())) {
+                    closeQuietly(socket);
+                    continue;
+                }
+                // Check the connection limits before the connection gets a thread
+                Connection connection = new Connection(socket);
+                if (!ConnectionLimiter.admit(connection.getLifecycle())) continue;
+                if (!AdmissionControl.admit(connection.getLifecycle())) continue;
+                ThreadUtil.startThread(connection);
+            }
+        } catch (IOException ex) {
+            if (shard.isClosed()) {
+                LOG.info("Stopped listening on port {} (listener shard #{})", shard.getPort(), shard.getIndex());
+            } else {
+                LOG.error("An unexpected error occurred...", ex);
+            }
+        }
+    }
+
+    /**
+     * Close a socket and ignore any error, so a failing close doesn't stop accepting.
+     * @param socket Socket to close.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Nothing was read from the socket yet
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker of a single backend server. Opens after a number of consecutive failed connects or health
+ * probes, so joining clients are no longer sent to a backend server that is down. While open, a single client is
+ * let through once per open time to find out whether the backend server is back. Any successful connect or probe
+ * closes it again.
+ *
+ * @author Oliver Traber
+ */
+public class CircuitBreaker {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class.getName());
+
+    /** Backend server guarded by this breaker, used for log messages */
+    private final Backend backend;
+
+    /** Count of consecutive failures. The breaker is open while it is at or above the threshold */
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /** Point in time the breaker was opened or the last trial connection was let through, in nanoseconds */
+    private final AtomicLong openedAt = new AtomicLong();
+
+    /**
+     * Create the breaker of a backend server.
+     * @param backend Backend server guarded by the breaker.
+     */
+    CircuitBreaker(Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Check if the backend server is in rotation.
+     * @return true if the breaker is closed, otherwise false.
+     */
+    public boolean isClosed() {
+        return consecutiveFailures.get() < HealthChecker.getSettings().getFailureThreshold();
+    }
+
+    /**
+     * Let a single trial connection through an open breaker once the open time has passed since it was opened or
+     * since the last trial. Concurrent callers race for the trial, only one of them wins.
+     * @return true if the caller may connect to the backend server, otherwise false.
+     */
+    public boolean tryTrial() {
+        if (isClosed()) return true;
+        long openedAtNanos = openedAt.get();
+        long openNanos = TimeUnit.MILLISECONDS.toNanos(HealthChecker.getSettings().getOpenMillis());
+        long now = System.nanoTime();
+        return now - openedAtNanos >= openNanos && openedAt.compareAndSet(openedAtNanos, now);
+    }
+
+    /**
+     * Record a successful connect or probe, which closes the breaker.
+     */
+    public void recordSuccess() {
+        if (consecutiveFailures.get() == 0) return;
+        int failures = consecutiveFailures.getAndSet(0);
+        if (failures >= HealthChecker.getSettings().getFailureThreshold()) {
+            LOG.info("Backend server {} is available again", backend);
+        }
+    }
+
+    /**
+     * Record a failed connect or probe. Opens the breaker once the failure threshold is reached.
+     * @param cause Reason of the failure, used for log messages.
+     */
+    public void recordFailure(String cause) {
+        int failures = consecutiveFailures.incrementAndGet();
+        int threshold = HealthChecker.getSettings().getFailureThreshold();
+        if (failures < threshold) return;
+        openedAt.set(System.nanoTime());
+        if (failures == threshold) {
+            LOG.warn("Backend server {} failed {} times in a row ({}). Taking it out of rotation.",
+                    backend, failures, cause);
+        }
+    }
+
+}
@@ -1,14 +1,16 @@
 package de.traber_info.home.cleanstone.proxy;
 
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.proxy.epoll.EpollProxyServer;
+import de.traber_info.home.cleanstone.proxy.nio.NioProxyServer;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 /**
- * Main server that listens for new client connections and starts the threads for further data handling.
+ * Main server that listens for new client connections using the transport engine selected in the config.
  *
  * @author Oliver Traber
  */
@@ -20,6 +22,9 @@ public class CleanstoneProxy {
     /** Port on which cleanstone should be listening for client connections */
     private final int port;
 
+    /** Transport engine accepting the client connections */
+    private ProxyServer server;
+
     /**
      * Create a new instance of cleanstone's main proxy.
      * @param port Port on which cleanstone should be listening for client connections.
@@ -29,28 +34,59 @@ public class CleanstoneProxy {
     }
 
     /**
-     * Start the serverSocket to accept client connections.
+     * Start accepting client connections using the transport engine selected in the config.
+     * The connections are accepted on threads of the engine, so this returns once the port is bound.
+     * @return true if cleanstone is listening, otherwise false.
      */
-    public void listen() {
+    public boolean listen() {
+        ConfigFile.TransportSettings transportSettings = ConfigUtil.getConfig().getTransportSettings();
+        int shardCount = ListenerShard.getUsableShardCount(transportSettings.getListenerShards());
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
-            LOG.info("Listening on port {}", port);
-            while (true) {
-                Socket socket = serverSocket.accept();
-                startThread(new Connection(socket));
-            }
+            server = createServer(transportSettings, shardCount);
+            server.start();
+            server.bind(port, shardCount);
+            return true;
         } catch (IOException ex) {
             LOG.error("An unexpected error occurred...", ex);
+            return false;
         }
     }
 
     /**
-     * Start a new thread to handle an incoming client connection.
-     * @param connection Connection thread to handle the incoming client connection.
+     * Move the listening sockets to another port or shard count. Established connections keep running.
+     * @param newPort Port on which cleanstone should be listening for client connections.
+     * @param listenerShards Requested count of listening sockets bound to the port with SO_REUSEPORT.
+     * @throws IOException Thrown if the new port can't be bound. The previous listening sockets are kept then.
      */
-    private void startThread(Connection connection) {
-        Thread t = new Thread(connection);
-        t.start();
+    public void rebind(int newPort, int listenerShards) throws IOException {
+        int shardCount = ListenerShard.getUsableShardCount(listenerShards);
+        if (newPort == server.getPort() && shardCount == server.getShardCount()) return;
+        LOG.info("Rebinding listener from port {} with {} shard(s) to port {} with {} shard(s)",
+                server.getPort(), server.getShardCount(), newPort, shardCount);
+        server.bind(newPort, shardCount);
+    }
+
+    /**
+     * Create the transport engine selected in the config.
+     * @param transportSettings Transport settings from the config.
+     * @param shardCount Count of listening sockets the engine is started with.
+     * @return Transport engine, not started yet.
+     * @throws IOException Thrown if the engine can't be created.
+     */
+    private static ProxyServer createServer(ConfigFile.TransportSettings transportSettings, int shardCount)
+            throws IOException {
+        if (transportSettings.getEngine() == ConfigFile.Engine.NIO) {
+            return new NioProxyServer(transportSettings.getEventLoops());
+        }
+        if (transportSettings.getEngine() == ConfigFile.Engine.EPOLL) {
+            if (EpollProxyServer.isAvailable()) {
+                return new EpollProxyServer(shardCount, transportSettings.getEventLoops(),
+                        transportSettings.spliceEnabled());
+            }
+            LOG.warn("Native epoll transport is not available on this platform ({}). " +
+                    "Falling back to the blocking engine.", EpollProxyServer.unavailabilityCause().getMessage());
+        }
+        return new BlockingProxyServer();
     }
 
 }
@@ -1,5 +1,9 @@
 package de.traber_info.home.cleanstone.proxy;
 
+import de.traber_info.home.cleanstone.buffer.AdaptiveBufferSizer;
+import de.traber_info.home.cleanstone.buffer.BufferPool;
+import de.traber_info.home.cleanstone.buffer.PooledBuffer;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,18 +29,30 @@ public class ClientServerProxy implements Runnable {
     /** Socket to which data is written */
     private final Socket out;
 
+    /** Lifecycle of the connection, shared with the opposite direction */
+    private final ConnectionLifecycle lifecycle;
+
+    /** Direction data is relayed in by this instance */
+    private final ConnectionLifecycle.Direction direction;
+
     /**
      * Create a new instance of the ClientServerProxy.
      * @param in Socket from which data is read
      * @param out Socket to which data is written
+     * @param lifecycle Lifecycle of the connection, shared with the opposite direction.
+     * @param direction Direction data is relayed in by this instance.
      */
-    public ClientServerProxy(Socket in, Socket out) {
+    public ClientServerProxy(Socket in, Socket out, ConnectionLifecycle lifecycle,
+                             ConnectionLifecycle.Direction direction) {
         this.in = in;
         this.out = out;
+        this.lifecycle = lifecycle;
+        this.direction = direction;
     }
 
     /**
-     * Start the thread that pushes the data back and forth between client and server.
+     * Push data in one direction between client and server. Once the input ends, the output of the opposite side
+     * is shut down through the lifecycle. If relaying fails, both sides are closed at once.
      */
     @Override
     public void run() {
@@ -45,24 +61,63 @@ public class ClientServerProxy implements Runnable {
             OutputStream outputStream = getOutputStream();
 
             if (inputStream == null || outputStream == null) {
+                lifecycle.close(null);
                 return;
             }
 
-            byte[] reply = new byte[4096];
-            int bytesRead;
-            while (-1 != (bytesRead = inputStream.read(reply))) {
-                outputStream.write(reply, 0, bytesRead);
-            }
-        } catch (SocketException ignore) {
-            // Do nothing
+            relay(inputStream, outputStream);
+            lifecycle.finish(direction);
+        } catch (SocketException ex) {
+            // Expected if the connection was reset or closed by the opposite direction
+            lifecycle.close(ex);
         } catch (Exception ex) {
             LOG.error("An unexpected error occurred...", ex);
-        } finally {
-            try {
-                in.close();
-            } catch (IOException ex2) {
-                LOG.error("An unexpected error occurred...", ex2);
+            lifecycle.close(ex);
+        }
+    }
+
+    /**
+     * Copy data from the input to the output stream until the input is closed. The buffer is sized by the observed
+     * throughput and is given back to the pool while the direction is idle, so idle connections hold no buffer.
+     * @param inputStream InputStream from which data is read.
+     * @param outputStream OutputStream data is written to.
+     * @throws IOException Thrown if reading or writing fails.
+     */
+    private void relay(InputStream inputStream, OutputStream outputStream) throws IOException {
+        AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(ConfigUtil.getConfig().getRelayBufferSettings());
+        PooledBuffer buffer = BufferPool.heap().borrow(sizer.getSize());
+        try {
+            while (true) {
+                int bytesRead;
+                boolean idle;
+                if (buffer == null) {
+                    // Wait for data without holding a buffer, then fetch what arrived along with the first byte
+                    int firstByte = inputStream.read();
+                    if (firstByte == -1) return;
+                    buffer = BufferPool.heap().borrow(sizer.getSize());
+                    buffer.array()[0] = (byte) firstByte;
+                    int available = Math.min(inputStream.available(), buffer.capacity() - 1);
+                    bytesRead = 1 + (available > 0 ? inputStream.read(buffer.array(), 1, available) : 0);
+                    // Stay idle until the traffic picks up again
+                    idle = bytesRead < sizer.getMinSize();
+                } else {
+                    long readStart = System.nanoTime();
+                    bytesRead = inputStream.read(buffer.array(), 0, buffer.capacity());
+                    if (bytesRead == -1) return;
+                    idle = sizer.isIdle(System.nanoTime() - readStart);
+                }
+
+                lifecycle.recordRead(direction, bytesRead);
+                outputStream.write(buffer.array(), 0, bytesRead);
+                sizer.record(bytesRead, buffer.capacity());
+
+                if (idle || buffer.capacity() != sizer.getSize()) {
+                    buffer.release();
+                    buffer = idle ? null : BufferPool.heap().borrow(sizer.getSize());
+                }
             }
+        } finally {
+            if (buffer != null) buffer.release();
         }
     }
 
@@ -1,19 +1,26 @@
 package de.traber_info.home.cleanstone.proxy;
 
-import de.traber_info.home.cleanstone.CleanStone;
-import de.traber_info.home.cleanstone.model.config.ConfigFile;
-import de.traber_info.home.cleanstone.model.object.Packet;
+import de.traber_info.home.cleanstone.buffer.BufferPool;
+import de.traber_info.home.cleanstone.buffer.PooledBuffer;
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.model.object.HandshakeDecoder;
+import de.traber_info.home.cleanstone.util.BlockingProbe;
 import de.traber_info.home.cleanstone.util.ConfigUtil;
-import de.traber_info.home.cleanstone.util.DatatypeUtil;
-import de.traber_info.home.cleanstone.util.ProxyProtoUtil;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import de.traber_info.home.cleanstone.util.ThreadUtil;
+import de.traber_info.home.cleanstone.util.TimerWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.regex.Pattern;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionException;
 
 /**
  * Thread class for handling client connections.
@@ -25,25 +32,30 @@ public class Connection implements Runnable {
     /** SLF4J logger for usage in this class */
     private static final Logger LOG = LoggerFactory.getLogger(Connection.class.getName());
 
-    /** DatatypeUtil that is used in this class. */
-    private final DatatypeUtil datatypeUtil;
-
     /** Socket for communication with and from the client */
     private final Socket clientSocket;
 
-    /** Socket for communication with and from the backend server */
-    private Socket serverConnection = null;
-
-    /** Regex to remove Forge Modloader address appendix */
-    private final static Pattern fmlPattern = Pattern.compile("\u0000FML.*\u0000");
+    /** Lifecycle shared by both relay directions */
+    private final ConnectionLifecycle lifecycle;
 
     /**
      * Create a new instance to handle an incoming client connection.
      * @param clientSocket Socket for communication with and from the client.
      */
     public Connection(Socket clientSocket) {
-        this.datatypeUtil = new DatatypeUtil();
         this.clientSocket = clientSocket;
+        this.lifecycle = new ConnectionLifecycle(
+                (InetSocketAddress) clientSocket.getRemoteSocketAddress(),
+                ConnectionLifecycle.Endpoint.of(clientSocket)
+        );
+    }
+
+    /**
+     * Get the lifecycle of the connection.
+     * @return Lifecycle shared by both relay directions.
+     */
+    public ConnectionLifecycle getLifecycle() {
+        return lifecycle;
     }
 
     /**
@@ -52,180 +64,330 @@ public class Connection implements Runnable {
      */
     @Override
     public void run() {
-        ConfigFile.ProxyProtocolSettings proxyProtocolSettings = ConfigUtil.getConfig().getProxyProtocolSettings();
-
+        HandshakeDecoder decoder = new HandshakeDecoder(ConfigUtil.getConfig().getHandshakeSettings());
         try {
-            // Read first packet
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            baos.write(buffer, 0 , clientSocket.getInputStream().read(buffer));
-            byte[] result = baos.toByteArray();
-            baos.close();
-
-            boolean hasProxyProtocolHeader = false;
-            String clientIP;
-            Packet packet;
-            if (ProxyProtoUtil.hasProxyProtocolHeader(result)) {
-                if (!proxyProtocolSettings.isEnabled() || !proxyProtocolSettings.passThroughEnabled()) {
-                    clientSocket.close();
-                    LOG.warn("Aborted connection from {}:{}. " +
-                            "The received packet contains a PROXY protocol v2 header, " +
-                            "but PROXY protocol pass through is disabled.",
-                            clientSocket.getInetAddress().getHostAddress(),
-                            clientSocket.getPort()
-                    );
+            // Read until the first packet is complete, it may be split over several segments. The deadline closes
+            // the socket, which ends a read that waits for a client that never sends its handshake
+            HandshakeRouter.Route route;
+            StatusResponder responder = null;
+            try {
+                readHandshake(decoder);
+                if (!decoder.isComplete()) {
+                    lifecycle.close(null);
                     return;
                 }
-                hasProxyProtocolHeader = true;
-                ProxyProtoUtil.ProxyProtoHeader proxyHeader = ProxyProtoUtil.decode(result, true);
-                clientIP = proxyHeader.sourceAddress.getHostAddress();
-                LOG.info("Accepted new connection from {}:{} via proxy {}",
-                        clientIP,
-                        proxyHeader.sourcePort,
-                        clientSocket.getInetAddress().getHostAddress()
+
+                route = HandshakeRouter.route(
+                        decoder.decode(),
+                        (InetSocketAddress) clientSocket.getRemoteSocketAddress(),
+                        (InetSocketAddress) clientSocket.getLocalSocketAddress()
                 );
-                int headerLength = ProxyProtoUtil.getHeaderLength(result);
-                int payloadLength = result.length - headerLength;
-                byte[] mcPacket = new byte[payloadLength];
-                System.arraycopy(result, headerLength, mcPacket, 0, payloadLength);
-                packet = new Packet(mcPacket);
-            } else {
-                clientIP = clientSocket.getInetAddress().getHostAddress();
-                LOG.info("Accepted new connection from {}:{}",
-                        clientIP,
+                if (route != null && !ConnectionLimiter.admit(route, lifecycle)) return;
+                if (route != null && !AdmissionControl.admit(route, lifecycle)) {
+                    // Tell the client that the server is full instead of dropping it
+                    if (!route.requestsStatus()) {
+                        disconnect(AdmissionControl.getDisconnectPacket());
+                        return;
+                    }
+                    responder = new StatusResponder(route, decoder.getTimeoutMillis(),
+                            AdmissionControl.getStatus(route));
+                } else if (route != null && route.answersStatusLocally()) {
+                    responder = new StatusResponder(route, decoder.getTimeoutMillis());
+                }
+            } catch (SocketTimeoutException ex) {
+                Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.TIMEOUT);
+                LOG.warn("Client {}:{} didn't send its handshake within {} ms. Closing client socket.",
+                        clientSocket.getInetAddress().getHostAddress(),
+                        clientSocket.getPort(),
+                        decoder.getTimeoutMillis()
+                );
+                lifecycle.close(null);
+                return;
+            } catch (ProtocolException ex) {
+                Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.INVALID);
+                LOG.warn("Invalid handshake from {}:{}: {}. Closing client socket.",
+                        clientSocket.getInetAddress().getHostAddress(),
+                        clientSocket.getPort(),
+                        ex.getMessage()
+                );
+                lifecycle.close(null);
+                return;
+            }
+            if (route == null) {
+                lifecycle.close(null);
+                return;
+            }
+            if (responder != null) {
+                answerStatus(responder);
+                return;
+            }
+
+            // Choose one of the backend servers of the mapping and count the connection until it is closed.
+            // Backend servers that keep failing are skipped, so the join fails right away if none is left
+            Backend backend = route.getBackendGroup().select();
+            if (backend == null) {
+                LOG.warn("No backend server for {} is available. Disconnecting client {}:{}.",
+                        route.getMapping().getMappingDomain(),
+                        clientSocket.getInetAddress().getHostAddress(),
                         clientSocket.getPort()
                 );
-                packet = new Packet(result);
+                disconnect(route.getDisconnectPacket());
+                return;
             }
+            backend.acquire(lifecycle);
+            Metrics.trackMapping(route.getMapping().getMappingDomain(), lifecycle);
 
-            // Check if packet is an handshake packet
-            if (packet.getPacketId() == 0) {
-                // Parse protocol version
-                int protocolVersion = datatypeUtil.readVarInt(packet.getUnreadData(), 0);
+            // Use an idle connection from the pool if there is one, otherwise connect to the backend server
+            Socket serverConnection = SocketPool.takeSocket(backend);
+            if (serverConnection == null) {
+                serverConnection = connect(route, backend);
+                if (serverConnection == null) return;
+            }
+            if (!lifecycle.open((InetSocketAddress) serverConnection.getRemoteSocketAddress(),
+                    ConnectionLifecycle.Endpoint.of(serverConnection))) {
+                return;
+            }
+            lifecycle.closeWhenIdle(ConfigUtil.getConfig().getTransportSettings().getIdleTimeoutMillis(),
+                    Runnable::run);
 
-                // Parse wantedServerAddress
-                String wantedServerAddress = datatypeUtil.readString(
-                        packet.getUnreadData(),
-                        datatypeUtil.getBytesRead()
+            if (route.getHandshake().hasProxyProtocolHeader()) {
+                LOG.info("Starting proxy {}:{} <-> {}:{} on behalf of client {}...",
+                        clientSocket.getInetAddress().getHostAddress(),
+                        clientSocket.getPort(),
+                        serverConnection.getInetAddress().getHostAddress(),
+                        serverConnection.getPort(),
+                        route.getClientIP()
                 );
-                // Remove FML appendix from wantedServerAddress if the connecting client is using Minecraft Forge
-                wantedServerAddress = fmlPattern.matcher(wantedServerAddress).replaceAll("");
-
-                LOG.info("Client {} connecting with protocol version {}. Wanted server: {}",
-                        clientIP,
-                        protocolVersion,
-                        wantedServerAddress
+            } else {
+                LOG.info("Starting proxy {}:{} <-> {}:{}...",
+                        clientSocket.getInetAddress().getHostAddress(),
+                        clientSocket.getPort(),
+                        serverConnection.getInetAddress().getHostAddress(),
+                        serverConnection.getPort()
                 );
+            }
 
-                // Check if the domain can be mapped to an backend server
-                if (CleanStone.getBackendServerMappings().get(wantedServerAddress) != null) {
-
-                    LOG.info("Backend server address for {} is {}",
-                            wantedServerAddress,
-                            CleanStone.getBackendServerMappings().get(wantedServerAddress).getBackendServerAddress()
-                    );
-
-                    // Create connection to the backend server
-                    serverConnection = new Socket(
-                            CleanStone.getBackendServerMappings().get(wantedServerAddress).getBackendServerAddress(),
-                            CleanStone.getBackendServerMappings().get(wantedServerAddress).getBackendServerPort()
-                    );
-
-                    if (hasProxyProtocolHeader) {
-                        LOG.info("Starting proxy {}:{} <-> {}:{} on behalf of client {}...",
-                                clientSocket.getInetAddress().getHostAddress(),
-                                clientSocket.getPort(),
-                                serverConnection.getInetAddress().getHostAddress(),
-                                serverConnection.getPort(),
-                                clientIP
-                        );
-                    } else {
-                        LOG.info("Starting proxy {}:{} <-> {}:{}...",
-                                clientSocket.getInetAddress().getHostAddress(),
-                                clientSocket.getPort(),
-                                serverConnection.getInetAddress().getHostAddress(),
-                                serverConnection.getPort()
-                        );
-                    }
-
-                    // Start proxy threads to exchange data between the client and the backend server
-                    new Thread(new ClientServerProxy(clientSocket, serverConnection)).start();
-                    new Thread(new ClientServerProxy(serverConnection, clientSocket)).start();
-
-                    if (proxyProtocolSettings.isEnabled() && !hasProxyProtocolHeader) {
-                        // Add PROXY protocol header if PROXY protocol support is enabled
-                        // and the packet doesn't contain a header yet.
-                        byte[] header = ProxyProtoUtil.encode(
-                                ProxyProtoUtil.TransportFam.TCP,
-                                clientSocket.getInetAddress(),
-                                clientSocket.getPort(),
-                                clientSocket.getLocalAddress(),
-                                clientSocket.getLocalPort()
-                        );
-                        byte[] combined = new byte[header.length + result.length];
-                        System.arraycopy(header, 0, combined, 0, header.length);
-                        System.arraycopy(result, 0, combined, header.length, result.length);
-                        serverConnection.getOutputStream().write(combined);
-                    } else {
-                        // Write handshake packet unchanged to the backend server's OutputStream
-                        serverConnection.getOutputStream().write(result);
-                    }
-
-                    new Thread(() -> {
-                        while (true) {
-                            if (clientSocket.isClosed()) {
-                                LOG.info("Client socket ({}:{}) closed. Closing connection to backend server...",
-                                        clientSocket.getInetAddress().getHostAddress(),
-                                        clientSocket.getPort()
-                                );
-                                closeServerConnection();
-                                break;
-                            }
-                            if (serverConnection.isClosed()) {
-                                LOG.info("Server connection for client ({}:{}) closed. Closing connection to client...",
-                                        clientSocket.getInetAddress().getHostAddress(),
-                                        clientSocket.getPort()
-                                );
-                                try {
-                                    clientSocket.close();
-                                } catch (IOException e) {
-                                    // Do nothing
-                                }
-                                break;
-                            }
-
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException ex) {
-                                LOG.error("An unexpected error occurred...", ex);
-                            }
-                        }
-                    }).start();
-                }
-            } else {
-                LOG.error("Packet does not contain a handshake. Closing client socket.");
-                clientSocket.close();
+            // Write the handshake to the backend server before any further client data is relayed. The PROXY
+            // protocol header is encoded in front of it, so both are sent with one write.
+            PooledBuffer initialData = BufferPool.heap().borrow(route.getInitialDataLength());
+            try {
+                route.writeInitialData(initialData.buffer());
+                serverConnection.getOutputStream().write(initialData.array(), 0, initialData.buffer().position());
+            } finally {
+                initialData.release();
             }
+
+            // Start proxy threads to exchange data between the client and the backend server. Each thread tears
+            // the connection down through the lifecycle once its side is done, no thread has to watch the sockets.
+            ThreadUtil.startThread(new ClientServerProxy(clientSocket, serverConnection,
+                    lifecycle, ConnectionLifecycle.Direction.CLIENT_TO_SERVER));
+            if (!awaitFirstByte(route, backend, serverConnection)) return;
+            ThreadUtil.startThread(new ClientServerProxy(serverConnection, clientSocket,
+                    lifecycle, ConnectionLifecycle.Direction.SERVER_TO_CLIENT));
         } catch (SocketException ex) {
-            // Do nothing
+            lifecycle.close(ex);
         } catch (IOException ex) {
             LOG.error("An unexpected error occurred...", ex);
-            try {
-                clientSocket.close();
-            } catch (IOException ex1) {
-                // Do nothing
+            lifecycle.close(ex);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     * Read from the client until the handshake is complete or the client closes the connection.
+     * @param decoder Decoder the handshake is collected in.
+     * @throws SocketTimeoutException Thrown if the client didn't send its handshake in time.
+     * @throws IOException Thrown if reading from the client fails.
+     */
+    private void readHandshake(HandshakeDecoder decoder) throws IOException {
+        TimerWheel.Timeout deadline = SchedulerUtil.getTimerWheel()
+                .newTimeout(() -> closeQuietly(clientSocket), decoder.getRemainingMillis());
+        try {
+            while (!decoder.isComplete()) {
+                long readStart = BlockingProbe.begin();
+                boolean open = decoder.read(clientSocket.getInputStream());
+                BlockingProbe.end("handshake-read", readStart);
+                if (!open) return;
             }
+        } catch (SocketException ex) {
+            if (deadline.isExpired()) throw new SocketTimeoutException();
+            throw ex;
+        } finally {
+            deadline.cancel();
         }
     }
 
-    private void closeServerConnection() {
-        if (serverConnection != null && !serverConnection.isClosed()) {
+    /**
+     * Connect to a backend server. Joining clients are disconnected if the connect fails. If the backend server
+     * has several addresses, they are tried in parallel with staggered starts and the first connection wins.
+     * @param route Route of the client.
+     * @param backend Backend server chosen for the client.
+     * @return Connected socket, or null if the connect failed.
+     */
+    private Socket connect(HandshakeRouter.Route route, Backend backend) {
+        // Create connection to the backend server. The address is cached, so this only waits for a lookup
+        // if the address was never resolved or expired a long time ago
+        InetSocketAddress[] backendAddresses;
+        long resolveStart = BlockingProbe.begin();
+        try {
+            backendAddresses = BackendResolver.resolve(backend).join();
+        } catch (CompletionException ex) {
+            LOG.error("Failed to resolve backend server address. Closing client socket.");
+            backend.recordConnectFailure("address can't be resolved");
+            disconnect(route.getDisconnectPacket());
+            return null;
+        } finally {
+            BlockingProbe.end("backend-resolve", resolveStart);
+        }
+        // Race the addresses of the backend server, so an unreachable one doesn't stall the join
+        Socket serverConnection;
+        long connectStart = BlockingProbe.begin();
+        long connectStartNanos = System.nanoTime();
+        try {
+            serverConnection = BackendConnector.connect(backendAddresses,
+                    route.getMapping().getConnectTimeoutMillis()).socket();
+        } catch (IOException ex) {
+            LOG.warn("Failed to connect to backend server {} for client {}:{}: {}",
+                    backend,
+                    clientSocket.getInetAddress().getHostAddress(),
+                    clientSocket.getPort(),
+                    ex.getMessage()
+            );
+            backend.recordConnectFailure(ex.getMessage());
+            disconnect(route.getDisconnectPacket());
+            return null;
+        } finally {
+            BlockingProbe.end("backend-connect", connectStart);
+        }
+        backend.recordConnectLatency(System.nanoTime() - connectStartNanos);
+        backend.getCircuitBreaker().recordSuccess();
+        return serverConnection;
+    }
+
+    /**
+     * Wait for the first byte of the backend server if the mapping has a first-byte timeout and relay it to the
+     * client, so a backend server that accepts connections but doesn't answer is detected and counted as failed.
+     * @param route Route of the client.
+     * @param backend Backend server chosen for the client.
+     * @param serverConnection Socket connected to the backend server.
+     * @return true if the relay from the backend server to the client should be started, otherwise false.
+     * @throws IOException Thrown if reading from the backend server or writing to the client fails.
+     */
+    private boolean awaitFirstByte(HandshakeRouter.Route route, Backend backend, Socket serverConnection)
+            throws IOException {
+        long timeoutMillis = route.getMapping().getFirstByteTimeoutMillis();
+        if (timeoutMillis <= 0) return true;
+
+        int firstByte;
+        TimerWheel.Timeout deadline = SchedulerUtil.getTimerWheel()
+                .newTimeout(() -> closeQuietly(serverConnection), timeoutMillis);
+        long readStart = BlockingProbe.begin();
+        try {
+            firstByte = serverConnection.getInputStream().read();
+        } catch (SocketException ex) {
+            if (!deadline.isExpired()) throw ex;
+            LOG.warn("Backend server {} didn't answer client {}:{} within {} ms. Disconnecting client.",
+                    backend,
+                    clientSocket.getInetAddress().getHostAddress(),
+                    clientSocket.getPort(),
+                    timeoutMillis
+            );
+            backend.getCircuitBreaker().recordFailure("no answer within " + timeoutMillis + " ms");
+            disconnect(route.getDisconnectPacket());
+            return false;
+        } finally {
+            deadline.cancel();
+            BlockingProbe.end("backend-first-byte", readStart);
+        }
+        if (firstByte == -1) {
+            lifecycle.finish(ConnectionLifecycle.Direction.SERVER_TO_CLIENT);
+            return false;
+        }
+        lifecycle.recordRead(ConnectionLifecycle.Direction.SERVER_TO_CLIENT, 1);
+        clientSocket.getOutputStream().write(firstByte);
+        return true;
+    }
+
+    /**
+     * Tell a joining client why it can't join, e.g. that its backend server isn't available, and close the
+     * connection.
+     * @param packet Login disconnect packet including its length prefix, or null to just close the connection.
+     */
+    private void disconnect(ByteBuffer packet) {
+        if (packet != null) {
             try {
-                serverConnection.close();
+                clientSocket.getOutputStream().write(packet.array(), packet.arrayOffset() + packet.position(),
+                        packet.remaining());
             } catch (IOException ex) {
-                LOG.error("An unexpected error occurred...", ex);
+                // The client is gone already
             }
         }
+        lifecycle.close(null);
+    }
+
+    /**
+     * Answer the server list ping of the client from the status cache and close the connection afterwards.
+     * @param responder Responder the data the client sent along with its handshake was handed to.
+     * @throws IOException Thrown if reading from or writing to the client fails.
+     */
+    private void answerStatus(StatusResponder responder) throws IOException {
+        TimerWheel.Timeout deadline = SchedulerUtil.getTimerWheel()
+                .newTimeout(() -> closeQuietly(clientSocket), responder.getRemainingMillis());
+        try {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            while (true) {
+                ByteBuffer response;
+                while ((response = responder.nextResponse()) != null) {
+                    outputStream.write(response.array(), response.arrayOffset() + response.position(),
+                            response.remaining());
+                }
+                if (responder.isFinished() || responder.isFailed()) break;
+
+                if (responder.isWaitingForStatus()) {
+                    long queryStart = BlockingProbe.begin();
+                    responder.awaitStatus();
+                    BlockingProbe.end("status-query", queryStart);
+                    continue;
+                }
+                if (responder.getRemainingMillis() <= 0) throw new SocketTimeoutException();
+                if (!responder.read(clientSocket.getInputStream())) break;
+            }
+        } catch (SocketException ex) {
+            if (!deadline.isExpired()) throw ex;
+            LOG.warn("Client {}:{} didn't finish its status ping within {} ms. Closing client socket.",
+                    clientSocket.getInetAddress().getHostAddress(),
+                    clientSocket.getPort(),
+                    responder.getTimeoutMillis()
+            );
+        } catch (SocketTimeoutException ex) {
+            LOG.warn("Client {}:{} didn't finish its status ping within {} ms. Closing client socket.",
+                    clientSocket.getInetAddress().getHostAddress(),
+                    clientSocket.getPort(),
+                    responder.getTimeoutMillis()
+            );
+        } catch (ProtocolException ex) {
+            LOG.warn("Invalid status ping from {}:{}: {}. Closing client socket.",
+                    clientSocket.getInetAddress().getHostAddress(),
+                    clientSocket.getPort(),
+                    ex.getMessage()
+            );
+        } finally {
+            deadline.cancel();
+        }
+        lifecycle.close(null);
+    }
+
+    /**
+     * Close a socket from the timing wheel once its deadline passed, which ends a blocking read on it.
+     * @param socket Socket to close.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Do nothing
+        }
     }
 
 }
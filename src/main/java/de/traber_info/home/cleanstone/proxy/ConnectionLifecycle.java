@@ -0,0 +1,425 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import de.traber_info.home.cleanstone.util.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shared state of a single client connection, used by all transport engines to tear connections down as soon as
+ * one side is done. Once a relay direction reaches the end of its input, the output of the opposite side is shut
+ * down, so the peer sees the end of the stream as well. Once both directions are finished, or as soon as one of them
+ * fails, both sides are closed. No thread has to poll the sockets for this.
+ *
+ * @author Oliver Traber
+ */
+public class ConnectionLifecycle {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionLifecycle.class.getName());
+
+    /** Listeners notified about the lifecycle of all connections */
+    private static final List<ConnectionListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Directions data is relayed in */
+    public enum Direction {
+        CLIENT_TO_SERVER, SERVER_TO_CLIENT
+    }
+
+    /**
+     * One side of a connection, independent of the transport engine.
+     */
+    public interface Endpoint {
+
+        /**
+         * Shut down the output of this side, so the peer sees the end of the stream.
+         * @throws IOException Thrown if the output can't be shut down.
+         */
+        void shutdownOutput() throws IOException;
+
+        /**
+         * Close this side.
+         * @throws IOException Thrown if closing fails.
+         */
+        void close() throws IOException;
+
+        /**
+         * Create an endpoint for a blocking socket.
+         * @param socket Socket of the endpoint.
+         * @return Endpoint operating on the socket.
+         */
+        static Endpoint of(Socket socket) {
+            return new Endpoint() {
+                @Override
+                public void shutdownOutput() throws IOException {
+                    socket.shutdownOutput();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    socket.close();
+                }
+            };
+        }
+
+        /**
+         * Create an endpoint for a socket channel.
+         * @param channel Channel of the endpoint.
+         * @return Endpoint operating on the channel.
+         */
+        static Endpoint of(SocketChannel channel) {
+            return new Endpoint() {
+                @Override
+                public void shutdownOutput() throws IOException {
+                    channel.shutdownOutput();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+    }
+
+    /** Remote address of the client */
+    private final InetSocketAddress clientAddress;
+
+    /** Client side of the connection */
+    private final Endpoint client;
+
+    /** Time the connection was accepted at, in nanoseconds */
+    private final long acceptedAt = System.nanoTime();
+
+    /** Actions run once the connection is closed */
+    private final List<Runnable> closeActions = new CopyOnWriteArrayList<>();
+
+    /** Address of the backend server. Null until the connection is opened */
+    private volatile InetSocketAddress serverAddress;
+
+    /** Backend server side of the connection. Null until the connection is opened */
+    private Endpoint server;
+
+    /** Time relaying started at, in nanoseconds */
+    private long openedAt;
+
+    /** Directions that reached the end of their input */
+    private final boolean[] finished = new boolean[Direction.values().length];
+
+    /** True once the connection is closed */
+    private volatile boolean closed = false;
+
+    /** True once the handshake of the client was routed or the connection was closed before */
+    private final AtomicBoolean handshakeFinished = new AtomicBoolean();
+
+    /** Time data was last read from either side at, in nanoseconds */
+    private volatile long lastActivityAt = acceptedAt;
+
+    /** True once the first byte of the backend server was read */
+    private volatile boolean firstByteRead = false;
+
+    /** Timeout closing the connection once it is idle, or null if idle connections are kept open */
+    private volatile TimerWheel.Timeout idleTimeout;
+
+    /**
+     * Create the lifecycle of a newly accepted client connection.
+     * @param clientAddress Remote address of the client.
+     * @param client Client side of the connection.
+     */
+    public ConnectionLifecycle(InetSocketAddress clientAddress, Endpoint client) {
+        this.clientAddress = clientAddress;
+        this.client = client;
+    }
+
+    /**
+     * Register a listener that is notified about the lifecycle of all connections.
+     * @param listener Listener that should be notified.
+     */
+    public static void addListener(ConnectionListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a previously registered listener.
+     * @param listener Listener that should no longer be notified.
+     */
+    public static void removeListener(ConnectionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Mark the connection as opened once the backend server is connected and relaying starts.
+     * Closes the backend server side right away if the connection was closed in the meantime.
+     * @param serverAddress Address of the backend server.
+     * @param server Backend server side of the connection.
+     * @return true if relaying can start, false if the connection is already closed.
+     */
+    public boolean open(InetSocketAddress serverAddress, Endpoint server) {
+        synchronized (this) {
+            if (!closed) {
+                this.serverAddress = serverAddress;
+                this.server = server;
+                this.openedAt = System.nanoTime();
+            }
+        }
+        if (closed) {
+            closeQuietly(server);
+            return false;
+        }
+        for (ConnectionListener listener : listeners) {
+            try {
+                listener.onOpen(this);
+            } catch (RuntimeException ex) {
+                LOG.error("An unexpected error occurred...", ex);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mark the handshake phase of the connection as over, once its handshake was routed or it was closed.
+     * @return true if this call ended the handshake phase, false if it was over already.
+     */
+    public boolean finishHandshake() {
+        return handshakeFinished.compareAndSet(false, true);
+    }
+
+    /**
+     * Record that data was read from one of the sides, which keeps the connection from being closed as idle and
+     * counts the relayed bytes. The first read from the backend server also records the time to its first byte.
+     * Called for every read, so it only stores the time and increments counters.
+     * @param direction Direction the data is relayed in.
+     * @param bytes Count of bytes read.
+     */
+    public void recordRead(Direction direction, int bytes) {
+        long now = System.nanoTime();
+        lastActivityAt = now;
+        Metrics.recordRelayed(direction, bytes);
+        if (direction == Direction.SERVER_TO_CLIENT && !firstByteRead) {
+            firstByteRead = true;
+            long start = openedAt;
+            if (start != 0) Metrics.recordFirstByte(now - start);
+        }
+    }
+
+    /**
+     * Close the connection once no data was read from either side for the given time. The deadline is checked on
+     * the shared timing wheel and moved forward whenever it is reached while the connection is still active, so
+     * reads don't have to touch the timer.
+     * @param idleMillis Time in milliseconds without data after which the connection is closed. 0 or less
+     *                   keeps idle connections open.
+     * @param executor Executor the connection is closed on, e.g. the event loop of the connection.
+     */
+    public void closeWhenIdle(long idleMillis, Executor executor) {
+        if (idleMillis <= 0) return;
+        lastActivityAt = System.nanoTime();
+        armIdleTimeout(idleMillis, idleMillis, executor);
+    }
+
+    /**
+     * Arm the idle timeout of the connection.
+     * @param idleMillis Time in milliseconds without data after which the connection is closed.
+     * @param delayMillis Time in milliseconds until the connection is checked next.
+     * @param executor Executor the connection is closed on.
+     */
+    private void armIdleTimeout(long idleMillis, long delayMillis, Executor executor) {
+        idleTimeout = SchedulerUtil.getTimerWheel().newTimeout(() -> checkIdle(idleMillis, executor), delayMillis);
+        if (closed) idleTimeout.cancel();
+    }
+
+    /**
+     * Close the connection if it was idle for too long, otherwise check it again once it could be.
+     * @param idleMillis Time in milliseconds without data after which the connection is closed.
+     * @param executor Executor the connection is closed on.
+     */
+    private void checkIdle(long idleMillis, Executor executor) {
+        if (closed) return;
+        long idleNanos = System.nanoTime() - lastActivityAt;
+        long remainingMillis = idleMillis - TimeUnit.NANOSECONDS.toMillis(idleNanos);
+        if (remainingMillis > 0) {
+            armIdleTimeout(idleMillis, remainingMillis, executor);
+            return;
+        }
+        executor.execute(() -> close(new SocketTimeoutException("No data for " + idleMillis + " ms")));
+    }
+
+    /**
+     * Mark a direction as finished after it reached the end of its input and all data was written. Shuts down the
+     * output of the opposite side and closes the connection once both directions are finished.
+     * @param direction Direction that is finished.
+     */
+    public void finish(Direction direction) {
+        Endpoint target;
+        boolean bothFinished;
+        synchronized (this) {
+            if (closed || finished[direction.ordinal()]) return;
+            finished[direction.ordinal()] = true;
+            target = direction == Direction.CLIENT_TO_SERVER ? server : client;
+            bothFinished = finished[0] && finished[1];
+        }
+        if (bothFinished || target == null) {
+            close(null);
+            return;
+        }
+
+        try {
+            target.shutdownOutput();
+        } catch (IOException ex) {
+            close(ex);
+            return;
+        }
+        for (ConnectionListener listener : listeners) {
+            try {
+                listener.onHalfClose(this, direction);
+            } catch (RuntimeException ex) {
+                LOG.error("An unexpected error occurred...", ex);
+            }
+        }
+    }
+
+    /**
+     * Close both sides of the connection. Does nothing if the connection is already closed.
+     * @param cause Error that caused the connection to be closed, or null if it is closed regularly.
+     */
+    public void close(Throwable cause) {
+        Endpoint server;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            server = this.server;
+        }
+        TimerWheel.Timeout timeout = idleTimeout;
+        if (timeout != null) timeout.cancel();
+        closeQuietly(client);
+        closeQuietly(server);
+
+        if (isOpened()) {
+            if (cause == null) {
+                LOG.info("Closed proxy {} <-> {} after {} ms",
+                        formatAddress(clientAddress), formatAddress(serverAddress), getDurationMillis());
+            } else {
+                LOG.info("Closed proxy {} <-> {} after {} ms: {}",
+                        formatAddress(clientAddress), formatAddress(serverAddress), getDurationMillis(),
+                        cause.getMessage());
+            }
+        }
+
+        for (Runnable action : closeActions) {
+            // Claim the action first, whenClosed() may run it concurrently if it was added just now
+            if (!closeActions.remove(action)) continue;
+            try {
+                action.run();
+            } catch (RuntimeException ex) {
+                LOG.error("An unexpected error occurred...", ex);
+            }
+        }
+        for (ConnectionListener listener : listeners) {
+            try {
+                listener.onClose(this, cause);
+            } catch (RuntimeException ex) {
+                LOG.error("An unexpected error occurred...", ex);
+            }
+        }
+    }
+
+    /**
+     * Run an action once the connection is closed, e.g. to release resources held by the transport engine.
+     * The action is run right away if the connection is already closed.
+     * @param action Action that should be run.
+     */
+    public void whenClosed(Runnable action) {
+        closeActions.add(action);
+        if (closed && closeActions.remove(action)) {
+            action.run();
+        }
+    }
+
+    /**
+     * Get the remote address of the client.
+     * @return Remote address of the client.
+     */
+    public InetSocketAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    /**
+     * Get the address of the backend server.
+     * @return Address of the backend server, or null if the connection wasn't opened.
+     */
+    public InetSocketAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Check if relaying was started for this connection.
+     * @return true if the backend server was connected, otherwise false.
+     */
+    public boolean isOpened() {
+        return serverAddress != null;
+    }
+
+    /**
+     * Check if the connection is closed.
+     * @return true if both sides are closed, otherwise false.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the time the connection was accepted at.
+     * @return Time in nanoseconds, as returned by {@link System#nanoTime()}.
+     */
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    /**
+     * Get the time since the connection was opened, or since it was accepted if it wasn't opened.
+     * @return Duration in milliseconds.
+     */
+    public long getDurationMillis() {
+        long start;
+        synchronized (this) {
+            start = isOpened() ? openedAt : acceptedAt;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Close an endpoint and ignore any error.
+     * @param endpoint Endpoint to close. May be null.
+     */
+    private static void closeQuietly(Endpoint endpoint) {
+        if (endpoint == null) return;
+        try {
+            endpoint.close();
+        } catch (IOException ex) {
+            // Do nothing
+        }
+    }
+
+    /**
+     * Get a printable representation of an address.
+     * @param address Address to format. May be null.
+     * @return Address in host:port form.
+     */
+    private static String formatAddress(InetSocketAddress address) {
+        if (address == null) return "unknown";
+        String host = address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+        return host + ":" + address.getPort();
+    }
+
+}
@@ -0,0 +1,402 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of new connections and the count of open connections per client address and per network, e.g.
+ * per /24 for IPv4 and /64 for IPv6. Checked right after a connection is accepted, so a flood of connections from
+ * a single source is closed before it gets a thread, a buffer or a handshake parse. With PROXY protocol
+ * pass-through, the accepted address is the upstream proxy, so the check happens once the header names the client.
+ *
+ * Every address and network has a token bucket refilled at the configured rate. The buckets live in concurrent
+ * maps and are locked one at a time, so clients from different addresses don't contend. Buckets without open
+ * connections are evicted once they are full again.
+ *
+ * @author Oliver Traber
+ */
+public class ConnectionLimiter {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionLimiter.class.getName());
+
+    /** Interval in seconds in which idle buckets are evicted */
+    private static final long EVICT_INTERVAL_SECONDS = 30;
+
+    /** Result of a bucket that admitted a connection */
+    private static final int ADMITTED = 0;
+
+    /** Result of a bucket that is out of tokens */
+    private static final int RATE_EXCEEDED = 1;
+
+    /** Result of a bucket that has too many open connections */
+    private static final int CONNECTIONS_EXCEEDED = 2;
+
+    /** Result of a bucket that was evicted concurrently and has to be looked up again */
+    private static final int EVICTED = 3;
+
+    /** Settings of the limiter. Disabled until {@link #init(ConfigFile.ConnectionLimitSettings)} is called */
+    private static volatile ConfigFile.ConnectionLimitSettings settings = new ConfigFile.ConnectionLimitSettings();
+
+    /** Buckets per client address */
+    private static final Map<InetAddress, Bucket> addressBuckets = new ConcurrentHashMap<>();
+
+    /** Buckets per network, keyed by the address with all bits after the prefix cleared */
+    private static final Map<InetAddress, Bucket> networkBuckets = new ConcurrentHashMap<>();
+
+    /** Count of connections admitted */
+    private static final LongAdder admitted = new LongAdder();
+
+    /** Count of connections rejected because their address or network opened too many connections recently */
+    private static final LongAdder rateRejections = new LongAdder();
+
+    /** Count of connections rejected because their address or network has too many connections open */
+    private static final LongAdder connectionRejections = new LongAdder();
+
+    /** Task evicting idle buckets, or null if the limiter is disabled */
+    private static ScheduledFuture<?> evictTask;
+
+    /** Task logging the statistics, or null if logging is disabled */
+    private static ScheduledFuture<?> reportTask;
+
+    /**
+     * Apply the settings of the limiter. May be called again after a reload, buckets are kept then.
+     * @param connectionLimitSettings Settings of the limiter.
+     */
+    public static synchronized void init(ConfigFile.ConnectionLimitSettings connectionLimitSettings) {
+        settings = connectionLimitSettings;
+        if (evictTask != null) evictTask.cancel(false);
+        if (reportTask != null) reportTask.cancel(false);
+        evictTask = null;
+        reportTask = null;
+        if (!connectionLimitSettings.isEnabled()) {
+            addressBuckets.clear();
+            networkBuckets.clear();
+            return;
+        }
+
+        evictTask = SchedulerUtil.getScheduler().scheduleAtFixedRate(ConnectionLimiter::evict,
+                EVICT_INTERVAL_SECONDS, EVICT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        if (connectionLimitSettings.getStatsIntervalSeconds() > 0) {
+            reportTask = SchedulerUtil.getScheduler().scheduleAtFixedRate(ConnectionLimiter::report,
+                    connectionLimitSettings.getStatsIntervalSeconds(),
+                    connectionLimitSettings.getStatsIntervalSeconds(), TimeUnit.SECONDS);
+        }
+        LOG.info("Limiting connections to {}/s and {} open per address, {}/s and {} open per /{} (IPv4) " +
+                        "or /{} (IPv6) network",
+                connectionLimitSettings.getConnectionsPerSecond(),
+                connectionLimitSettings.getMaxConnections(),
+                connectionLimitSettings.getPrefixConnectionsPerSecond(),
+                connectionLimitSettings.getPrefixMaxConnections(),
+                connectionLimitSettings.getIpv4PrefixLength(),
+                connectionLimitSettings.getIpv6PrefixLength()
+        );
+    }
+
+    /**
+     * Check the limits of a connection right after it was accepted. Does nothing if PROXY protocol pass-through
+     * is enabled, since the accepted address is the upstream proxy then, see {@link #admit(HandshakeRouter.Route,
+     * ConnectionLifecycle)}. Rejected connections are closed.
+     * @param lifecycle Lifecycle of the accepted connection.
+     * @return true if the connection may be handled, false if it was rejected and closed.
+     */
+    public static boolean admit(ConnectionLifecycle lifecycle) {
+        if (!settings.isEnabled() || isPassThrough()) return true;
+        return admit(lifecycle.getClientAddress().getAddress(), lifecycle);
+    }
+
+    /**
+     * Check the limits of a connection once its handshake was routed, using the client address from the PROXY
+     * protocol header. Does nothing unless PROXY protocol pass-through is enabled, since the connection was checked
+     * when it was accepted then. Rejected connections are closed.
+     * @param route Route of the connection.
+     * @param lifecycle Lifecycle of the connection.
+     * @return true if the connection may be handled, false if it was rejected and closed.
+     */
+    public static boolean admit(HandshakeRouter.Route route, ConnectionLifecycle lifecycle) {
+        if (!settings.isEnabled() || !isPassThrough()) return true;
+        return admit(route.getClientAddress(), lifecycle);
+    }
+
+    /**
+     * Take a token from the buckets of the address and its network and count the connection as open until it is
+     * closed.
+     * @param address Address of the client.
+     * @param lifecycle Lifecycle of the connection.
+     * @return true if the connection is admitted, false if it was rejected and closed.
+     */
+    private static boolean admit(InetAddress address, ConnectionLifecycle lifecycle) {
+        ConfigFile.ConnectionLimitSettings current = settings;
+        long now = System.nanoTime();
+        Bucket addressBucket = acquire(addressBuckets, address, address, current.getConnectionsPerSecond(),
+                current.getBurst(), current.getMaxConnections(), now);
+        if (addressBucket == null) {
+            lifecycle.close(null);
+            return false;
+        }
+        InetAddress network = getNetwork(address, current);
+        Bucket networkBucket = acquire(networkBuckets, network, address, current.getPrefixConnectionsPerSecond(),
+                current.getPrefixBurst(), current.getPrefixMaxConnections(), now);
+        if (networkBucket == null) {
+            addressBucket.cancel(current.getBurst());
+            lifecycle.close(null);
+            return false;
+        }
+
+        admitted.increment();
+        lifecycle.whenClosed(() -> {
+            addressBucket.release();
+            networkBucket.release();
+        });
+        return true;
+    }
+
+    /**
+     * Take a token from the bucket of a key, creating the bucket if needed.
+     * @param buckets Buckets the key belongs to.
+     * @param key Address or network of the client.
+     * @param address Address of the client, used for log messages.
+     * @param rate Tokens added per second. 0 or less disables the rate limit.
+     * @param burst Maximum count of tokens in the bucket.
+     * @param maxConnections Maximum count of open connections. 0 or less disables the limit.
+     * @param now Current time in nanoseconds.
+     * @return Bucket the connection was admitted by, or null if it was rejected.
+     */
+    private static Bucket acquire(Map<InetAddress, Bucket> buckets, InetAddress key, InetAddress address,
+                                  double rate, int burst, int maxConnections, long now) {
+        while (true) {
+            Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst, now));
+            int result = bucket.tryAcquire(rate, burst, maxConnections, now);
+            if (result == ADMITTED) return bucket;
+            if (result == EVICTED) continue;
+
+            if (result == RATE_EXCEEDED) {
+                rateRejections.increment();
+            } else {
+                connectionRejections.increment();
+            }
+            if (bucket.startLimiting()) {
+                LOG.warn("Rejecting connections from {} ({}): {}",
+                        address.getHostAddress(),
+                        key == address ? "address" : key.getHostAddress() + " network",
+                        result == RATE_EXCEEDED ? "too many new connections" : "too many open connections"
+                );
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get the network of an address by clearing all bits after the prefix.
+     * @param address Address of the client.
+     * @param current Settings holding the prefix lengths.
+     * @return Address of the network.
+     */
+    private static InetAddress getNetwork(InetAddress address, ConfigFile.ConnectionLimitSettings current) {
+        byte[] bytes = address.getAddress();
+        int prefixLength = bytes.length == 4 ? current.getIpv4PrefixLength() : current.getIpv6PrefixLength();
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = Math.max(0, Math.min(8, prefixLength - i * 8));
+            bytes[i] &= (byte) (0xFF00 >>> bits);
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException ex) {
+            // Only thrown for arrays of illegal length
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Check if the client address is taken from PROXY protocol headers sent by an upstream proxy.
+     * @return true if PROXY protocol pass-through is enabled, otherwise false.
+     */
+    private static boolean isPassThrough() {
+        ConfigFile.ProxyProtocolSettings proxyProtocolSettings = ConfigUtil.getConfig().getProxyProtocolSettings();
+        return proxyProtocolSettings.isEnabled() && proxyProtocolSettings.passThroughEnabled();
+    }
+
+    /**
+     * Remove buckets that have no open connections and are full again, since they wouldn't limit anything.
+     * Runs on the shared scheduler.
+     */
+    private static void evict() {
+        ConfigFile.ConnectionLimitSettings current = settings;
+        long now = System.nanoTime();
+        evict(addressBuckets, current.getConnectionsPerSecond(), current.getBurst(), now);
+        evict(networkBuckets, current.getPrefixConnectionsPerSecond(), current.getPrefixBurst(), now);
+    }
+
+    /**
+     * Remove the idle buckets of a map.
+     * @param buckets Buckets to check.
+     * @param rate Tokens added per second.
+     * @param burst Maximum count of tokens in a bucket.
+     * @param now Current time in nanoseconds.
+     */
+    private static void evict(Map<InetAddress, Bucket> buckets, double rate, int burst, long now) {
+        for (Map.Entry<InetAddress, Bucket> entry : buckets.entrySet()) {
+            if (entry.getValue().evictIfIdle(rate, burst, now)) {
+                buckets.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get the count of connections admitted.
+     * @return Count of admitted connections.
+     */
+    public static long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /**
+     * Get the count of connections rejected because their address or network opened too many connections recently.
+     * @return Count of connections rejected by the rate limit.
+     */
+    public static long getRateRejectionCount() {
+        return rateRejections.sum();
+    }
+
+    /**
+     * Get the count of connections rejected because their address or network has too many connections open.
+     * @return Count of connections rejected by the connection limit.
+     */
+    public static long getConnectionRejectionCount() {
+        return connectionRejections.sum();
+    }
+
+    /**
+     * Log the counts of admitted and rejected connections and the count of tracked addresses and networks.
+     */
+    public static void report() {
+        LOG.info("Connection limiter: {} admitted, {} rejected by rate, {} rejected by open connections, " +
+                        "{} addresses and {} networks tracked",
+                getAdmittedCount(),
+                getRateRejectionCount(),
+                getConnectionRejectionCount(),
+                addressBuckets.size(),
+                networkBuckets.size()
+        );
+    }
+
+    /**
+     * Token bucket and count of open connections of a single address or network.
+     */
+    private static class Bucket {
+
+        /** Tokens left. Each new connection takes one */
+        private double tokens;
+
+        /** Point in time the tokens were last refilled at, in nanoseconds */
+        private long refilledAt;
+
+        /** Count of open connections admitted by this bucket */
+        private int openConnections;
+
+        /** True while connections are rejected, so only the first rejection is logged */
+        private boolean limiting;
+
+        /** True once the bucket was removed from its map */
+        private boolean evicted;
+
+        /**
+         * Create a full bucket.
+         * @param burst Maximum count of tokens in the bucket.
+         * @param now Current time in nanoseconds.
+         */
+        private Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+
+        /**
+         * Take a token and count an open connection if both limits allow it.
+         * @param rate Tokens added per second. 0 or less disables the rate limit.
+         * @param burst Maximum count of tokens in the bucket.
+         * @param maxConnections Maximum count of open connections. 0 or less disables the limit.
+         * @param now Current time in nanoseconds.
+         * @return {@link #ADMITTED}, {@link #RATE_EXCEEDED}, {@link #CONNECTIONS_EXCEEDED} or {@link #EVICTED}.
+         */
+        private synchronized int tryAcquire(double rate, int burst, int maxConnections, long now) {
+            if (evicted) return EVICTED;
+            if (maxConnections > 0 && openConnections >= maxConnections) return CONNECTIONS_EXCEEDED;
+            if (rate > 0) {
+                refill(rate, burst, now);
+                if (tokens < 1) return RATE_EXCEEDED;
+                tokens--;
+            }
+            openConnections++;
+            limiting = false;
+            return ADMITTED;
+        }
+
+        /**
+         * Undo {@link #tryAcquire}, if the connection was rejected by another bucket.
+         * @param burst Maximum count of tokens in the bucket.
+         */
+        private synchronized void cancel(int burst) {
+            openConnections--;
+            tokens = Math.min(burst, tokens + 1);
+        }
+
+        /**
+         * Count an admitted connection as closed.
+         */
+        private synchronized void release() {
+            openConnections--;
+        }
+
+        /**
+         * Remember that connections are rejected.
+         * @return true if this is the first rejection since the last admitted connection, otherwise false.
+         */
+        private synchronized boolean startLimiting() {
+            if (limiting) return false;
+            limiting = true;
+            return true;
+        }
+
+        /**
+         * Mark the bucket as evicted if it has no open connections and is full again.
+         * @param rate Tokens added per second.
+         * @param burst Maximum count of tokens in the bucket.
+         * @param now Current time in nanoseconds.
+         * @return true if the bucket should be removed from its map, otherwise false.
+         */
+        private synchronized boolean evictIfIdle(double rate, int burst, long now) {
+            if (openConnections > 0) return false;
+            if (rate > 0) {
+                refill(rate, burst, now);
+                if (tokens < burst) return false;
+            }
+            evicted = true;
+            return true;
+        }
+
+        /**
+         * Add the tokens accumulated since the last refill.
+         * @param rate Tokens added per second.
+         * @param burst Maximum count of tokens in the bucket.
+         * @param now Current time in nanoseconds.
+         */
+        private void refill(double rate, int burst, long now) {
+            long elapsed = now - refilledAt;
+            if (elapsed <= 0) return;
+            tokens = Math.min(burst, tokens + elapsed * rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+        }
+    }
+
+}
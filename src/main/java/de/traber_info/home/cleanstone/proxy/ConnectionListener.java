@@ -0,0 +1,37 @@
+package de.traber_info.home.cleanstone.proxy;
+
+/**
+ * Callbacks for the lifecycle of proxied connections, e.g. to collect metrics or to log connection events.
+ * Registered with {@link ConnectionLifecycle#addListener(ConnectionListener)}. Callbacks may be called from any
+ * thread handling connections, including event loops, so they must not block.
+ *
+ * @author Oliver Traber
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called once the connection to the backend server is established and relaying starts.
+     * @param connection Lifecycle of the connection.
+     */
+    default void onOpen(ConnectionLifecycle connection) {
+    }
+
+    /**
+     * Called once one direction of the relay reached the end of its input and the output of the opposite side
+     * was shut down.
+     * @param connection Lifecycle of the connection.
+     * @param direction Direction that is finished.
+     */
+    default void onHalfClose(ConnectionLifecycle connection, ConnectionLifecycle.Direction direction) {
+    }
+
+    /**
+     * Called once both sides of the connection are closed. Also called for connections that were closed before
+     * relaying started, see {@link ConnectionLifecycle#isOpened()}.
+     * @param connection Lifecycle of the connection.
+     * @param cause Error that caused the connection to be closed, or null if it was closed regularly.
+     */
+    default void onClose(ConnectionLifecycle connection, Throwable cause) {
+    }
+
+}
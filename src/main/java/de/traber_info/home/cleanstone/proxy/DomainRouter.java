@@ -0,0 +1,280 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+import de.traber_info.home.cleanstone.model.object.Handshake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable index of the backend server mappings, keyed on the labels of their domains in reverse order.
+ * Supports exact domains, wildcard domains like {@code *.example.com} that match any subdomain, and a default
+ * route {@code *} used if nothing else matches. Domains are compared case-insensitively and trailing dots are
+ * ignored. Lookups work on the raw bytes of the handshake and don't allocate.
+ *
+ * @author Oliver Traber
+ */
+public class DomainRouter {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(DomainRouter.class.getName());
+
+    /** Domain of the default route */
+    private static final String DEFAULT_ROUTE = "*";
+
+    /** Prefix of wildcard domains */
+    private static final String WILDCARD_PREFIX = "*.";
+
+    /** Node of the top level domains */
+    private final Node root;
+
+    /** Backend servers used if no other mapping matches, or null */
+    private final BackendGroup defaultGroup;
+
+    /** Count of indexed mappings */
+    private final int size;
+
+    /**
+     * Build the index of the given mappings. If a domain is mapped more than once, the last mapping wins.
+     * @param mappings Backend server mappings to index.
+     */
+    public DomainRouter(Collection<BackendServerMapping> mappings) {
+        NodeBuilder rootBuilder = new NodeBuilder();
+        BackendGroup defaultRoute = null;
+        for (BackendServerMapping mapping : mappings) {
+            BackendGroup group = new BackendGroup(mapping);
+            String domain = normalize(mapping.getMappingDomain());
+            if (domain.equals(DEFAULT_ROUTE)) {
+                if (defaultRoute != null) LOG.warn("Default route is mapped more than once");
+                defaultRoute = group;
+                continue;
+            }
+            boolean wildcard = domain.startsWith(WILDCARD_PREFIX);
+            if (wildcard) domain = domain.substring(WILDCARD_PREFIX.length());
+
+            NodeBuilder node = rootBuilder;
+            String[] labels = domain.split("\\.", -1);
+            for (int i = labels.length - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(labels[i], label -> new NodeBuilder());
+            }
+            BackendGroup previous;
+            if (wildcard) {
+                previous = node.wildcard;
+                node.wildcard = group;
+            } else {
+                previous = node.exact;
+                node.exact = group;
+            }
+            if (previous != null) LOG.warn("Domain {} is mapped more than once", mapping.getMappingDomain());
+        }
+        this.root = rootBuilder.build();
+        this.defaultGroup = defaultRoute;
+        this.size = mappings.size();
+    }
+
+    /**
+     * Find the backend servers of the server address the client wants to connect to.
+     * @param handshake Parsed handshake of the client.
+     * @return Backend servers of the server address, or null if it isn't mapped or the packet isn't a handshake
+     *         packet.
+     */
+    public BackendGroup lookup(Handshake handshake) {
+        if (!handshake.isHandshake()) return null;
+        return lookup(handshake.getArray(), handshake.getServerAddressOffset(), handshake.getServerAddressLength());
+    }
+
+    /**
+     * Find the backend servers of a server address.
+     * @param serverAddress Server address, optionally followed by a Forge Modloader appendix.
+     * @return Backend servers of the server address, or null if it isn't mapped.
+     */
+    public BackendGroup lookup(String serverAddress) {
+        byte[] bytes = serverAddress.getBytes(StandardCharsets.UTF_8);
+        return lookup(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Find the backend servers of a server address given as UTF-8 bytes. The server address ends at the first
+     * null byte, so the appendix of Forge Modloader and similar clients is ignored, and trailing dots are stripped.
+     * @param data Byte array holding the server address.
+     * @param offset Offset of the server address in the byte array.
+     * @param length Length of the server address in bytes, including any appendix.
+     * @return Backend servers of the server address, or null if it isn't mapped.
+     */
+    public BackendGroup lookup(byte[] data, int offset, int length) {
+        int end = offset;
+        int limit = offset + length;
+        while (end < limit && data[end] != 0) end++;
+        while (end > offset && data[end - 1] == '.') end--;
+
+        // Walk from the top level domain to the leftmost label, remembering the most specific wildcard
+        BackendGroup match = defaultGroup;
+        Node node = root;
+        int labelEnd = end;
+        while (true) {
+            int labelStart = labelEnd;
+            while (labelStart > offset && data[labelStart - 1] != '.') labelStart--;
+            node = node.child(data, labelStart, labelEnd);
+            if (node == null) return match;
+            if (labelStart == offset) {
+                return node.exact != null ? node.exact : match;
+            }
+            if (node.wildcard != null) match = node.wildcard;
+            labelEnd = labelStart - 1;
+        }
+    }
+
+    /**
+     * Get the count of indexed mappings.
+     * @return Count of indexed mappings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Normalize a configured domain, so it can be compared with the bytes sent by clients.
+     * @param domain Domain as configured.
+     * @return Domain in lower case without trailing dots.
+     */
+    private static String normalize(String domain) {
+        int end = domain.length();
+        while (end > 0 && domain.charAt(end - 1) == '.') end--;
+        char[] chars = domain.substring(0, end).toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Convert an ASCII letter to lower case. Other characters and bytes of multi-byte UTF-8 sequences are
+     * returned unchanged, so the conversion can be applied to single bytes.
+     * @param c Character or byte to convert.
+     * @return Converted character.
+     */
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Hash a label the same way for configured domains and for the bytes sent by clients.
+     * @param data Byte array holding the label.
+     * @param start Offset of the first byte of the label.
+     * @param end Offset after the last byte of the label.
+     * @return Hash of the label in lower case.
+     */
+    private static int hash(byte[] data, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + toLowerCase(data[i] & 0xFF);
+        }
+        // Spread the bits, since the low bits select the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Node of the index representing a single label. Children are kept in an open addressing hash table keyed
+     * by the lower case UTF-8 bytes of their label.
+     */
+    private static class Node {
+
+        /** Labels of the children, indexed by slot. Null if the slot is empty */
+        private final byte[][] labels;
+
+        /** Children, indexed by slot */
+        private final Node[] children;
+
+        /** Backend servers of the domain ending at this label, or null */
+        private final BackendGroup exact;
+
+        /** Backend servers of all subdomains of the domain ending at this label, or null */
+        private final BackendGroup wildcard;
+
+        /**
+         * Create a node.
+         * @param labels Labels of the children, indexed by slot.
+         * @param children Children, indexed by slot.
+         * @param exact Backend servers of the domain ending at this label, or null.
+         * @param wildcard Backend servers of all subdomains of the domain ending at this label, or null.
+         */
+        private Node(byte[][] labels, Node[] children, BackendGroup exact, BackendGroup wildcard) {
+            this.labels = labels;
+            this.children = children;
+            this.exact = exact;
+            this.wildcard = wildcard;
+        }
+
+        /**
+         * Find the child of a label, comparing case-insensitively.
+         * @param data Byte array holding the label.
+         * @param start Offset of the first byte of the label.
+         * @param end Offset after the last byte of the label.
+         * @return Child of the label, or null if there is none.
+         */
+        private Node child(byte[] data, int start, int end) {
+            if (children.length == 0) return null;
+            int mask = children.length - 1;
+            for (int slot = hash(data, start, end) & mask; ; slot = (slot + 1) & mask) {
+                byte[] label = labels[slot];
+                if (label == null) return null;
+                if (matches(label, data, start, end)) return children[slot];
+            }
+        }
+
+        /**
+         * Compare a stored label with a label sent by a client.
+         * @param label Stored label in lower case.
+         * @param data Byte array holding the label sent by the client.
+         * @param start Offset of the first byte of the label.
+         * @param end Offset after the last byte of the label.
+         * @return true if the labels are equal ignoring the case of ASCII letters, otherwise false.
+         */
+        private static boolean matches(byte[] label, byte[] data, int start, int end) {
+            if (label.length != end - start) return false;
+            for (int i = 0; i < label.length; i++) {
+                if (label[i] != toLowerCase(data[start + i] & 0xFF)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Mutable node used while building the index.
+     */
+    private static class NodeBuilder {
+
+        /** Children keyed by their label in lower case */
+        private final Map<String, NodeBuilder> children = new HashMap<>();
+
+        /** Backend servers of the domain ending at this label, or null */
+        private BackendGroup exact;
+
+        /** Backend servers of all subdomains of the domain ending at this label, or null */
+        private BackendGroup wildcard;
+
+        /**
+         * Build the immutable node and its children.
+         * @return Immutable node.
+         */
+        private Node build() {
+            // Keep the table at most half full, so probe sequences stay short
+            int capacity = children.isEmpty() ? 0 : Integer.highestOneBit(children.size() * 2 - 1) << 1;
+            byte[][] labels = new byte[capacity][];
+            Node[] nodes = new Node[capacity];
+            for (Map.Entry<String, NodeBuilder> child : children.entrySet()) {
+                byte[] label = child.getKey().getBytes(StandardCharsets.UTF_8);
+                int slot = hash(label, 0, label.length) & (capacity - 1);
+                while (labels[slot] != null) slot = (slot + 1) & (capacity - 1);
+                labels[slot] = label;
+                nodes[slot] = child.getValue().build();
+            }
+            return new Node(labels, nodes, exact, wildcard);
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.CleanStone;
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.model.config.BackendServerMapping;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.model.object.Handshake;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
+import de.traber_info.home.cleanstone.util.ProxyProtoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Decides to which backend server a client connection is routed, based on the first data received from the client.
+ * Used by all transport engines, so routing and PROXY protocol handling behave the same regardless of the engine.
+ *
+ * @author Oliver Traber
+ */
+public class HandshakeRouter {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(HandshakeRouter.class.getName());
+
+    /** Next state of a handshake requesting the server status */
+    public static final int STATE_STATUS = 1;
+
+    /**
+     * Find the backend server a client should be routed to, based on the first data received from the client.
+     * @param handshake Decoded data received from the client, starting with the handshake packet or an PROXY
+     *                  protocol header.
+     * @param clientAddress Remote address of the client socket.
+     * @param localAddress Local address the client socket was accepted on.
+     * @return {@link Route} to the backend server, or null if the client connection should be closed.
+     */
+    public static Route route(Handshake handshake, InetSocketAddress clientAddress, InetSocketAddress localAddress) {
+        ConfigFile.ProxyProtocolSettings proxyProtocolSettings = ConfigUtil.getConfig().getProxyProtocolSettings();
+
+        InetAddress clientInetAddress;
+        String clientIP;
+        ProxyProtoUtil.ProxyProtoHeader proxyHeader = handshake.getProxyHeader();
+        if (proxyHeader != null) {
+            if (!proxyProtocolSettings.isEnabled() || !proxyProtocolSettings.passThroughEnabled()) {
+                Metrics.recordProxyHeaderRejection();
+                LOG.warn("Aborted connection from {}:{}. " +
+                        "The received packet contains a PROXY protocol v2 header, " +
+                        "but PROXY protocol pass through is disabled.",
+                        clientAddress.getAddress().getHostAddress(),
+                        clientAddress.getPort()
+                );
+                return null;
+            }
+            if (proxyHeader.isLocal()) {
+                // Sent by the upstream proxy itself, e.g. as health check
+                clientInetAddress = clientAddress.getAddress();
+                clientIP = clientInetAddress.getHostAddress();
+                LOG.info("Accepted new connection from proxy {}:{}",
+                        clientIP,
+                        clientAddress.getPort()
+                );
+            } else {
+                clientInetAddress = proxyHeader.getSourceAddress();
+                if (!AccessList.admitClient(clientInetAddress)) return null;
+                clientIP = clientInetAddress.getHostAddress();
+                LOG.info("Accepted new connection from {}:{} via proxy {}",
+                        clientIP,
+                        proxyHeader.getSourcePort(),
+                        clientAddress.getAddress().getHostAddress()
+                );
+            }
+        } else {
+            clientInetAddress = clientAddress.getAddress();
+            // With pass-through, only the upstream proxy was checked on accept, so check the client itself now
+            if (proxyProtocolSettings.isEnabled() && proxyProtocolSettings.passThroughEnabled()
+                    && !AccessList.admitClient(clientInetAddress)) {
+                return null;
+            }
+            clientIP = clientInetAddress.getHostAddress();
+            LOG.info("Accepted new connection from {}:{}",
+                    clientIP,
+                    clientAddress.getPort()
+            );
+        }
+
+        // Check if packet is an handshake packet
+        if (!handshake.isHandshake()) {
+            Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.NOT_HANDSHAKE);
+            LOG.error("Packet does not contain a handshake. Closing client socket.");
+            return null;
+        }
+
+        String wantedServerAddress = handshake.getServerAddress();
+        LOG.info("Client {} connecting with protocol version {}. Wanted server: {}",
+                clientIP,
+                handshake.getProtocolVersion(),
+                wantedServerAddress
+        );
+
+        // Check if the domain can be mapped to an backend server
+        BackendGroup backendGroup = CleanStone.getDomainRouter().lookup(handshake);
+        if (backendGroup == null) {
+            Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.UNKNOWN_DOMAIN);
+            LOG.warn("No backend server mapped for {}. Closing client socket.", wantedServerAddress);
+            return null;
+        }
+        LOG.info("Backend server mapping for {} is {}", wantedServerAddress,
+                backendGroup.getMapping().getMappingDomain());
+
+        // Add PROXY protocol header if PROXY protocol support is enabled and the packet doesn't contain a header yet
+        boolean addProxyHeader = proxyProtocolSettings.isEnabled() && proxyHeader == null;
+        return new Route(handshake, backendGroup, clientInetAddress, clientIP, addProxyHeader ? clientAddress : null, localAddress);
+    }
+
+    /**
+     * Result of routing a client connection to a backend server.
+     */
+    public static class Route {
+
+        /** Parsed handshake of the client */
+        private final Handshake handshake;
+
+        /** Backend servers of the mapping the client is routed to */
+        private final BackendGroup backendGroup;
+
+        /** Address of the client. Taken from the PROXY protocol header if one was received */
+        private final InetAddress clientAddress;
+
+        /** IP address of the client. Taken from the PROXY protocol header if one was received */
+        private final String clientIP;
+
+        /** Address of the client the PROXY protocol header is written for, or null if no header is added */
+        private final InetSocketAddress proxyHeaderSource;
+
+        /** Local address the client socket was accepted on */
+        private final InetSocketAddress localAddress;
+
+        /**
+         * Create a new route.
+         * @param handshake Parsed handshake of the client.
+         * @param backendGroup Backend servers of the mapping the client is routed to.
+         * @param clientAddress Address of the client.
+         * @param clientIP IP address of the client.
+         * @param proxyHeaderSource Address of the client the PROXY protocol header is written for, or null if
+         *                          no header should be added.
+         * @param localAddress Local address the client socket was accepted on.
+         */
+        private Route(Handshake handshake, BackendGroup backendGroup, InetAddress clientAddress, String clientIP,
+                      InetSocketAddress proxyHeaderSource, InetSocketAddress localAddress) {
+            this.handshake = handshake;
+            this.backendGroup = backendGroup;
+            this.clientAddress = clientAddress;
+            this.clientIP = clientIP;
+            this.proxyHeaderSource = proxyHeaderSource;
+            this.localAddress = localAddress;
+        }
+
+        /**
+         * Get the parsed handshake of the client. Only valid until the buffer it was decoded from is released.
+         * @return Parsed handshake of the client.
+         */
+        public Handshake getHandshake() {
+            return handshake;
+        }
+
+        /**
+         * Get the mapping of the backend server the client is routed to.
+         * @return Mapping of the backend server the client is routed to.
+         */
+        public BackendServerMapping getMapping() {
+            return backendGroup.getMapping();
+        }
+
+        /**
+         * Get the backend servers of the mapping the client is routed to.
+         * @return Backend servers the connection can be balanced over.
+         */
+        public BackendGroup getBackendGroup() {
+            return backendGroup;
+        }
+
+        /**
+         * Get the address of the client. Taken from the PROXY protocol header if one was received.
+         * @return Address of the client.
+         */
+        public InetAddress getClientAddress() {
+            return clientAddress;
+        }
+
+        /**
+         * Get the IP address of the client. Taken from the PROXY protocol header if one was received.
+         * @return IP address of the client.
+         */
+        public String getClientIP() {
+            return clientIP;
+        }
+
+        /**
+         * Check if the client requests the server status instead of joining.
+         * @return true if the client pings the server list, otherwise false.
+         */
+        public boolean requestsStatus() {
+            return handshake.getNextState() == STATE_STATUS;
+        }
+
+        /**
+         * Check if the client requests the server status and cleanstone answers it from the {@link StatusCache}
+         * instead of connecting to the backend server.
+         * @return true if the status request is answered locally, otherwise false.
+         */
+        public boolean answersStatusLocally() {
+            return StatusCache.isEnabled() && requestsStatus();
+        }
+
+        /**
+         * Get the packet telling the client that no backend server is available, so a joining player sees a
+         * message instead of a connection that just drops. Clients pinging the server list don't understand it.
+         * @return Login disconnect packet including its length prefix, or null if the client requests the status.
+         */
+        public ByteBuffer getDisconnectPacket() {
+            return requestsStatus() ? null : HealthChecker.getDisconnectPacket();
+        }
+
+        /**
+         * Get the length of the data that has to be sent to the backend server before relaying starts.
+         * @return Length of the initial data in bytes.
+         */
+        public int getInitialDataLength() {
+            int length = handshake.getData().remaining();
+            if (proxyHeaderSource != null) length += ProxyProtoUtil.getEncodedLength(proxyHeaderSource, localAddress);
+            return length;
+        }
+
+        /**
+         * Write the data that has to be sent to the backend server before relaying starts at the position of the
+         * buffer. This is the data received from the client, prefixed with an PROXY protocol header if required.
+         * The header is encoded straight into the buffer, so header and handshake can be sent with one write.
+         * Must be called before the buffer the handshake was decoded from is released.
+         * @param target Buffer to write to. Needs {@link #getInitialDataLength()} bytes remaining.
+         */
+        public void writeInitialData(ByteBuffer target) {
+            if (proxyHeaderSource != null) {
+                ProxyProtoUtil.encode(target, ProxyProtoUtil.TransportFam.TCP, proxyHeaderSource, localAddress);
+            }
+            target.put(handshake.getData());
+        }
+    }
+
+}
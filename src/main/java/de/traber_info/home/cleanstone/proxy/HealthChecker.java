@@ -0,0 +1,144 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes all backend servers periodically and feeds the results into their {@link CircuitBreaker}, so a backend
+ * server that went down is taken out of rotation before clients try to join it, and one that came back is put
+ * into rotation again without waiting for a trial connection. Also holds the disconnect packet sent to joining
+ * players while no backend server of their domain is available.
+ *
+ * @author Oliver Traber
+ */
+public class HealthChecker {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(HealthChecker.class.getName());
+
+    /** Protocol version sent with status probes. Backend servers answer status requests of any version */
+    private static final int PROBE_PROTOCOL_VERSION = -1;
+
+    /** Packet id of the disconnect packet in the login state */
+    private static final int LOGIN_DISCONNECT_PACKET_ID = 0x00;
+
+    /** Settings of the health checks. Probes are disabled until {@link #init(ConfigFile.HealthCheckSettings)} */
+    private static volatile ConfigFile.HealthCheckSettings settings = new ConfigFile.HealthCheckSettings();
+
+    /** Encoded disconnect packet including its length prefix */
+    private static volatile byte[] disconnectPacket = encodeDisconnect(settings.getDisconnectMessage());
+
+    /** Backend servers with a probe in flight, so a slow backend server doesn't pile up probes */
+    private static final Set<Backend> probing = ConcurrentHashMap.newKeySet();
+
+    /** Executor running the probes, since they block until the backend server answers or the timeout passes */
+    private static final ExecutorService prober = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cleanstone-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Task starting the probes, or null if health checks are disabled */
+    private static ScheduledFuture<?> probeTask;
+
+    /**
+     * Apply the settings of the health checks and start or stop probing. May be called again after a reload.
+     * @param healthCheckSettings Settings of the health checks.
+     */
+    public static synchronized void init(ConfigFile.HealthCheckSettings healthCheckSettings) {
+        settings = healthCheckSettings;
+        disconnectPacket = encodeDisconnect(healthCheckSettings.getDisconnectMessage());
+        if (probeTask != null) {
+            probeTask.cancel(false);
+            probeTask = null;
+        }
+        if (!healthCheckSettings.isEnabled()) return;
+
+        long intervalMillis = Math.max(1, healthCheckSettings.getIntervalMillis());
+        probeTask = SchedulerUtil.getScheduler()
+                .scheduleAtFixedRate(HealthChecker::probeAll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        LOG.info("Probing backend servers every {} ms ({} probe)", intervalMillis,
+                healthCheckSettings.getProbe().name().toLowerCase());
+    }
+
+    /**
+     * Get the settings of the health checks and circuit breakers.
+     * @return Settings of the health checks.
+     */
+    public static ConfigFile.HealthCheckSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Get the login disconnect packet telling a joining player that no backend server is available. The
+     * returned buffer shares its content with all other callers and must not be modified.
+     * @return Disconnect packet including its length prefix.
+     */
+    public static ByteBuffer getDisconnectPacket() {
+        return ByteBuffer.wrap(disconnectPacket);
+    }
+
+    /**
+     * Start a probe of every backend server that doesn't have one in flight. Runs on the shared scheduler, so
+     * the probes themselves are handed to the prober.
+     */
+    private static void probeAll() {
+        for (Backend backend : Backend.getAll()) {
+            if (!probing.add(backend)) continue;
+            prober.execute(() -> {
+                try {
+                    probe(backend);
+                } finally {
+                    probing.remove(backend);
+                }
+            });
+        }
+    }
+
+    /**
+     * Probe a single backend server and record the result in its circuit breaker.
+     * @param backend Backend server to probe.
+     */
+    private static void probe(Backend backend) {
+        ConfigFile.HealthCheckSettings current = settings;
+        try {
+            if (current.getProbe() == ConfigFile.ProbeType.STATUS) {
+                StatusCache.query(backend, backend.getHost(), PROBE_PROTOCOL_VERSION, current.getTimeoutMillis());
+            } else {
+                InetSocketAddress[] addresses = BackendResolver.resolve(backend).join();
+                BackendConnector.connect(addresses, current.getTimeoutMillis()).close();
+            }
+            backend.getCircuitBreaker().recordSuccess();
+        } catch (IOException | CompletionException ex) {
+            Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+            LOG.debug("Health check of backend server {} failed: {}", backend, cause.getMessage());
+            backend.getCircuitBreaker().recordFailure("health check failed: " + cause.getMessage());
+        }
+    }
+
+    /**
+     * Encode the login disconnect packet carrying a message as JSON text component.
+     * @param message Message in plain text.
+     * @return Disconnect packet including its length prefix.
+     */
+    static byte[] encodeDisconnect(String message) {
+        String reason = "{\"text\":\"" + new String(JsonStringEncoder.getInstance().quoteAsString(message)) + "\"}";
+        return DatatypeUtil.encodeStringPacket(LOGIN_DISCONNECT_PACKET_ID, reason);
+    }
+
+}
@@ -0,0 +1,243 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One of possibly many listening sockets bound to the listen port. With SO_REUSEPORT, the kernel spreads
+ * incoming connections over all shards, so accepting isn't limited to a single thread.
+ *
+ * @author Oliver Traber
+ */
+public class ListenerShard {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(ListenerShard.class.getName());
+
+    /** Interval in seconds in which the accept counters are reported */
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    /** All shards that are currently listening */
+    private static final List<ListenerShard> shards = new CopyOnWriteArrayList<>();
+
+    /** Index of the next shard created */
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+
+    /** Whether reporting the accept counters was scheduled already */
+    private static boolean reporting = false;
+
+    /** Index of this shard */
+    private final int index;
+
+    /** Count of connections accepted by this shard */
+    private final LongAdder accepted = new LongAdder();
+
+    /** Port the listening socket of this shard is bound to, or -1 if it isn't bound yet */
+    private volatile int port = -1;
+
+    /** Listening socket of this shard, or null if it isn't bound yet */
+    private volatile Closeable listener;
+
+    /** Whether this shard was closed */
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new shard.
+     * @param index Index of the shard.
+     */
+    private ListenerShard(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Create the given count of shards and start reporting their accept counters if there is more than one.
+     * @param count Count of shards to create.
+     * @return List of the created shards.
+     */
+    public static synchronized List<ListenerShard> createShards(int count) {
+        List<ListenerShard> created = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            created.add(new ListenerShard(nextIndex.getAndIncrement()));
+        }
+        shards.addAll(created);
+        if (count > 1 && !reporting) {
+            reporting = true;
+            SchedulerUtil.getScheduler().scheduleAtFixedRate(ListenerShard::report,
+                    REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        return Collections.unmodifiableList(created);
+    }
+
+    /**
+     * Close the given shards. Connections accepted by them are not affected.
+     * @param closing Shards to close.
+     */
+    public static void closeShards(List<ListenerShard> closing) {
+        for (ListenerShard shard : closing) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Get the count of shards that can actually be used for the requested count.
+     * Falls back to a single shard if the platform doesn't support SO_REUSEPORT.
+     * @param requested Requested count of shards.
+     * @return Count of shards that should be created.
+     */
+    public static int getUsableShardCount(int requested) {
+        if (requested <= 1) return 1;
+        try (ServerSocket probe = new ServerSocket()) {
+            if (probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                return requested;
+            }
+        } catch (IOException ex) {
+            LOG.error("An unexpected error occurred...", ex);
+        }
+        LOG.warn("SO_REUSEPORT is not supported on this platform. Using a single listening socket.");
+        return 1;
+    }
+
+    /**
+     * Open a listening socket for this shard.
+     * @param port Port the socket should be bound to.
+     * @param reusePort Set SO_REUSEPORT, so multiple shards can bind the same port.
+     * @return Bound server socket.
+     * @throws IOException Thrown if the socket can't be opened or bound.
+     */
+    public ServerSocket openServerSocket(int port, boolean reusePort) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            if (reusePort) serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException ex) {
+            serverSocket.close();
+            throw ex;
+        }
+        setListener(port, serverSocket);
+        return serverSocket;
+    }
+
+    /**
+     * Open a listening channel for this shard.
+     * @param port Port the channel should be bound to.
+     * @param reusePort Set SO_REUSEPORT, so multiple shards can bind the same port.
+     * @return Bound server socket channel.
+     * @throws IOException Thrown if the channel can't be opened or bound.
+     */
+    public ServerSocketChannel openServerSocketChannel(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            if (reusePort) serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            serverChannel.bind(new InetSocketAddress(port));
+        } catch (IOException ex) {
+            serverChannel.close();
+            throw ex;
+        }
+        setListener(port, serverChannel);
+        return serverChannel;
+    }
+
+    /**
+     * Set the listening socket of this shard, so it is closed together with the shard. Used by transport engines
+     * that bind their sockets on their own.
+     * @param port Port the socket is bound to.
+     * @param listener Listening socket of this shard.
+     */
+    public void setListener(int port, Closeable listener) {
+        this.port = port;
+        this.listener = listener;
+        if (closed) close();
+    }
+
+    /**
+     * Stop listening. The accept loop of the shard ends, connections it accepted keep running.
+     */
+    public void close() {
+        closed = true;
+        shards.remove(this);
+        Closeable current = listener;
+        if (current == null) return;
+        try {
+            current.close();
+        } catch (IOException ex) {
+            LOG.error("An unexpected error occurred...", ex);
+        }
+    }
+
+    /**
+     * Check if this shard was closed, e.g. because the listeners were rebound after a config reload.
+     * @return true if the shard was closed, otherwise false.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Get the port the listening socket of this shard is bound to.
+     * @return Port of the listening socket, or -1 if it isn't bound yet.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Count a connection accepted by this shard.
+     */
+    public void recordAccept() {
+        accepted.increment();
+        Metrics.recordAccept();
+    }
+
+    /**
+     * Get the index of this shard.
+     * @return Index of this shard.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the count of connections accepted by this shard.
+     * @return Count of connections accepted by this shard.
+     */
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    /**
+     * Get all shards that are currently listening.
+     * @return Unmodifiable list of all shards.
+     */
+    public static List<ListenerShard> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Log the count of accepted connections per shard, so an unbalanced distribution can be spotted.
+     */
+    public static void report() {
+        StringBuilder builder = new StringBuilder();
+        for (ListenerShard shard : shards) {
+            if (builder.length() > 0) builder.append(", ");
+            builder.append('#').append(shard.index).append('=').append(shard.getAcceptedCount());
+        }
+        LOG.info("Accepted connections per listener shard: {}", builder);
+    }
+
+}
@@ -0,0 +1,294 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable binary prefix trie mapping IPv4 and IPv6 networks in CIDR notation to values. A lookup returns the
+ * value of the longest network containing an address. The trie is path-compressed, so only networks and the
+ * points where networks branch are stored as nodes, and the nodes are kept in flat arrays. Lookups of IPv4
+ * addresses don't allocate, lookups of IPv6 addresses only copy the 16 address bytes.
+ *
+ * @author Oliver Traber
+ */
+public class PrefixTrie {
+
+    /** Value returned if no network contains an address */
+    public static final int NO_MATCH = -1;
+
+    /** Octet of an IPv4 address literal */
+    private static final String OCTET = "(25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])";
+
+    /**
+     * IPv4 address literal of four decimal octets, or IPv6 address literal containing at least one colon. Only
+     * literals are passed to {@link InetAddress#getByName(String)}, so parsing never resolves a hostname.
+     */
+    private static final Pattern ADDRESS_LITERAL =
+            Pattern.compile(OCTET + "(\\." + OCTET + "){3}|[0-9a-fA-F.]*:[0-9a-fA-F:.]*");
+
+    /** Networks of IPv4 addresses */
+    private final Table ipv4;
+
+    /** Networks of IPv6 addresses */
+    private final Table ipv6;
+
+    /**
+     * Create a trie from the networks added to a builder.
+     * @param builder Builder holding the networks.
+     */
+    private PrefixTrie(Builder builder) {
+        this.ipv4 = new Table(builder.ipv4, 32);
+        this.ipv6 = new Table(builder.ipv6, 128);
+    }
+
+    /**
+     * Find the value of the longest network containing an address.
+     * @param address Address to look up.
+     * @return Value of the network, or {@link #NO_MATCH} if no network contains the address.
+     */
+    public int lookup(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself
+            return ipv4.lookup((long) address.hashCode() << 32, 0);
+        }
+        byte[] bytes = address.getAddress();
+        return ipv6.lookup(toLong(bytes, 0), toLong(bytes, 8));
+    }
+
+    /**
+     * Read 8 bytes of an address as big-endian long.
+     * @param bytes Bytes of the address.
+     * @param offset Offset of the first byte.
+     * @return Bytes as long. Missing bytes are read as 0.
+     */
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (i < bytes.length ? bytes[i] & 0xFF : 0);
+        }
+        return value;
+    }
+
+    /**
+     * Get a mask selecting the first bits of a long.
+     * @param bits Count of bits to select, from 0 to 64.
+     * @return Mask with the first bits set.
+     */
+    private static long mask(int bits) {
+        return bits <= 0 ? 0 : -1L << (64 - Math.min(64, bits));
+    }
+
+    /**
+     * Get a single bit of a 128 bit address.
+     * @param high First 64 bits of the address.
+     * @param low Last 64 bits of the address.
+     * @param index Index of the bit, starting at the most significant bit.
+     * @return 0 or 1.
+     */
+    private static int bit(long high, long low, int index) {
+        return (int) (index < 64 ? high >>> (63 - index) : low >>> (127 - index)) & 1;
+    }
+
+    /**
+     * Collects networks and builds an immutable {@link PrefixTrie} from them.
+     */
+    public static class Builder {
+
+        /** Root of the uncompressed IPv4 trie */
+        private final BuildNode ipv4 = new BuildNode();
+
+        /** Root of the uncompressed IPv6 trie */
+        private final BuildNode ipv6 = new BuildNode();
+
+        /**
+         * Add a network. If the same network was added before, its value is replaced.
+         * @param cidr Address or network in CIDR notation, e.g. {@code 192.0.2.0/24} or {@code 2001:db8::/32}.
+         *             An address without prefix length is a network of this address only.
+         * @param value Value of the network. Must not be {@link #NO_MATCH}.
+         * @return This builder.
+         * @throws IllegalArgumentException Thrown if the network can't be parsed.
+         */
+        public Builder add(String cidr, int value) {
+            String trimmed = cidr.trim();
+            int slash = trimmed.indexOf('/');
+            String literal = slash < 0 ? trimmed : trimmed.substring(0, slash);
+            if (!ADDRESS_LITERAL.matcher(literal).matches()) {
+                throw new IllegalArgumentException("Not an IP address: " + cidr);
+            }
+
+            byte[] bytes;
+            try {
+                bytes = InetAddress.getByName(literal).getAddress();
+            } catch (UnknownHostException ex) {
+                throw new IllegalArgumentException("Not an IP address: " + cidr, ex);
+            }
+            int maxLength = bytes.length * 8;
+            int prefixLength = maxLength;
+            if (slash >= 0) {
+                try {
+                    prefixLength = Integer.parseInt(trimmed.substring(slash + 1));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid prefix length: " + cidr, ex);
+                }
+                if (prefixLength < 0 || prefixLength > maxLength) {
+                    throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+                }
+            }
+
+            long high = toLong(bytes, 0);
+            long low = toLong(bytes, 8);
+            BuildNode node = bytes.length == 4 ? ipv4 : ipv6;
+            for (int i = 0; i < prefixLength; i++) {
+                int bit = bit(high, low, i);
+                if (node.children[bit] == null) node.children[bit] = new BuildNode();
+                node = node.children[bit];
+            }
+            node.value = value;
+            return this;
+        }
+
+        /**
+         * Build the trie.
+         * @return Immutable trie holding all networks added so far.
+         */
+        public PrefixTrie build() {
+            return new PrefixTrie(this);
+        }
+    }
+
+    /**
+     * Node of the uncompressed trie, only used while building.
+     */
+    private static class BuildNode {
+
+        /** Children for the next bit being 0 and 1 */
+        private final BuildNode[] children = new BuildNode[2];
+
+        /** Value of the network ending at this node, or {@link #NO_MATCH} */
+        private int value = NO_MATCH;
+    }
+
+    /**
+     * Path-compressed trie of a single address family in flat arrays. Each node stores the full prefix it stands
+     * for, so the bits skipped by compression are checked when the node is reached.
+     */
+    private static class Table {
+
+        /** Length of the addresses in bits */
+        private final int addressLength;
+
+        /** First 64 bits of the prefix of each node */
+        private final long[] prefixHigh;
+
+        /** Last 64 bits of the prefix of each node */
+        private final long[] prefixLow;
+
+        /** Length of the prefix of each node in bits */
+        private final int[] prefixLength;
+
+        /** Value of each node, or {@link #NO_MATCH} if the node only branches */
+        private final int[] values;
+
+        /** Index of the child for the next bit being 0 of each node, or -1 */
+        private final int[] zeros;
+
+        /** Index of the child for the next bit being 1 of each node, or -1 */
+        private final int[] ones;
+
+        /** Index of the root node, or -1 if the table is empty */
+        private final int root;
+
+        /** Count of nodes stored so far, only used while compressing */
+        private int count;
+
+        /**
+         * Compress an uncompressed trie into flat arrays.
+         * @param buildRoot Root of the uncompressed trie.
+         * @param addressLength Length of the addresses in bits.
+         */
+        private Table(BuildNode buildRoot, int addressLength) {
+            this.addressLength = addressLength;
+            int capacity = countNodes(buildRoot);
+            long[] high = new long[capacity];
+            long[] low = new long[capacity];
+            int[] lengths = new int[capacity];
+            int[] nodeValues = new int[capacity];
+            int[] zeroChildren = new int[capacity];
+            int[] oneChildren = new int[capacity];
+            this.root = compress(buildRoot, 0, 0, 0, high, low, lengths, nodeValues, zeroChildren, oneChildren);
+            this.prefixHigh = Arrays.copyOf(high, count);
+            this.prefixLow = Arrays.copyOf(low, count);
+            this.prefixLength = Arrays.copyOf(lengths, count);
+            this.values = Arrays.copyOf(nodeValues, count);
+            this.zeros = Arrays.copyOf(zeroChildren, count);
+            this.ones = Arrays.copyOf(oneChildren, count);
+        }
+
+        /**
+         * Count the nodes of an uncompressed trie.
+         * @param node Root of the uncompressed trie.
+         * @return Count of nodes.
+         */
+        private static int countNodes(BuildNode node) {
+            if (node == null) return 0;
+            return 1 + countNodes(node.children[0]) + countNodes(node.children[1]);
+        }
+
+        /**
+         * Store a node of the uncompressed trie, skipping the chain of nodes below it that neither hold a value
+         * nor branch.
+         * @return Index of the stored node, or -1 if the subtree holds no networks.
+         */
+        private int compress(BuildNode node, int length, long high, long low, long[] highs, long[] lows,
+                             int[] lengths, int[] nodeValues, int[] zeroChildren, int[] oneChildren) {
+            while (node.value == NO_MATCH && (node.children[0] == null) != (node.children[1] == null)) {
+                int bit = node.children[0] != null ? 0 : 1;
+                if (bit == 1) {
+                    if (length < 64) high |= 1L << (63 - length);
+                    else low |= 1L << (127 - length);
+                }
+                node = node.children[bit];
+                length++;
+            }
+            if (node.value == NO_MATCH && node.children[0] == null) return -1;
+
+            int index = count++;
+            highs[index] = high;
+            lows[index] = low;
+            lengths[index] = length;
+            nodeValues[index] = node.value;
+            zeroChildren[index] = node.children[0] == null ? -1 : compress(node.children[0], length + 1,
+                    high, low, highs, lows, lengths, nodeValues, zeroChildren, oneChildren);
+            long oneHigh = length < 64 ? high | 1L << (63 - length) : high;
+            long oneLow = length < 64 ? low : low | 1L << (127 - length);
+            oneChildren[index] = node.children[1] == null ? -1 : compress(node.children[1], length + 1,
+                    oneHigh, oneLow, highs, lows, lengths, nodeValues, zeroChildren, oneChildren);
+            return index;
+        }
+
+        /**
+         * Find the value of the longest network containing an address.
+         * @param high First 64 bits of the address.
+         * @param low Last 64 bits of the address, 0 for IPv4 addresses.
+         * @return Value of the network, or {@link #NO_MATCH}.
+         */
+        private int lookup(long high, long low) {
+            int result = NO_MATCH;
+            int node = root;
+            while (node >= 0) {
+                int length = prefixLength[node];
+                if ((high & mask(length)) != prefixHigh[node] || (low & mask(length - 64)) != prefixLow[node]) {
+                    break;
+                }
+                if (values[node] != NO_MATCH) result = values[node];
+                if (length == addressLength) break;
+                node = bit(high, low, length) == 0 ? zeros[node] : ones[node];
+            }
+            return result;
+        }
+    }
+
+}
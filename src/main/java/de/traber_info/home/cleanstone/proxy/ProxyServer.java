@@ -0,0 +1,106 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base class of the transport engines. Keeps track of the listening sockets, so they can be rebound to another
+ * port or shard count while cleanstone is running. Rebinding only replaces the listening sockets, connections
+ * accepted by the previous ones keep running.
+ *
+ * @author Oliver Traber
+ */
+public abstract class ProxyServer {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyServer.class.getName());
+
+    /** Shards that are currently listening */
+    private List<ListenerShard> shards = Collections.emptyList();
+
+    /** Port the current shards are bound to, or -1 if the engine isn't listening yet */
+    private int port = -1;
+
+    /**
+     * Start the threads or event loops of the engine. Called once before the first {@link #bind(int, int)}.
+     * @throws IOException Thrown if the engine can't be started.
+     */
+    public abstract void start() throws IOException;
+
+    /**
+     * Open the listening socket of a shard and start accepting client connections on it.
+     * Implementations register the socket with {@link ListenerShard#setListener}, so it can be closed again.
+     * @param shard Shard the socket belongs to.
+     * @param port Port the socket should be bound to.
+     * @param reusePort Set SO_REUSEPORT, so multiple shards can bind the same port.
+     * @throws IOException Thrown if the socket can't be opened or bound.
+     */
+    protected abstract void bindShard(ListenerShard shard, int port, boolean reusePort) throws IOException;
+
+    /**
+     * Listen on the given port with the given count of shards, replacing the current listening sockets.
+     * The new sockets are bound before the current ones are closed, unless they can't share the port.
+     * If binding fails, the current sockets are kept or, if they were closed already, bound again.
+     * @param port Port on which cleanstone should be listening for client connections.
+     * @param shardCount Count of listening sockets bound to the port with SO_REUSEPORT.
+     * @throws IOException Thrown if the new sockets can't be bound.
+     */
+    public synchronized void bind(int port, int shardCount) throws IOException {
+        List<ListenerShard> previous = shards;
+        // Sockets can only share the port if all of them were bound with SO_REUSEPORT
+        boolean closeFirst = port == this.port && (shardCount == 1 || previous.size() == 1);
+        if (closeFirst) ListenerShard.closeShards(previous);
+        try {
+            shards = open(port, shardCount);
+        } catch (IOException ex) {
+            if (closeFirst && !previous.isEmpty()) {
+                LOG.warn("Failed to bind port {}. Binding the previous listening sockets again.", port);
+                shards = open(this.port, previous.size());
+            }
+            throw ex;
+        }
+        if (!closeFirst) ListenerShard.closeShards(previous);
+        this.port = port;
+    }
+
+    /**
+     * Create and bind the given count of shards. Shards that were bound already are closed if one fails.
+     * @param port Port the shards should be bound to.
+     * @param shardCount Count of shards to create.
+     * @return Bound shards.
+     * @throws IOException Thrown if a shard can't be bound.
+     */
+    private List<ListenerShard> open(int port, int shardCount) throws IOException {
+        List<ListenerShard> created = ListenerShard.createShards(shardCount);
+        try {
+            for (ListenerShard shard : created) {
+                bindShard(shard, port, shardCount > 1);
+            }
+        } catch (IOException ex) {
+            ListenerShard.closeShards(created);
+            throw ex;
+        }
+        return created;
+    }
+
+    /**
+     * Get the port the engine is currently listening on.
+     * @return Port of the listening sockets, or -1 if the engine isn't listening yet.
+     */
+    public synchronized int getPort() {
+        return port;
+    }
+
+    /**
+     * Get the count of listening sockets the engine currently uses.
+     * @return Count of listening sockets.
+     */
+    public synchronized int getShardCount() {
+        return shards.size();
+    }
+
+}
@@ -0,0 +1,364 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of idle connections to the backend servers, opened ahead of time so a joining client doesn't have to wait
+ * for the TCP handshake with its backend server. Each backend server gets its own pool, sized from the rate at
+ * which clients joined it recently. Idle connections are checked for being closed by the backend server and
+ * replaced before the backend server would time them out.
+ *
+ * @author Oliver Traber
+ */
+public class SocketPool {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(SocketPool.class.getName());
+
+    /** Weight of the joins of the last refill interval in the moving average of the join rate */
+    private static final double JOIN_RATE_SMOOTHING = 0.25;
+
+    /** Join rate per refill interval below which a pool is emptied */
+    private static final double MIN_JOIN_RATE = 0.05;
+
+    /** Settings of the pool. Disabled until {@link #init(ConfigFile.SocketPoolSettings)} is called */
+    private static ConfigFile.SocketPoolSettings settings = new ConfigFile.SocketPoolSettings();
+
+    /** Pool per backend server */
+    private static final Map<Backend, Pool> pools = new ConcurrentHashMap<>();
+
+    /** Executor opening the pooled connections, since connecting blocks */
+    private static final ExecutorService connector = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cleanstone-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Count of joins served with a pooled connection */
+    private static final LongAdder hits = new LongAdder();
+
+    /** Count of joins that found the pool empty */
+    private static final LongAdder misses = new LongAdder();
+
+    /** Count of pooled connections opened */
+    private static final LongAdder opened = new LongAdder();
+
+    /** Count of pooled connections closed unused, because they expired or the backend server closed them */
+    private static final LongAdder discarded = new LongAdder();
+
+    /**
+     * Apply the settings of the pool and start refilling it.
+     * @param socketPoolSettings Settings of the pool.
+     */
+    public static void init(ConfigFile.SocketPoolSettings socketPoolSettings) {
+        settings = socketPoolSettings;
+        if (!settings.isEnabled()) return;
+
+        long intervalMillis = Math.max(1, settings.getRefillIntervalMillis());
+        SchedulerUtil.getScheduler().scheduleAtFixedRate(SocketPool::maintain,
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        if (settings.getStatsIntervalSeconds() > 0) {
+            SchedulerUtil.getScheduler().scheduleAtFixedRate(SocketPool::report,
+                    settings.getStatsIntervalSeconds(), settings.getStatsIntervalSeconds(), TimeUnit.SECONDS);
+        }
+        LOG.info("Keeping up to {} idle connections per backend server", settings.getMaxSize());
+    }
+
+    /**
+     * Check if connections to the backend servers are opened ahead of time.
+     * @return true if the pool is enabled, otherwise false.
+     */
+    public static boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Take an idle connection to a backend server from the pool. Connections closed by the backend server in the
+     * meantime are skipped.
+     * @param backend Backend server to connect to.
+     * @return Connected channel in non-blocking mode, or null if the pool is disabled or empty.
+     */
+    public static SocketChannel take(Backend backend) {
+        if (!settings.isEnabled()) return null;
+        Pool pool = pools.computeIfAbsent(backend, Pool::new);
+        pool.joins.increment();
+        Idle idle;
+        while ((idle = pool.idle.pollLast()) != null) {
+            if (!idle.isExpired() && idle.isOpen()) {
+                hits.increment();
+                return idle.channel;
+            }
+            idle.discard();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Take an idle connection to a backend server from the pool for use with blocking streams.
+     * @param backend Backend server to connect to.
+     * @return Connected socket in blocking mode, or null if the pool is disabled or empty.
+     */
+    public static Socket takeSocket(Backend backend) {
+        SocketChannel channel = take(backend);
+        if (channel == null) return null;
+        try {
+            channel.configureBlocking(true);
+            return channel.socket();
+        } catch (IOException ex) {
+            Idle.closeQuietly(channel);
+            return null;
+        }
+    }
+
+    /**
+     * Close expired and broken connections and refill every pool to the size its join rate calls for. Pools of
+     * backend servers no longer used by the config are emptied. Runs on the shared scheduler, so the connects
+     * are handed to the connector.
+     */
+    private static void maintain() {
+        Set<Backend> current = new HashSet<>(Backend.getAll());
+        for (Pool pool : pools.values()) {
+            if (!current.contains(pool.backend)) {
+                pools.remove(pool.backend, pool);
+                pool.resize(0);
+                continue;
+            }
+            pool.maintain();
+        }
+    }
+
+    /**
+     * Get the count of joins served with a pooled connection.
+     * @return Count of pool hits.
+     */
+    public static long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the count of joins that found the pool empty.
+     * @return Count of pool misses.
+     */
+    public static long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the count of pooled connections opened.
+     * @return Count of opened connections.
+     */
+    public static long getOpenedCount() {
+        return opened.sum();
+    }
+
+    /**
+     * Get the count of pooled connections closed unused.
+     * @return Count of discarded connections.
+     */
+    public static long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * Get the count of idle connections in all pools.
+     * @return Count of idle connections.
+     */
+    public static int getIdleCount() {
+        int idle = 0;
+        for (Pool pool : pools.values()) idle += pool.idle.size();
+        return idle;
+    }
+
+    /**
+     * Log the hit rate and size of the pool.
+     */
+    public static void report() {
+        long hitCount = getHitCount();
+        long joinCount = hitCount + getMissCount();
+        LOG.info("Backend connection pool: {} hits, {} misses ({}% hit rate), {} idle, {} opened, {} discarded",
+                hitCount,
+                getMissCount(),
+                joinCount == 0 ? 0 : hitCount * 100 / joinCount,
+                getIdleCount(),
+                getOpenedCount(),
+                getDiscardedCount()
+        );
+    }
+
+    /**
+     * Idle connections to a single backend server.
+     */
+    private static class Pool {
+
+        /** Backend server the connections lead to */
+        private final Backend backend;
+
+        /** Idle connections, the most recently opened last */
+        private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+
+        /** Count of joins since the last refill */
+        private final LongAdder joins = new LongAdder();
+
+        /** Count of connects in flight, so a slow backend server doesn't receive more connects than needed */
+        private final AtomicInteger connecting = new AtomicInteger();
+
+        /** Moving average of the joins per refill interval. Only used by the scheduler thread */
+        private double joinRate;
+
+        /**
+         * Create the pool of a backend server.
+         * @param backend Backend server the connections lead to.
+         */
+        private Pool(Backend backend) {
+            this.backend = backend;
+        }
+
+        /**
+         * Close expired and broken connections and resize the pool to twice the joins expected until the next
+         * refill, so bursts are served from the pool as well. Backend servers out of rotation get no connections.
+         */
+        private void maintain() {
+            for (Idle connection : idle) {
+                if ((connection.isExpired() || !connection.isOpen()) && idle.removeFirstOccurrence(connection)) {
+                    connection.discard();
+                }
+            }
+
+            joinRate += (joins.sumThenReset() - joinRate) * JOIN_RATE_SMOOTHING;
+            int target = 0;
+            if (joinRate >= MIN_JOIN_RATE && backend.getCircuitBreaker().isClosed()) {
+                target = (int) Math.min(settings.getMaxSize(), Math.ceil(joinRate * 2));
+            }
+            resize(target);
+        }
+
+        /**
+         * Close the oldest idle connections or open new ones until the pool has the given size.
+         * @param target Count of idle connections the pool should have.
+         */
+        private void resize(int target) {
+            int missing = target - idle.size() - connecting.get();
+            for (; missing < 0; missing++) {
+                Idle oldest = idle.pollFirst();
+                if (oldest == null) break;
+                oldest.discard();
+            }
+            for (; missing > 0; missing--) {
+                connecting.incrementAndGet();
+                connector.execute(this::open);
+            }
+        }
+
+        /**
+         * Open a connection to the backend server and add it to the pool. Connect failures count towards the
+         * circuit breaker of the backend server, just like failed joins.
+         */
+        private void open() {
+            SocketChannel channel = null;
+            try {
+                InetSocketAddress[] addresses = BackendResolver.resolve(backend).join();
+                long connectStartedAt = System.nanoTime();
+                channel = BackendConnector.connect(addresses, settings.getConnectTimeoutMillis());
+                backend.recordConnectLatency(System.nanoTime() - connectStartedAt);
+                backend.getCircuitBreaker().recordSuccess();
+                channel.configureBlocking(false);
+                Idle connection = new Idle(channel);
+                idle.addLast(connection);
+                opened.increment();
+                // The backend server may have been removed by a reload while connecting
+                if (pools.get(backend) != this && idle.removeFirstOccurrence(connection)) connection.discard();
+            } catch (IOException | CompletionException ex) {
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                LOG.debug("Failed to open pooled connection to backend server {}: {}", backend, cause.getMessage());
+                backend.recordConnectFailure(cause.getMessage());
+                Idle.closeQuietly(channel);
+            } finally {
+                connecting.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Idle connection waiting in a pool.
+     */
+    private static class Idle {
+
+        /** Connected channel in non-blocking mode */
+        private final SocketChannel channel;
+
+        /** Point in time the connection was opened at, in nanoseconds */
+        private final long openedAt = System.nanoTime();
+
+        /**
+         * Wrap a connected channel.
+         * @param channel Connected channel in non-blocking mode.
+         */
+        private Idle(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Check if the connection was idle for so long that the backend server may time it out soon.
+         * @return true if the connection must not be used anymore, otherwise false.
+         */
+        private boolean isExpired() {
+            return System.nanoTime() - openedAt > TimeUnit.MILLISECONDS.toNanos(settings.getMaxIdleMillis());
+        }
+
+        /**
+         * Check if the backend server still keeps the connection open, without blocking. Backend servers don't
+         * send anything before the handshake, so any readable data or end of stream means the connection is broken.
+         * @return true if the connection can be used, otherwise false.
+         */
+        private boolean isOpen() {
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        /**
+         * Close the connection unused.
+         */
+        private void discard() {
+            discarded.increment();
+            closeQuietly(channel);
+        }
+
+        /**
+         * Close a channel and ignore any error.
+         * @param channel Channel to close. May be null.
+         */
+        private static void closeQuietly(SocketChannel channel) {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Do nothing
+            }
+        }
+    }
+
+}
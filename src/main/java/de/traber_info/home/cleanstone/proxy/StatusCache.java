@@ -0,0 +1,282 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import de.traber_info.home.cleanstone.util.ProxyProtoUtil;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the status responses of the backend servers, one per mapped domain. Server list pings are answered
+ * from the cache by {@link StatusResponder}, so scrapers and launcher refreshes don't open a connection to the
+ * backend server each. The status of a domain is fetched on the first ping and refreshed in the background once
+ * per TTL for as long as the domain keeps being pinged.
+ *
+ * @author Oliver Traber
+ */
+public class StatusCache {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(StatusCache.class.getName());
+
+    /** Largest status response packet accepted from a backend server, without its length prefix */
+    private static final int MAX_RESPONSE_LENGTH =
+            DatatypeUtil.MAX_STRING_LENGTH * 3 + 2 * DatatypeUtil.MAX_VARINT_LENGTH;
+
+    /** Settings of the cache. Disabled until {@link #init(ConfigFile.StatusCacheSettings)} is called */
+    private static ConfigFile.StatusCacheSettings settings = new ConfigFile.StatusCacheSettings();
+
+    /** Cached status per mapped domain */
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Executor querying the backend servers, since the queries block */
+    private static final ExecutorService fetcher = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cleanstone-status");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Apply the settings of the cache.
+     * @param statusCacheSettings Settings of the cache.
+     */
+    public static void init(ConfigFile.StatusCacheSettings statusCacheSettings) {
+        settings = statusCacheSettings;
+        if (settings.isEnabled()) {
+            LOG.info("Answering server list pings from a cache refreshed every {} ms", settings.getTtlMillis());
+        }
+    }
+
+    /**
+     * Check if server list pings are answered from the cache.
+     * @return true if the cache is enabled, otherwise false.
+     */
+    public static boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Get the time a backend server has to accept the connection and, separately, to answer a status request.
+     * @return Time in milliseconds.
+     */
+    public static long getTimeoutMillis() {
+        return settings.getTimeoutMillis();
+    }
+
+    /**
+     * Get the status response of the backend server a domain is mapped to.
+     * @param group Backend servers of the domain that was pinged.
+     * @param protocolVersion Protocol version of the client, sent to the backend server if the status isn't
+     *                        cached yet.
+     * @return Future completed with the status response packet including its length prefix, which can be sent to
+     *         the client as is. Completed right away if the status is cached.
+     */
+    public static CompletableFuture<byte[]> get(BackendGroup group, int protocolVersion) {
+        String mappingDomain = group.getMapping().getMappingDomain();
+        Entry entry = entries.get(mappingDomain);
+        if (entry == null || entry.group != group) {
+            // Replace entries created before the config was reloaded, the domain may point to another backend now
+            entry = entries.compute(mappingDomain, (domain, current) -> {
+                if (current != null && current.group == group) return current;
+                if (current != null) current.refreshTask.cancel(false);
+                return new Entry(group, protocolVersion);
+            });
+        }
+        entry.lastRequested = System.nanoTime();
+        byte[] response = entry.response;
+        return response != null ? CompletableFuture.completedFuture(response) : entry.fetch();
+    }
+
+    /**
+     * Send a status request to a backend server and read its response.
+     * @param backend Backend server to query.
+     * @param domain Server address sent in the handshake.
+     * @param protocolVersion Protocol version sent in the handshake.
+     * @param timeoutMillis Time the backend server has to accept the connection and, separately, to answer.
+     * @return Status response packet including its length prefix.
+     * @throws IOException Thrown if the backend server can't be reached or sends an invalid response.
+     */
+    static byte[] query(Backend backend, String domain, int protocolVersion, long timeoutMillis) throws IOException {
+        int timeout = (int) Math.min(timeoutMillis, Integer.MAX_VALUE);
+        InetSocketAddress[] addresses;
+        try {
+            addresses = BackendResolver.resolve(backend).join();
+        } catch (CompletionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+        try (Socket socket = BackendConnector.connect(addresses, timeoutMillis).socket()) {
+            socket.setSoTimeout(timeout);
+            socket.setTcpNoDelay(true);
+
+            // Backend servers expecting PROXY protocol headers are told that cleanstone connects on its own
+            ByteBuffer request = ByteBuffer.allocate(ProxyProtoUtil.FIXED_HEADER_LENGTH + domain.length() * 3 + 32);
+            if (ConfigUtil.getConfig().getProxyProtocolSettings().isEnabled()) {
+                ProxyProtoUtil.encodeLocal(request);
+            }
+            ByteBuffer handshake = ByteBuffer.allocate(domain.length() * 3 + 16);
+            DatatypeUtil.writeVarInt(handshake, 0x00);
+            DatatypeUtil.writeVarInt(handshake, protocolVersion);
+            DatatypeUtil.writeString(handshake, domain);
+            DatatypeUtil.writeUnsignedShort(handshake, backend.getPort());
+            DatatypeUtil.writeVarInt(handshake, HandshakeRouter.STATE_STATUS);
+            handshake.flip();
+            DatatypeUtil.writeVarInt(request, handshake.remaining());
+            request.put(handshake);
+            // Status request, an empty packet with id 0
+            request.put((byte) 0x01).put((byte) 0x00);
+            socket.getOutputStream().write(request.array(), 0, request.position());
+
+            return readResponse(socket.getInputStream());
+        }
+    }
+
+    /**
+     * Read the status response packet and validate it.
+     * @param inputStream Stream of the connection to the backend server.
+     * @return Status response packet including its length prefix.
+     * @throws IOException Thrown if reading fails or the response is invalid.
+     */
+    private static byte[] readResponse(InputStream inputStream) throws IOException {
+        int length = 0;
+        for (int numRead = 0; ; numRead++) {
+            if (numRead == DatatypeUtil.MAX_VARINT_LENGTH) throw new ProtocolException("VarInt is too big");
+            int read = inputStream.read();
+            if (read == -1) throw new EOFException("Backend server closed the connection");
+            length |= (read & 0b01111111) << (7 * numRead);
+            if ((read & 0b10000000) == 0) break;
+        }
+        if (length <= 0 || length > MAX_RESPONSE_LENGTH) {
+            throw new ProtocolException("Invalid status response length " + length);
+        }
+
+        int prefixLength = DatatypeUtil.getVarIntSize(length);
+        byte[] packet = new byte[prefixLength + length];
+        ByteBuffer cursor = ByteBuffer.wrap(packet);
+        DatatypeUtil.writeVarInt(cursor, length);
+        new DataInputStream(inputStream).readFully(packet, prefixLength, length);
+
+        if (DatatypeUtil.readVarInt(cursor) != 0x00) throw new ProtocolException("Not a status response");
+        int jsonLength = DatatypeUtil.readStringLength(cursor, DatatypeUtil.MAX_STRING_LENGTH);
+        if (jsonLength != cursor.remaining()) throw new ProtocolException("Malformed status response");
+        return packet;
+    }
+
+    /**
+     * Status of a single domain.
+     */
+    private static class Entry {
+
+        /** Backend servers of the domain */
+        private final BackendGroup group;
+
+        /** Protocol version sent to the backend server */
+        private final int protocolVersion;
+
+        /** Task refreshing the status in the background */
+        private final ScheduledFuture<?> refreshTask;
+
+        /** Last status response received from the backend server, or null if the last query failed */
+        private volatile byte[] response;
+
+        /** Point in time the domain was pinged at last, in nanoseconds */
+        private volatile long lastRequested = System.nanoTime();
+
+        /** Query currently running, or null */
+        private CompletableFuture<byte[]> pending;
+
+        /**
+         * Create the entry of a domain and start refreshing it in the background.
+         * @param group Backend servers of the domain.
+         * @param protocolVersion Protocol version sent to the backend server.
+         */
+        private Entry(BackendGroup group, int protocolVersion) {
+            this.group = group;
+            this.protocolVersion = protocolVersion;
+            long ttlMillis = Math.max(1, settings.getTtlMillis());
+            this.refreshTask = SchedulerUtil.getScheduler()
+                    .scheduleAtFixedRate(this::refresh, ttlMillis, ttlMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Refresh the status, or drop the entry if the domain wasn't pinged for a while.
+         */
+        private void refresh() {
+            if (System.nanoTime() - lastRequested > TimeUnit.MILLISECONDS.toNanos(settings.getIdleMillis())) {
+                refreshTask.cancel(false);
+                entries.remove(group.getMapping().getMappingDomain(), this);
+                return;
+            }
+            fetch();
+        }
+
+        /**
+         * Query the backend server, unless a query is running already.
+         * @return Future completed with the status response packet.
+         */
+        private synchronized CompletableFuture<byte[]> fetch() {
+            if (pending != null) return pending;
+            Backend backend = group.select();
+            if (backend == null) {
+                return CompletableFuture.failedFuture(
+                        new ConnectException("No backend server of " + group.getMapping().getMappingDomain() +
+                                " is available"));
+            }
+            CompletableFuture<byte[]> future = CompletableFuture.supplyAsync(() -> query(backend), fetcher);
+            pending = future;
+            future.whenComplete((result, ex) -> {
+                synchronized (this) {
+                    pending = null;
+                }
+                response = result;
+                if (ex != null) {
+                    LOG.warn("Failed to query the status of {} for {}: {}",
+                            backend, group.getMapping().getMappingDomain(), ex.getCause().getMessage());
+                }
+            });
+            return future;
+        }
+
+        /**
+         * Send a status request to a backend server and read its response. The result counts towards the circuit
+         * breaker of the backend server, just like joins, since choosing the backend server may have taken the
+         * trial connection of an open breaker.
+         * @param backend Backend server of the domain chosen by the balancing policy.
+         * @return Status response packet including its length prefix.
+         * @throws CompletionException Thrown if the backend server can't be reached or sends an invalid response.
+         */
+        private byte[] query(Backend backend) {
+            // Wildcard mappings are queried with their parent domain, the default route with an empty address
+            String domain = group.getMapping().getMappingDomain();
+            if (domain.startsWith("*")) domain = domain.substring(domain.startsWith("*.") ? 2 : 1);
+            try {
+                byte[] status = StatusCache.query(backend, domain, protocolVersion, settings.getTimeoutMillis());
+                backend.getCircuitBreaker().recordSuccess();
+                return status;
+            } catch (IOException ex) {
+                backend.recordConnectFailure("status query failed: " + ex.getMessage());
+                throw new CompletionException(ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+package de.traber_info.home.cleanstone.proxy;
+
+import de.traber_info.home.cleanstone.util.DatatypeUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers the server list ping of a single client from the {@link StatusCache}, without connecting to the backend
+ * server. Parses the status request and ping packets sent after the handshake and produces the status response and
+ * pong. Works with every transport engine: data is handed in like to the
+ * {@link de.traber_info.home.cleanstone.model.object.HandshakeDecoder}, and the responses are pulled with
+ * {@link #nextResponse()} once they are ready. Instances are not thread safe.
+ *
+ * @author Oliver Traber
+ */
+public class StatusResponder {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(StatusResponder.class.getName());
+
+    /** Size of the buffer client packets are collected in. Status requests take 2 bytes and pings 10 bytes */
+    private static final int BUFFER_SIZE = 64;
+
+    /** Largest packet accepted, so a complete packet and its length prefix always fit into the buffer */
+    private static final int MAX_PACKET_LENGTH = BUFFER_SIZE - DatatypeUtil.MAX_VARINT_LENGTH;
+
+    /** Id of the status request and status response packets */
+    private static final int STATUS = 0x00;
+
+    /** Id of the ping and pong packets */
+    private static final int PING = 0x01;
+
+    /** Length of the payload of the ping and pong packets */
+    private static final int PING_PAYLOAD_LENGTH = 8;
+
+    /** Status response packet, completed once the status of the backend server is known */
+    private final CompletableFuture<byte[]> status;
+
+    /** Time the client has to finish the exchange, in milliseconds */
+    private final long timeoutMillis;
+
+    /** Point in time the exchange has to be finished at, in nanoseconds */
+    private final long deadline;
+
+    /** Data received from the client that doesn't form a complete packet yet */
+    private final ByteBuffer received = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** True once the client requested the status */
+    private boolean statusRequested = false;
+
+    /** True once the status response was handed out */
+    private boolean statusSent = false;
+
+    /** True once the client sent a ping */
+    private boolean pingReceived = false;
+
+    /** Payload of the ping, echoed by the pong */
+    private long pingPayload;
+
+    /** True once the pong was handed out, which ends the exchange */
+    private boolean finished = false;
+
+    /**
+     * Start answering a server list ping. Looks the status up in the cache and processes the data the client sent
+     * along with its handshake. Must be called before the buffer the handshake was decoded from is released.
+     * @param route Route of a client requesting the server status.
+     * @param handshakeTimeoutMillis Time a client has to send its handshake, which it also gets to send its ping.
+     * @throws ProtocolException Thrown if the data following the handshake is invalid.
+     */
+    public StatusResponder(HandshakeRouter.Route route, long handshakeTimeoutMillis) throws ProtocolException {
+        // Querying the backend server may take one timeout to connect and one to answer
+        this(route, StatusCache.get(route.getBackendGroup(), route.getHandshake().getProtocolVersion()),
+                2 * StatusCache.getTimeoutMillis() + handshakeTimeoutMillis);
+        LOG.info("Answering status request of {} for {} from the cache",
+                route.getClientIP(), route.getMapping().getMappingDomain());
+    }
+
+    /**
+     * Start answering a server list ping with a fixed status response, e.g. one telling the client that the
+     * server is full. Must be called before the buffer the handshake was decoded from is released.
+     * @param route Route of a client requesting the server status.
+     * @param handshakeTimeoutMillis Time a client has to send its handshake, which it also gets to send its ping.
+     * @param status Status response packet including its length prefix.
+     * @throws ProtocolException Thrown if the data following the handshake is invalid.
+     */
+    public StatusResponder(HandshakeRouter.Route route, long handshakeTimeoutMillis, byte[] status)
+            throws ProtocolException {
+        this(route, CompletableFuture.completedFuture(status), handshakeTimeoutMillis);
+    }
+
+    /**
+     * Start answering a server list ping and process the data the client sent along with its handshake.
+     * @param route Route of a client requesting the server status.
+     * @param status Status response packet, completed once it is known.
+     * @param timeoutMillis Time the client has to finish the exchange, in milliseconds.
+     * @throws ProtocolException Thrown if the data following the handshake is invalid.
+     */
+    private StatusResponder(HandshakeRouter.Route route, CompletableFuture<byte[]> status, long timeoutMillis)
+            throws ProtocolException {
+        this.status = status;
+        this.timeoutMillis = timeoutMillis;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        append(route.getHandshake().getTrailingData());
+    }
+
+    /**
+     * Read the available data from a blocking stream. Blocks until at least one byte was read.
+     * @param inputStream Stream to read from.
+     * @return false if the end of the stream was reached, otherwise true.
+     * @throws IOException Thrown if reading fails or the client sent invalid data.
+     */
+    public boolean read(InputStream inputStream) throws IOException {
+        int bytesRead = inputStream.read(received.array(), received.position(), received.remaining());
+        if (bytesRead == -1) return false;
+        received.position(received.position() + bytesRead);
+        process();
+        return true;
+    }
+
+    /**
+     * Read the available data from a channel. Doesn't block if the channel is non-blocking.
+     * @param channel Channel to read from.
+     * @return false if the end of the stream was reached, otherwise true.
+     * @throws IOException Thrown if reading fails or the client sent invalid data.
+     */
+    public boolean read(ReadableByteChannel channel) throws IOException {
+        if (channel.read(received) == -1) return false;
+        process();
+        return true;
+    }
+
+    /**
+     * Append data received by another transport.
+     * @param data Data to append. Its position is advanced to its limit.
+     * @throws ProtocolException Thrown if the client sent invalid data.
+     */
+    public void append(ByteBuffer data) throws ProtocolException {
+        while (data.hasRemaining()) {
+            int count = Math.min(received.remaining(), data.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + count);
+            received.put(chunk);
+            data.position(data.position() + count);
+            process();
+        }
+    }
+
+    /**
+     * Process all complete packets collected so far.
+     * @throws ProtocolException Thrown if a packet isn't part of the status exchange or too large.
+     */
+    private void process() throws ProtocolException {
+        received.flip();
+        try {
+            while (received.hasRemaining()) {
+                int start = received.position();
+                int length;
+                try {
+                    length = DatatypeUtil.readVarInt(received);
+                } catch (ProtocolException ex) {
+                    if (received.remaining() >= DatatypeUtil.MAX_VARINT_LENGTH) throw ex;
+                    received.position(start);
+                    return;
+                }
+                if (length <= 0 || length > MAX_PACKET_LENGTH) throw new ProtocolException("Invalid packet length");
+                if (received.remaining() < length) {
+                    received.position(start);
+                    return;
+                }
+
+                int end = received.position() + length;
+                int packetId = DatatypeUtil.readVarInt(received);
+                if (packetId == STATUS && received.position() == end) {
+                    statusRequested = true;
+                } else if (packetId == PING && end - received.position() == PING_PAYLOAD_LENGTH) {
+                    pingPayload = received.getLong();
+                    pingReceived = true;
+                } else {
+                    throw new ProtocolException("Unexpected packet " + packetId + " during status exchange");
+                }
+                received.position(end);
+            }
+        } finally {
+            received.compact();
+        }
+    }
+
+    /**
+     * Get the next response that has to be sent to the client. The status response is handed out once the client
+     * requested it and it is known, the pong once the client sent its ping after that.
+     * @return Buffer holding the response, or null if no response is ready.
+     */
+    public ByteBuffer nextResponse() {
+        if (finished) return null;
+        if (statusRequested && !statusSent) {
+            if (!status.isDone() || status.isCompletedExceptionally()) return null;
+            statusSent = true;
+            return ByteBuffer.wrap(status.join());
+        }
+        if (pingReceived) {
+            finished = true;
+            ByteBuffer pong = ByteBuffer.allocate(2 + PING_PAYLOAD_LENGTH);
+            pong.put((byte) (1 + PING_PAYLOAD_LENGTH)).put((byte) PING).putLong(pingPayload);
+            pong.flip();
+            return pong;
+        }
+        return null;
+    }
+
+    /**
+     * Check if the client requested the status and it is still being queried from the backend server.
+     * @return true if the status response isn't known yet, otherwise false.
+     */
+    public boolean isWaitingForStatus() {
+        return statusRequested && !status.isDone();
+    }
+
+    /**
+     * Block until the status is known. Used by the blocking engine, the query is bounded by its own timeouts.
+     */
+    public void awaitStatus() {
+        try {
+            status.join();
+        } catch (CompletionException ex) {
+            // Reported by isFailed()
+        }
+    }
+
+    /**
+     * Run a task once the status is known, or right away if it is known already.
+     * @param task Task to run, on the thread completing the query or the calling thread.
+     */
+    public void whenStatusKnown(Runnable task) {
+        status.whenComplete((response, ex) -> task.run());
+    }
+
+    /**
+     * Check if the status requested by the client couldn't be queried from the backend server.
+     * @return true if the exchange failed and the client has to be disconnected, otherwise false.
+     */
+    public boolean isFailed() {
+        return statusRequested && !statusSent && status.isCompletedExceptionally();
+    }
+
+    /**
+     * Check if the pong was handed out, which ends the exchange.
+     * @return true if the exchange is finished, otherwise false.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Get the time left until the exchange has to be finished.
+     * @return Remaining time in milliseconds. Zero or negative once the deadline passed.
+     */
+    public long getRemainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    /**
+     * Get the time the client has to finish the exchange.
+     * @return Timeout in milliseconds.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+}
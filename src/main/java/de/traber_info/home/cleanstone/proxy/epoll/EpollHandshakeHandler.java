@@ -0,0 +1,527 @@
+package de.traber_info.home.cleanstone.proxy.epoll;
+
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import de.traber_info.home.cleanstone.model.object.HandshakeDecoder;
+import de.traber_info.home.cleanstone.proxy.AdmissionControl;
+import de.traber_info.home.cleanstone.proxy.Backend;
+import de.traber_info.home.cleanstone.proxy.BackendConnector;
+import de.traber_info.home.cleanstone.proxy.BackendResolver;
+import de.traber_info.home.cleanstone.proxy.ConnectionLifecycle;
+import de.traber_info.home.cleanstone.proxy.ConnectionLimiter;
+import de.traber_info.home.cleanstone.proxy.HandshakeRouter;
+import de.traber_info.home.cleanstone.proxy.StatusResponder;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First handler of every client channel. Collects the handshake, connects to the corresponding backend server on
+ * the client's event loop and then hands the connection over to splice() based relaying. If the backend server has
+ * several addresses, they are raced just like {@link BackendConnector} does.
+ *
+ * @author Oliver Traber
+ */
+public class EpollHandshakeHandler extends ChannelInboundHandlerAdapter {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(EpollHandshakeHandler.class.getName());
+
+    /** Use splice() to relay data */
+    private final boolean splice;
+
+    /** Lifecycle of the client connection */
+    private final ConnectionLifecycle lifecycle;
+
+    /** Decoder the handshake is collected in. Null once the handshake was routed */
+    private HandshakeDecoder decoder;
+
+    /** Task closing the client channel if the handshake isn't complete in time */
+    private ScheduledFuture<?> handshakeTimeout;
+
+    /** Responder answering the server list ping of the client from the cache, or null if the client joins */
+    private StatusResponder statusResponder;
+
+    /** Task closing the client channel if the status exchange isn't finished in time */
+    private ScheduledFuture<?> statusTimeout;
+
+    /** Handshake and data received after it, which have to be forwarded once the backend server is connected */
+    private final CompositeByteBuf pendingData = Unpooled.compositeBuffer();
+
+    /** True if the client shut down its output after the handshake was routed */
+    private boolean inputShutdown = false;
+
+    /** Backend server chosen for the connection. Null until the handshake is routed */
+    private Backend backend;
+
+    /** Packet sent to the client if the backend server can't be connected, or null if the client pings */
+    private ByteBuffer disconnectPacket;
+
+    /** Time in milliseconds all connect attempts together may take, 0 waits forever */
+    private long connectTimeoutMillis;
+
+    /** Time in milliseconds the backend server has to send its first byte, 0 waits forever */
+    private long firstByteTimeoutMillis;
+
+    /** Bootstrap creating the channels of the connect attempts */
+    private Bootstrap bootstrap;
+
+    /** Resolved addresses of the backend server, in the order they are tried */
+    private InetSocketAddress[] addresses;
+
+    /** Index of the next address to start a connect attempt for */
+    private int nextAddress;
+
+    /** Channels of the connect attempts in flight */
+    private final List<Channel> attempts = new ArrayList<>();
+
+    /** True once an attempt won the race or the connect was given up */
+    private boolean raceFinished = false;
+
+    /** Point in time the first connect attempt was started at, in nanoseconds */
+    private long connectStartedAt;
+
+    /** Task starting the next connect attempt if none of the attempts in flight completed in time */
+    private ScheduledFuture<?> attemptTimer;
+
+    /** Task giving up on the backend server if no connect attempt succeeded in time */
+    private ScheduledFuture<?> connectTimeout;
+
+    /**
+     * Create a new handshake handler for a client channel.
+     * @param splice Use splice() to relay data.
+     * @param lifecycle Lifecycle of the client connection.
+     */
+    public EpollHandshakeHandler(boolean splice, ConnectionLifecycle lifecycle) {
+        this.splice = splice;
+        this.lifecycle = lifecycle;
+    }
+
+    /**
+     * Start collecting the handshake and limit the time the client has to send it.
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        decoder = new HandshakeDecoder(ConfigUtil.getConfig().getHandshakeSettings());
+        handshakeTimeout = ctx.executor().schedule(() -> {
+            if (decoder == null) return;
+            Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.TIMEOUT);
+            LOG.warn("Client {} didn't send its handshake within {} ms. Closing client socket.",
+                    ctx.channel().remoteAddress(), decoder.getTimeoutMillis());
+            lifecycle.close(null);
+        }, decoder.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collect data until the handshake is complete and start routing it.
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ByteBuf data = (ByteBuf) msg;
+        if (statusResponder != null) {
+            try {
+                statusResponder.append(data.nioBuffer());
+            } catch (ProtocolException ex) {
+                LOG.warn("Invalid status ping from {}: {}. Closing client socket.",
+                        ctx.channel().remoteAddress(), ex.getMessage());
+                lifecycle.close(null);
+                return;
+            } finally {
+                data.release();
+            }
+            flushStatus(ctx);
+            return;
+        }
+        if (decoder == null) {
+            pendingData.addComponent(true, data);
+            return;
+        }
+
+        HandshakeRouter.Route route;
+        try {
+            ByteBuffer received = data.nioBuffer();
+            int start = received.position();
+            decoder.append(received);
+            data.skipBytes(received.position() - start);
+            if (!decoder.isComplete()) return;
+            route = HandshakeRouter.route(
+                    decoder.decode(),
+                    (InetSocketAddress) ctx.channel().remoteAddress(),
+                    (InetSocketAddress) ctx.channel().localAddress()
+            );
+            if (route != null && !ConnectionLimiter.admit(route, lifecycle)) return;
+            if (route != null && !AdmissionControl.admit(route, lifecycle)) {
+                // Tell the client that the server is full instead of dropping it
+                if (!route.requestsStatus()) {
+                    releaseDecoder();
+                    disconnect(ctx, AdmissionControl.getDisconnectPacket());
+                    return;
+                }
+                statusResponder = new StatusResponder(route, decoder.getTimeoutMillis(),
+                        AdmissionControl.getStatus(route));
+                statusResponder.append(data.nioBuffer());
+            } else if (route != null && route.answersStatusLocally()) {
+                statusResponder = new StatusResponder(route, decoder.getTimeoutMillis());
+                statusResponder.append(data.nioBuffer());
+            } else if (route != null) {
+                // Queue the handshake for the backend server, it is sent with the PROXY protocol header and the
+                // data following the handshake in one gathering write once the backend server is connected
+                int initialLength = route.getInitialDataLength();
+                ByteBuf initialData = ctx.alloc().directBuffer(initialLength);
+                route.writeInitialData(initialData.nioBuffer(0, initialLength));
+                pendingData.addComponent(true, initialData.writerIndex(initialLength));
+                pendingData.addComponent(true, data.retain());
+            }
+        } catch (ProtocolException ex) {
+            Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.INVALID);
+            LOG.warn("Invalid handshake from {}: {}. Closing client socket.",
+                    ctx.channel().remoteAddress(), ex.getMessage());
+            lifecycle.close(null);
+            return;
+        } finally {
+            data.release();
+        }
+        releaseDecoder();
+        if (route == null) {
+            lifecycle.close(null);
+            return;
+        }
+        if (statusResponder != null) {
+            // Answer the server list ping locally, the backend server isn't connected at all
+            statusTimeout = ctx.executor().schedule(() -> {
+                LOG.warn("Client {} didn't finish its status ping within {} ms. Closing client socket.",
+                        ctx.channel().remoteAddress(), statusResponder.getTimeoutMillis());
+                lifecycle.close(null);
+            }, statusResponder.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            statusResponder.whenStatusKnown(() -> ctx.executor().execute(() -> flushStatus(ctx)));
+            return;
+        }
+
+        // Stop reading from the client until the backend server is connected
+        ctx.channel().config().setAutoRead(false);
+
+        // Choose one of the backend servers of the mapping and count the connection until it is closed.
+        // Backend servers that keep failing are skipped, so the join fails right away if none is left
+        disconnectPacket = route.getDisconnectPacket();
+        connectTimeoutMillis = route.getMapping().getConnectTimeoutMillis();
+        firstByteTimeoutMillis = route.getMapping().getFirstByteTimeoutMillis();
+        backend = route.getBackendGroup().select();
+        if (backend == null) {
+            LOG.warn("No backend server for {} is available. Disconnecting client {}.",
+                    route.getMapping().getMappingDomain(), ctx.channel().remoteAddress());
+            disconnect(ctx, disconnectPacket);
+            return;
+        }
+        backend.acquire(lifecycle);
+        Metrics.trackMapping(route.getMapping().getMappingDomain(), lifecycle);
+
+        // Resolve the backend server address off the event loop, since the lookup may block
+        BackendResolver.resolve(backend).whenComplete((resolved, ex) ->
+                ctx.channel().eventLoop().execute(() -> connect(ctx, resolved)));
+    }
+
+    /**
+     * Write all responses to the server list ping that are ready and close the client channel once the exchange
+     * is finished. Must be called on the event loop of the client channel.
+     * @param ctx Context of this handler.
+     */
+    private void flushStatus(ChannelHandlerContext ctx) {
+        if (!ctx.channel().isActive()) return;
+        ByteBuffer response;
+        while ((response = statusResponder.nextResponse()) != null) {
+            ctx.write(Unpooled.wrappedBuffer(response));
+        }
+        if (statusResponder.isFinished() || statusResponder.isFailed()) {
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFuture future) -> lifecycle.close(null));
+            return;
+        }
+        ctx.flush();
+    }
+
+    /**
+     * Start racing the addresses of the backend server on the client's event loop, which is required for splicing.
+     * @param ctx Context of this handler.
+     * @param resolved Resolved addresses of the backend server, or null if the resolution failed.
+     */
+    private void connect(ChannelHandlerContext ctx, InetSocketAddress[] resolved) {
+        Channel clientChannel = ctx.channel();
+        if (!clientChannel.isActive()) return;
+        if (resolved == null) {
+            LOG.error("Failed to resolve backend server address. Closing client socket.");
+            backend.recordConnectFailure("address can't be resolved");
+            disconnect(ctx, disconnectPacket);
+            return;
+        }
+
+        addresses = resolved;
+        bootstrap = new Bootstrap()
+                .group(clientChannel.eventLoop())
+                .channel(EpollSocketChannel.class)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, newRecvBufAllocator())
+                .handler(new RelayHandler(clientChannel, lifecycle, ConnectionLifecycle.Direction.SERVER_TO_CLIENT));
+
+        connectStartedAt = System.nanoTime();
+        if (connectTimeoutMillis > 0) {
+            connectTimeout = ctx.executor().schedule(
+                    () -> connectFailed(ctx, "Connect timed out after " + connectTimeoutMillis + " ms"),
+                    connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        startAttempt(ctx);
+    }
+
+    /**
+     * Start a connect attempt to the next address of the backend server and schedule the attempt after it, in
+     * case this one doesn't complete within the attempt delay.
+     * @param ctx Context of this handler.
+     */
+    private void startAttempt(ChannelHandlerContext ctx) {
+        if (attemptTimer != null) attemptTimer.cancel(false);
+        attemptTimer = null;
+        if (raceFinished || !ctx.channel().isActive() || nextAddress >= addresses.length) return;
+
+        InetSocketAddress address = addresses[nextAddress++];
+        // Schedule the next attempt first, a connect failing right away starts it on its own
+        if (nextAddress < addresses.length) {
+            attemptTimer = ctx.executor().schedule(() -> startAttempt(ctx),
+                    BackendConnector.ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        ChannelFuture attempt = bootstrap.connect(address);
+        attempts.add(attempt.channel());
+        attempt.addListener((ChannelFuture future) -> onAttemptComplete(ctx, future));
+    }
+
+    /**
+     * Use the connection of the attempt that won the race, or start the next attempt right away after a failure.
+     * @param ctx Context of this handler.
+     * @param future Completed connect of an attempt.
+     */
+    private void onAttemptComplete(ChannelHandlerContext ctx, ChannelFuture future) {
+        Channel serverChannel = future.channel();
+        attempts.remove(serverChannel);
+        if (raceFinished || !ctx.channel().isActive()) {
+            serverChannel.close();
+            return;
+        }
+        if (!future.isSuccess()) {
+            if (nextAddress < addresses.length) {
+                startAttempt(ctx);
+            } else if (attempts.isEmpty()) {
+                connectFailed(ctx, future.cause().getMessage());
+            }
+            return;
+        }
+
+        finishRace();
+        backend.recordConnectLatency(System.nanoTime() - connectStartedAt);
+        backend.getCircuitBreaker().recordSuccess();
+
+        Channel clientChannel = ctx.channel();
+        InetSocketAddress address = (InetSocketAddress) serverChannel.remoteAddress();
+        if (!lifecycle.open(address, RelayHandler.endpoint((EpollSocketChannel) serverChannel))) return;
+        LOG.info("Starting proxy {} <-> {}...", clientChannel.remoteAddress(), serverChannel.remoteAddress());
+
+        // Write the handshake and all data received so far before any further client data is relayed
+        serverChannel.writeAndFlush(pendingData.retain())
+                .addListener((ChannelFuture writeFuture) -> {
+                    if (!writeFuture.isSuccess()) {
+                        lifecycle.close(writeFuture.cause());
+                        return;
+                    }
+                    startRelay(ctx, serverChannel);
+                });
+    }
+
+    /**
+     * Count a failed connect towards the circuit breaker of the backend server and disconnect the client.
+     * @param ctx Context of this handler.
+     * @param cause Reason of the failure.
+     */
+    private void connectFailed(ChannelHandlerContext ctx, String cause) {
+        if (raceFinished) return;
+        finishRace();
+        LOG.warn("Failed to connect to backend server {} for client {}: {}",
+                backend, ctx.channel().remoteAddress(), cause);
+        backend.recordConnectFailure(cause);
+        disconnect(ctx, disconnectPacket);
+    }
+
+    /**
+     * End the race by closing all connect attempts in flight and cancelling its timers.
+     */
+    private void finishRace() {
+        raceFinished = true;
+        for (Channel attempt : attempts) {
+            attempt.close();
+        }
+        attempts.clear();
+        if (attemptTimer != null) attemptTimer.cancel(false);
+        if (connectTimeout != null) connectTimeout.cancel(false);
+    }
+
+    /**
+     * Tell a joining client why it can't join, e.g. that its backend server isn't available, and close the
+     * client channel once the packet is written.
+     * @param ctx Context of this handler.
+     * @param disconnectPacket Packet sent to the client, or null to just close the client channel.
+     */
+    private void disconnect(ChannelHandlerContext ctx, ByteBuffer disconnectPacket) {
+        if (disconnectPacket == null || !ctx.channel().isActive()) {
+            lifecycle.close(null);
+            return;
+        }
+        ctx.writeAndFlush(Unpooled.wrappedBuffer(disconnectPacket))
+                .addListener((ChannelFuture future) -> lifecycle.close(null));
+    }
+
+    /**
+     * Start relaying between client and backend server. Uses splice() if enabled and falls back to copying
+     * through the pipeline if splicing fails.
+     * @param ctx Context of this handler.
+     * @param serverChannel Connected channel to the backend server.
+     */
+    private void startRelay(ChannelHandlerContext ctx, Channel serverChannel) {
+        Channel clientChannel = ctx.channel();
+        ctx.pipeline().replace(this, "relay",
+                new RelayHandler(serverChannel, lifecycle, ConnectionLifecycle.Direction.CLIENT_TO_SERVER));
+        if (!clientChannel.isActive()) {
+            lifecycle.close(null);
+            return;
+        }
+        if (inputShutdown) {
+            // The client finished sending before relaying started, all of its data is written already
+            lifecycle.finish(ConnectionLifecycle.Direction.CLIENT_TO_SERVER);
+        }
+
+        if (splice) {
+            splice((AbstractEpollStreamChannel) clientChannel, (AbstractEpollStreamChannel) serverChannel);
+        } else {
+            // Spliced data bypasses the pipeline, so only copied relays can tell whether they are idle
+            lifecycle.closeWhenIdle(ConfigUtil.getConfig().getTransportSettings().getIdleTimeoutMillis(),
+                    clientChannel.eventLoop());
+        }
+        if (firstByteTimeoutMillis > 0) {
+            // Copy the first data of the backend server through the pipeline to see it, then splice the rest
+            serverChannel.pipeline().addFirst("first-byte", new FirstByteHandler(clientChannel, lifecycle, backend,
+                    disconnectPacket, firstByteTimeoutMillis, () -> {
+                        if (splice) {
+                            splice((AbstractEpollStreamChannel) serverChannel,
+                                    (AbstractEpollStreamChannel) clientChannel);
+                        }
+                    }));
+        } else if (splice) {
+            splice((AbstractEpollStreamChannel) serverChannel, (AbstractEpollStreamChannel) clientChannel);
+        }
+
+        clientChannel.config().setAutoRead(true);
+        serverChannel.config().setAutoRead(true);
+    }
+
+    /**
+     * Splice all data from one channel to another until one of them is closed.
+     * @param source Channel from which data is read.
+     * @param target Channel to which data is written.
+     */
+    private static void splice(AbstractEpollStreamChannel source, AbstractEpollStreamChannel target) {
+        source.spliceTo(target, Integer.MAX_VALUE).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess() && source.isActive() && target.isActive()) {
+                LOG.warn("Splicing {} -> {} failed. Falling back to copying: {}",
+                        source.remoteAddress(), target.remoteAddress(), future.cause().getMessage());
+            }
+        });
+    }
+
+    /**
+     * Create the allocator sizing the receive buffers of the copy fallback, using the relay buffer settings.
+     * Spliced data doesn't need receive buffers at all.
+     * @return Receive buffer allocator adapting to the observed throughput.
+     */
+    static RecvByteBufAllocator newRecvBufAllocator() {
+        ConfigFile.RelayBufferSettings settings = ConfigUtil.getConfig().getRelayBufferSettings();
+        int maxSize = Math.max(settings.getMinSize(), settings.getMaxSize());
+        int initialSize = Math.min(maxSize, Math.max(settings.getMinSize(), settings.getInitialSize()));
+        return new AdaptiveRecvByteBufAllocator(settings.getMinSize(), initialSize, maxSize);
+    }
+
+    /**
+     * Remember that the client shut down its output, so the backend server can be told once relaying starts.
+     * A client that stops sending before its handshake or status ping is complete is disconnected.
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            if (decoder != null || (statusResponder != null && !statusResponder.isFinished())) {
+                lifecycle.close(null);
+            } else {
+                inputShutdown = true;
+            }
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    /**
+     * Close the connection if the client disconnects before relaying started.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        lifecycle.close(null);
+    }
+
+    /**
+     * Release data that wasn't forwarded once the handler is removed or the client channel is closed.
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releaseDecoder();
+        if (statusTimeout != null) statusTimeout.cancel(false);
+        if (!raceFinished) finishRace();
+        pendingData.release();
+    }
+
+    /**
+     * Stop collecting the handshake and give the buffer of the decoder back to the pool.
+     */
+    private void releaseDecoder() {
+        if (decoder == null) return;
+        handshakeTimeout.cancel(false);
+        decoder.release();
+        decoder = null;
+    }
+
+    /**
+     * Close the client channel if handling the handshake fails.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        LOG.error("An unexpected error occurred...", cause);
+        lifecycle.close(cause);
+    }
+
+}
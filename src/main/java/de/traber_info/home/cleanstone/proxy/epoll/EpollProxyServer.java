@@ -0,0 +1,139 @@
+package de.traber_info.home.cleanstone.proxy.epoll;
+
+import de.traber_info.home.cleanstone.proxy.AccessList;
+import de.traber_info.home.cleanstone.proxy.AdmissionControl;
+import de.traber_info.home.cleanstone.proxy.ConnectionLifecycle;
+import de.traber_info.home.cleanstone.proxy.ConnectionLimiter;
+import de.traber_info.home.cleanstone.proxy.ListenerShard;
+import de.traber_info.home.cleanstone.proxy.ProxyServer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Transport engine based on Netty's native Linux epoll transport. After the handshake, data is moved between
+ * client and backend server with the splice() system call, so the payload never enters the JVM heap.
+ *
+ * @author Oliver Traber
+ */
+public class EpollProxyServer extends ProxyServer {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(EpollProxyServer.class.getName());
+
+    /** Count of event loops accepting connections */
+    private final int acceptorCount;
+
+    /** Count of event loops the connections are distributed over */
+    private final int eventLoopCount;
+
+    /** Use splice() to relay data. If false, data is always copied through the JVM */
+    private final boolean splice;
+
+    /** Attribute holding the listener shard a server channel belongs to */
+    private static final AttributeKey<ListenerShard> SHARD = AttributeKey.valueOf("cleanstone.shard");
+
+    /** Bootstrap the listening sockets are bound with. Set by {@link #start()} */
+    private ServerBootstrap bootstrap;
+
+    /**
+     * Create a new instance of the epoll transport engine.
+     * @param acceptorCount Count of event loops accepting connections. Usually the count of listener shards.
+     * @param eventLoopCount Count of event loops the connections are distributed over.
+     * @param splice Use splice() to relay data. If false, data is always copied through the JVM.
+     */
+    public EpollProxyServer(int acceptorCount, int eventLoopCount, boolean splice) {
+        this.acceptorCount = acceptorCount;
+        this.eventLoopCount = eventLoopCount;
+        this.splice = splice;
+    }
+
+    /**
+     * Check if the native epoll transport can be used on this platform.
+     * @return true if the native epoll transport is available, otherwise false.
+     */
+    public static boolean isAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    /**
+     * Get the reason why the native epoll transport isn't available.
+     * @return Cause why the native epoll transport isn't available, or null if it is available.
+     */
+    public static Throwable unavailabilityCause() {
+        return Epoll.unavailabilityCause();
+    }
+
+    /**
+     * Create the event loops and the bootstrap of the listening sockets. The acceptor event loops are kept when
+     * the listening sockets are rebound, so rebinding doesn't create new threads.
+     */
+    @Override
+    public void start() {
+        EventLoopGroup bossGroup = new EpollEventLoopGroup(acceptorCount);
+        EventLoopGroup workerGroup = new EpollEventLoopGroup(eventLoopCount);
+        // splice() requires level-triggered mode on both channels
+        bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(EpollServerSocketChannel.class)
+                .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                .childOption(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, EpollHandshakeHandler.newRecvBufAllocator())
+                .childHandler(new ChannelInitializer<EpollSocketChannel>() {
+                    @Override
+                    protected void initChannel(EpollSocketChannel channel) {
+                        channel.parent().attr(SHARD).get().recordAccept();
+                        if (!AccessList.admit(channel.remoteAddress().getAddress())) {
+                            channel.close();
+                            return;
+                        }
+                        ConnectionLifecycle lifecycle = new ConnectionLifecycle(
+                                channel.remoteAddress(), RelayHandler.endpoint(channel));
+                        if (!ConnectionLimiter.admit(lifecycle)) return;
+                        if (!AdmissionControl.admit(lifecycle)) return;
+                        channel.pipeline().addLast(new EpollHandshakeHandler(splice, lifecycle));
+                    }
+                });
+    }
+
+    /**
+     * Bind the socket of a shard, which is registered with its own acceptor event loop.
+     * @param shard Shard the socket belongs to.
+     * @param port Port the socket should be bound to.
+     * @param reusePort Set SO_REUSEPORT on the socket.
+     * @throws IOException Thrown if the socket can't be bound.
+     */
+    @Override
+    protected void bindShard(ListenerShard shard, int port, boolean reusePort) throws IOException {
+        ChannelFuture future = bootstrap.clone()
+                .option(EpollChannelOption.SO_REUSEPORT, reusePort)
+                .attr(SHARD, shard)
+                .bind(port)
+                .awaitUninterruptibly();
+        if (!future.isSuccess()) throw new IOException("Failed to bind port " + port, future.cause());
+        Channel serverChannel = future.channel();
+        shard.setListener(port, () -> serverChannel.close().syncUninterruptibly());
+        serverChannel.closeFuture().addListener(closed -> {
+            if (shard.isClosed()) {
+                LOG.info("Stopped listening on port {} (listener shard #{})", port, shard.getIndex());
+            }
+        });
+        LOG.info("Listening on port {} using {} epoll event loops (listener shard #{}, splice {})",
+                port, eventLoopCount, shard.getIndex(), splice ? "enabled" : "disabled");
+    }
+
+}
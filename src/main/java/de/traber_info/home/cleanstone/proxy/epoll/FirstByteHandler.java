@@ -0,0 +1,114 @@
+package de.traber_info.home.cleanstone.proxy.epoll;
+
+import de.traber_info.home.cleanstone.proxy.Backend;
+import de.traber_info.home.cleanstone.proxy.ConnectionLifecycle;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handler placed in front of the relay of a backend server channel while waiting for the first data of the backend
+ * server. Disconnects the client if the backend server accepted the connection but doesn't send anything in time,
+ * and removes itself once the first data arrived. Splicing from the backend server is only started afterwards,
+ * since spliced data bypasses the pipeline.
+ *
+ * @author Oliver Traber
+ */
+public class FirstByteHandler extends ChannelInboundHandlerAdapter {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(FirstByteHandler.class.getName());
+
+    /** Channel of the client the backend server should answer */
+    private final Channel clientChannel;
+
+    /** Lifecycle of the connection */
+    private final ConnectionLifecycle lifecycle;
+
+    /** Backend server whose circuit breaker is told about a timeout */
+    private final Backend backend;
+
+    /** Packet sent to the client if the backend server doesn't answer, or null */
+    private final ByteBuffer disconnectPacket;
+
+    /** Time in milliseconds the backend server has to send its first byte */
+    private final long timeoutMillis;
+
+    /** Action run on the event loop once the first data arrived */
+    private final Runnable onFirstByte;
+
+    /** Task disconnecting the client if the backend server doesn't answer in time */
+    private ScheduledFuture<?> timeout;
+
+    /**
+     * Create a new first byte handler.
+     * @param clientChannel Channel of the client the backend server should answer.
+     * @param lifecycle Lifecycle of the connection.
+     * @param backend Backend server the channel is connected to.
+     * @param disconnectPacket Packet sent to the client if the backend server doesn't answer, or null.
+     * @param timeoutMillis Time in milliseconds the backend server has to send its first byte.
+     * @param onFirstByte Action run on the event loop once the first data arrived.
+     */
+    public FirstByteHandler(Channel clientChannel, ConnectionLifecycle lifecycle, Backend backend,
+                            ByteBuffer disconnectPacket, long timeoutMillis, Runnable onFirstByte) {
+        this.clientChannel = clientChannel;
+        this.lifecycle = lifecycle;
+        this.backend = backend;
+        this.disconnectPacket = disconnectPacket;
+        this.timeoutMillis = timeoutMillis;
+        this.onFirstByte = onFirstByte;
+    }
+
+    /**
+     * Start waiting for the first data of the backend server.
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        timeout = ctx.executor().schedule(() -> onTimeout(ctx), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand the first data to the relay and get out of the way.
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ctx.fireChannelRead(msg);
+        ctx.pipeline().remove(this);
+        onFirstByte.run();
+    }
+
+    /**
+     * Disconnect the client if the backend server didn't answer in time. Nothing was relayed to the client yet, so
+     * it can still be told that the backend server isn't available.
+     * @param ctx Context of this handler.
+     */
+    private void onTimeout(ChannelHandlerContext ctx) {
+        if (ctx.isRemoved()) return;
+        LOG.warn("Backend server {} didn't answer client {} within {} ms. Disconnecting client.",
+                backend, clientChannel.remoteAddress(), timeoutMillis);
+        backend.getCircuitBreaker().recordFailure("no answer within " + timeoutMillis + " ms");
+        if (disconnectPacket == null || !clientChannel.isActive()) {
+            lifecycle.close(null);
+            return;
+        }
+        clientChannel.writeAndFlush(Unpooled.wrappedBuffer(disconnectPacket))
+                .addListener((ChannelFuture future) -> lifecycle.close(null));
+    }
+
+    /**
+     * Stop waiting once the handler is removed or the backend server channel is closed.
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (timeout != null) timeout.cancel(false);
+    }
+
+}
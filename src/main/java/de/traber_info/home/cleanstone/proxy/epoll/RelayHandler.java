@@ -0,0 +1,134 @@
+package de.traber_info.home.cleanstone.proxy.epoll;
+
+import de.traber_info.home.cleanstone.proxy.ConnectionLifecycle;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+
+/**
+ * Handler that copies all data read from its channel to a peer channel. Only sees data if splicing isn't used
+ * or has failed, since spliced data bypasses the pipeline. Reports the end of the input and the closing of its
+ * channel to the lifecycle of the connection in any case.
+ *
+ * @author Oliver Traber
+ */
+public class RelayHandler extends ChannelInboundHandlerAdapter {
+
+    /** Channel to which data is written */
+    private final Channel peer;
+
+    /** Lifecycle of the connection */
+    private final ConnectionLifecycle lifecycle;
+
+    /** Direction of the data read from this handler's channel */
+    private final ConnectionLifecycle.Direction direction;
+
+    /**
+     * Create a new relay handler.
+     * @param peer Channel to which data read from this handler's channel is written.
+     * @param lifecycle Lifecycle of the connection.
+     * @param direction Direction of the data read from this handler's channel.
+     */
+    public RelayHandler(Channel peer, ConnectionLifecycle lifecycle, ConnectionLifecycle.Direction direction) {
+        this.peer = peer;
+        this.lifecycle = lifecycle;
+        this.direction = direction;
+    }
+
+    /**
+     * Write data read from the channel to the peer. Stops reading while the peer can't keep up.
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        lifecycle.recordRead(direction, ((ByteBuf) msg).readableBytes());
+        peer.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        if (!peer.isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Resume reading from the peer once this handler's channel can take more data.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            peer.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    /**
+     * Finish this direction once the input of the channel ended and all data was written to the peer.
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            finishOnFlush(peer, lifecycle, direction);
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    /**
+     * Close the connection once all pending data is written to the peer, after this handler's channel was closed.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (peer.isActive()) {
+            peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(future -> lifecycle.close(null));
+        } else {
+            lifecycle.close(null);
+        }
+    }
+
+    /**
+     * Close the connection if relaying fails.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        lifecycle.close(cause);
+    }
+
+    /**
+     * Finish a direction of the connection once all pending data was written to the target.
+     * @param target Channel the direction writes to.
+     * @param lifecycle Lifecycle of the connection.
+     * @param direction Direction that should be finished.
+     */
+    static void finishOnFlush(Channel target, ConnectionLifecycle lifecycle, ConnectionLifecycle.Direction direction) {
+        target.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                lifecycle.finish(direction);
+            } else {
+                lifecycle.close(future.cause());
+            }
+        });
+    }
+
+    /**
+     * Create a lifecycle endpoint for a channel.
+     * @param channel Channel of the endpoint.
+     * @return Endpoint operating on the channel.
+     */
+    static ConnectionLifecycle.Endpoint endpoint(DuplexChannel channel) {
+        return new ConnectionLifecycle.Endpoint() {
+            @Override
+            public void shutdownOutput() {
+                channel.shutdownOutput();
+            }
+
+            @Override
+            public void close() {
+                channel.close();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,132 @@
+package de.traber_info.home.cleanstone.proxy.nio;
+
+import de.traber_info.home.cleanstone.buffer.BufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single threaded event loop that multiplexes many non-blocking channels over one {@link Selector}.
+ * All channels registered with an event loop are only ever touched by its thread.
+ *
+ * @author Oliver Traber
+ */
+public class EventLoop implements Runnable {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoop.class.getName());
+
+    /** Selector used to wait for ready channels */
+    private final Selector selector;
+
+    /** Tasks submitted from other threads that have to be run on the event loop thread */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** Thread running this event loop */
+    private final Thread thread;
+
+    /**
+     * Create a new event loop.
+     * @param name Name of the thread running the event loop.
+     * @throws IOException Thrown if the selector can't be opened.
+     */
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    /**
+     * Start the thread running this event loop.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Run the given task on the event loop thread.
+     * @param task Task that should be run on the event loop thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Check if the calling thread is the thread running this event loop.
+     * @return true if called from the event loop thread, otherwise false.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Register a channel with this event loop. Must be called on the event loop thread.
+     * @param channel Non-blocking channel that should be registered.
+     * @param ops Interest set the channel should be registered with.
+     * @param handler Handler that is called once the channel is selected.
+     * @return {@link SelectionKey} representing the registration.
+     * @throws ClosedChannelException Thrown if the channel is already closed.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, SelectionHandler handler)
+            throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Main loop. Waits for ready channels, dispatches them to their handlers and runs submitted tasks.
+     */
+    @Override
+    public void run() {
+        BufferPool.heap().enableThreadCache();
+        BufferPool.direct().enableThreadCache();
+        while (true) {
+            try {
+                // Don't block if tasks were submitted from the event loop itself, since those don't wake it up
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        ((SelectionHandler) key.attachment()).handle(key);
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.error("An unexpected error occurred...", ex);
+            } catch (RuntimeException ex) {
+                LOG.error("An unexpected error occurred in event loop {}...", thread.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Run all tasks submitted to this event loop.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOG.error("An unexpected error occurred in event loop {}...", thread.getName(), ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,747 @@
+package de.traber_info.home.cleanstone.proxy.nio;
+
+import de.traber_info.home.cleanstone.buffer.AdaptiveBufferSizer;
+import de.traber_info.home.cleanstone.buffer.BufferPool;
+import de.traber_info.home.cleanstone.buffer.PooledBuffer;
+import de.traber_info.home.cleanstone.metrics.Metrics;
+import de.traber_info.home.cleanstone.model.object.HandshakeDecoder;
+import de.traber_info.home.cleanstone.proxy.AdmissionControl;
+import de.traber_info.home.cleanstone.proxy.Backend;
+import de.traber_info.home.cleanstone.proxy.BackendConnector;
+import de.traber_info.home.cleanstone.proxy.BackendResolver;
+import de.traber_info.home.cleanstone.proxy.ConnectionLimiter;
+import de.traber_info.home.cleanstone.proxy.ConnectionLifecycle;
+import de.traber_info.home.cleanstone.proxy.HandshakeRouter;
+import de.traber_info.home.cleanstone.proxy.SocketPool;
+import de.traber_info.home.cleanstone.proxy.StatusResponder;
+import de.traber_info.home.cleanstone.util.ConfigUtil;
+import de.traber_info.home.cleanstone.util.SchedulerUtil;
+import de.traber_info.home.cleanstone.util.TimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Non-blocking counterpart to {@link de.traber_info.home.cleanstone.proxy.Connection}. Parses the handshake,
+ * connects to the backend server and relays data in both directions without ever blocking its event loop. If the
+ * backend server has several addresses, they are raced just like {@link BackendConnector} does.
+ *
+ * @author Oliver Traber
+ */
+public class NioConnection {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(NioConnection.class.getName());
+
+    /** States a connection passes through */
+    private enum State {
+        HANDSHAKE, STATUS, CONNECTING, RELAYING, CLOSED
+    }
+
+    /** Event loop all channels of this connection are registered with */
+    private final EventLoop eventLoop;
+
+    /** Channel for communication with and from the client */
+    private final SocketChannel clientChannel;
+
+    /** Channel for communication with and from the backend server */
+    private SocketChannel serverChannel;
+
+    /** Selection key of the client channel */
+    private SelectionKey clientKey;
+
+    /** Selection key of the backend server channel */
+    private SelectionKey serverKey;
+
+    /** Backend server chosen for this connection. Null until the handshake is routed */
+    private Backend backend;
+
+    /** Point in time the connect to the backend server was started at, in nanoseconds. 0 if it was pooled */
+    private long connectStartedAt;
+
+    /** Packet sent to the client if no backend server can be connected, or null if the client pings */
+    private ByteBuffer disconnectPacket;
+
+    /** Time in milliseconds all connect attempts together may take, 0 waits forever */
+    private long connectTimeoutMillis;
+
+    /** Time in milliseconds the backend server has to send its first byte, 0 waits forever */
+    private long firstByteTimeoutMillis;
+
+    /** Resolved addresses of the backend server, in the order they are tried */
+    private InetSocketAddress[] addresses;
+
+    /** Index of the next address to start a connect attempt for */
+    private int nextAddress;
+
+    /** Selection keys of the connect attempts in flight */
+    private final List<SelectionKey> attempts = new ArrayList<>();
+
+    /** Task starting the next connect attempt if none of the attempts in flight completed in time */
+    private TimerWheel.Timeout attemptTimer;
+
+    /** Task giving up on the backend server if no connect attempt succeeded in time */
+    private TimerWheel.Timeout connectTimeout;
+
+    /** Task giving up on the backend server if it doesn't send anything in time. Null once it did */
+    private TimerWheel.Timeout firstByteTimeout;
+
+    /** Lifecycle shared by both relay directions */
+    private final ConnectionLifecycle lifecycle;
+
+    /** Current state of the connection */
+    private State state = State.HANDSHAKE;
+
+    /** Decoder the handshake is collected in until it is complete */
+    private HandshakeDecoder decoder;
+
+    /** Task closing the connection if the handshake or the status exchange isn't complete in time */
+    private TimerWheel.Timeout handshakeTimeout;
+
+    /** Responder answering the server list ping of the client from the cache, or null if the client joins */
+    private StatusResponder statusResponder;
+
+    /** Response to the server list ping that couldn't be written completely yet, or null */
+    private ByteBuffer statusOutput;
+
+    /** Buffer holding the data that has to be sent to the backend server first, until relaying starts */
+    private PooledBuffer initialBuffer;
+
+    /** Relay from the client to the backend server */
+    private Direction clientToServer;
+
+    /** Relay from the backend server to the client */
+    private Direction serverToClient;
+
+    /**
+     * Create a new instance to handle an incoming client connection.
+     * @param eventLoop Event loop the connection is handled on.
+     * @param clientChannel Non-blocking channel for communication with and from the client.
+     */
+    public NioConnection(EventLoop eventLoop, SocketChannel clientChannel) {
+        this.eventLoop = eventLoop;
+        this.clientChannel = clientChannel;
+        this.lifecycle = new ConnectionLifecycle(
+                (InetSocketAddress) clientChannel.socket().getRemoteSocketAddress(),
+                ConnectionLifecycle.Endpoint.of(clientChannel)
+        );
+        lifecycle.whenClosed(this::releaseResources);
+    }
+
+    /**
+     * Get the lifecycle of the connection.
+     * @return Lifecycle shared by both relay directions.
+     */
+    public ConnectionLifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    /**
+     * Register the client channel with the event loop. Must be called on the event loop thread.
+     */
+    public void start() {
+        decoder = new HandshakeDecoder(ConfigUtil.getConfig().getHandshakeSettings());
+        handshakeTimeout = schedule(this::onHandshakeTimeout, decoder.getTimeoutMillis());
+        try {
+            clientKey = eventLoop.register(clientChannel, SelectionKey.OP_READ, this::handleClient);
+        } catch (IOException ex) {
+            LOG.error("An unexpected error occurred...", ex);
+            lifecycle.close(ex);
+        }
+    }
+
+    /**
+     * Handle ready operations on the client channel.
+     * @param key Selected key of the client channel.
+     */
+    private void handleClient(SelectionKey key) {
+        try {
+            if (state == State.HANDSHAKE) {
+                if (key.isReadable()) readHandshake();
+                return;
+            }
+            if (state == State.STATUS) {
+                if (key.isReadable()) readStatus();
+                if (key.isValid() && key.isWritable()) flushStatus();
+                return;
+            }
+            if (key.isReadable()) clientToServer.onReadable();
+            if (key.isValid() && key.isWritable()) serverToClient.onWritable();
+        } catch (IOException ex) {
+            lifecycle.close(ex);
+        }
+    }
+
+    /**
+     * Handle ready operations on the backend server channel.
+     * @param key Selected key of the backend server channel.
+     */
+    private void handleServer(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                if (firstByteTimeout != null) {
+                    firstByteTimeout.cancel();
+                    firstByteTimeout = null;
+                }
+                serverToClient.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) clientToServer.onWritable();
+        } catch (IOException ex) {
+            lifecycle.close(ex);
+        }
+    }
+
+    /**
+     * Handle a connect attempt to one of the addresses of the backend server that completed.
+     * @param key Selected key of the attempt's channel.
+     */
+    private void handleAttempt(SelectionKey key) {
+        try {
+            if (!((SocketChannel) key.channel()).finishConnect()) return;
+        } catch (IOException ex) {
+            attempts.remove(key);
+            closeQuietly((SocketChannel) key.channel());
+            attemptFailed(ex);
+            return;
+        }
+        attemptConnected(key);
+    }
+
+    /**
+     * Read handshake data from the client until the first packet is complete.
+     * @throws IOException Thrown if reading from the client fails.
+     */
+    private void readHandshake() throws IOException {
+        HandshakeRouter.Route route;
+        try {
+            if (!decoder.read(clientChannel)) {
+                lifecycle.close(null);
+                return;
+            }
+            if (!decoder.isComplete()) return;
+            route = HandshakeRouter.route(
+                    decoder.decode(),
+                    (InetSocketAddress) clientChannel.getRemoteAddress(),
+                    (InetSocketAddress) clientChannel.getLocalAddress()
+            );
+            if (route != null && !ConnectionLimiter.admit(route, lifecycle)) return;
+            if (route != null && !AdmissionControl.admit(route, lifecycle)) {
+                // Tell the client that the server is full instead of dropping it
+                if (!route.requestsStatus()) {
+                    disconnectPacket = AdmissionControl.getDisconnectPacket();
+                    disconnect();
+                    return;
+                }
+                statusResponder = new StatusResponder(route, decoder.getTimeoutMillis(),
+                        AdmissionControl.getStatus(route));
+            } else if (route != null && route.answersStatusLocally()) {
+                statusResponder = new StatusResponder(route, decoder.getTimeoutMillis());
+            }
+        } catch (ProtocolException ex) {
+            Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.INVALID);
+            LOG.warn("Invalid handshake from {}: {}. Closing client socket.",
+                    getRemoteAddress(clientChannel), ex.getMessage());
+            lifecycle.close(null);
+            return;
+        }
+        handshakeTimeout.cancel();
+        processHandshake(route);
+        decoder.release();
+    }
+
+    /**
+     * Close the connection if the client didn't send its complete handshake in time.
+     */
+    private void onHandshakeTimeout() {
+        if (state == State.STATUS) {
+            LOG.warn("Client {} didn't finish its status ping within {} ms. Closing client socket.",
+                    getRemoteAddress(clientChannel), statusResponder.getTimeoutMillis());
+            lifecycle.close(null);
+            return;
+        }
+        if (state != State.HANDSHAKE) return;
+        Metrics.recordHandshakeFailure(Metrics.HandshakeFailure.TIMEOUT);
+        LOG.warn("Client {} didn't send its handshake within {} ms. Closing client socket.",
+                getRemoteAddress(clientChannel), decoder.getTimeoutMillis());
+        lifecycle.close(null);
+    }
+
+    /**
+     * Start connecting to the backend server the handshake was routed to. Must be called before the decoder
+     * is released.
+     * @param route Route to the backend server, or null if the client connection should be closed.
+     */
+    private void processHandshake(HandshakeRouter.Route route) {
+        if (route == null) {
+            lifecycle.close(null);
+            return;
+        }
+        if (statusResponder != null) {
+            // Answer the server list ping locally, the backend server isn't connected at all
+            state = State.STATUS;
+            handshakeTimeout = schedule(this::onHandshakeTimeout, statusResponder.getTimeoutMillis());
+            statusResponder.whenStatusKnown(() -> eventLoop.execute(this::flushStatus));
+            return;
+        }
+
+        // Queue the handshake for the backend server, it is sent with the PROXY protocol header in one write
+        initialBuffer = BufferPool.direct().borrow(route.getInitialDataLength());
+        route.writeInitialData(initialBuffer.buffer());
+        initialBuffer.buffer().flip();
+
+        // Stop reading from the client until the backend server is connected
+        state = State.CONNECTING;
+        clientKey.interestOps(0);
+
+        // Choose one of the backend servers of the mapping and count the connection until it is closed.
+        // Backend servers that keep failing are skipped, so the join fails right away if none is left
+        disconnectPacket = route.getDisconnectPacket();
+        connectTimeoutMillis = route.getMapping().getConnectTimeoutMillis();
+        firstByteTimeoutMillis = route.getMapping().getFirstByteTimeoutMillis();
+        backend = route.getBackendGroup().select();
+        if (backend == null) {
+            LOG.warn("No backend server for {} is available. Disconnecting client {}.",
+                    route.getMapping().getMappingDomain(), getRemoteAddress(clientChannel));
+            disconnect();
+            return;
+        }
+        backend.acquire(lifecycle);
+        Metrics.trackMapping(route.getMapping().getMappingDomain(), lifecycle);
+
+        // Use an idle connection from the pool if there is one, it is connected already
+        SocketChannel pooled = SocketPool.take(backend);
+        if (pooled != null) {
+            try {
+                useServerKey(eventLoop.register(pooled, 0, this::handleServer));
+                finishConnect();
+            } catch (IOException ex) {
+                lifecycle.close(ex);
+            }
+            return;
+        }
+
+        // Resolve the backend server address off the event loop, since the lookup may block
+        BackendResolver.resolve(backend)
+                .whenComplete((resolved, ex) -> eventLoop.execute(() -> connect(resolved)));
+    }
+
+    /**
+     * Read the status request and ping of the client and answer them.
+     * @throws IOException Thrown if reading from the client fails.
+     */
+    private void readStatus() throws IOException {
+        try {
+            if (!statusResponder.read(clientChannel)) {
+                lifecycle.close(null);
+                return;
+            }
+        } catch (ProtocolException ex) {
+            LOG.warn("Invalid status ping from {}: {}. Closing client socket.",
+                    getRemoteAddress(clientChannel), ex.getMessage());
+            lifecycle.close(null);
+            return;
+        }
+        flushStatus();
+    }
+
+    /**
+     * Write all responses to the server list ping that are ready and close the connection once the exchange is
+     * finished. Must be called on the event loop thread.
+     */
+    private void flushStatus() {
+        if (state != State.STATUS) return;
+        try {
+            while (statusOutput != null || (statusOutput = statusResponder.nextResponse()) != null) {
+                clientChannel.write(statusOutput);
+                if (statusOutput.hasRemaining()) {
+                    clientKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                statusOutput = null;
+            }
+        } catch (IOException ex) {
+            lifecycle.close(ex);
+            return;
+        }
+        if (statusResponder.isFinished() || statusResponder.isFailed()) {
+            lifecycle.close(null);
+            return;
+        }
+        clientKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Start racing the addresses of the backend server. Must be called on the event loop thread.
+     * @param resolved Resolved addresses of the backend server, or null if the resolution failed.
+     */
+    private void connect(InetSocketAddress[] resolved) {
+        if (state != State.CONNECTING) return;
+        if (resolved == null) {
+            LOG.error("Failed to resolve backend server address. Closing client socket.");
+            backend.recordConnectFailure("address can't be resolved");
+            disconnect();
+            return;
+        }
+        addresses = resolved;
+        connectStartedAt = System.nanoTime();
+        if (connectTimeoutMillis > 0) {
+            connectTimeout = schedule(this::onConnectTimeout, connectTimeoutMillis);
+        }
+        startAttempt();
+    }
+
+    /**
+     * Start a non-blocking connect attempt to the next address of the backend server and schedule the attempt
+     * after it, in case this one doesn't complete within the attempt delay.
+     */
+    private void startAttempt() {
+        if (attemptTimer != null) attemptTimer.cancel();
+        attemptTimer = null;
+        if (state != State.CONNECTING || nextAddress >= addresses.length) return;
+
+        InetSocketAddress address = addresses[nextAddress++];
+        SocketChannel channel = null;
+        SelectionKey key = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = eventLoop.register(channel, SelectionKey.OP_CONNECT, this::handleAttempt);
+            attempts.add(key);
+            if (channel.connect(address)) {
+                attemptConnected(key);
+                return;
+            }
+        } catch (IOException ex) {
+            closeQuietly(channel);
+            attempts.remove(key);
+            attemptFailed(ex);
+            return;
+        }
+        if (nextAddress < addresses.length) {
+            attemptTimer = schedule(this::startAttempt, BackendConnector.ATTEMPT_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Start the next connect attempt right away after one failed, or give up if it was the last one.
+     * @param ex Failure of the attempt.
+     */
+    private void attemptFailed(IOException ex) {
+        if (state != State.CONNECTING) return;
+        if (nextAddress < addresses.length) {
+            startAttempt();
+        } else if (attempts.isEmpty()) {
+            connectFailed(ex.getMessage());
+        }
+    }
+
+    /**
+     * Use the connection of the attempt that won the race and close all other attempts.
+     * @param key Selection key of the connected channel.
+     */
+    private void attemptConnected(SelectionKey key) {
+        attempts.remove(key);
+        closeAttempts();
+        if (connectTimeout != null) connectTimeout.cancel();
+        useServerKey(key);
+        try {
+            finishConnect();
+        } catch (IOException ex) {
+            lifecycle.close(ex);
+        }
+    }
+
+    /**
+     * Give up on the backend server if no connect attempt succeeded in time.
+     */
+    private void onConnectTimeout() {
+        if (state != State.CONNECTING) return;
+        connectFailed("Connect timed out after " + connectTimeoutMillis + " ms");
+    }
+
+    /**
+     * Count a failed connect towards the circuit breaker of the backend server and disconnect the client.
+     * @param cause Reason of the failure.
+     */
+    private void connectFailed(String cause) {
+        LOG.warn("Failed to connect to backend server {} for client {}: {}",
+                backend, getRemoteAddress(clientChannel), cause);
+        backend.recordConnectFailure(cause);
+        disconnect();
+    }
+
+    /**
+     * Close all connect attempts in flight.
+     */
+    private void closeAttempts() {
+        for (SelectionKey attempt : attempts) {
+            closeQuietly((SocketChannel) attempt.channel());
+        }
+        attempts.clear();
+        if (attemptTimer != null) attemptTimer.cancel();
+    }
+
+    /**
+     * Use a channel registered with the event loop as backend server channel and set up both relay directions.
+     * @param key Selection key of the connected channel to the backend server.
+     */
+    private void useServerKey(SelectionKey key) {
+        serverKey = key;
+        serverChannel = (SocketChannel) key.channel();
+        key.attach((SelectionHandler) this::handleServer);
+        clientToServer = new Direction(clientChannel, serverChannel,
+                ConnectionLifecycle.Direction.CLIENT_TO_SERVER, initialBuffer);
+        initialBuffer = null;
+        serverToClient = new Direction(serverChannel, clientChannel,
+                ConnectionLifecycle.Direction.SERVER_TO_CLIENT, null);
+    }
+
+    /**
+     * Complete the connect to the backend server and start relaying data.
+     * @throws IOException Thrown if the connect failed.
+     */
+    private void finishConnect() throws IOException {
+        if (!serverChannel.finishConnect()) return;
+        if (connectStartedAt != 0) {
+            // Connections taken from the pool were measured when they were opened
+            backend.recordConnectLatency(System.nanoTime() - connectStartedAt);
+            backend.getCircuitBreaker().recordSuccess();
+        }
+        if (!lifecycle.open((InetSocketAddress) serverChannel.getRemoteAddress(),
+                ConnectionLifecycle.Endpoint.of(serverChannel))) {
+            return;
+        }
+        state = State.RELAYING;
+        lifecycle.closeWhenIdle(ConfigUtil.getConfig().getTransportSettings().getIdleTimeoutMillis(),
+                eventLoop::execute);
+
+        LOG.info("Starting proxy {} <-> {}...",
+                getRemoteAddress(clientChannel),
+                getRemoteAddress(serverChannel)
+        );
+
+        serverKey.interestOps(SelectionKey.OP_READ);
+        if (firstByteTimeoutMillis > 0) {
+            firstByteTimeout = schedule(this::onFirstByteTimeout, firstByteTimeoutMillis);
+        }
+        clientToServer.flush();
+    }
+
+    /**
+     * Disconnect the client if the backend server accepted the connection but didn't send anything in time.
+     * Nothing was relayed to the client yet, so it can still be told that the backend server isn't available.
+     */
+    private void onFirstByteTimeout() {
+        if (state != State.RELAYING || firstByteTimeout == null) return;
+        LOG.warn("Backend server {} didn't answer client {} within {} ms. Disconnecting client.",
+                backend, getRemoteAddress(clientChannel), firstByteTimeoutMillis);
+        backend.getCircuitBreaker().recordFailure("no answer within " + firstByteTimeoutMillis + " ms");
+        disconnect();
+    }
+
+    /**
+     * Tell a joining client why it can't join, e.g. that its backend server isn't available, and close the
+     * connection. The packet is tiny and nothing else was written to the client yet, so a single write fits into
+     * the socket buffer.
+     */
+    private void disconnect() {
+        if (disconnectPacket != null) {
+            try {
+                clientChannel.write(disconnectPacket);
+            } catch (IOException ex) {
+                // The client is gone already
+            }
+        }
+        lifecycle.close(null);
+    }
+
+    /**
+     * Release the resources of this connection once it is closed. Closes the backend server channel and the
+     * connect attempts, which aren't known to the lifecycle while connecting, and returns all buffers to the pool.
+     * Called by the lifecycle on the event loop, since the connection is only ever closed from there.
+     */
+    private void releaseResources() {
+        state = State.CLOSED;
+        closeQuietly(serverChannel);
+        closeAttempts();
+        if (handshakeTimeout != null) handshakeTimeout.cancel();
+        if (connectTimeout != null) connectTimeout.cancel();
+        if (firstByteTimeout != null) firstByteTimeout.cancel();
+        if (decoder != null) decoder.release();
+        if (initialBuffer != null) initialBuffer.release();
+        if (clientToServer != null) clientToServer.releaseBuffer();
+        if (serverToClient != null) serverToClient.releaseBuffer();
+        initialBuffer = null;
+    }
+
+    /**
+     * Arm a deadline of this connection on the shared timing wheel.
+     * @param task Task run on the event loop once the deadline passed.
+     * @param delayMillis Time in milliseconds until the deadline.
+     * @return Timeout that can be cancelled.
+     */
+    private TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return SchedulerUtil.getTimerWheel().newTimeout(() -> eventLoop.execute(task), delayMillis);
+    }
+
+    /**
+     * Close a channel and ignore any error.
+     * @param channel Channel to close. May be null.
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Do nothing
+        }
+    }
+
+    /**
+     * Get a printable representation of the remote address of a channel.
+     * @param channel Channel to get the remote address of.
+     * @return Remote address in host:port form.
+     */
+    private static String getRemoteAddress(SocketChannel channel) {
+        Socket socket = channel.socket();
+        if (socket.getInetAddress() == null) return "unknown";
+        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    }
+
+    /**
+     * One direction of the relay. Reads from the source channel into a buffer and writes it to the target channel.
+     * Reading from the source is paused while the target can't keep up.
+     */
+    private class Direction {
+
+        /** Channel from which data is read */
+        private final SocketChannel source;
+
+        /** Channel to which data is written */
+        private final SocketChannel target;
+
+        /** Direction of this relay, reported to the lifecycle once the source reached the end of its input */
+        private final ConnectionLifecycle.Direction direction;
+
+        /** Sizer choosing the buffer size based on the observed throughput */
+        private final AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(
+                ConfigUtil.getConfig().getRelayBufferSettings());
+
+        /** Pooled buffer holding data read from the source. Only held while data flows, null while idle */
+        private PooledBuffer pooledBuffer;
+
+        /** True while the buffer holds data that couldn't be written to the target yet */
+        private boolean pending;
+
+        /** Count of bytes returned by the last read */
+        private int lastBytesRead = 0;
+
+        /**
+         * Create a new relay direction.
+         * @param source Channel from which data is read.
+         * @param target Channel to which data is written.
+         * @param direction Direction of this relay.
+         * @param buffer Buffer holding data that has to be written to the target first, or null if there is none.
+         */
+        Direction(SocketChannel source, SocketChannel target, ConnectionLifecycle.Direction direction,
+                  PooledBuffer buffer) {
+            this.source = source;
+            this.target = target;
+            this.direction = direction;
+            this.pooledBuffer = buffer;
+            this.pending = buffer != null;
+        }
+
+        /**
+         * Read available data from the source and forward it to the target.
+         * @throws IOException Thrown if reading or writing fails.
+         */
+        void onReadable() throws IOException {
+            if (pooledBuffer == null) {
+                pooledBuffer = BufferPool.direct().borrow(sizer.getSize());
+            }
+            ByteBuffer buffer = pooledBuffer.buffer();
+            int bytesRead = source.read(buffer);
+            if (bytesRead == -1) {
+                // Nothing is pending, since the source is only read once the buffer was drained
+                releaseBuffer();
+                setInterest(source, SelectionKey.OP_READ, false);
+                lifecycle.finish(direction);
+                return;
+            }
+            lastBytesRead = bytesRead;
+            lifecycle.recordRead(direction, bytesRead);
+            sizer.record(bytesRead, buffer.capacity());
+            buffer.flip();
+            pending = true;
+            flush();
+        }
+
+        /**
+         * Continue writing pending data once the target is writable.
+         * @throws IOException Thrown if writing fails.
+         */
+        void onWritable() throws IOException {
+            flush();
+        }
+
+        /**
+         * Write pending data to the target and toggle the interest sets depending on whether it was fully written.
+         * Once the buffer is drained, it is given back to the pool if the traffic is low-volume or the buffer
+         * size has to change. Borrowing from the event loop's thread cache on the next read is cheap.
+         * @throws IOException Thrown if writing fails.
+         */
+        void flush() throws IOException {
+            if (pending) {
+                ByteBuffer buffer = pooledBuffer.buffer();
+                target.write(buffer);
+                if (buffer.hasRemaining()) {
+                    setInterest(source, SelectionKey.OP_READ, false);
+                    setInterest(target, SelectionKey.OP_WRITE, true);
+                    return;
+                }
+                pending = false;
+                if (lastBytesRead < sizer.getMinSize() || buffer.capacity() != sizer.getSize()) {
+                    releaseBuffer();
+                } else {
+                    buffer.clear();
+                }
+            }
+            setInterest(target, SelectionKey.OP_WRITE, false);
+            setInterest(source, SelectionKey.OP_READ, true);
+        }
+
+        /**
+         * Give the buffer of this direction back to the pool.
+         */
+        void releaseBuffer() {
+            if (pooledBuffer != null) {
+                pooledBuffer.release();
+                pooledBuffer = null;
+            }
+        }
+
+        /**
+         * Add or remove an operation from the interest set of one of the connection's channels.
+         * @param channel Channel whose interest set should be changed.
+         * @param op Operation to add or remove.
+         * @param enabled true to add the operation, false to remove it.
+         */
+        private void setInterest(SocketChannel channel, int op, boolean enabled) {
+            SelectionKey key = channel == clientChannel ? clientKey : serverKey;
+            if (!key.isValid()) return;
+            int ops = key.interestOps();
+            key.interestOps(enabled ? ops | op : ops & ~op);
+        }
+    }
+
+}
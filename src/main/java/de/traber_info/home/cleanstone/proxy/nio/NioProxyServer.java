@@ -0,0 +1,122 @@
+package de.traber_info.home.cleanstone.proxy.nio;
+
+import de.traber_info.home.cleanstone.proxy.AccessList;
+import de.traber_info.home.cleanstone.proxy.AdmissionControl;
+import de.traber_info.home.cleanstone.proxy.ConnectionLimiter;
+import de.traber_info.home.cleanstone.proxy.ListenerShard;
+import de.traber_info.home.cleanstone.proxy.ProxyServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport engine that accepts client connections on a {@link ServerSocketChannel} and hands them to a fixed set
+ * of {@link EventLoop}s, so the count of threads doesn't grow with the count of connected players.
+ *
+ * @author Oliver Traber
+ */
+public class NioProxyServer extends ProxyServer {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(NioProxyServer.class.getName());
+
+    /** Event loops the accepted connections are distributed over */
+    private final EventLoop[] eventLoops;
+
+    /** Index of the event loop the next accepted connection is assigned to */
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * Create a new instance of the NIO transport engine.
+     * @param eventLoopCount Count of event loops the connections are distributed over.
+     * @throws IOException Thrown if the selectors of the event loops can't be opened.
+     */
+    public NioProxyServer(int eventLoopCount) throws IOException {
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop("cleanstone-nio-" + i);
+        }
+    }
+
+    /**
+     * Start the event loops.
+     */
+    @Override
+    public void start() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+    }
+
+    /**
+     * Open the channel of a shard and start its acceptor thread.
+     * @param shard Shard the channel belongs to.
+     * @param port Port the channel should be bound to.
+     * @param reusePort Set SO_REUSEPORT on the channel.
+     * @throws IOException Thrown if the channel can't be opened or bound.
+     */
+    @Override
+    protected void bindShard(ListenerShard shard, int port, boolean reusePort) throws IOException {
+        ServerSocketChannel serverChannel = shard.openServerSocketChannel(port, reusePort);
+        LOG.info("Listening on port {} using {} NIO event loops (listener shard #{})",
+                port, eventLoops.length, shard.getIndex());
+        new Thread(() -> acceptLoop(shard, serverChannel), "cleanstone-acceptor-" + shard.getIndex()).start();
+    }
+
+    /**
+     * Accept client connections on the channel of a shard and distribute them over the event loops until the
+     * shard is closed.
+     * @param shard Shard the channel belongs to.
+     * @param serverChannel Bound channel of the shard.
+     */
+    private void acceptLoop(ListenerShard shard, ServerSocketChannel serverChannel) {
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                shard.recordAccept();
+                if (!AccessList.admit(channel.socket().getInetAddress())) {
+                    closeQuietly(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                EventLoop eventLoop = nextEventLoop();
+                // Check the connection limits before the connection is handed to its event loop
+                NioConnection connection = new NioConnection(eventLoop, channel);
+                if (!ConnectionLimiter.admit(connection.getLifecycle())) continue;
+                if (!AdmissionControl.admit(connection.getLifecycle())) continue;
+                eventLoop.execute(connection::start);
+            }
+        } catch (IOException ex) {
+            if (shard.isClosed()) {
+                LOG.info("Stopped listening on port {} (listener shard #{})", shard.getPort(), shard.getIndex());
+            } else {
+                LOG.error("An unexpected error occurred...", ex);
+            }
+        }
+    }
+
+    /**
+     * Get the event loop the next accepted connection should be assigned to.
+     * @return Event loop chosen in round-robin order.
+     */
+    private EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    /**
+     * Close a channel and ignore any error, so a failing close doesn't stop accepting.
+     * @param channel Channel to close.
+     */
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing was read from the channel yet
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package de.traber_info.home.cleanstone.proxy.nio;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handler that gets attached to a {@link SelectionKey} and is called by its {@link EventLoop} once the key is selected.
+ *
+ * @author Oliver Traber
+ */
+@FunctionalInterface
+public interface SelectionHandler {
+
+    /**
+     * Handle the ready operations of the given key. Called on the event loop thread and must never block.
+     * @param key Key that was selected by the event loop's selector.
+     */
+    void handle(SelectionKey key);
+
+}
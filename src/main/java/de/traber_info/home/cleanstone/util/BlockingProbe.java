@@ -0,0 +1,129 @@
+package de.traber_info.home.cleanstone.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Probe to report spots where connection threads block, e.g. the first read of the handshake.
+ * Blocking calls wrapped with {@link #begin()} and {@link #end(String, long)} are aggregated per spot and
+ * reported periodically. Additionally, virtual thread pinning is reported if the runtime supports it.
+ *
+ * @author Oliver Traber
+ */
+public class BlockingProbe {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(BlockingProbe.class.getName());
+
+    /** Interval in seconds in which the collected statistics are reported */
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
+    /** Name of the class monitoring pinned virtual threads. Only available in builds using Java 21 or newer */
+    private static final String PINNED_THREAD_MONITOR = "de.traber_info.home.cleanstone.util.PinnedThreadMonitor";
+
+    /** Statistics per blocking spot */
+    private static final Map<String, Spot> spots = new ConcurrentHashMap<>();
+
+    /** Enable the probe */
+    private static volatile boolean enabled = false;
+
+    /** Time in nanoseconds a call has to block before it is counted as slow */
+    private static long thresholdNanos;
+
+    /**
+     * Enable the probe and start reporting.
+     * @param thresholdMillis Time in milliseconds a call has to block before it is counted as slow.
+     */
+    public static void enable(long thresholdMillis) {
+        thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        enabled = true;
+        startPinnedThreadMonitor(thresholdMillis);
+
+        SchedulerUtil.getScheduler().scheduleAtFixedRate(BlockingProbe::report,
+                REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Mark the start of a potentially blocking call.
+     * @return Start timestamp that has to be passed to {@link #end(String, long)}.
+     */
+    public static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Mark the end of a potentially blocking call.
+     * @param spot Name of the spot the call was made at.
+     * @param start Start timestamp returned by {@link #begin()}.
+     */
+    public static void end(String spot, long start) {
+        if (!enabled) return;
+        long duration = System.nanoTime() - start;
+        spots.computeIfAbsent(spot, name -> new Spot()).record(duration, ThreadUtil.isVirtual(Thread.currentThread()));
+    }
+
+    /**
+     * Log the statistics collected for every spot since the probe was enabled.
+     */
+    public static void report() {
+        for (Map.Entry<String, Spot> entry : spots.entrySet()) {
+            Spot spot = entry.getValue();
+            LOG.info("Blocking spot {}: {} calls ({} on virtual threads), {} over {} ms, max {} ms",
+                    entry.getKey(),
+                    spot.calls.sum(),
+                    spot.virtualCalls.sum(),
+                    spot.slowCalls.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(thresholdNanos),
+                    TimeUnit.NANOSECONDS.toMillis(spot.maxNanos.get())
+            );
+        }
+    }
+
+    /**
+     * Start reporting pinned virtual threads. Uses JFR streaming if available in this build, otherwise falls back
+     * to the JDK's built-in pinning trace.
+     * @param thresholdMillis Time in milliseconds a virtual thread has to be pinned before it is reported.
+     */
+    private static void startPinnedThreadMonitor(long thresholdMillis) {
+        try {
+            Class.forName(PINNED_THREAD_MONITOR).getMethod("start", long.class).invoke(null, thresholdMillis);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            LOG.info("JFR based pinning monitor is not available in this build. " +
+                    "Falling back to jdk.tracePinnedThreads.");
+            System.setProperty("jdk.tracePinnedThreads", "short");
+        }
+    }
+
+    /**
+     * Statistics of a single blocking spot.
+     */
+    private static class Spot {
+        /** Count of calls */
+        private final LongAdder calls = new LongAdder();
+        /** Count of calls made on virtual threads */
+        private final LongAdder virtualCalls = new LongAdder();
+        /** Count of calls that blocked longer than the threshold */
+        private final LongAdder slowCalls = new LongAdder();
+        /** Longest time a call blocked in nanoseconds */
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Record a call.
+         * @param duration Time in nanoseconds the call blocked.
+         * @param virtual true if the call was made on a virtual thread.
+         */
+        void record(long duration, boolean virtual) {
+            calls.increment();
+            if (virtual) virtualCalls.increment();
+            if (duration >= thresholdNanos) slowCalls.increment();
+            maxNanos.accumulate(duration);
+        }
+    }
+
+}
@@ -19,8 +19,11 @@ public class ConfigUtil {
     /** SLF4J logger for usage in this class */
     private static final Logger LOG = LoggerFactory.getLogger(ConfigUtil.class.getName());
 
-    /** Global instance of the loaded and deserialized config */
-    public static ConfigFile config;
+    /** Global instance of the loaded and deserialized config. Replaced as a whole when the config is reloaded */
+    public static volatile ConfigFile config;
+
+    /** Path of the directory the config file was loaded from */
+    private static String configPath;
 
     /**
      * Get the current loaded config or load the config if it isn't loaded already.
@@ -54,8 +57,8 @@ public class ConfigUtil {
      * @param path Path where the file named config.json is saved
      */
     private static void readConfig(String path) {
-        try {
-            InputStream configInputStream = new FileInputStream(path + "/config.json");
+        configPath = path;
+        try (InputStream configInputStream = new FileInputStream(path + "/config.json")) {
             config = new ObjectMapper().readValue(configInputStream, ConfigFile.class);
         } catch (FileNotFoundException ex) {
             LOG.error("Config file config.json not found in path {}", path, ex);
@@ -66,6 +69,44 @@ public class ConfigUtil {
         }
     }
 
+    /**
+     * Read the config file again without applying it. Unlike the initial load, errors don't stop cleanstone.
+     * The caller validates the new config and publishes it with {@link #setConfig(ConfigFile)}, so an invalid
+     * file never becomes visible to new connections.
+     * @return The new config, or null if the config file can't be read or is invalid.
+     */
+    public static synchronized ConfigFile reloadConfig() {
+        ConfigFile reloaded;
+        try (InputStream configInputStream = new FileInputStream(getConfigFile())) {
+            reloaded = new ObjectMapper().readValue(configInputStream, ConfigFile.class);
+        } catch (IOException ex) {
+            LOG.error("Failed to reload config file config.json in path {}. Keeping the current config.",
+                    configPath, ex);
+            return null;
+        }
+        if (reloaded.getBackendServerMappings() == null) {
+            LOG.error("Reloaded config file contains no backendServerMappings. Keeping the current config.");
+            return null;
+        }
+        return reloaded;
+    }
+
+    /**
+     * Replace the global instance of the config, e.g. once a reloaded config was validated.
+     * @param reloaded Config that should be used from now on.
+     */
+    public static void setConfig(ConfigFile reloaded) {
+        config = reloaded;
+    }
+
+    /**
+     * Get the config file the config was loaded from.
+     * @return Config file the config was loaded from.
+     */
+    public static File getConfigFile() {
+        return new File(configPath, "config.json");
+    }
+
     /**
      * Get the path of the JAR file this class is packaged in.
      * @return Path of the current JAR file
@@ -0,0 +1,167 @@
+package de.traber_info.home.cleanstone.util;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Triggers a reload of the config when config.json changes or cleanstone receives SIGHUP. Reloads run one at
+ * a time on their own thread, since they read the config file and may rebind the listening sockets.
+ * The signal handler is installed reflectively, since {@code sun.misc.Signal} is an internal API that isn't
+ * available on every JVM.
+ *
+ * @author Oliver Traber
+ */
+public class ConfigWatcher {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigWatcher.class.getName());
+
+    /** Executor running the reloads on a single daemon thread */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cleanstone-config-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Task applying a reloaded config */
+    private final Runnable reload;
+
+    /** Settings of the watcher */
+    private final ConfigFile.ReloadSettings settings;
+
+    /** Reload scheduled after a change of the config file, or null */
+    private ScheduledFuture<?> pending;
+
+    /**
+     * Create a new watcher.
+     * @param settings Settings of the watcher.
+     * @param reload Task reloading and applying the config. Never runs concurrently with itself.
+     */
+    public ConfigWatcher(ConfigFile.ReloadSettings settings, Runnable reload) {
+        this.settings = settings;
+        this.reload = reload;
+    }
+
+    /**
+     * Start watching the config file and listening for SIGHUP, as enabled in the settings.
+     */
+    public void start() {
+        if (settings.signalEnabled()) {
+            try {
+                handleSignal("HUP", () -> {
+                    LOG.info("Received SIGHUP. Reloading config.");
+                    executor.execute(this::runReload);
+                });
+            } catch (IllegalArgumentException | ReflectiveOperationException ex) {
+                LOG.warn("SIGHUP is not available on this platform. Reload the config by changing config.json.");
+            }
+        }
+        if (settings.watchFileEnabled()) {
+            Thread thread = new Thread(this::watch, "cleanstone-config-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Run an action whenever the process receives a signal.
+     * @param name Name of the signal without the SIG prefix, e.g. HUP.
+     * @param action Action run on the thread delivering the signal.
+     * @throws IllegalArgumentException Thrown if the signal isn't available on this platform.
+     * @throws ReflectiveOperationException Thrown if signals can't be handled on this JVM.
+     */
+    private static void handleSignal(String name, Runnable action) throws ReflectiveOperationException {
+        Class<?> signalClass = Class.forName("sun.misc.Signal");
+        Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+        Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] {handlerClass},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        // equals, hashCode and toString of the handler itself
+                        switch (method.getName()) {
+                            case "equals": return proxy == args[0];
+                            case "hashCode": return System.identityHashCode(proxy);
+                            default: return "ConfigWatcher signal handler";
+                        }
+                    }
+                    action.run();
+                    return null;
+                });
+        try {
+            Constructor<?> constructor = signalClass.getConstructor(String.class);
+            Object signal = constructor.newInstance(name);
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IllegalArgumentException) throw (IllegalArgumentException) ex.getCause();
+            throw ex;
+        }
+    }
+
+    /**
+     * Watch the directory of the config file and schedule a reload whenever the config file changes.
+     * Editors often write a file in several steps, so the reload waits until no change was seen for a while.
+     */
+    private void watch() {
+        File configFile = ConfigUtil.getConfigFile().getAbsoluteFile();
+        Path directory = configFile.getParentFile().toPath();
+        Path fileName = configFile.toPath().getFileName();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            LOG.info("Watching {} for changes", configFile);
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+                        scheduleReload();
+                    }
+                }
+                if (!key.reset()) {
+                    LOG.warn("Directory {} can no longer be watched. Reload the config with SIGHUP.", directory);
+                    return;
+                }
+            }
+        } catch (IOException | ClosedWatchServiceException ex) {
+            LOG.error("Failed to watch the config file for changes", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedule a reload after the debounce time, replacing a reload that was scheduled before.
+     */
+    private synchronized void scheduleReload() {
+        if (pending != null) pending.cancel(false);
+        pending = executor.schedule(this::runReload, settings.getDebounceMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the reload task, making sure a failing reload doesn't stop further reloads.
+     */
+    private void runReload() {
+        try {
+            reload.run();
+        } catch (RuntimeException ex) {
+            LOG.error("An unexpected error occurred while reloading the config", ex);
+        }
+    }
+
+}
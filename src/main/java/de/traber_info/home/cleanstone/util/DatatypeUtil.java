@@ -1,71 +1,224 @@
 package de.traber_info.home.cleanstone.util;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 /**
  * Utility class to de-/encode the custom data types used by Minecraft's protocol.
+ * All methods are stateless and operate on the position of the given buffer, which acts as the cursor. Reads never
+ * go beyond the limit of the buffer and don't copy the data, so they can be used on the receive buffers directly.
  *
  * @author Oliver Traber
  */
 public class DatatypeUtil {
 
-    /** SLF4J logger for usage in this class */
-    private static final Logger LOG = LoggerFactory.getLogger(DatatypeUtil.class.getName());
+    /** Maximum length of a VarInt in bytes */
+    public static final int MAX_VARINT_LENGTH = 5;
+
+    /** Maximum length of a VarLong in bytes */
+    public static final int MAX_VARLONG_LENGTH = 10;
+
+    /** Maximum length of a string in characters, as defined by the protocol */
+    public static final int MAX_STRING_LENGTH = 32767;
+
+    /** Maximum length of a server address in characters, as defined by the protocol */
+    public static final int MAX_SERVER_ADDRESS_LENGTH = 255;
 
-    /** Int holding the amount of bytes read by the last read function call. */
-    private int bytesRead = 0;
+    /** Every UTF-8 encoded character uses at most this many bytes */
+    private static final int MAX_BYTES_PER_CHAR = 3;
 
     /**
-     * Parse a Minecraft protocol VarInt to an Java int.
-     * @param input Input byte array.
-     * @param byteOffset Start offset in bytes.
+     * Read a Minecraft protocol VarInt at the position of the buffer and advance the position past it.
+     * @param buffer Buffer to read from.
      * @return Parsed Java int.
+     * @throws ProtocolException Thrown if the VarInt is longer than five bytes or exceeds the limit of the buffer.
      */
-    public int readVarInt(byte[] input, int byteOffset) {
-        byte[] offsetInput = Arrays.copyOfRange(input, byteOffset, input.length);
-        int numRead = 0;
+    public static int readVarInt(ByteBuffer buffer) throws ProtocolException {
+        int position = buffer.position();
+        int limit = buffer.limit();
         int result = 0;
+        int numRead = 0;
         byte read;
         do {
-            read = offsetInput[numRead];
-            int value = (read & 0b01111111);
-            result |= (value << (7 * numRead));
+            if (numRead == MAX_VARINT_LENGTH) throw new ProtocolException("VarInt is too big");
+            if (position + numRead >= limit) throw new ProtocolException("VarInt exceeds the packet");
+            read = buffer.get(position + numRead);
+            result |= (read & 0b01111111) << (7 * numRead);
+            numRead++;
+        } while ((read & 0b10000000) != 0);
+
+        buffer.position(position + numRead);
+        return result;
+    }
 
+    /**
+     * Read a Minecraft protocol VarLong at the position of the buffer and advance the position past it.
+     * @param buffer Buffer to read from.
+     * @return Parsed Java long.
+     * @throws ProtocolException Thrown if the VarLong is longer than ten bytes or exceeds the limit of the buffer.
+     */
+    public static long readVarLong(ByteBuffer buffer) throws ProtocolException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        long result = 0;
+        int numRead = 0;
+        byte read;
+        do {
+            if (numRead == MAX_VARLONG_LENGTH) throw new ProtocolException("VarLong is too big");
+            if (position + numRead >= limit) throw new ProtocolException("VarLong exceeds the packet");
+            read = buffer.get(position + numRead);
+            result |= (long) (read & 0b01111111) << (7 * numRead);
             numRead++;
-            if (numRead > 5) {
-                LOG.error("VarInt is too big!");
-                return -1;
-            }
         } while ((read & 0b10000000) != 0);
 
-        bytesRead = numRead;
+        buffer.position(position + numRead);
         return result;
     }
 
     /**
-     * Parse a String from a Minecraft protocol package.
-     * @param input Input byte array.
-     * @param byteOffset Start offset in bytes.
+     * Read a Minecraft protocol unsigned short at the position of the buffer and advance the position past it.
+     * @param buffer Buffer to read from.
+     * @return Parsed Java int.
+     * @throws ProtocolException Thrown if the unsigned short exceeds the limit of the buffer.
+     */
+    public static int readUnsignedShort(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 2) throw new ProtocolException("Unsigned short exceeds the packet");
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    /**
+     * Read the length prefix of a Minecraft protocol string and check it against the given maximum length.
+     * Advances the position to the first byte of the string data, which can be skipped or decoded afterwards.
+     * @param buffer Buffer to read from.
+     * @param maxLength Maximum length of the string in characters.
+     * @return Length of the string data in bytes.
+     * @throws ProtocolException Thrown if the length is invalid or the string exceeds the limit of the buffer.
+     */
+    public static int readStringLength(ByteBuffer buffer, int maxLength) throws ProtocolException {
+        int length = readVarInt(buffer);
+        if (length < 0 || length > maxLength * MAX_BYTES_PER_CHAR) {
+            throw new ProtocolException("String of " + length + " bytes is too long");
+        }
+        if (length > buffer.remaining()) throw new ProtocolException("String exceeds the packet");
+        return length;
+    }
+
+    /**
+     * Read a Minecraft protocol string at the position of the buffer and advance the position past it.
+     * @param buffer Buffer to read from.
+     * @param maxLength Maximum length of the string in characters.
      * @return Parsed Java string.
+     * @throws ProtocolException Thrown if the string is too long or exceeds the limit of the buffer.
+     */
+    public static String readString(ByteBuffer buffer, int maxLength) throws ProtocolException {
+        int length = readStringLength(buffer, maxLength);
+        String result = decodeString(buffer, buffer.position(), length);
+        if (result.length() > maxLength) {
+            throw new ProtocolException("String of " + result.length() + " characters is too long");
+        }
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    /**
+     * Decode UTF-8 data of a buffer to a string without moving its position.
+     * @param buffer Buffer holding the data.
+     * @param index Index of the first byte of the data.
+     * @param length Length of the data in bytes.
+     * @return Decoded string.
+     */
+    public static String decodeString(ByteBuffer buffer, int index, int length) {
+        if (buffer.hasArray()) return decodeString(buffer.array(), buffer.arrayOffset() + index, length);
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(index + length).position(index);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Decode UTF-8 data of a byte array to a string. Pure ASCII data, like nearly all hostnames, is decoded
+     * without any intermediate array.
+     * @param array Byte array holding the data.
+     * @param offset Offset of the first byte of the data.
+     * @param length Length of the data in bytes.
+     * @return Decoded string.
+     */
+    public static String decodeString(byte[] array, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (array[i] < 0) return new String(array, offset, length, StandardCharsets.UTF_8);
+        }
+        return new String(array, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get the count of bytes needed to encode an int as VarInt.
+     * @param value Value to encode.
+     * @return Length of the VarInt in bytes.
+     */
+    public static int getVarIntSize(int value) {
+        return value == 0 ? 1 : (31 - Integer.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    /**
+     * Write an int as Minecraft protocol VarInt at the position of the buffer and advance the position past it.
+     * @param buffer Buffer to write to.
+     * @param value Value to write.
+     */
+    public static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0b01111111) != 0) {
+            buffer.put((byte) ((value & 0b01111111) | 0b10000000));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Write a long as Minecraft protocol VarLong at the position of the buffer and advance the position past it.
+     * @param buffer Buffer to write to.
+     * @param value Value to write.
+     */
+    public static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0b01111111L) != 0) {
+            buffer.put((byte) ((value & 0b01111111) | 0b10000000));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Write an int as Minecraft protocol unsigned short at the position of the buffer.
+     * @param buffer Buffer to write to.
+     * @param value Value to write, between 0 and 65535.
+     */
+    public static void writeUnsignedShort(ByteBuffer buffer, int value) {
+        buffer.putShort((short) value);
+    }
+
+    /**
+     * Write a string as length-prefixed Minecraft protocol string at the position of the buffer.
+     * @param buffer Buffer to write to.
+     * @param value String to write.
      */
-    public String readString(byte[] input, int byteOffset) {
-        int stringLength = readVarInt(input, byteOffset);
-        int startOffset = byteOffset + getBytesRead();
-        int end = startOffset + stringLength;
-        bytesRead = end;
-        return new String(Arrays.copyOfRange(input, startOffset, end), StandardCharsets.UTF_8);
+    public static void writeString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(buffer, bytes.length);
+        buffer.put(bytes);
     }
 
     /**
-     * Get the count of bytes read by the last called read function.
-     * @return Count of bytes read by the last called read function.
+     * Encode a packet consisting of its id and a single string, e.g. a login disconnect or a status response.
+     * @param packetId Id of the packet.
+     * @param value String carried by the packet.
+     * @return Packet including its length prefix.
      */
-    public int getBytesRead() {
-        return bytesRead;
+    public static byte[] encodeStringPacket(int packetId, String value) {
+        int valueLength = value.getBytes(StandardCharsets.UTF_8).length;
+        int packetLength = getVarIntSize(packetId) + getVarIntSize(valueLength) + valueLength;
+        ByteBuffer packet = ByteBuffer.allocate(getVarIntSize(packetLength) + packetLength);
+        writeVarInt(packet, packetLength);
+        writeVarInt(packet, packetId);
+        writeString(packet, value);
+        return packet.array();
     }
 
 }
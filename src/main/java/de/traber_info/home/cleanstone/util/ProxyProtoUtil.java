@@ -1,12 +1,17 @@
 package de.traber_info.home.cleanstone.util;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class to handle PROXY protocol v2 headers.
+ * Headers are decoded in place and encoded straight into a buffer supplied by the caller, so neither direction
+ * needs temporary arrays.
  *
  * @author Oliver Traber
  */
@@ -15,9 +20,21 @@ public class ProxyProtoUtil {
     /** PROXY protocol v2 signature bytes */
     private static final byte[] sigBytes = { 0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A };
 
-    /** PROXY protocol v2 version indicator */
+    /** PROXY protocol v2 version indicator combined with the PROXY command */
     private static final byte v2 = 0x21;
 
+    /** PROXY protocol v2 version indicator combined with the LOCAL command, e.g. used by health checks */
+    private static final byte v2Local = 0x20;
+
+    /** Length of the fixed part of every header */
+    public static final int FIXED_HEADER_LENGTH = 16;
+
+    /** Headers prepared for each local address, with everything but the source address and port filled in */
+    private static final Map<InetSocketAddress, byte[]> ipv4Templates = new ConcurrentHashMap<>();
+
+    /** Same as {@link #ipv4Templates}, for connections that have to be described with IPv6 addresses */
+    private static final Map<InetSocketAddress, byte[]> ipv6Templates = new ConcurrentHashMap<>();
+
     /** Value offsets for default header fields */
     private static class Fields {
         public static final byte sig = 0x00;
@@ -57,6 +74,21 @@ public class ProxyProtoUtil {
         public static final byte DGRAM = 0x02;
     }
 
+    /** Types of TLVs which may follow the addresses of a header */
+    public static class TlvTypes {
+        public static final int ALPN = 0x01;
+        public static final int AUTHORITY = 0x02;
+        public static final int CRC32C = 0x03;
+        public static final int NOOP = 0x04;
+        public static final int UNIQUE_ID = 0x05;
+        public static final int SSL = 0x20;
+        public static final int NETNS = 0x30;
+        /** Used by AWS load balancers to transmit the VPC endpoint id */
+        public static final int AWS = 0xEA;
+        /** Used by Azure load balancers to transmit the private link id */
+        public static final int AZURE = 0xEE;
+    }
+
     /** Enum of supported transport protocols */
     public enum TransportFam {
         TCP, UDP
@@ -68,21 +100,169 @@ public class ProxyProtoUtil {
     }
 
     /**
-     * Class to represent an PROXY protocol v2 header.
+     * Class to represent an PROXY protocol v2 header. A view on the data it was decoded from, which is only valid as
+     * long as that data isn't reused. Addresses are converted to {@link InetAddress} objects on first access.
      */
     public static class ProxyProtoHeader {
+
+        /** Byte array holding the header */
+        private final byte[] data;
+
+        /** Offset of the header in the byte array */
+        private final int offset;
+
+        /** Length of the header in bytes */
+        private final int length;
+
+        /** True if the header was sent with the LOCAL command and doesn't describe a client connection */
+        private final boolean local;
+
         /** Transport protocol family used to initiate the connection */
-        public TransportFam transportFam;
+        private final TransportFam transportFam;
+
         /** Network protocol family used to initiate the connection */
-        public NetFam networkFamily;
-        /** IP address of the client */
-        public InetAddress sourceAddress;
-        /** IP address of the receiving interface */
-        public InetAddress destinationAddress;
-        /** Port the connection is coming from */
-        public int sourcePort;
-        /** Port the connection is received on the interface address */
-        public int destinationPort;
+        private final NetFam networkFamily;
+
+        /** Offset of the first TLV in the byte array */
+        private final int tlvOffset;
+
+        /** IP address of the client. Decoded on first access */
+        private InetAddress sourceAddress;
+
+        /** IP address of the receiving interface. Decoded on first access */
+        private InetAddress destinationAddress;
+
+        /**
+         * Create a new header view.
+         * @param data Byte array holding the header.
+         * @param offset Offset of the header in the byte array.
+         * @param length Length of the header in bytes.
+         * @param local True if the header was sent with the LOCAL command.
+         * @param transportFam Transport protocol family used to initiate the connection.
+         * @param networkFamily Network protocol family used to initiate the connection.
+         * @param tlvOffset Offset of the first TLV in the byte array.
+         */
+        private ProxyProtoHeader(byte[] data, int offset, int length, boolean local,
+                                 TransportFam transportFam, NetFam networkFamily, int tlvOffset) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.local = local;
+            this.transportFam = transportFam;
+            this.networkFamily = networkFamily;
+            this.tlvOffset = tlvOffset;
+        }
+
+        /**
+         * Check if the header was sent with the LOCAL command, e.g. by a health check of the upstream proxy.
+         * Such headers don't describe a client connection, the addresses of the socket have to be used instead.
+         * @return true if the header was sent with the LOCAL command, otherwise false.
+         */
+        public boolean isLocal() {
+            return local;
+        }
+
+        /**
+         * Get the transport protocol family used to initiate the connection.
+         * @return Transport protocol family, or null if the header doesn't describe a connection.
+         */
+        public TransportFam getTransportFam() {
+            return transportFam;
+        }
+
+        /**
+         * Get the network protocol family used to initiate the connection.
+         * @return Network protocol family, or null if the header doesn't describe a connection.
+         */
+        public NetFam getNetworkFamily() {
+            return networkFamily;
+        }
+
+        /**
+         * Get the IP address of the client.
+         * @return IP address of the client, or null if the header doesn't describe a connection.
+         */
+        public InetAddress getSourceAddress() {
+            if (sourceAddress == null && networkFamily != null) {
+                sourceAddress = decodeAddress(networkFamily == NetFam.IPv4 ? Ipv4Addr.src_addr : Ipv6Addr.src_addr);
+            }
+            return sourceAddress;
+        }
+
+        /**
+         * Get the IP address of the receiving interface.
+         * @return IP address of the receiving interface, or null if the header doesn't describe a connection.
+         */
+        public InetAddress getDestinationAddress() {
+            if (destinationAddress == null && networkFamily != null) {
+                destinationAddress = decodeAddress(
+                        networkFamily == NetFam.IPv4 ? Ipv4Addr.dst_addr : Ipv6Addr.dst_addr);
+            }
+            return destinationAddress;
+        }
+
+        /**
+         * Get the port the connection is coming from.
+         * @return Source port, or -1 if the header doesn't describe a connection.
+         */
+        public int getSourcePort() {
+            if (networkFamily == null) return -1;
+            return decodeUInt16(data, offset + Fields.addr +
+                    (networkFamily == NetFam.IPv4 ? Ipv4Addr.src_port : Ipv6Addr.src_port));
+        }
+
+        /**
+         * Get the port the connection was received on.
+         * @return Destination port, or -1 if the header doesn't describe a connection.
+         */
+        public int getDestinationPort() {
+            if (networkFamily == null) return -1;
+            return decodeUInt16(data, offset + Fields.addr +
+                    (networkFamily == NetFam.IPv4 ? Ipv4Addr.dst_port : Ipv6Addr.dst_port));
+        }
+
+        /**
+         * Get the length of the header.
+         * @return Length of the header in bytes, including all TLVs.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Get the value of the first TLV of the given type.
+         * @param type Type of the TLV, see {@link TlvTypes}.
+         * @return Read-only view of the value, or null if the header doesn't contain a TLV of the given type.
+         */
+        public ByteBuffer getTlv(int type) {
+            int position = tlvOffset;
+            int end = offset + length;
+            while (position < end) {
+                int valueLength = decodeUInt16(data, position + 1);
+                if ((data[position] & 0xFF) == type) {
+                    return ByteBuffer.wrap(data, position + 3, valueLength).slice().asReadOnlyBuffer();
+                }
+                position += 3 + valueLength;
+            }
+            return null;
+        }
+
+        /**
+         * Convert an address of the header to an {@link InetAddress}.
+         * @param addressOffset Offset of the address relative to the start of the address block.
+         * @return Decoded address.
+         */
+        private InetAddress decodeAddress(int addressOffset) {
+            int start = offset + Fields.addr + addressOffset;
+            byte[] address = new byte[networkFamily == NetFam.IPv4 ? 4 : 16];
+            System.arraycopy(data, start, address, 0, address.length);
+            try {
+                return InetAddress.getByAddress(address);
+            } catch (UnknownHostException ex) {
+                // Only thrown for addresses of illegal length
+                throw new IllegalStateException(ex);
+            }
+        }
     }
 
     /**
@@ -91,175 +271,199 @@ public class ProxyProtoUtil {
      * @return true if the given byte[] contains an PROXY protocol signature, otherwise false.
      */
     public static boolean hasProxyProtocolHeader(byte[] buffer) {
-        if (buffer.length >= 16) {
-            byte[] readSigBytes = new byte[sigBytes.length];
-            System.arraycopy(buffer, 0, readSigBytes, 0, sigBytes.length);
-            return Arrays.equals(sigBytes, readSigBytes);
+        if (buffer.length < FIXED_HEADER_LENGTH) return false;
+        for (int i = 0; i < sigBytes.length; i++) {
+            if (buffer[Fields.sig + i] != sigBytes[i]) return false;
         }
-        return false;
+        return true;
     }
 
     /**
-     * Get the length of an PROXY protocol v2 header in the given byte array.
+     * Get the length of an PROXY protocol v2 header in the given byte array, as declared by the header.
      * @param buffer Byte array to get the headers length from.
      * @return Length of the header in full bytes.
      */
     public static int getHeaderLength(byte[] buffer) {
-        byte[] headerPayloadLengthData = new byte[2];
-        System.arraycopy(buffer, Fields.len, headerPayloadLengthData,0, 2);
-        return decodeUInt8(headerPayloadLengthData, (byte) 0x00) + 16;
+        return decodeUInt16(buffer, Fields.len) + FIXED_HEADER_LENGTH;
     }
 
     /**
-     * Decode an PROXY protocol v2 header to an {@link ProxyProtoHeader} object.
+     * Decode an PROXY protocol v2 header at the beginning of a byte array to an {@link ProxyProtoHeader} view.
+     * The header has to be complete, which can be checked with {@link #getHeaderLength(byte[])}.
      * @param buffer Byte array the header should be read from.
      * @param validate Set true to validate the header.
      *                 If validation errors occur, an {@link UnsupportedOperationException} will be thrown.
      * @return {@link ProxyProtoHeader} object containing the metadata parsed from the raw header.
-     * @throws UnknownHostException Thrown if an IP address can't be converted to na {@link InetAddress}.
      * @throws UnsupportedOperationException Thrown if an validation check fails. Only applies if validate is true.
+     *                                       Also thrown if the declared length doesn't fit the content.
      */
-    public static ProxyProtoHeader decode(byte[] buffer, boolean validate) throws UnknownHostException {
+    public static ProxyProtoHeader decode(byte[] buffer, boolean validate) {
+        int length = getHeaderLength(buffer);
+        if (length > buffer.length) {
+            throw new UnsupportedOperationException("proxy protocol: header exceeds the received data");
+        }
+        byte ver_cmd = buffer[Fields.ver_cmd];
         byte enc_family = buffer[Fields.family];
         byte family = (byte) (enc_family & 0xf0);
         byte proto = (byte) (enc_family & 0x0f);
+        boolean local = ver_cmd == v2Local;
 
         if (validate) {
             if (!hasProxyProtocolHeader(buffer))
                 throw new UnsupportedOperationException("proxy protocol: invalid signature received");
-            if (buffer[Fields.ver_cmd] != v2)
+            if (ver_cmd != v2 && ver_cmd != v2Local)
                 throw new UnsupportedOperationException("proxy protocol: invalid version or cmd received");
-            if (family != Families.AF_INET && family != Families.AF_INET6)
+            if (!local && family != Families.AF_INET && family != Families.AF_INET6)
                 throw new UnsupportedOperationException("proxy protocol: unsupported family received");
-            if (proto != Proto.STREAM && proto != Proto.DGRAM)
+            if (!local && proto != Proto.STREAM && proto != Proto.DGRAM)
                 throw new UnsupportedOperationException("proxy protocol: unsupported protocol received");
         }
 
-        ProxyProtoHeader packet = new ProxyProtoHeader();
-        packet.transportFam = (proto == Proto.STREAM) ? TransportFam.TCP : TransportFam.UDP;
-
-        if (family == Families.AF_INET) {
-            packet.networkFamily = NetFam.IPv4;
-            packet.sourceAddress = decodeV4Address(buffer, (byte) (Fields.addr + Ipv4Addr.src_addr));
-            packet.destinationAddress = decodeV4Address(buffer, (byte) (Fields.addr + Ipv4Addr.dst_addr));
-            packet.sourcePort = decodeUInt8(buffer, (byte) (Fields.addr + Ipv4Addr.src_port));
-            packet.destinationPort = decodeUInt8(buffer, (byte) (Fields.addr + Ipv4Addr.dst_port));
-        } else if (family == Families.AF_INET6) {
-            packet.networkFamily = NetFam.IPv6;
-            packet.sourceAddress = decodeV6Address(buffer, (byte) (Fields.addr + Ipv6Addr.src_addr));
-            packet.destinationAddress = decodeV6Address(buffer, (byte) (Fields.addr + Ipv6Addr.dst_addr));
-            packet.sourcePort = decodeUInt8(buffer, (byte) (Fields.addr + Ipv6Addr.src_port));
-            packet.destinationPort = decodeUInt8(buffer, (byte) (Fields.addr + Ipv6Addr.dst_port));
+        // The LOCAL command and unknown families carry no usable addresses, skip the whole address block
+        NetFam networkFamily = null;
+        TransportFam transportFam = null;
+        int tlvOffset = length;
+        if (!local && family == Families.AF_INET) {
+            networkFamily = NetFam.IPv4;
+            tlvOffset = Fields.addr + Ipv4Addr.len;
+        } else if (!local && family == Families.AF_INET6) {
+            networkFamily = NetFam.IPv6;
+            tlvOffset = Fields.addr + Ipv6Addr.len;
+        }
+        if (networkFamily != null) {
+            transportFam = (proto == Proto.DGRAM) ? TransportFam.UDP : TransportFam.TCP;
+        }
+        if (tlvOffset > length) {
+            throw new UnsupportedOperationException("proxy protocol: declared length is too short for the addresses");
+        }
+
+        // Check the TLVs once, so they can be iterated without bounds checks later on
+        int position = tlvOffset;
+        while (position < length) {
+            if (position + 3 > length || position + 3 + decodeUInt16(buffer, position + 1) > length) {
+                throw new UnsupportedOperationException("proxy protocol: malformed TLV received");
+            }
+            position += 3 + decodeUInt16(buffer, position + 1);
         }
 
-        return packet;
+        return new ProxyProtoHeader(buffer, 0, length, local, transportFam, networkFamily, tlvOffset);
     }
 
     /**
-     * Build an PROXY protocol v2 conform header based on the given metadata.
-     * @param transport {@link TransportFam} used to transmit the data.
-     * @param srcAddress {@link InetAddress} that initiated the connection.
-     * @param src_port Port the data was received from.
-     * @param dstAddress {@link InetAddress} the connection was targeted at.
-     * @param dst_port Port the data was received on.
-     * @return Byte array containing the whole PROXY protocol v2 header including all metadata.
+     * Get the length of the header {@link #encode(ByteBuffer, TransportFam, InetSocketAddress, InetSocketAddress)}
+     * writes for the given addresses.
+     * @param source Address that initiated the connection.
+     * @param destination Address the connection was targeted at.
+     * @return Length of the header in bytes.
      */
-    public static byte[] encode(TransportFam transport,
-                                InetAddress srcAddress, int src_port, InetAddress dstAddress, int dst_port) {
-        // Convert InetAddress objects to byte array representation
-        byte[] src_address = srcAddress.getAddress();
-        byte[] dst_address = dstAddress.getAddress();
-
-        // Calculate header length for array creation
-        int headerPayloadLength = src_address.length + dst_address.length + 4;
-        int headerLength = sigBytes.length + 4 + headerPayloadLength;
-
-        // Create a new byte array that get's filled with the header data step by step
-        byte[] header = new byte[headerLength];
-        int offset = 0;
-
-        // Write protocol signature to header
-        System.arraycopy(sigBytes, 0, header, offset, sigBytes.length);
-        offset = offset + sigBytes.length;
+    public static int getEncodedLength(InetSocketAddress source, InetSocketAddress destination) {
+        return Fields.addr + (isIpv6(source, destination) ? Ipv6Addr.len : Ipv4Addr.len);
+    }
 
-        // Write protocol version to header (always v2)
-        header[offset] = v2;
-        offset++;
+    /**
+     * Write an PROXY protocol v2 conform header based on the given metadata at the position of the buffer.
+     * The parts depending on the destination only are prepared once per destination and copied from there.
+     * If only one of the addresses is an IPv6 address, the other one is written as IPv4-mapped IPv6 address.
+     * @param target Buffer the header is written to. Needs {@link #getEncodedLength} bytes remaining.
+     * @param transport {@link TransportFam} used to transmit the data.
+     * @param source Address and port that initiated the connection.
+     * @param destination Address and port the connection was targeted at, usually the listening address.
+     */
+    public static void encode(ByteBuffer target, TransportFam transport,
+                              InetSocketAddress source, InetSocketAddress destination) {
+        boolean ipv6 = isIpv6(source, destination);
+        byte[] template = ipv6
+                ? ipv6Templates.computeIfAbsent(destination, address -> createTemplate(address, true))
+                : ipv4Templates.computeIfAbsent(destination, address -> createTemplate(address, false));
+
+        int start = target.position();
+        target.put(template);
+        byte family = ipv6 ? Families.AF_INET6 : Families.AF_INET;
+        byte proto = transport == TransportFam.TCP ? Proto.STREAM : Proto.DGRAM;
+        target.put(start + Fields.family, (byte) (family | proto));
+        int addressStart = start + Fields.addr;
+        if (ipv6) {
+            putIpv6Address(target, addressStart + Ipv6Addr.src_addr, source.getAddress());
+            target.putShort(addressStart + Ipv6Addr.src_port, (short) source.getPort());
+        } else {
+            byte[] address = source.getAddress().getAddress();
+            for (int i = 0; i < address.length; i++) target.put(addressStart + Ipv4Addr.src_addr + i, address[i]);
+            target.putShort(addressStart + Ipv4Addr.src_port, (short) source.getPort());
+        }
+    }
 
+    /**
+     * Write an PROXY protocol v2 header with the LOCAL command at the position of the buffer. Used for connections
+     * cleanstone opens on its own behalf, so the receiver uses the real connection endpoints.
+     * @param target Buffer the header is written to. Needs {@link #FIXED_HEADER_LENGTH} bytes remaining.
+     */
+    public static void encodeLocal(ByteBuffer target) {
+        target.put(sigBytes);
+        target.put(v2Local);
+        // AF_UNSPEC and UNSPEC, no address block follows
+        target.put((byte) 0x00);
+        target.putShort((short) 0);
+    }
 
-        // Write transport protocol family to header
-        byte family;
-        if (src_address.length == 16)  {
-            family = Families.AF_INET6;
+    /**
+     * Build the header parts depending on the destination of a connection.
+     * @param destination Address and port the connection was targeted at.
+     * @param ipv6 Create a header describing the connection with IPv6 addresses.
+     * @return Header with the source address and port left empty.
+     */
+    private static byte[] createTemplate(InetSocketAddress destination, boolean ipv6) {
+        int payloadLength = ipv6 ? Ipv6Addr.len : Ipv4Addr.len;
+        ByteBuffer template = ByteBuffer.allocate(Fields.addr + payloadLength);
+        template.put(sigBytes);
+        template.put(v2);
+        template.put(ipv6 ? Families.AF_INET6 : Families.AF_INET);
+        template.putShort((short) payloadLength);
+        if (ipv6) {
+            putIpv6Address(template, Fields.addr + Ipv6Addr.dst_addr, destination.getAddress());
+            template.putShort(Fields.addr + Ipv6Addr.dst_port, (short) destination.getPort());
         } else {
-            family = Families.AF_INET;
+            byte[] address = destination.getAddress().getAddress();
+            for (int i = 0; i < address.length; i++) template.put(Fields.addr + Ipv4Addr.dst_addr + i, address[i]);
+            template.putShort(Fields.addr + Ipv4Addr.dst_port, (short) destination.getPort());
         }
-        family = (transport == TransportFam.TCP) ? (byte) (family + 0x1) : (byte) (family + 0x2);
-        header[offset] = family;
-        offset++;
-
-        // Write header payload length to header array
-        ByteBuffer buffer = ByteBuffer.allocate(2);
-        buffer.putShort((short) headerPayloadLength);
-        System.arraycopy(buffer.array(), 0, header, offset, buffer.array().length);
-        offset = offset + 2;
-
-        // Write source address
-        System.arraycopy(src_address, 0, header, offset, src_address.length);
-        offset = offset + src_address.length;
-
-        // Write destination address
-        System.arraycopy(dst_address, 0, header, offset, dst_address.length);
-        offset = offset + dst_address.length;
-
-        // Write source port
-        buffer = ByteBuffer.allocate(2);
-        buffer.putShort((short) src_port);
-        System.arraycopy(buffer.array(), 0, header, offset, buffer.array().length);
-        offset = offset + 2;
-
-        // Write destination port
-        buffer = ByteBuffer.allocate(2);
-        buffer.putShort((short) dst_port);
-        System.arraycopy(buffer.array(), 0, header, offset, buffer.array().length);
-
-        return header;
+        return template.array();
     }
 
     /**
-     * Decode an uint8_t to an Java int.
-     * @param buffer Byte array to read from.
-     * @param offset Offset from which to start reading.
-     * @return int with the value read from the data.
+     * Write an address as IPv6 address at the given index of a buffer. IPv4 addresses are written as IPv4-mapped
+     * IPv6 addresses.
+     * @param target Buffer to write to.
+     * @param index Index the address is written at.
+     * @param address Address to write.
      */
-    private static int decodeUInt8(byte[] buffer, byte offset) {
-        return ((buffer[offset] & 0xFF) << 8) |
-                ((buffer[offset + 1] & 0xFF));
+    private static void putIpv6Address(ByteBuffer target, int index, InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int padding = 16 - bytes.length;
+        for (int i = 0; i < padding; i++) {
+            // IPv4-mapped addresses are prefixed with 80 zero bits followed by 16 one bits
+            target.put(index + i, i < 10 ? 0 : (byte) 0xFF);
+        }
+        for (int i = 0; i < bytes.length; i++) target.put(index + padding + i, bytes[i]);
     }
 
     /**
-     * Decode an IPv4 address from byte representation to {@link InetAddress}.
-     * @param buffer Byte array to read from.
-     * @param offset Offset from which to start reading.
-     * @return {@link InetAddress} representation of the IPv4 address.
-     * @throws UnknownHostException Thrown if the read byte array can't be parsed.
+     * Check if a connection has to be described with IPv6 addresses.
+     * @param source Address that initiated the connection.
+     * @param destination Address the connection was targeted at.
+     * @return true if one of the addresses is an IPv6 address, otherwise false.
      */
-    private static InetAddress decodeV4Address(byte[] buffer, byte offset) throws UnknownHostException {
-        byte[] address = new byte[4];
-        System.arraycopy(buffer, offset, address, 0, 4);
-        return InetAddress.getByAddress(address);
+    private static boolean isIpv6(InetSocketAddress source, InetSocketAddress destination) {
+        return source.getAddress() instanceof Inet6Address || destination.getAddress() instanceof Inet6Address;
     }
 
     /**
-     * Decode an IPv6 address from byte representation to {@link InetAddress}.
+     * Decode an uint16_t to an Java int.
      * @param buffer Byte array to read from.
      * @param offset Offset from which to start reading.
-     * @return {@link InetAddress} representation of the IPv6 address.
-     * @throws UnknownHostException Thrown if the read byte array can't be parsed.
+     * @return int with the value read from the data.
      */
-    private static InetAddress decodeV6Address(byte[] buffer, byte offset) throws UnknownHostException {
-        byte[] address = new byte[16];
-        System.arraycopy(buffer, offset, address, 0, 16);
-        return InetAddress.getByAddress(address);
+    private static int decodeUInt16(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 8) |
+                ((buffer[offset + 1] & 0xFF));
     }
 }
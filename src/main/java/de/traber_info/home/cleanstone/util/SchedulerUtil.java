@@ -0,0 +1,48 @@
+package de.traber_info.home.cleanstone.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Utility class holding the scheduler shared by all periodic background tasks of cleanstone and the timing wheel
+ * shared by the deadlines of all connections.
+ *
+ * @author Oliver Traber
+ */
+public class SchedulerUtil {
+
+    /** Scheduler running periodic background tasks on a single daemon thread */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cleanstone-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Duration of a tick of the timing wheel in milliseconds */
+    private static final long TIMER_TICK_MILLIS = 10;
+
+    /** Count of slots of the timing wheel, so a turn covers about five seconds */
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    /** Timing wheel running the deadlines of all connections on a single daemon thread */
+    private static final TimerWheel timerWheel = new TimerWheel("cleanstone-timer", TIMER_TICK_MILLIS,
+            TIMER_WHEEL_SIZE);
+
+    /**
+     * Get the scheduler shared by all periodic background tasks. Tasks must be short and must not block.
+     * @return Scheduler shared by all periodic background tasks.
+     */
+    public static ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Get the timing wheel shared by the handshake, connect and idle deadlines of all connections. Arming and
+     * cancelling a timeout is cheap enough to do for every connection.
+     * @return Timing wheel shared by all connections.
+     */
+    public static TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+}
@@ -0,0 +1,86 @@
+package de.traber_info.home.cleanstone.util;
+
+import de.traber_info.home.cleanstone.model.config.ConfigFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Utility class to start the threads handling client connections, either as platform or as virtual threads.
+ * Virtual threads are created reflectively, so cleanstone can still be built and run with Java 11.
+ *
+ * @author Oliver Traber
+ */
+public class ThreadUtil {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadUtil.class.getName());
+
+    /** Factory used to create the threads handling client connections */
+    private static ThreadFactory connectionThreadFactory = Thread::new;
+
+    /** Method to check if a thread is a virtual thread, or null if the runtime doesn't support virtual threads */
+    private static final Method isVirtualMethod = findIsVirtualMethod();
+
+    /**
+     * Select the kind of threads used to handle client connections.
+     * @param threadMode Kind of threads that should be used.
+     */
+    public static void init(ConfigFile.ThreadMode threadMode) {
+        if (threadMode != ConfigFile.ThreadMode.VIRTUAL) {
+            connectionThreadFactory = Thread::new;
+            return;
+        }
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "cleanstone-vt-", 0L);
+            connectionThreadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            LOG.info("Handling client connections on virtual threads");
+        } catch (ReflectiveOperationException ex) {
+            LOG.warn("Virtual threads require Java 21 or newer, but cleanstone is running on Java {}. " +
+                    "Falling back to platform threads.", System.getProperty("java.version"));
+            connectionThreadFactory = Thread::new;
+        }
+    }
+
+    /**
+     * Start a new thread to handle (a part of) a client connection.
+     * @param task Task that should be run by the thread.
+     * @return The started thread.
+     */
+    public static Thread startThread(Runnable task) {
+        Thread thread = connectionThreadFactory.newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Check if the given thread is a virtual thread.
+     * @param thread Thread that should be checked.
+     * @return true if the thread is a virtual thread, otherwise false.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (isVirtualMethod == null) return false;
+        try {
+            return (boolean) isVirtualMethod.invoke(thread);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Look up the method to check if a thread is a virtual thread.
+     * @return Method to check if a thread is a virtual thread, or null if the runtime doesn't support them.
+     */
+    private static Method findIsVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+package de.traber_info.home.cleanstone.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for the deadlines of connections, e.g. handshake, connect and idle timeouts. Arming and
+ * cancelling a timeout only appends it to a lock-free queue, so both are O(1) for any count of connections. A single
+ * worker thread moves new timeouts into the slot of the wheel they expire in and runs the expired ones once per
+ * tick. Timeouts fire up to one tick late, which is fine for deadlines of seconds.
+ *
+ * Expired tasks run on the worker thread, so they must be short and must not block. Tasks of event loop based
+ * engines hand their work to the event loop.
+ *
+ * @author Oliver Traber
+ */
+public class TimerWheel {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(TimerWheel.class.getName());
+
+    /** Maximum count of new timeouts moved into the wheel per tick, so a flood of new timeouts can't stall it */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    /** Duration of a tick in nanoseconds */
+    private final long tickNanos;
+
+    /** Slots of the wheel. A timeout is placed in the slot of the tick it expires in */
+    private final Slot[] wheel;
+
+    /** Mask selecting the slot of a tick, since the wheel size is a power of two */
+    private final int mask;
+
+    /** Timeouts armed since the last tick */
+    private final Queue<Timeout> armed = new ConcurrentLinkedQueue<>();
+
+    /** Timeouts cancelled since the last tick */
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    /** Point in time the wheel was started at, in nanoseconds. Deadlines are relative to it */
+    private final long startedAt = System.nanoTime();
+
+    /** Count of ticks processed. Only used by the worker thread */
+    private long tick;
+
+    /**
+     * Create a timing wheel and start its worker thread.
+     * @param name Name of the worker thread.
+     * @param tickMillis Duration of a tick in milliseconds.
+     * @param wheelSize Count of slots of the wheel. Rounded up to the next power of two.
+     */
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Slot[size];
+        for (int i = 0; i < size; i++) wheel[i] = new Slot();
+        this.mask = size - 1;
+
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Arm a timeout. Can be called from any thread.
+     * @param task Task run on the worker thread once the timeout expires. Must be short and must not block.
+     * @param delayMillis Time in milliseconds after which the timeout expires.
+     * @return Timeout that can be cancelled.
+     */
+    public Timeout newTimeout(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startedAt + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline);
+        armed.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Main loop of the worker thread. Waits for the end of each tick, applies the timeouts armed and cancelled in
+     * the meantime and runs the timeouts of the slot that is due.
+     */
+    private void run() {
+        while (true) {
+            long tickEnd = tickNanos * (tick + 1);
+            long sleepNanos;
+            while ((sleepNanos = tickEnd - (System.nanoTime() - startedAt)) > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+            }
+
+            removeCancelled();
+            transferArmed();
+            wheel[(int) (tick & mask)].expire(tickEnd);
+            tick++;
+        }
+    }
+
+    /**
+     * Remove all timeouts cancelled since the last tick from their slots.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot != null) timeout.slot.remove(timeout);
+        }
+    }
+
+    /**
+     * Move the timeouts armed since the last tick into the slots they expire in. Timeouts that are due already
+     * go into the current slot.
+     */
+    private void transferArmed() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = armed.poll();
+            if (timeout == null) return;
+            if (timeout.state.get() != Timeout.ARMED) continue;
+
+            long expiresAtTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiresAtTick - tick) / wheel.length;
+            wheel[(int) (Math.max(expiresAtTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Timeout armed on a {@link TimerWheel}.
+     */
+    public final class Timeout {
+
+        /** State of a timeout that is neither cancelled nor expired */
+        private static final int ARMED = 0;
+
+        /** State of a cancelled timeout */
+        private static final int CANCELLED = 1;
+
+        /** State of an expired timeout */
+        private static final int EXPIRED = 2;
+
+        /** Task run once the timeout expires */
+        private final Runnable task;
+
+        /** Point in time the timeout expires at, in nanoseconds relative to the start of the wheel */
+        private final long deadline;
+
+        /** Current state. Cancelling and expiring race for it, only one of them wins */
+        private final AtomicInteger state = new AtomicInteger(ARMED);
+
+        /** Count of full turns of the wheel left until the timeout expires. Only used by the worker thread */
+        private long remainingRounds;
+
+        /** Slot holding the timeout, or null while it isn't in the wheel. Only used by the worker thread */
+        private Slot slot;
+
+        /** Previous timeout in the same slot. Only used by the worker thread */
+        private Timeout previous;
+
+        /** Next timeout in the same slot. Only used by the worker thread */
+        private Timeout next;
+
+        /**
+         * Create a timeout.
+         * @param task Task run once the timeout expires.
+         * @param deadline Point in time the timeout expires at, in nanoseconds relative to the start of the wheel.
+         */
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout, so its task is not run. Does nothing if it expired already. Can be called from any
+         * thread.
+         * @return true if the timeout was cancelled, false if it expired or was cancelled before.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(ARMED, CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Check if the timeout expired and its task was run or is running.
+         * @return true if the timeout expired, otherwise false.
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        /**
+         * Run the task unless the timeout was cancelled in the meantime.
+         */
+        private void expire() {
+            if (!state.compareAndSet(ARMED, EXPIRED)) return;
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOG.error("An unexpected error occurred in timer task...", ex);
+            }
+        }
+    }
+
+    /**
+     * Slot of the wheel holding the timeouts that expire in the same tick of any turn, as doubly linked list.
+     * Only used by the worker thread.
+     */
+    private static final class Slot {
+
+        /** First timeout of the slot */
+        private Timeout head;
+
+        /** Last timeout of the slot */
+        private Timeout tail;
+
+        /**
+         * Append a timeout to this slot.
+         * @param timeout Timeout to append.
+         */
+        private void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.previous = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        /**
+         * Unlink a timeout from this slot.
+         * @param timeout Timeout to unlink.
+         */
+        private void remove(Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.slot = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Run the timeouts of this slot that are due in the current turn and count down the rounds of all others.
+         * @param tickEnd End of the current tick, in nanoseconds relative to the start of the wheel.
+         */
+        private void expire(long tickEnd) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= tickEnd) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+}
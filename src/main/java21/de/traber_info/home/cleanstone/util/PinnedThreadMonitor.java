@@ -0,0 +1,59 @@
+package de.traber_info.home.cleanstone.util;
+
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * Reports virtual threads that are pinned to their carrier thread using JFR event streaming.
+ * Only compiled by the jdk21 build profile and loaded reflectively by {@link BlockingProbe}.
+ *
+ * @author Oliver Traber
+ */
+public class PinnedThreadMonitor {
+
+    /** SLF4J logger for usage in this class */
+    private static final Logger LOG = LoggerFactory.getLogger(PinnedThreadMonitor.class.getName());
+
+    /** Count of stack frames included in a report */
+    private static final int MAX_FRAMES = 8;
+
+    /**
+     * Start streaming pinning events in the background.
+     * @param thresholdMillis Time in milliseconds a virtual thread has to be pinned before it is reported.
+     */
+    public static void start(long thresholdMillis) {
+        RecordingStream stream = new RecordingStream();
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ofMillis(thresholdMillis)).withStackTrace();
+        stream.onEvent("jdk.VirtualThreadPinned", event -> LOG.warn("Virtual thread pinned to its carrier for {} ms at {}",
+                event.getDuration().toMillis(),
+                formatStackTrace(event.getStackTrace())
+        ));
+        stream.startAsync();
+        LOG.info("Reporting virtual threads pinned for more than {} ms", thresholdMillis);
+    }
+
+    /**
+     * Format the top frames of a recorded stack trace.
+     * @param stackTrace Recorded stack trace, may be null.
+     * @return Printable representation of the stack trace.
+     */
+    private static String formatStackTrace(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) return "unknown location";
+        StringBuilder builder = new StringBuilder();
+        int count = 0;
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (count++ == MAX_FRAMES) break;
+            builder.append(System.lineSeparator()).append("\tat ")
+                    .append(frame.getMethod().getType().getName()).append('.')
+                    .append(frame.getMethod().getName()).append(':')
+                    .append(frame.getLineNumber());
+        }
+        return builder.toString();
+    }
+
+}